@@ -0,0 +1,115 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2017 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.stitcher.benchmark;
+
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.realtransform.AffineGet;
+import net.imglib2.realtransform.AffineTransform2D;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.numeric.integer.LongType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+import net.preibisch.stitcher.input.FractalSpimDataGenerator;
+
+/**
+ * Synthetic (fractal) images for the benchmarks, rendered once into memory.
+ */
+public class BenchmarkImages
+{
+	/**
+	 * @param size e.g. "256x256" or "128x128x64"
+	 * @return the dimensions
+	 */
+	public static long[] parseSize( final String size )
+	{
+		final String[] parts = size.split( "x" );
+		final long[] dims = new long[ parts.length ];
+		for ( int d = 0; d < dims.length; ++d )
+			dims[ d ] = Long.parseLong( parts[ d ].trim() );
+		return dims;
+	}
+
+	/**
+	 * render a part of a fractal (2d or 3d) into an ArrayImg
+	 * @param min min of the part to render
+	 * @param dims size of the part to render (the fractal is scaled to the largest dimension)
+	 * @return the zero-min image
+	 */
+	public static Img< FloatType > fractal( final long[] min, final long[] dims )
+	{
+		final int n = dims.length;
+
+		long maxDim = 0;
+		for ( int d = 0; d < n; ++d )
+			maxDim = Math.max( maxDim, dims[ d ] );
+
+		final double scale = maxDim / 2.0;
+		final AffineGet transform;
+
+		if ( n == 2 )
+		{
+			final AffineTransform2D t = new AffineTransform2D();
+			t.set( scale, 0, maxDim / 2.0, 0, scale, maxDim / 2.0 );
+			transform = t;
+		}
+		else
+		{
+			final AffineTransform3D t = new AffineTransform3D();
+			t.set( scale, 0, 0, maxDim / 2.0, 0, scale, 0, maxDim / 2.0, 0, 0, scale, maxDim / 2.0 );
+			transform = t;
+		}
+
+		final FractalSpimDataGenerator fsdg = new FractalSpimDataGenerator( n );
+		fsdg.addFractal( transform );
+
+		final long[] max = new long[ n ];
+		for ( int d = 0; d < n; ++d )
+			max[ d ] = min[ d ] + dims[ d ] - 1;
+
+		final RandomAccessibleInterval< LongType > fractal = fsdg.getImage( new FinalInterval( min, max ) );
+		final Img< FloatType > img = ArrayImgs.floats( dims );
+
+		final Cursor< LongType > in = Views.flatIterable( fractal ).cursor();
+		final Cursor< FloatType > out = img.cursor();
+
+		while ( out.hasNext() )
+			out.next().set( in.next().get() );
+
+		return img;
+	}
+
+	/**
+	 * @param dims size of the images
+	 * @return the shift between the two images of a pair (10% of the size)
+	 */
+	public static long[] pairShift( final long[] dims )
+	{
+		final long[] shift = new long[ dims.length ];
+		for ( int d = 0; d < dims.length; ++d )
+			shift[ d ] = dims[ d ] / 10;
+		return shift;
+	}
+}
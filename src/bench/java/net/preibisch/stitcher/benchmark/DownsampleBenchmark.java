@@ -0,0 +1,77 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2017 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.stitcher.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.type.numeric.real.FloatType;
+import net.preibisch.stitcher.algorithm.DownsampleTools;
+
+/**
+ * Benchmark of the downsampling that is applied to every view before pairwise stitching.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class DownsampleBenchmark
+{
+	@Param( { "1024x1024", "2048x2048", "256x256x64", "512x512x128" } )
+	public String size;
+
+	// downsampling in x and y (z is downsampled by half of it, as is typical for anisotropic data)
+	@Param( { "2", "4" } )
+	public int downsampling;
+
+	Img< FloatType > img;
+	long[] downsampleFactors;
+
+	@Setup( Level.Trial )
+	public void setup()
+	{
+		img = BenchmarkImages.fractal( new long[ BenchmarkImages.parseSize( size ).length ], BenchmarkImages.parseSize( size ) );
+		downsampleFactors = new long[] { downsampling, downsampling, Math.max( 1, downsampling / 2 ) };
+	}
+
+	@Benchmark
+	public RandomAccessibleInterval< FloatType > downsample()
+	{
+		return DownsampleTools.downsample( img, downsampleFactors );
+	}
+}
@@ -0,0 +1,188 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2017 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.stitcher.benchmark;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.imglib2.Cursor;
+import net.imglib2.Localizable;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.algorithm.phasecorrelation.FFTBufferPool;
+import net.imglib2.algorithm.phasecorrelation.FourNeighborhoodExtrema;
+import net.imglib2.algorithm.phasecorrelation.PhaseCorrelation2;
+import net.imglib2.algorithm.phasecorrelation.PhaseCorrelation2Util;
+import net.imglib2.algorithm.phasecorrelation.PhaseCorrelationPeak2;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.type.numeric.complex.ComplexFloatType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Pair;
+import net.imglib2.view.Views;
+import net.preibisch.mvrecon.Threads;
+import net.preibisch.stitcher.algorithm.PairwiseStitching;
+
+/**
+ * Benchmarks of the steps of the pairwise phase correlation (as called from PairwiseStitching.getShift)
+ * on two overlapping crops of a synthetic fractal image, shifted by 10% of their size.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class PhaseCorrelationBenchmark
+{
+	@Param( { "256x256", "1024x1024", "64x64x64", "128x128x128" } )
+	public String size;
+
+	public static int numPeaks = 5;
+
+	Img< FloatType > img1, img2;
+	int[] extension;
+	ExecutorService service;
+
+	// the normalized PCM of the two images
+	Img< FloatType > pcm;
+
+	// the best peak (with shift and subpixel shift) of the two images
+	PhaseCorrelationPeak2 peak;
+
+	@Setup( Level.Trial )
+	public void setup()
+	{
+		final long[] dims = BenchmarkImages.parseSize( size );
+		final long[] shift = BenchmarkImages.pairShift( dims );
+
+		img1 = BenchmarkImages.fractal( new long[ dims.length ], dims );
+		img2 = BenchmarkImages.fractal( shift, dims );
+
+		extension = new int[ dims.length ];
+		Arrays.fill( extension, PairwiseStitching.PCM_EXTENSION );
+
+		service = Executors.newFixedThreadPool( Threads.numThreads() );
+
+		pcm = (Img< FloatType >) PhaseCorrelation2.calculatePCM( img1, img2, extension,
+				new ArrayImgFactory< FloatType >(), new FloatType(), new ArrayImgFactory< ComplexFloatType >(), new ComplexFloatType(), service );
+		PairwiseStitching.normalizePCM( pcm, service );
+
+		peak = PhaseCorrelation2.getShift( pcm, img1, img2, numPeaks, 0, true, false, service );
+	}
+
+	@TearDown( Level.Trial )
+	public void tearDown()
+	{
+		service.shutdown();
+		FFTBufferPool.getInstance().clear();
+	}
+
+	/**
+	 * a fresh copy of the raw PCM for every invocation, since the normalization works in place
+	 */
+	@State( Scope.Thread )
+	public static class RawPCM
+	{
+		Img< FloatType > raw, work;
+
+		@Setup( Level.Trial )
+		public void setup( final PhaseCorrelationBenchmark b )
+		{
+			raw = (Img< FloatType >) PhaseCorrelation2.calculatePCM( b.img1, b.img2, b.extension,
+					new ArrayImgFactory< FloatType >(), new FloatType(), new ArrayImgFactory< ComplexFloatType >(), new ComplexFloatType(), b.service );
+			work = raw.copy();
+		}
+
+		@Setup( Level.Invocation )
+		public void reset()
+		{
+			final Cursor< FloatType > in = raw.cursor();
+			final Cursor< FloatType > out = work.cursor();
+			while ( out.hasNext() )
+				out.next().set( in.next() );
+		}
+	}
+
+	@Benchmark
+	public float calculatePCM()
+	{
+		// as in PairwiseStitching, the FFTs are computed in pooled buffers
+		final FFTBufferPool.Buffers buffers = FFTBufferPool.getInstance().acquire(
+				PhaseCorrelation2Util.getExtendedSize( img1, img2, extension ) );
+
+		try
+		{
+			final RandomAccessibleInterval< FloatType > result = PhaseCorrelation2.calculatePCM( img1, img2, extension, buffers, service );
+			return Views.iterable( result ).firstElement().get();
+		}
+		finally
+		{
+			FFTBufferPool.getInstance().release( buffers );
+		}
+	}
+
+	@Benchmark
+	public Img< FloatType > normalizePCM( final RawPCM state )
+	{
+		PairwiseStitching.normalizePCM( state.work, service );
+		return state.work;
+	}
+
+	@Benchmark
+	public ArrayList< Pair< Localizable, Double > > findMaxMT()
+	{
+		return FourNeighborhoodExtrema.findMaxMT( Views.extendPeriodic( pcm ), pcm, numPeaks, service );
+	}
+
+	@Benchmark
+	public double calculateCrossCorr()
+	{
+		final PhaseCorrelationPeak2 p = new PhaseCorrelationPeak2( peak );
+		p.calculateCrossCorr( img1, img2, 0 );
+		return p.getCrossCorr();
+	}
+
+	@Benchmark
+	public double calculateCrossCorrInterpolated()
+	{
+		final PhaseCorrelationPeak2 p = new PhaseCorrelationPeak2( peak );
+		p.calculateCrossCorr( img1, img2, 0, true );
+		return p.getCrossCorr();
+	}
+}
@@ -0,0 +1,159 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2017 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.imglib2.algorithm.phasecorrelation;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import net.imglib2.Dimensions;
+import net.imglib2.algorithm.fft2.FFTMethods;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.type.numeric.complex.ComplexFloatType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+
+/**
+ * Pool of FFT buffers (two spectra and one PCM) that can be re-used across phase correlations of the same
+ * (extended) size, which is almost always the case when stitching regular grids. Buffers are handed out
+ * to one thread at a time via {@link #acquire(Dimensions)} and have to be given back via {@link #release(Buffers)}.
+ */
+public class FFTBufferPool
+{
+	// maximal number of unused buffer sets kept in the pool
+	public static int defaultMaxFreeBuffers = Runtime.getRuntime().availableProcessors();
+
+	private static FFTBufferPool instance;
+
+	public static synchronized FFTBufferPool getInstance()
+	{
+		if ( instance == null )
+			instance = new FFTBufferPool( defaultMaxFreeBuffers );
+		return instance;
+	}
+
+	public static class Buffers
+	{
+		final List< Long > key;
+
+		// size of the padded real image and of its spectrum
+		public final long[] paddedDimensions;
+		public final long[] fftSize;
+
+		public final Img< ComplexFloatType > fft1;
+		public final Img< ComplexFloatType > fft2;
+		public final Img< FloatType > pcm;
+
+		Buffers( final List< Long > key, final long[] paddedDimensions, final long[] fftSize )
+		{
+			this.key = key;
+			this.paddedDimensions = paddedDimensions;
+			this.fftSize = fftSize;
+
+			this.fft1 = new ArrayImgFactory< ComplexFloatType >().create( fftSize, new ComplexFloatType() );
+			this.fft2 = new ArrayImgFactory< ComplexFloatType >().create( fftSize, new ComplexFloatType() );
+			this.pcm = new ArrayImgFactory< FloatType >().create( paddedDimensions, new FloatType() );
+		}
+	}
+
+	private final HashMap< List< Long >, ArrayDeque< Buffers > > free;
+	private final HashMap< List< Long >, long[][] > fftSizes;
+	private final int maxFreeBuffers;
+	private int numFree;
+
+	public FFTBufferPool( final int maxFreeBuffers )
+	{
+		this.free = new HashMap<>();
+		this.fftSizes = new HashMap<>();
+		this.maxFreeBuffers = maxFreeBuffers;
+		this.numFree = 0;
+	}
+
+	/**
+	 * get buffers for the phase correlation of images of the given (extended) size,
+	 * they are re-used if possible and allocated otherwise
+	 *
+	 * @param extSize - size of the extended images (see {@link PhaseCorrelation2Util#getExtendedSize(Dimensions, Dimensions, int[])})
+	 * @return buffers that are exclusively used by the caller until they are released
+	 */
+	public Buffers acquire( final Dimensions extSize )
+	{
+		final List< Long > key = Arrays.asList( Arrays.stream( Intervals.dimensionsAsLongArray( extSize ) ).boxed().toArray( Long[]::new ) );
+		long[][] sizes;
+
+		synchronized ( this )
+		{
+			final ArrayDeque< Buffers > queue = free.get( key );
+			if ( queue != null && !queue.isEmpty() )
+			{
+				--numFree;
+				return queue.pop();
+			}
+
+			sizes = fftSizes.get( key );
+		}
+
+		if ( sizes == null )
+		{
+			sizes = new long[ 2 ][ extSize.numDimensions() ];
+			FFTMethods.dimensionsRealToComplexFast( extSize, sizes[ 0 ], sizes[ 1 ] );
+
+			synchronized ( this )
+			{
+				fftSizes.put( key, sizes );
+			}
+		}
+
+		return new Buffers( key, sizes[ 0 ], sizes[ 1 ] );
+	}
+
+	/**
+	 * give buffers back to the pool, they must not be used by the caller afterwards
+	 *
+	 * @param buffers - buffers obtained by {@link #acquire(Dimensions)}
+	 */
+	public synchronized void release( final Buffers buffers )
+	{
+		if ( buffers == null || numFree >= maxFreeBuffers )
+			return;
+
+		free.computeIfAbsent( buffers.key, k -> new ArrayDeque<>() ).push( buffers );
+		++numFree;
+	}
+
+	/**
+	 * @return maximal number of unused buffer sets kept in the pool
+	 */
+	public int getMaxFreeBuffers() { return maxFreeBuffers; }
+
+	/**
+	 * free all unused buffers
+	 */
+	public synchronized void clear()
+	{
+		free.clear();
+		fftSizes.clear();
+		numFree = 0;
+	}
+}
@@ -137,28 +137,178 @@ public class FourNeighborhoodExtrema
 		return res;
 	}
 	
+	/**
+	 * bounded collection of the maxN highest values and their positions, kept in a min-heap of
+	 * primitive arrays so that adding a candidate does not allocate anything
+	 */
+	public static class TopK
+	{
+		private final int maxN;
+		private final int n;
+		private final double[] values;
+		private final long[] positions;
+		private int size = 0;
+
+		public TopK( final int maxN, final int numDimensions )
+		{
+			this.maxN = maxN;
+			this.n = numDimensions;
+			this.values = new double[ maxN ];
+			this.positions = new long[ maxN * numDimensions ];
+		}
+
+		public int size()
+		{
+			return size;
+		}
+
+		/**
+		 * @return values below this can be rejected right away (-Double.MAX_VALUE while not full)
+		 */
+		public double threshold()
+		{
+			if ( maxN == 0 )
+				return Double.POSITIVE_INFINITY;
+
+			return size < maxN ? -Double.MAX_VALUE : values[ 0 ];
+		}
+
+		/**
+		 * add a value if it is among the maxN highest
+		 * @param value the value
+		 * @param position its position
+		 */
+		public void offer( final double value, final Localizable position )
+		{
+			if ( maxN == 0 || value < threshold() )
+				return;
+
+			if ( size < maxN )
+			{
+				set( size, value, position );
+				siftUp( size++ );
+			}
+			else
+			{
+				// replace the smallest value
+				set( 0, value, position );
+				siftDown( 0 );
+			}
+		}
+
+		/**
+		 * add all values of another TopK
+		 * @param other the values to add
+		 */
+		public void merge( final TopK other )
+		{
+			final Point p = new Point( n );
+			for ( int i = 0; i < other.size; ++i )
+			{
+				p.setPosition( other.getPosition( i ) );
+				offer( other.values[ i ], p );
+			}
+		}
+
+		/**
+		 * @return the values and their positions, sorted in descending order
+		 */
+		public ArrayList< Pair< Localizable, Double > > toList()
+		{
+			final ArrayList< Pair< Localizable, Double > > list = new ArrayList<>( size );
+			for ( int i = 0; i < size; ++i )
+				list.add( new ValuePair< Localizable, Double >( new Point( getPosition( i ) ), values[ i ] ) );
+
+			list.sort( ( a, b ) -> Double.compare( b.getB(), a.getB() ) );
+			return list;
+		}
+
+		private long[] getPosition( final int i )
+		{
+			final long[] pos = new long[ n ];
+			System.arraycopy( positions, i * n, pos, 0, n );
+			return pos;
+		}
+
+		private void set( final int i, final double value, final Localizable position )
+		{
+			values[ i ] = value;
+			for ( int d = 0; d < n; ++d )
+				positions[ i * n + d ] = position.getLongPosition( d );
+		}
+
+		private void swap( final int i, final int j )
+		{
+			final double v = values[ i ];
+			values[ i ] = values[ j ];
+			values[ j ] = v;
+
+			for ( int d = 0; d < n; ++d )
+			{
+				final long p = positions[ i * n + d ];
+				positions[ i * n + d ] = positions[ j * n + d ];
+				positions[ j * n + d ] = p;
+			}
+		}
+
+		private void siftUp( int i )
+		{
+			while ( i > 0 )
+			{
+				final int parent = ( i - 1 ) / 2;
+				if ( values[ parent ] <= values[ i ] )
+					return;
+
+				swap( i, parent );
+				i = parent;
+			}
+		}
+
+		private void siftDown( int i )
+		{
+			while ( true )
+			{
+				final int left = 2 * i + 1;
+				final int right = left + 1;
+				int smallest = i;
+
+				if ( left < size && values[ left ] < values[ smallest ] )
+					smallest = left;
+				if ( right < size && values[ right ] < values[ smallest ] )
+					smallest = right;
+
+				if ( smallest == i )
+					return;
+
+				swap( i, smallest );
+				i = smallest;
+			}
+		}
+	}
+
 	public static < T extends RealType< T > > ArrayList< Pair< Localizable, Double > > findMaxMT( final RandomAccessible< T > img, final Interval region, final int maxN , ExecutorService service){
 		
 		
 		int nTasks = Runtime.getRuntime().availableProcessors() * 4;
 		List<Interval> intervals = splitAlongLargestDimension(region, nTasks);
-		List<Future<ArrayList< Pair< Localizable, Double > >>> futures = new ArrayList<Future<ArrayList<Pair<Localizable,Double>>>>();
+		List<Future<TopK>> futures = new ArrayList<Future<TopK>>();
 		
 		for (final Interval i : intervals){
-			futures.add(service.submit(new Callable<ArrayList< Pair< Localizable, Double > >>() {
+			futures.add(service.submit(new Callable<TopK>() {
 
 				@Override
-				public ArrayList<Pair<Localizable, Double>> call() throws Exception {
-					return findMax(img, i, maxN);
+				public TopK call() throws Exception {
+					return findMaxTopK(img, i, maxN);
 				}
 			}));
 		}
 		
-		List<List< Pair< Localizable, Double > >> toMerge = new ArrayList<List<Pair<Localizable,Double>>>();
+		// merge the per-thread results
+		final TopK res = new TopK( maxN, img.numDimensions() );
 		
-		for (Future<ArrayList< Pair< Localizable, Double > >> f : futures){
+		for (Future<TopK> f : futures){
 			try {
-				toMerge.add(f.get());
+				res.merge(f.get());
 			} catch (InterruptedException e) {
 				// TODO Auto-generated catch block
 				e.printStackTrace();
@@ -167,32 +317,31 @@ public class FourNeighborhoodExtrema
 				e.printStackTrace();
 			}
 		}
-		
-		ArrayList< Pair< Localizable, Double > > res = merge(toMerge, maxN, new Comparator<Pair< Localizable, Double >>() {
-
-			@Override
-			public int compare(Pair<Localizable, Double> o1, Pair<Localizable, Double> o2) {
-				return (int) Math.signum(o1.getB() - o2.getB());
-			}
-		});
 
-		return res;
+		return res.toList();
 	}
 	
 	public static < T extends RealType< T > > ArrayList< Pair< Localizable, Double > > findMax( final RandomAccessible< T > img, final Interval region, final int maxN )
+	{
+		return findMaxTopK( img, region, maxN ).toList();
+	}
+
+	public static < T extends RealType< T > > TopK findMaxTopK( final RandomAccessible< T > img, final Interval region, final int maxN )
 	{
 		final Cursor< T > c = Views.iterable( Views.interval( img, region ) ).localizingCursor();
 		final RandomAccess< T > r = img.randomAccess();
 		final int n = img.numDimensions();
 
-		final ArrayList< Pair< Localizable, Double > > list = new ArrayList< Pair< Localizable, Double > >();
-
-		for ( int i = 0; i < maxN; ++i )
-			list.add( new ValuePair< Localizable, Double >( null, -Double.MAX_VALUE ) );
+		final TopK topK = new TopK( maxN, n );
 
 A:		while ( c.hasNext() )
 		{
 			final double type = c.next().getRealDouble();
+
+			// cheap reject before looking at the neighbors
+			if ( type < topK.threshold() )
+				continue A;
+
 			r.setPosition( c );
 
 			for ( int d = 0; d < n; ++d )
@@ -210,34 +359,10 @@ A:		while ( c.hasNext() )
 				r.fwd( d );
 			}
 
-			
-			for ( int i = maxN - 1; i >= 0; --i )
-			{
-				if ( type < list.get( i ).getB() )
-				{
-					if ( i == maxN - 1 )
-					{
-						continue A;
-					}
-					else
-					{
-						list.add( i + 1, new ValuePair< Localizable, Double >( new Point( c ), type ) );
-						list.remove( maxN );
-						continue A;
-					}
-				}
-			}
-
-			list.add( 0, new ValuePair< Localizable, Double >( new Point( c ), type ) );
-			list.remove( maxN );
+			topK.offer( type, c );
 		}
 
-		// remove all null elements
-		for ( int i = maxN -1; i >= 0; --i )
-			if ( list.get( i ).getA() == null )
-				list.remove(  i );
-
-		return list;
+		return topK;
 	}
 
 	public static void main( String[] args )
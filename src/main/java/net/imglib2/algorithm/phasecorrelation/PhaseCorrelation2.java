@@ -26,11 +26,9 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 import ij.ImageJ;
 import net.imglib2.Dimensions;
-import net.imglib2.FinalInterval;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.algorithm.fft2.FFT;
 import net.imglib2.algorithm.fft2.FFTMethods;
@@ -44,7 +42,10 @@ import net.imglib2.type.numeric.ComplexType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.complex.ComplexFloatType;
 import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
 import net.imglib2.view.Views;
+import net.preibisch.stitcher.algorithm.StitchingExecutor;
+import net.preibisch.stitcher.algorithm.StitchingMetrics;
 
 public class PhaseCorrelation2 {
 	
@@ -81,7 +82,21 @@ public class PhaseCorrelation2 {
 			ExecutorService service)
 	{
 		// TODO: multithreaded & check for cursor vs randomaccess
-		
+
+		// fast path: all ComplexFloatType ArrayImgs -> normalize, conjugate and multiply in one pass over the arrays
+		final float[] fft1Array = PhaseCorrelation2Util.getComplexFloatArray( fft1 );
+		final float[] fft2Array = PhaseCorrelation2Util.getComplexFloatArray( fft2 );
+		final float[] resArray = PhaseCorrelation2Util.getComplexFloatArray( fft1Copy );
+
+		if ( fft1Array != null && fft2Array != null && resArray != null &&
+				fft1Array.length == fft2Array.length && fft1Array.length == resArray.length &&
+				Intervals.equalDimensions( fft1, fft2 ) && Intervals.equalDimensions( fft1, fft1Copy ) )
+		{
+			PhaseCorrelation2Util.normalizeConjugateMultiply( fft1Array, fft2Array, resArray, 1E-5, service );
+			FFT.complexToReal(fft1Copy, pcm, service);
+			return;
+		}
+
 		// normalize, save to copies
 		PhaseCorrelation2Util.normalizeInterval(fft1, fft1Copy, service);
 		PhaseCorrelation2Util.normalizeInterval(fft2, fft2Copy, service);
@@ -171,16 +186,75 @@ public class PhaseCorrelation2 {
 		RandomAccessibleInterval<C> fft1 = fftFactory.create(fftSize, fftType);
 		RandomAccessibleInterval<C> fft2 = fftFactory.create(fftSize, fftType);
 		
-		FFT.realToComplex(Views.interval(PhaseCorrelation2Util.extendImageByFactor(img1, extension), 
-				FFTMethods.paddingIntervalCentered(img1, new FinalInterval(paddedDimensions))), fft1, service);
-		FFT.realToComplex(Views.interval(PhaseCorrelation2Util.extendImageByFactor(img2, extension), 
-				FFTMethods.paddingIntervalCentered(img2, new FinalInterval(paddedDimensions))), fft2, service);
+		// copy the extended inputs into one padded float image instead of reading them through the blended, mirrored views
+		Img<FloatType> padded = new ArrayImgFactory<FloatType>().create(paddedDimensions, new FloatType());
+
+		PhaseCorrelation2Util.copyExtendedPadded(img1, extension, padded, service);
+		FFT.realToComplex(padded, fft1, service);
+		PhaseCorrelation2Util.copyExtendedPadded(img2, extension, padded, service);
+		FFT.realToComplex(padded, fft2, service);
 		
 		RandomAccessibleInterval<R> pcm = calculatePCMInPlace(fft1, fft2, factory, type, service);
 		return pcm;
 		
 	}
 
+	/*
+	 * calculate the phase correlation matrix of two images, using FFT buffers from a FFTBufferPool
+	 * the returned PCM is stored in the buffers, so it is only valid until they are released
+	 * @param img1
+	 * @param img2
+	 * @param extension
+	 * @param buffers - buffers acquired for PhaseCorrelation2Util.getExtendedSize(img1, img2, extension)
+	 * @return
+	 */
+	public static <T extends RealType<T>, S extends RealType<S>> RandomAccessibleInterval<FloatType> calculatePCM(
+			RandomAccessibleInterval<T> img1, RandomAccessibleInterval<S> img2, int[] extension,
+			FFTBufferPool.Buffers buffers, ExecutorService service){
+		return calculatePCM(img1, img2, extension, buffers, null, null, null, service);
+	}
+
+	/*
+	 * calculate the phase correlation matrix of two images, using FFT buffers from a FFTBufferPool
+	 * and taking the spectra from a SpectrumCache if possible (newly computed spectra are added to the cache)
+	 * the returned PCM is stored in the buffers, so it is only valid until they are released
+	 * @param img1
+	 * @param img2
+	 * @param extension
+	 * @param buffers - buffers acquired for PhaseCorrelation2Util.getExtendedSize(img1, img2, extension)
+	 * @param cache - the spectrum cache to use or null
+	 * @param key1 - identifies the spectrum of img1 or null (-> not cached)
+	 * @param key2 - identifies the spectrum of img2 or null (-> not cached)
+	 * @return
+	 */
+	public static <T extends RealType<T>, S extends RealType<S>> RandomAccessibleInterval<FloatType> calculatePCM(
+			RandomAccessibleInterval<T> img1, RandomAccessibleInterval<S> img2, int[] extension,
+			FFTBufferPool.Buffers buffers, SpectrumCache cache, SpectrumCache.Key key1, SpectrumCache.Key key2, ExecutorService service){
+
+		// the buffers are completely overwritten, no need to clear them
+		if (cache == null || key1 == null || !cache.get(key1, buffers.fft1))
+		{
+			// the PCM buffer is not needed yet, we use it to hold the padded input
+			PhaseCorrelation2Util.copyExtendedPadded(img1, extension, buffers.pcm, service);
+			FFT.realToComplex(buffers.pcm, buffers.fft1, service);
+			if (cache != null && key1 != null)
+				cache.put(key1, buffers.fft1);
+		}
+
+		if (cache == null || key2 == null || !cache.get(key2, buffers.fft2))
+		{
+			// the PCM buffer is not needed yet, we use it to hold the padded input
+			PhaseCorrelation2Util.copyExtendedPadded(img2, extension, buffers.pcm, service);
+			FFT.realToComplex(buffers.pcm, buffers.fft2, service);
+			if (cache != null && key2 != null)
+				cache.put(key2, buffers.fft2);
+		}
+
+		// NB: this overwrites the spectra in the buffers, the cache holds copies
+		calculatePCMInPlace(buffers.fft1, buffers.fft2, buffers.pcm, service);
+		return buffers.pcm;
+	}
+
 	/*
 	 * calculate PCM with default extension
 	 * @param img1
@@ -215,14 +289,57 @@ public class PhaseCorrelation2 {
 			RandomAccessibleInterval<R> pcm, RandomAccessibleInterval<T> img1, RandomAccessibleInterval<S> img2, int nHighestPeaks,
 			long minOverlap, boolean subpixelAccuracy, boolean interpolateSubpixel, ExecutorService service)
 	{
+		return getShift( pcm, img1, img2, nHighestPeaks, minOverlap, subpixelAccuracy, interpolateSubpixel, 0, service );
+	}
+
+	/**
+	 * get the best shift among the shifts within a search window around zero (e.g. if the images are already roughly aligned)
+	 * @param pcm the phase correlation matrix of img1 and img2
+	 * @param img1 source image 1
+	 * @param img2 source image 2
+	 * @param nHighestPeaks the number of peaks in pcm to check via cross. corr.
+	 * @param minOverlap minimal overlap (in pixels)
+	 * @param subpixelAccuracy whether to do subpixel shift peak localization or not
+	 * @param interpolateSubpixel whether to interpolate the subpixel shift in cross. corr.
+	 * @param maxShift only consider shifts with an absolute value &lt;= maxShift in every dimension (&lt;= 0 means all shifts)
+	 * @param service thread pool
+	 * @param <R> PCM pixel type
+	 * @param <T> image 1 pixel type
+	 * @param <S> image 2 pixel type
+	 * @return best (highest c.c.) shift peak
+	 */
+	public static <T extends RealType<T>, S extends RealType<S>, R extends RealType<R>> PhaseCorrelationPeak2 getShift(
+			RandomAccessibleInterval<R> pcm, RandomAccessibleInterval<T> img1, RandomAccessibleInterval<S> img2, int nHighestPeaks,
+			long minOverlap, boolean subpixelAccuracy, boolean interpolateSubpixel, double maxShift, ExecutorService service)
+	{
+		final StitchingMetrics metrics = StitchingMetrics.getInstance();
+
 		System.out.println( "PCM" );
+		long tm = StitchingMetrics.start();
 		List<PhaseCorrelationPeak2> peaks = PhaseCorrelation2Util.getPCMMaxima(pcm, service, nHighestPeaks, subpixelAccuracy);
 		//peaks = PhaseCorrelation2Util.getHighestPCMMaxima(peaks, nHighestPeaks);
 		System.out.println( "expand" );
 		PhaseCorrelation2Util.expandPeakListToPossibleShifts(peaks, pcm, img1, img2);
+		metrics.stop( StitchingMetrics.PEAK_SEARCH, tm );
+
+		// no need to calculate the cross correlation of shifts outside of the search window
+		if ( maxShift > 0 )
+			peaks.removeIf( peak -> {
+				for ( int d = 0; d < peak.getShift().numDimensions(); ++d )
+					if ( Math.abs( peak.getShift().getLongPosition( d ) ) > maxShift )
+						return true;
+				return false;
+			});
+
 		System.out.print( "cross " );
 		long t = System.currentTimeMillis();
-		PhaseCorrelation2Util.calculateCrossCorrParallel(peaks, img1, img2, minOverlap, service, interpolateSubpixel);
+		tm = StitchingMetrics.start();
+		// integer shifts can be scored together in one pass over the images, interpolated ones one at a time
+		if (subpixelAccuracy && interpolateSubpixel)
+			PhaseCorrelation2Util.calculateCrossCorrParallel(peaks, img1, img2, minOverlap, service, true);
+		else
+			PhaseCorrelation2Util.calculateCrossCorrBatched(peaks, img1, img2, minOverlap, service);
+		metrics.stop( StitchingMetrics.CROSS_CORRELATION, tm );
 		System.out.println( (System.currentTimeMillis() - t) );
 		System.out.println( "sort" );
 		Collections.sort(peaks, Collections.reverseOrder(new PhaseCorrelationPeak2.ComparatorByCrossCorrelation()));
@@ -256,7 +373,7 @@ public class PhaseCorrelation2 {
 	}
 
 	/**
-	 * calculate the sift with default parameters (5 highest pcm peaks are considered, no minimum overlap, temporary thread pool,
+	 * calculate the sift with default parameters (5 highest pcm peaks are considered, no minimum overlap, shared thread pool,
 	 * no subpixel interpolation)
 	 * @param pcm the phase correlation matrix of img1 and img2
 	 * @param img1 source image 1
@@ -269,10 +386,7 @@ public class PhaseCorrelation2 {
 	public static <T extends RealType<T>, S extends RealType<S>, R extends RealType<R>> PhaseCorrelationPeak2 getShift(
 			RandomAccessibleInterval<R> pcm, RandomAccessibleInterval<T> img1, RandomAccessibleInterval<S> img2)
 	{
-		ExecutorService service = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
-		PhaseCorrelationPeak2 res = getShift(pcm, img1, img2, 5, 0, true, false, service);
-		service.shutdown();
-		return res;
+		return getShift(pcm, img1, img2, 5, 0, true, false, StitchingExecutor.getInstance());
 	}
 
 	public static void main(String[] args) {
@@ -282,7 +396,7 @@ public class PhaseCorrelation2 {
 		Img<FloatType> img1 = ImgLib2Util.openAs32Bit(new File("src/main/resources/img1singleplane.tif"));
 		Img<FloatType> img2 = ImgLib2Util.openAs32Bit(new File("src/main/resources/img2singleplane.tif"));
 		
-		ExecutorService service = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+		ExecutorService service = StitchingExecutor.getInstance();
 		
 		RandomAccessibleInterval<FloatType> pcm = calculatePCM(img1, img2, new ArrayImgFactory<FloatType>(), new FloatType(),
 				new ArrayImgFactory<ComplexFloatType>(), new ComplexFloatType(), service );
@@ -26,9 +26,9 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Vector;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -44,14 +44,19 @@ import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessible;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.RealPoint;
+import net.imglib2.algorithm.fft2.FFTMethods;
 import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImg;
 import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
 import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.realtransform.Translation3D;
 import net.imglib2.type.numeric.ComplexType;
 import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.complex.ComplexFloatType;
 import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.util.BenchmarkHelper;
+import net.imglib2.util.Intervals;
 import net.imglib2.util.Pair;
 import net.imglib2.util.Util;
 import net.imglib2.util.ValuePair;
@@ -60,6 +65,7 @@ import net.preibisch.mvrecon.process.fusion.FusionTools;
 import net.preibisch.mvrecon.process.fusion.ImagePortion;
 import net.preibisch.stitcher.algorithm.PairwiseStitching;
 import net.preibisch.stitcher.algorithm.PairwiseStitchingParameters;
+import net.preibisch.stitcher.algorithm.StitchingExecutor;
 
 
 
@@ -160,6 +166,135 @@ public class PhaseCorrelation2Util {
 		return new BlendedExtendedMirroredRandomAccesible2<T>(img, extEachSide);
 	}
 	
+	/*
+	 * fill target (zero-min, size of the padded FFT input) with the same values as
+	 * Views.interval(extendImageByFactor(img, extension), FFTMethods.paddingIntervalCentered(img, target)),
+	 * but line by line and in parallel: the part of a line that lies inside img is copied directly,
+	 * only the (blended, mirrored) border pixels go through the extended RandomAccessible
+	 * (if img and target are float ArrayImgs, the inside part is copied with System.arraycopy)
+	 * @param img
+	 * @param extension
+	 * @param target
+	 * @param service
+	 */
+	public static <T extends RealType<T>> void copyExtendedPadded(
+			final RandomAccessibleInterval<T> img, final int[] extension,
+			final RandomAccessibleInterval<FloatType> target, final ExecutorService service)
+	{
+		final int n = img.numDimensions();
+		final Interval padded = FFTMethods.paddingIntervalCentered( img, new FinalInterval( Intervals.dimensionsAsLongArray( target ) ) );
+		final RandomAccessible< T > extended = extendImageByFactor( img, extension );
+
+		final long lineLength = target.dimension( 0 );
+		final long numLines = Intervals.numElements( target ) / lineLength;
+
+		// part of every line (in image coordinates) that lies inside the image
+		final long interiorMin = Math.max( padded.min( 0 ), img.min( 0 ) );
+		final long interiorMax = Math.min( padded.max( 0 ), img.max( 0 ) );
+
+		// both images are flat float arrays -> the inside part of a line is one block in both
+		final float[] sourceArray = getFloatArray( img );
+		final float[] targetArray = getFloatArray( target );
+		final long[] sourceSteps = new long[ n ];
+		sourceSteps[ 0 ] = 1;
+		for ( int d = 1; d < n; ++d )
+			sourceSteps[ d ] = sourceSteps[ d - 1 ] * img.dimension( d - 1 );
+
+		final ArrayList< Callable< Void > > tasks = new ArrayList<>();
+		for ( final ImagePortion portion : FusionTools.divideIntoPortions( numLines ) )
+		{
+			tasks.add( () ->
+			{
+				final RandomAccess< T > ext = extended.randomAccess();
+				final RandomAccess< T > src = img.randomAccess();
+				final RandomAccess< FloatType > out = target.randomAccess();
+				final long[] pos = new long[ n ];
+				final long[] outPos = new long[ n ];
+
+				for ( long l = portion.getStartPosition(); l < portion.getStartPosition() + portion.getLoopSize(); ++l )
+				{
+					long rest = l;
+					boolean inside = interiorMin <= interiorMax;
+					for ( int d = 1; d < n; ++d )
+					{
+						outPos[ d ] = target.min( d ) + rest % target.dimension( d );
+						rest /= target.dimension( d );
+						pos[ d ] = padded.min( d ) + outPos[ d ] - target.min( d );
+						inside &= pos[ d ] >= img.min( d ) && pos[ d ] <= img.max( d );
+					}
+
+					outPos[ 0 ] = target.min( 0 );
+					out.setPosition( outPos );
+
+					// left border (or the whole line if it is outside of the image)
+					final long borderEnd = inside ? interiorMin - 1 : padded.max( 0 );
+					if ( borderEnd >= padded.min( 0 ) )
+					{
+						pos[ 0 ] = padded.min( 0 );
+						ext.setPosition( pos );
+						for ( long x = padded.min( 0 ); x <= borderEnd; ++x )
+						{
+							out.get().setReal( ext.get().getRealFloat() );
+							out.fwd( 0 );
+							ext.fwd( 0 );
+						}
+					}
+
+					if ( !inside )
+						continue;
+
+					// interior, plain copy
+					if ( sourceArray != null && targetArray != null )
+					{
+						long sourceIndex = interiorMin - img.min( 0 );
+						for ( int d = 1; d < n; ++d )
+							sourceIndex += ( pos[ d ] - img.min( d ) ) * sourceSteps[ d ];
+
+						final long targetIndex = l * lineLength + interiorMin - padded.min( 0 );
+						System.arraycopy( sourceArray, (int) sourceIndex, targetArray, (int) targetIndex, (int) ( interiorMax - interiorMin + 1 ) );
+						out.move( interiorMax - interiorMin + 1, 0 );
+					}
+					else
+					{
+						pos[ 0 ] = interiorMin;
+						src.setPosition( pos );
+						for ( long x = interiorMin; x <= interiorMax; ++x )
+						{
+							out.get().setReal( src.get().getRealFloat() );
+							out.fwd( 0 );
+							src.fwd( 0 );
+						}
+					}
+
+					// right border
+					if ( interiorMax < padded.max( 0 ) )
+					{
+						pos[ 0 ] = interiorMax + 1;
+						ext.setPosition( pos );
+						for ( long x = interiorMax + 1; x <= padded.max( 0 ); ++x )
+						{
+							out.get().setReal( ext.get().getRealFloat() );
+							out.fwd( 0 );
+							ext.fwd( 0 );
+						}
+					}
+				}
+
+				return null;
+			});
+		}
+
+		try
+		{
+			for ( final Future< Void > f : service.invokeAll( tasks ) )
+				f.get();
+		}
+		catch ( InterruptedException | ExecutionException e )
+		{
+			e.printStackTrace();
+		}
+	}
+
 	/*
 	 * returns the extension at each side if an image is enlarged by a factor of extensionFactor at each side
 	 * @param dims
@@ -262,16 +397,13 @@ public class PhaseCorrelation2Util {
 	}
 	
 	/*
-	 * find maxima in PCM, use a temporary thread pool for calculation
+	 * find maxima in PCM, use the shared thread pool for calculation
 	 * @param pcm
 	 * @param nMax 
 	 * @return
 	 */
 	public static <T extends RealType<T>> List<PhaseCorrelationPeak2> getPCMMaxima(RandomAccessibleInterval<T> pcm, int nMax, boolean subpixelAccuracy){
-		ExecutorService tExecService = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
-		List<PhaseCorrelationPeak2> res = getPCMMaxima(pcm, tExecService, nMax, subpixelAccuracy);
-		tExecService.shutdown();
-		return res;
+		return getPCMMaxima(pcm, StitchingExecutor.getInstance(), nMax, subpixelAccuracy);
 	}
 	
 	/*
@@ -526,17 +658,18 @@ public class PhaseCorrelation2Util {
 					
 				}
 			}));
-			
-			for (Future<?> f : futures){
-				try {
-					f.get();
-				} catch (InterruptedException e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
-				} catch (ExecutionException e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
-				}
+		}
+
+		// wait for all portions only after all of them were submitted, so they run in parallel
+		for (Future<?> f : futures){
+			try {
+				f.get();
+			} catch (InterruptedException e) {
+				// TODO Auto-generated catch block
+				e.printStackTrace();
+			} catch (ExecutionException e) {
+				// TODO Auto-generated catch block
+				e.printStackTrace();
 			}
 		}
 		
@@ -602,17 +735,18 @@ public class PhaseCorrelation2Util {
 					
 				}
 			}));
-			
-			for (Future<?> f : futures){
-				try {
-					f.get();
-				} catch (InterruptedException e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
-				} catch (ExecutionException e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
-				}
+		}
+
+		// wait for all portions only after all of them were submitted, so they run in parallel
+		for (Future<?> f : futures){
+			try {
+				f.get();
+			} catch (InterruptedException e) {
+				// TODO Auto-generated catch block
+				e.printStackTrace();
+			} catch (ExecutionException e) {
+				// TODO Auto-generated catch block
+				e.printStackTrace();
 			}
 		}
 		
@@ -700,17 +834,18 @@ public class PhaseCorrelation2Util {
 					
 				}
 			}));
-			
-			for (Future<?> f : futures){
-				try {
-					f.get();
-				} catch (InterruptedException e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
-				} catch (ExecutionException e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
-				}
+		}
+
+		// wait for all portions only after all of them were submitted, so they run in parallel
+		for (Future<?> f : futures){
+			try {
+				f.get();
+			} catch (InterruptedException e) {
+				// TODO Auto-generated catch block
+				e.printStackTrace();
+			} catch (ExecutionException e) {
+				// TODO Auto-generated catch block
+				e.printStackTrace();
 			}
 		}
 		
@@ -728,6 +863,112 @@ public class PhaseCorrelation2Util {
 		normalizeInterval(img, res, 1E-5, service);
 	}
 	
+	/*
+	 * get the storage array of a FloatType ArrayImg
+	 * @param img
+	 * @return the array or null if img is not a FloatType ArrayImg
+	 */
+	public static float[] getFloatArray(final RandomAccessibleInterval<?> img)
+	{
+		if (!ArrayImg.class.isInstance( img ))
+			return null;
+
+		final ArrayImg<?, ?> arrayImg = (ArrayImg<?, ?>) img;
+		if (!FloatType.class.isInstance( arrayImg.firstElement() ))
+			return null;
+
+		final Object access = arrayImg.update( null );
+		if (!FloatArray.class.isInstance( access ))
+			return null;
+
+		return ((FloatArray) access).getCurrentStorageArray();
+	}
+
+	/*
+	 * get the storage of a ComplexFloatType ArrayImg (interleaved real and imaginary parts)
+	 * @param img
+	 * @return the float array or null if img is not a ComplexFloatType ArrayImg backed by a FloatArray
+	 */
+	public static float[] getComplexFloatArray(final RandomAccessibleInterval<?> img)
+	{
+		if (!ArrayImg.class.isInstance( img ))
+			return null;
+
+		final ArrayImg<?, ?> arrayImg = (ArrayImg<?, ?>) img;
+		if (!ComplexFloatType.class.isInstance( arrayImg.firstElement() ))
+			return null;
+
+		final Object access = arrayImg.update( null );
+		if (!FloatArray.class.isInstance( access ))
+			return null;
+
+		return ((FloatArray) access).getCurrentStorageArray();
+	}
+
+	/*
+	 * fused version of normalizeInterval, complexConjInterval and multiplyComplexIntervals
+	 * for interleaved complex float arrays, res = normalize(fft1) * conj(normalize(fft2))
+	 * res may be the same array as fft1 or fft2
+	 * @param fft1
+	 * @param fft2
+	 * @param res
+	 * @param normalizationThreshold
+	 */
+	public static void normalizeConjugateMultiply(final float[] fft1, final float[] fft2, final float[] res, final double normalizationThreshold, ExecutorService service)
+	{
+		final Vector<ImagePortion> portions = FusionTools.divideIntoPortions( fft1.length / 2 );
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+
+		for (final ImagePortion ip : portions){
+			futures.add(service.submit(new Runnable() {
+
+				@Override
+				public void run() {
+
+					final int start = (int) ip.getStartPosition() * 2;
+					final int end = start + (int) ip.getLoopSize() * 2;
+
+					for (int i = start; i < end; i += 2){
+						double a = fft1[i];
+						double b = fft1[i + 1];
+						double c = fft2[i];
+						double d = fft2[i + 1];
+
+						final double len1 = Math.sqrt( a * a + b * b );
+						if (len1 > normalizationThreshold){
+							a /= len1;
+							b /= len1;
+						} else {
+							a = b = 0;
+						}
+
+						final double len2 = Math.sqrt( c * c + d * d );
+						if (len2 > normalizationThreshold){
+							c /= len2;
+							d /= len2;
+						} else {
+							c = d = 0;
+						}
+
+						// (a + bi) * (c - di)
+						res[i] = (float) (a * c + b * d);
+						res[i + 1] = (float) (b * c - a * d);
+					}
+				}
+			}));
+		}
+
+		for (Future<?> f : futures){
+			try {
+				f.get();
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			} catch (ExecutionException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
 	/*
 	 * get the mean pixel intensity of an img
 	 * @param img
@@ -747,7 +988,109 @@ public class PhaseCorrelation2Util {
 	}
 	
 	/*
-	 * get pixel-value correlation of two RandomAccessibleIntervals
+	 * first and second (co-)moments of the pixel values of two images, computed in one pass.
+	 * Values are accumulated relative to the first pair of values (so the sums of squares stay small),
+	 * moments of different parts of the images can be merged (Chan et al.)
+	 */
+	public static class Moments
+	{
+		private long n = 0;
+		private double mean1 = 0, mean2 = 0;
+
+		// sums of squared deviations from the mean / of products of deviations
+		private double m11 = 0, m22 = 0, m12 = 0;
+
+		// running sums relative to the pivot, not yet merged into the moments above
+		private long k = 0;
+		private double p1, p2, s1, s2, s11, s22, s12;
+
+		public void add( final double x, final double y )
+		{
+			if ( k == 0 )
+			{
+				p1 = x;
+				p2 = y;
+			}
+
+			final double a = x - p1;
+			final double b = y - p2;
+
+			s1 += a;
+			s2 += b;
+			s11 += a * a;
+			s22 += b * b;
+			s12 += a * b;
+			++k;
+		}
+
+		public void merge( final Moments other )
+		{
+			other.flush();
+			flush();
+			merge( other.n, other.mean1, other.mean2, other.m11, other.m22, other.m12 );
+		}
+
+		private void flush()
+		{
+			if ( k == 0 )
+				return;
+
+			final double m1 = s1 / k;
+			final double m2 = s2 / k;
+
+			merge( k, p1 + m1, p2 + m2, s11 - s1 * m1, s22 - s2 * m2, s12 - s1 * m2 );
+
+			k = 0;
+			s1 = s2 = s11 = s22 = s12 = 0;
+		}
+
+		private void merge( final long nB, final double mean1B, final double mean2B, final double m11B, final double m22B, final double m12B )
+		{
+			if ( nB == 0 )
+				return;
+
+			final long nA = n;
+			final long nAB = nA + nB;
+			final double d1 = mean1B - mean1;
+			final double d2 = mean2B - mean2;
+			final double f = (double) nA * nB / nAB;
+
+			mean1 += d1 * nB / nAB;
+			mean2 += d2 * nB / nAB;
+			m11 += m11B + d1 * d1 * f;
+			m22 += m22B + d2 * d2 * f;
+			m12 += m12B + d1 * d2 * f;
+			n = nAB;
+		}
+
+		public long getN()
+		{
+			flush();
+			return n;
+		}
+
+		/*
+		 * @return the pearson correlation, 0 if one of the images is constant
+		 */
+		public double getCorrelation()
+		{
+			flush();
+
+			// all pixels had the same color....
+			// having the same means and same sums means the overlapping area was simply identically the same color
+			// this is most likely an artifact and we return 0
+			if ( m11 <= 0 || m22 <= 0 )
+				return 0;
+
+			return m12 / Math.sqrt( m11 * m22 );
+		}
+	}
+
+	// overlaps with more pixels are correlated multithreaded
+	public static long minPixelsParallelCorrelation = 256 * 256;
+
+	/*
+	 * get pixel-value correlation of two RandomAccessibleIntervals (single pass)
 	 * @param img1
 	 * @param img2
 	 * @return
@@ -755,55 +1098,284 @@ public class PhaseCorrelation2Util {
 	public static <T extends RealType<T>, S extends RealType<S>> double getCorrelation (
 			final RandomAccessibleInterval<T> img1, final RandomAccessibleInterval<S> img2)
 	{
-		final double m1 = getMean(img1);
-		final double m2 = getMean(img2);
+		final IterableInterval< T > iterable1 = Views.iterable( img1 );
+		return addToMoments( iterable1, img2, 0, iterable1.size(), new Moments() ).getCorrelation();
+	}
+
+	/*
+	 * get pixel-value correlation of two RandomAccessibleIntervals, large images are
+	 * split into portions that are processed in parallel
+	 * @param img1
+	 * @param img2
+	 * @param service
+	 * @return
+	 */
+	public static <T extends RealType<T>, S extends RealType<S>> double getCorrelation (
+			final RandomAccessibleInterval<T> img1, final RandomAccessibleInterval<S> img2, final ExecutorService service)
+	{
+		final IterableInterval< T > iterable1 = Views.iterable( img1 );
+
+		if ( service == null || iterable1.size() < minPixelsParallelCorrelation )
+			return getCorrelation( img1, img2 );
+
+		final ArrayList< Callable< Moments > > tasks = new ArrayList<>();
+		for ( final ImagePortion portion : FusionTools.divideIntoPortions( iterable1.size() ) )
+			tasks.add( () -> addToMoments( iterable1, img2, portion.getStartPosition(), portion.getLoopSize(), new Moments() ) );
+
+		final Moments moments = new Moments();
 
-		// square sums
-		double sum11 = 0.0, sum22 = 0.0, sum12 = 0.0; 
+		try
+		{
+			for ( final Future< Moments > f : service.invokeAll( tasks ) )
+				moments.merge( f.get() );
+		}
+		catch ( InterruptedException | ExecutionException e )
+		{
+			e.printStackTrace();
+			return getCorrelation( img1, img2 );
+		}
 
-		final Cursor<T> c1 = Views.iterable(img1).cursor();
+		return moments.getCorrelation();
+	}
 
-		if (Views.iterable( img1 ).iterationOrder().equals( Views.iterable( img2 ).iterationOrder() ))
+	private static <T extends RealType<T>, S extends RealType<S>> Moments addToMoments(
+			final IterableInterval<T> img1, final RandomAccessibleInterval<S> img2,
+			final long start, final long loopSize, final Moments moments )
+	{
+		if ( img1.iterationOrder().equals( Views.iterable( img2 ).iterationOrder() ) )
 		{
+			final Cursor< T > c1 = img1.cursor();
 			final Cursor< S > c2 = Views.iterable( img2 ).cursor();
-			while (c1.hasNext()){
-				final double c = c1.next().getRealDouble();
-				final double r = c2.next().getRealDouble();
+			c1.jumpFwd( start );
+			c2.jumpFwd( start );
 
-				sum11 += (c - m1) * (c - m1);
-				sum22 += (r - m2) * (r - m2);
-				sum12 += (c - m1) * (r - m2);
-			}
+			for ( long i = 0; i < loopSize; ++i )
+				moments.add( c1.next().getRealDouble(), c2.next().getRealDouble() );
 		}
 		else
 		{
-			final RandomAccess<S> r2 = img2.randomAccess();
-			while (c1.hasNext()){
+			final Cursor< T > c1 = img1.localizingCursor();
+			final RandomAccess< S > r2 = img2.randomAccess();
+			c1.jumpFwd( start );
+
+			for ( long i = 0; i < loopSize; ++i )
+			{
 				final double c = c1.next().getRealDouble();
-				r2.setPosition(c1);
-				final double r = r2.get().getRealDouble();
+				r2.setPosition( c1 );
+				moments.add( c, r2.get().getRealDouble() );
+			}
+		}
 
-				sum11 += (c - m1) * (c - m1);
-				sum22 += (r - m2) * (r - m2);
-				sum12 += (c - m1) * (r - m2);
+		return moments;
+	}
+
+	// images with up to this many pixels get summed-area tables for the batched cross correlation
+	// (2 doubles per pixel, i.e. up to 128 MB per image, counted in PairwiseStitching.estimateMemory)
+	public static long maxPixelsSummedAreaTable = 8 * 1024 * 1024;
+
+	/*
+	 * calculate the crosscorrelation of img1 and img2 for the (integer) shifts of all peaks together:
+	 * img1 is streamed once line by line and every line is correlated with all peaks whose overlap contains it,
+	 * the lines are processed in parallel. Subpixel shifts are ignored (use calculateCrossCorrParallel to interpolate).
+	 * If the images are small enough, means and variances of the overlaps are taken from summed-area tables
+	 * that are computed once, so only the cross term has to be summed for each peak.
+	 * @param peaks
+	 * @param img1
+	 * @param img2
+	 * @param minOverlapPx minimal number of overlapping pixels
+	 * @param service
+	 */
+	public static <T extends RealType<T>, S extends RealType<S>> void calculateCrossCorrBatched(
+			final List<PhaseCorrelationPeak2> peaks, final RandomAccessibleInterval<T> img1, final RandomAccessibleInterval<S> img2,
+			final long minOverlapPx, final ExecutorService service)
+	{
+		// note that the overlap we calculate assumes zero-min input
+		final RandomAccessibleInterval< T > z1 = Views.zeroMin( img1 );
+		final RandomAccessibleInterval< S > z2 = Views.zeroMin( img2 );
+		final int n = z1.numDimensions();
+
+		// overlap in img1 and offset to img2 of all peaks with enough overlap
+		final ArrayList< PhaseCorrelationPeak2 > valid = new ArrayList<>();
+		final ArrayList< Interval > overlaps = new ArrayList<>();
+		final ArrayList< long[] > offsets = new ArrayList<>();
+		Interval union = null;
+
+		for ( final PhaseCorrelationPeak2 p : peaks )
+		{
+			final Pair< Interval, Interval > intervals = getOverlapIntervals( z1, z2, p.getShift() );
+			final long nPixel = intervals == null ? 0 : Intervals.numElements( intervals.getA() );
+
+			if ( intervals == null || nPixel < minOverlapPx )
+			{
+				p.setCrossCorr( Double.NEGATIVE_INFINITY );
+				p.setnPixel( 0 );
+				continue;
 			}
+
+			final long[] offset = new long[ n ];
+			for ( int d = 0; d < n; ++d )
+				offset[ d ] = intervals.getB().min( d ) - intervals.getA().min( d );
+
+			p.setnPixel( nPixel );
+			valid.add( p );
+			overlaps.add( intervals.getA() );
+			offsets.add( offset );
+			union = union == null ? intervals.getA() : Intervals.union( union, intervals.getA() );
 		}
 
-		// all pixels had the same color....
-		if (sum11 == 0 || sum22 == 0)
+		if ( valid.isEmpty() )
+			return;
+
+		// means and variances of all overlaps in constant time
+		final boolean useTables = SummedAreaTable.tableSize( z1 ) <= maxPixelsSummedAreaTable && SummedAreaTable.tableSize( z2 ) <= maxPixelsSummedAreaTable;
+		final SummedAreaTable sat1 = useTables ? new SummedAreaTable( z1 ) : null;
+		final SummedAreaTable sat2 = useTables ? new SummedAreaTable( z2 ) : null;
+		final double p1 = useTables ? sat1.getPivot() : 0;
+		final double p2 = useTables ? sat2.getPivot() : 0;
+
+		final Interval lines = union;
+		final long numLines = Intervals.numElements( lines ) / lines.dimension( 0 );
+		final int lineLength = (int) lines.dimension( 0 );
+
+		final ArrayList< Callable< Pair< Moments[], double[] > > > tasks = new ArrayList<>();
+		for ( final ImagePortion portion : FusionTools.divideIntoPortions( numLines ) )
 		{
-			// having the same means and same sums means the overlapping area was simply identically the same color
-			// this is most likely an artifact and we return 0
-			/* if ( sum11 == sum22 && m1 == m2 )
-				return 1;
-			else */
-				return 0;
+			tasks.add( () ->
+			{
+				// with summed-area tables, we only need the sum of products (relative to the pivots) per peak
+				final Moments[] moments = new Moments[ valid.size() ];
+				final double[] cross = new double[ valid.size() ];
+				for ( int k = 0; k < moments.length; ++k )
+					moments[ k ] = new Moments();
+
+				final RandomAccess< T > r1 = z1.randomAccess();
+				final RandomAccess< S > r2 = z2.randomAccess();
+				final double[] line = new double[ lineLength ];
+				final long[] pos = new long[ n ];
+				final long[] pos2 = new long[ n ];
+
+				for ( long l = portion.getStartPosition(); l < portion.getStartPosition() + portion.getLoopSize(); ++l )
+				{
+					long rest = l;
+					pos[ 0 ] = lines.min( 0 );
+					for ( int d = 1; d < n; ++d )
+					{
+						pos[ d ] = lines.min( d ) + rest % lines.dimension( d );
+						rest /= lines.dimension( d );
+					}
+
+					boolean loaded = false;
+
+					for ( int k = 0; k < moments.length; ++k )
+					{
+						final Interval overlap = overlaps.get( k );
+
+						boolean contained = true;
+						for ( int d = 1; d < n && contained; ++d )
+							contained = pos[ d ] >= overlap.min( d ) && pos[ d ] <= overlap.max( d );
+
+						if ( !contained )
+							continue;
+
+						// read the line of img1 only once for all peaks
+						if ( !loaded )
+						{
+							r1.setPosition( pos );
+							for ( int x = 0; x < lineLength; ++x )
+							{
+								line[ x ] = r1.get().getRealDouble();
+								r1.fwd( 0 );
+							}
+							loaded = true;
+						}
+
+						final long[] offset = offsets.get( k );
+						for ( int d = 0; d < n; ++d )
+							pos2[ d ] = ( d == 0 ? overlap.min( 0 ) : pos[ d ] ) + offset[ d ];
+
+						r2.setPosition( pos2 );
+
+						final int start = (int) ( overlap.min( 0 ) - lines.min( 0 ) );
+						final int end = (int) ( overlap.max( 0 ) - lines.min( 0 ) );
+
+						if ( useTables )
+						{
+							double c = 0;
+							for ( int x = start; x <= end; ++x )
+							{
+								c += ( line[ x ] - p1 ) * ( r2.get().getRealDouble() - p2 );
+								r2.fwd( 0 );
+							}
+							cross[ k ] += c;
+						}
+						else
+						{
+							final Moments m = moments[ k ];
+							for ( int x = start; x <= end; ++x )
+							{
+								m.add( line[ x ], r2.get().getRealDouble() );
+								r2.fwd( 0 );
+							}
+						}
+					}
+				}
+
+				return new ValuePair<>( moments, cross );
+			});
+		}
+
+		final Moments[] moments = new Moments[ valid.size() ];
+		final double[] cross = new double[ valid.size() ];
+		for ( int k = 0; k < moments.length; ++k )
+			moments[ k ] = new Moments();
+
+		try
+		{
+			for ( final Future< Pair< Moments[], double[] > > f : service.invokeAll( tasks ) )
+			{
+				final Pair< Moments[], double[] > partial = f.get();
+				for ( int k = 0; k < moments.length; ++k )
+				{
+					moments[ k ].merge( partial.getA()[ k ] );
+					cross[ k ] += partial.getB()[ k ];
+				}
+			}
+		}
+		catch ( InterruptedException | ExecutionException e )
+		{
+			e.printStackTrace();
+			calculateCrossCorrParallel( valid, img1, img2, minOverlapPx, service, false );
+			return;
 		}
 
-		return sum12 / Math.sqrt(sum11 * sum22);
+		for ( int k = 0; k < moments.length; ++k )
+		{
+			if ( useTables )
+			{
+				// sums relative to the pivots: sum12 - sum1 * sum2 / n are the co-deviations
+				final Interval overlap1 = overlaps.get( k );
+				final long[] min2 = new long[ n ];
+				final long[] max2 = new long[ n ];
+				for ( int d = 0; d < n; ++d )
+				{
+					min2[ d ] = overlap1.min( d ) + offsets.get( k )[ d ];
+					max2[ d ] = overlap1.max( d ) + offsets.get( k )[ d ];
+				}
+				final Interval overlap2 = new FinalInterval( min2, max2 );
+				final double nPixel = Intervals.numElements( overlap1 );
+				final double m11 = sat1.squaredDeviations( overlap1 );
+				final double m22 = sat2.squaredDeviations( overlap2 );
+				final double m12 = cross[ k ] - sat1.sum( overlap1 ) * sat2.sum( overlap2 ) / nPixel;
+
+				valid.get( k ).setCrossCorr( m11 <= 0 || m22 <= 0 ? 0 : m12 / Math.sqrt( m11 * m22 ) );
+			}
+			else
+			{
+				valid.get( k ).setCrossCorr( moments[ k ].getCorrelation() );
+			}
+		}
 	}
 
-	
 	/*
 	 * test stitching, create new image with img2 copied over img1 at the specified shift
 	 * @param img1
@@ -872,7 +1444,7 @@ public class PhaseCorrelation2Util {
 			public void run()
 			{
 				PairwiseStitching.getShift( a, b, new Translation3D(), new Translation3D(),
-						new PairwiseStitchingParameters(), Executors.newFixedThreadPool( Runtime.getRuntime().availableProcessors() ) );
+						new PairwiseStitchingParameters(), StitchingExecutor.getInstance() );
 			}
 		} );
 
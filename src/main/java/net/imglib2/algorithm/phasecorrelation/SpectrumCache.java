@@ -0,0 +1,214 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2017 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.imglib2.algorithm.phasecorrelation;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.type.numeric.complex.ComplexFloatType;
+import net.imglib2.util.Intervals;
+
+/**
+ * Optional cache for the spectra (FFTs of the extended overlap regions) used in phase correlation,
+ * so that re-computing the same pairs (e.g. with different peaksToCheck or minOverlap) does not
+ * need to re-compute the forward FFTs. The cache is bounded by the number of complex values it holds,
+ * least recently used spectra are evicted first. Spectra are kept across rounds of pairwise comparisons,
+ * the caller has to invalidate the spectra of images that changed (see {@link #invalidate(Predicate)}).
+ */
+public class SpectrumCache
+{
+	// by default, we use at most a sixteenth of the heap (8 bytes per complex value)
+	public static long defaultMaxElements = Runtime.getRuntime().maxMemory() / 16 / 8;
+
+	private static SpectrumCache instance;
+
+	public static synchronized SpectrumCache getInstance()
+	{
+		if ( instance == null )
+			instance = new SpectrumCache( defaultMaxElements );
+		return instance;
+	}
+
+	/**
+	 * identifies the spectrum of a region of an image
+	 */
+	public static class Key
+	{
+		final Object imageId;
+		final long[] min, max;
+		final int[] extension;
+
+		/**
+		 * @param imageId - identifies the image content (must implement equals and hashCode)
+		 * @param interval - the region of the image
+		 * @param extension - the extension used before the FFT
+		 */
+		public Key( final Object imageId, final Interval interval, final int[] extension )
+		{
+			this.imageId = imageId;
+			this.min = Intervals.minAsLongArray( interval );
+			this.max = Intervals.maxAsLongArray( interval );
+			this.extension = extension.clone();
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return 31 * ( 31 * ( 31 * imageId.hashCode() + Arrays.hashCode( min ) ) + Arrays.hashCode( max ) ) + Arrays.hashCode( extension );
+		}
+
+		@Override
+		public boolean equals( final Object obj )
+		{
+			if ( !( obj instanceof Key ) )
+				return false;
+
+			final Key other = (Key) obj;
+			return imageId.equals( other.imageId ) && Arrays.equals( min, other.min ) && Arrays.equals( max, other.max )
+					&& Arrays.equals( extension, other.extension );
+		}
+	}
+
+	private final LinkedHashMap< Key, Img< ComplexFloatType > > spectra;
+	private final long maxElements;
+	private long numElements;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	public SpectrumCache( final long maxElements )
+	{
+		// access order -> iteration starts at the least recently used entry
+		this.spectra = new LinkedHashMap<>( 16, 0.75f, true );
+		this.maxElements = maxElements;
+		this.numElements = 0;
+	}
+
+	/**
+	 * copy a cached spectrum into fft
+	 *
+	 * @param key - the spectrum to look for
+	 * @param fft - ComplexFloatType ArrayImg to copy the spectrum to
+	 * @return true if the spectrum was cached, false otherwise (fft is unchanged)
+	 */
+	public boolean get( final Key key, final RandomAccessibleInterval< ComplexFloatType > fft )
+	{
+		final float[] target = PhaseCorrelation2Util.getComplexFloatArray( fft );
+
+		synchronized ( this )
+		{
+			final Img< ComplexFloatType > spectrum = spectra.get( key );
+			final float[] source = spectrum == null ? null : PhaseCorrelation2Util.getComplexFloatArray( spectrum );
+
+			if ( target == null || source == null || source.length != target.length || !Intervals.equalDimensions( spectrum, fft ) )
+			{
+				misses.incrementAndGet();
+				return false;
+			}
+
+			System.arraycopy( source, 0, target, 0, source.length );
+		}
+
+		hits.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * store a copy of a spectrum
+	 *
+	 * @param key - identifies the spectrum
+	 * @param fft - ComplexFloatType ArrayImg holding the spectrum (other images are not cached)
+	 */
+	public void put( final Key key, final RandomAccessibleInterval< ComplexFloatType > fft )
+	{
+		final float[] source = PhaseCorrelation2Util.getComplexFloatArray( fft );
+		if ( source == null || source.length / 2 > maxElements )
+			return;
+
+		final Img< ComplexFloatType > copy = new ArrayImgFactory< ComplexFloatType >().create( fft, new ComplexFloatType() );
+		System.arraycopy( source, 0, PhaseCorrelation2Util.getComplexFloatArray( copy ), 0, source.length );
+
+		synchronized ( this )
+		{
+			final Img< ComplexFloatType > old = spectra.put( key, copy );
+			if ( old != null )
+				numElements -= old.size();
+			numElements += copy.size();
+
+			final Iterator< Map.Entry< Key, Img< ComplexFloatType > > > it = spectra.entrySet().iterator();
+			while ( numElements > maxElements && it.hasNext() )
+			{
+				final Map.Entry< Key, Img< ComplexFloatType > > e = it.next();
+				if ( e.getKey().equals( key ) )
+					continue;
+
+				numElements -= e.getValue().size();
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * remove the spectra of images that changed (e.g. because the registration of a view was updated)
+	 *
+	 * @param isOutdated - returns true for the image ids (see {@link Key#Key(Object, Interval, int[])}) whose spectra should be removed
+	 */
+	public synchronized void invalidate( final Predicate< Object > isOutdated )
+	{
+		final Iterator< Map.Entry< Key, Img< ComplexFloatType > > > it = spectra.entrySet().iterator();
+		while ( it.hasNext() )
+		{
+			final Map.Entry< Key, Img< ComplexFloatType > > e = it.next();
+			if ( isOutdated.test( e.getKey().imageId ) )
+			{
+				numElements -= e.getValue().size();
+				it.remove();
+			}
+		}
+	}
+
+	public synchronized void clear()
+	{
+		spectra.clear();
+		numElements = 0;
+	}
+
+	public void resetStatistics()
+	{
+		hits.set( 0 );
+		misses.set( 0 );
+	}
+
+	public long getMaxElements() { return maxElements; }
+	public long getHits() { return hits.get(); }
+	public long getMisses() { return misses.get(); }
+	public synchronized int numSpectra() { return spectra.size(); }
+	public synchronized long numElements() { return numElements; }
+}
@@ -0,0 +1,182 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2017 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.imglib2.algorithm.phasecorrelation;
+
+import net.imglib2.Cursor;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+/**
+ * Summed-area tables (integral images) of the pixel values and squared pixel values of an image,
+ * so that sum, mean and variance of any rectangular region can be computed in constant time.
+ * Values are stored relative to the mean of the image (the pivot) to keep the sums numerically stable.
+ */
+public class SummedAreaTable
+{
+	private final int n;
+	private final long[] dims;
+	private final int[] steps;
+	private final double[] sum;
+	private final double[] sumSq;
+	private final double pivot;
+
+	/**
+	 * @param img the image (positions are relative to its min)
+	 */
+	public < T extends RealType< T > > SummedAreaTable( final RandomAccessibleInterval< T > img )
+	{
+		final RandomAccessibleInterval< T > zeroMin = Views.zeroMin( img );
+
+		this.n = img.numDimensions();
+		this.dims = Intervals.dimensionsAsLongArray( img );
+		this.pivot = PhaseCorrelation2Util.getMean( zeroMin );
+
+		// the tables are one larger in every dimension, index 0 is the empty sum
+		this.steps = new int[ n ];
+		long size = 1;
+		for ( int d = 0; d < n; ++d )
+		{
+			steps[ d ] = (int) size;
+			size *= dims[ d ] + 1;
+		}
+
+		if ( size > Integer.MAX_VALUE )
+			throw new IllegalArgumentException( "Image too large for a summed-area table: " + size + " entries." );
+
+		this.sum = new double[ (int) size ];
+		this.sumSq = new double[ (int) size ];
+
+		final Cursor< T > c = Views.flatIterable( zeroMin ).localizingCursor();
+		while ( c.hasNext() )
+		{
+			final double v = c.next().getRealDouble() - pivot;
+
+			int i = 0;
+			for ( int d = 0; d < n; ++d )
+				i += ( c.getIntPosition( d ) + 1 ) * steps[ d ];
+
+			sum[ i ] = v;
+			sumSq[ i ] = v * v;
+		}
+
+		// cumulative sums along every dimension
+		for ( int d = 0; d < n; ++d )
+		{
+			final long len = dims[ d ] + 1;
+			for ( int i = 0; i < sum.length; ++i )
+				if ( ( i / steps[ d ] ) % len > 0 )
+				{
+					sum[ i ] += sum[ i - steps[ d ] ];
+					sumSq[ i ] += sumSq[ i - steps[ d ] ];
+				}
+		}
+	}
+
+	/**
+	 * @param img dimensions of an image
+	 * @return the number of entries of a summed-area table for it
+	 */
+	public static long tableSize( final Interval img )
+	{
+		long size = 1;
+		for ( int d = 0; d < img.numDimensions(); ++d )
+			size *= img.dimension( d ) + 1;
+		return size;
+	}
+
+	/**
+	 * @return the value all sums are relative to (the mean of the image)
+	 */
+	public double getPivot() { return pivot; }
+
+	/**
+	 * @param interval region (relative to the min of the image)
+	 * @return sum of (value - pivot) in the region
+	 */
+	public double sum( final Interval interval )
+	{
+		return query( sum, interval );
+	}
+
+	/**
+	 * @param interval region (relative to the min of the image)
+	 * @return sum of (value - pivot)^2 in the region
+	 */
+	public double sumOfSquares( final Interval interval )
+	{
+		return query( sumSq, interval );
+	}
+
+	/**
+	 * @param interval region (relative to the min of the image)
+	 * @return mean of the values in the region
+	 */
+	public double mean( final Interval interval )
+	{
+		return pivot + sum( interval ) / Intervals.numElements( interval );
+	}
+
+	/**
+	 * @param interval region (relative to the min of the image)
+	 * @return sum of squared deviations from the mean in the region
+	 */
+	public double squaredDeviations( final Interval interval )
+	{
+		final double s = sum( interval );
+		return sumOfSquares( interval ) - s * s / Intervals.numElements( interval );
+	}
+
+	private double query( final double[] table, final Interval interval )
+	{
+		// inclusion-exclusion over the 2^n corners of the region
+		double result = 0;
+
+		for ( int corner = 0; corner < ( 1 << n ); ++corner )
+		{
+			int i = 0;
+			int numLow = 0;
+
+			for ( int d = 0; d < n; ++d )
+			{
+				if ( ( corner & ( 1 << d ) ) == 0 )
+				{
+					i += interval.min( d ) * steps[ d ];
+					++numLow;
+				}
+				else
+				{
+					i += ( interval.max( d ) + 1 ) * steps[ d ];
+				}
+			}
+
+			if ( numLow % 2 == 0 )
+				result += table[ i ];
+			else
+				result -= table[ i ];
+		}
+
+		return result;
+	}
+}
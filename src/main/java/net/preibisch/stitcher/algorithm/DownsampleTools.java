@@ -26,14 +26,23 @@ import static mpicbg.spim.data.generic.sequence.ImgLoaderHints.LOAD_COMPLETELY;
 import java.util.Date;
 
 import mpicbg.spim.data.generic.sequence.BasicImgLoader;
+import mpicbg.spim.data.generic.sequence.ImgLoaderHint;
+import mpicbg.spim.data.sequence.ImgLoader;
 import mpicbg.spim.data.sequence.MultiResolutionImgLoader;
 import mpicbg.spim.data.sequence.ViewId;
+import net.imglib2.Cursor;
+import net.imglib2.Dimensions;
+import net.imglib2.Interval;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.img.Img;
 import net.imglib2.img.ImgFactory;
 import net.imglib2.img.array.ArrayImgFactory;
 import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
 import net.preibisch.legacy.io.IOFunctions;
 import net.preibisch.mvrecon.process.interestpointdetection.methods.downsampling.Downsample;
 import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constellation.grouping.Group;
@@ -104,12 +113,206 @@ public class DownsampleTools
 				"(" + new Date(System.currentTimeMillis()) + "): "
 				+ "Requesting Img from ImgLoader (tp=" + vd.getTimePointId() + ", setup=" + vd.getViewSetupId() + ")" );
 
+		final StitchingMetrics metrics = StitchingMetrics.getInstance();
 
+		long t = StitchingMetrics.start();
+		final long[] remainingDs = new long[ 3 ];
+		final RandomAccessibleInterval< T > input = open( imgLoader, vd, downsampleFactors, remainingDs, LOAD_COMPLETELY );
+		metrics.stop( StitchingMetrics.LOAD, t );
+		metrics.count( StitchingMetrics.BYTES_READ, numBytes( input ) );
+
+		t = StitchingMetrics.start();
+		final RandomAccessibleInterval< T > downsampled = downsample( input, remainingDs );
+		metrics.stop( StitchingMetrics.DOWNSAMPLE, t );
+
+		return downsampled;
+	}
+
+	/**
+	 * Open an image without loading it, so that many crops can be taken from it with
+	 * {@link #cropAndDownsample(RandomAccessibleInterval, long[], Interval)} while it is only opened once
+	 * (for cell-based ImgLoaders, the blocks are only read when a crop is copied).
+	 *
+	 * @param imgLoader - the ImgLoader to use
+	 * @param vd - the view to open
+	 * @param downsampleFactors - downsampling in x,y,z
+	 * @param remainingDs - will contain the downsampling in x,y,z that still needs to be applied to crops
+	 * @param <T> pixel type
+	 * @return the opened image
+	 */
+	public static < T extends RealType<T> > RandomAccessibleInterval< T > openLazily(
+			final BasicImgLoader imgLoader,
+			final ViewId vd,
+			final long[] downsampleFactors,
+			final long[] remainingDs )
+	{
+		System.out.println(
+				"(" + new Date(System.currentTimeMillis()) + "): "
+				+ "Opening Img from ImgLoader (tp=" + vd.getTimePointId() + ", setup=" + vd.getViewSetupId() + ")" );
+
+		return open( imgLoader, vd, downsampleFactors, remainingDs );
+	}
+
+	/**
+	 * Copy and downsample a part of an image opened with {@link #openLazily(BasicImgLoader, ViewId, long[], long[])}.
+	 *
+	 * @param input - the opened image
+	 * @param remainingDs - the downsampling that still needs to be applied
+	 * @param crop - the interval to load in coordinates of the downsampled image
+	 * @param <T> pixel type
+	 * @return the downsampled crop, positioned at its location in the downsampled image, or null if the crop does not intersect the image
+	 */
+	public static < T extends RealType<T> > RandomAccessibleInterval< T > cropAndDownsample(
+			final RandomAccessibleInterval< T > input,
+			final long[] remainingDs,
+			final Interval crop )
+	{
+		final StitchingMetrics metrics = StitchingMetrics.getInstance();
+
+		long t = StitchingMetrics.start();
+
+		// the crop in the coordinates of the opened (mipmap) image, aligned to the remaining downsampling
+		final int n = input.numDimensions();
+		final long[] min = new long[ n ];
+		final long[] max = new long[ n ];
+		final long[] offset = new long[ n ];
+
+		for ( int d = 0; d < n; ++d )
+		{
+			final long r = d < remainingDs.length ? remainingDs[ d ] : 1;
+
+			min[ d ] = Math.max( input.min( d ), crop.min( d ) * r );
+			max[ d ] = Math.min( input.max( d ), ( crop.max( d ) + 1 ) * r - 1 );
+			offset[ d ] = min[ d ] / r;
+
+			if ( max[ d ] < min[ d ] )
+				return null;
+		}
+
+		// copy the crop, this only reads the blocks we actually need
+		final RandomAccessibleInterval< T > cropped = Views.interval( input, min, max );
+		@SuppressWarnings({ "rawtypes", "unchecked" })
+		final Img< T > copy = new ArrayImgFactory().create( cropped, Util.getTypeFromInterval( cropped ).createVariable() );
+
+		final Cursor< T > in = Views.flatIterable( cropped ).cursor();
+		final Cursor< T > out = copy.cursor();
+
+		while ( out.hasNext() )
+			out.next().set( in.next() );
+
+		metrics.stop( StitchingMetrics.LOAD, t );
+		metrics.count( StitchingMetrics.BYTES_READ, numBytes( copy ) );
+
+		t = StitchingMetrics.start();
+		final RandomAccessibleInterval< T > downsampled = Views.translate( downsample( copy, remainingDs ), offset );
+		metrics.stop( StitchingMetrics.DOWNSAMPLE, t );
+
+		return downsampled;
+	}
+
+	/**
+	 * @param img - the image
+	 * @param <T> pixel type
+	 * @return the size of the image in bytes (according to the bits per pixel of its type)
+	 */
+	public static < T extends RealType<T> > long numBytes( final RandomAccessibleInterval< T > img )
+	{
+		return Intervals.numElements( img ) * Util.getTypeFromInterval( img ).getBitsPerPixel() / 8;
+	}
+
+	/**
+	 * get the dimensions of an opened and downsampled image without loading it
+	 * (the image size is queried from the ImgLoader if possible, otherwise it is opened lazily)
+	 *
+	 * @param imgLoader - the ImgLoader to use
+	 * @param vd - the view to open
+	 * @param downsampleFactors - downsampling in x,y,z
+	 * @return the dimensions of the image returned by {@link #openAndDownsample(BasicImgLoader, ViewId, long[])}
+	 */
+	public static long[] getDownsampledDimensions(
+			final BasicImgLoader imgLoader,
+			final ViewId vd,
+			final long[] downsampleFactors )
+	{
+		final long[] remainingDs = new long[ 3 ];
+		final int level = getBestMipmapLevel( imgLoader, vd, downsampleFactors, remainingDs );
+
+		final Dimensions size;
+		if ( level >= 0 )
+			size = ( (MultiResolutionImgLoader) imgLoader ).getSetupImgLoader( vd.getViewSetupId() ).getImageSize( vd.getTimePointId(), level );
+		else if ( ImgLoader.class.isInstance( imgLoader ) )
+			size = ( (ImgLoader) imgLoader ).getSetupImgLoader( vd.getViewSetupId() ).getImageSize( vd.getTimePointId() );
+		else
+			size = DownsampleTools.< FloatType >open( imgLoader, vd, downsampleFactors, remainingDs );
+
+		final long[] dims = Intervals.dimensionsAsLongArray( size );
+
+		// same as Downsample.simple2x
+		for ( int d = 0; d < dims.length; ++d )
+			for ( long r = d < remainingDs.length ? remainingDs[ d ] : 1; r > 1; r /= 2 )
+				dims[ d ] /= 2;
+
+		return dims;
+	}
+
+	/**
+	 * open the best mipmap level for the requested downsampling
+	 *
+	 * @param imgLoader - the ImgLoader to use
+	 * @param vd - the view to open
+	 * @param downsampleFactors - downsampling in x,y,z
+	 * @param remainingDs - will contain the downsampling in x,y,z that still needs to be applied
+	 * @param hints - hints for the ImgLoader
+	 * @param <T> pixel type
+	 * @return the opened image
+	 */
+	@SuppressWarnings("unchecked")
+	protected static < T extends RealType<T> > RandomAccessibleInterval< T > open(
+			final BasicImgLoader imgLoader,
+			final ViewId vd,
+			final long[] downsampleFactors,
+			final long[] remainingDs,
+			final ImgLoaderHint... hints )
+	{
+		final int bestLevel = getBestMipmapLevel( imgLoader, vd, downsampleFactors, remainingDs );
+
+		if ( bestLevel >= 0 )
+		{
+			final MultiResolutionImgLoader mrImgLoader = ( MultiResolutionImgLoader ) imgLoader;
+			final double[] factors = mrImgLoader.getSetupImgLoader( vd.getViewSetupId() ).getMipmapResolutions()[ bestLevel ];
+
+			IOFunctions.println(
+					"(" + new Date(System.currentTimeMillis()) + "): " +
+					"View " + Group.pvid( vd ) + ", " +
+					"using precomputed Multiresolution Images [" + Math.round( factors[ 0 ] ) + "x" + Math.round( factors[ 1 ] ) + "x" + Math.round( factors[ 2 ] ) + "], " +
+					"Remaining downsampling [" + remainingDs[ 0 ] + "x" + remainingDs[ 1 ] + "x" + remainingDs[ 2 ] + "]" );
+
+			return (RandomAccessibleInterval< T >) mrImgLoader.getSetupImgLoader( vd.getViewSetupId() ).getFloatImage( vd.getTimePointId(), bestLevel, false, hints );
+		}
+		else
+		{
+			return (RandomAccessibleInterval< T >) imgLoader.getSetupImgLoader( vd.getViewSetupId() ).getImage( vd.getTimePointId(), hints );
+		}
+	}
+
+	/**
+	 * @param imgLoader - the ImgLoader to use
+	 * @param vd - the view to open
+	 * @param downsampleFactors - downsampling in x,y,z
+	 * @param remainingDs - will contain the downsampling in x,y,z that still needs to be applied
+	 * @return the best mipmap level to use, -1 if we do not use a multiresolution ImgLoader
+	 */
+	protected static int getBestMipmapLevel(
+			final BasicImgLoader imgLoader,
+			final ViewId vd,
+			final long[] downsampleFactors,
+			final long[] remainingDs )
+	{
 		long dsx = downsampleFactors[0];
 		long dsy = downsampleFactors[1];
 		long dsz = downsampleFactors[2];
 
-		RandomAccessibleInterval< T > input = null;
+		int bestLevel = -1;
 
 		if ( ( dsx > 1 || dsy > 1 || dsz > 1 ) && MultiResolutionImgLoader.class.isInstance( imgLoader ) )
 		{
@@ -117,7 +320,7 @@ public class DownsampleTools
 
 			double[][] mipmapResolutions = mrImgLoader.getSetupImgLoader( vd.getViewSetupId() ).getMipmapResolutions();
 
-			int bestLevel = 0;
+			bestLevel = 0;
 			for ( int level = 0; level < mipmapResolutions.length; ++level )
 			{
 				double[] factors = mipmapResolutions[ level ];
@@ -138,23 +341,15 @@ public class DownsampleTools
 			dsx /= fx;
 			dsy /= fy;
 			dsz /= fz;
-
-			IOFunctions.println(
-					"(" + new Date(System.currentTimeMillis()) + "): " +
-					"View " + Group.pvid( vd ) + ", " +
-					"using precomputed Multiresolution Images [" + fx + "x" + fy + "x" + fz + "], " +
-					"Remaining downsampling [" + dsx + "x" + dsy + "x" + dsz + "]" );
-
-			input = (RandomAccessibleInterval< T >) mrImgLoader.getSetupImgLoader( vd.getViewSetupId() ).getFloatImage( vd.getTimePointId(), bestLevel, false, LOAD_COMPLETELY );
-		}
-		else
-		{
-			input =  (RandomAccessibleInterval< T >) imgLoader.getSetupImgLoader( vd.getViewSetupId() ).getImage( vd.getTimePointId(), LOAD_COMPLETELY );
 		}
 
-		return downsample( input, new long[]{ dsx, dsy, dsz } );
+		remainingDs[ 0 ] = dsx;
+		remainingDs[ 1 ] = dsy;
+		remainingDs[ 2 ] = dsz;
+
+		return bestLevel;
 	}
-	
+
 	public static < T extends RealType<T> > RandomAccessibleInterval< T > downsample(
 			RandomAccessibleInterval< T > input,
 			final long[] downsampleFactors )
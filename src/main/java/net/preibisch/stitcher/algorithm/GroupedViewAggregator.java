@@ -57,8 +57,10 @@ import mpicbg.spim.data.sequence.ViewSetup;
 import mpicbg.spim.data.sequence.VoxelDimensions;
 import net.imglib2.Dimensions;
 import net.imglib2.FinalDimensions;
+import net.imglib2.FinalInterval;
 import net.imglib2.IterableInterval;
 import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealInterval;
 import net.imglib2.img.Img;
 import net.imglib2.img.array.ArrayImgFactory;
 import net.imglib2.img.array.ArrayImgs;
@@ -93,6 +95,15 @@ public class GroupedViewAggregator
 			instances.add( instance );
 		}
 
+		@Override
+		public String toString()
+		{
+			final StringBuilder sb = new StringBuilder( actionType.toString() );
+			for (int i = 0; i < entityClasses.size(); i++)
+				sb.append( " " + entityClasses.get( i ).getSimpleName() + ( instances.get( i ) == null ? "" : "=" + instances.get( i ).getId() ) );
+			return sb.toString();
+		}
+
 		public <T extends RealType<T>> Map<BasicViewDescription<?>, RandomAccessibleInterval<T>> aggregate(
 				Map<BasicViewDescription< ? >, RandomAccessibleInterval<T>> input)
 		{
@@ -292,6 +303,12 @@ public class GroupedViewAggregator
 
 	}
 
+	@Override
+	public String toString()
+	{
+		return actions.toString();
+	}
+
 	public enum ActionType {
 		PICK_SPECIFIC, PICK_BRIGHTEST, AVERAGE
 	}
@@ -361,6 +378,28 @@ public class GroupedViewAggregator
 												AbstractSequenceDescription< ?, ? extends BasicViewDescription< ? >, ? > sd,
 												long[] downsampleFactors,
 												final AffineTransform3D dsCorrectionT){
+		return aggregate( gv, sd, downsampleFactors, dsCorrectionT, null, null, 0 );
+	}
+
+	/**
+	 * aggregate a group of views, optionally only loading the part of each view that lies within a bounding box
+	 * @param gv the views to aggregate
+	 * @param sd the sequence description
+	 * @param downsampleFactors downsampling in x,y,z
+	 * @param dsCorrectionT will be set to the transformation from downsampled to input image coordinates
+	 * @param globalCrop the part of the views to load in global coordinates (e.g. the overlap with another group), null for everything
+	 * @param vrs the view registrations (only needed if globalCrop is set)
+	 * @param cropMargin additional pixels (in downsampled coordinates) to load around the crop
+	 * @param <T> pixel type
+	 * @return the aggregated image, it always has the dimensions of the whole downsampled view
+	 */
+	public <T extends RealType<T>> RandomAccessibleInterval< T > aggregate(Group<? extends ViewId> gv, 
+												AbstractSequenceDescription< ?, ? extends BasicViewDescription< ? >, ? > sd,
+												long[] downsampleFactors,
+												final AffineTransform3D dsCorrectionT,
+												final RealInterval globalCrop,
+												final ViewRegistrations vrs,
+												final long cropMargin ){
 
 		Map<BasicViewDescription< ? >, RandomAccessibleInterval<T>> map = new HashMap<>();
 		boolean dsAdjusted = false;
@@ -374,14 +413,34 @@ public class GroupedViewAggregator
 			// if view is not present, add null as the RAIProxy
 			if ( vd.isPresent() )
 			{
-				rai = new RAIProxy< T >( sd.getImgLoader(), vid, downsampleFactors );
-
 				// we only adjust the transformation for downsampling once (could be three channels averaged here)
 				if ( !dsAdjusted )
 				{
 					DownsampleTools.openAndDownsampleAdjustTransformation( sd.getImgLoader(), vid, downsampleFactors, dsCorrectionT );
 					dsAdjusted = true;
 				}
+
+				if ( globalCrop == null )
+				{
+					rai = new RAIProxy< T >( sd.getImgLoader(), vid, downsampleFactors );
+				}
+				else
+				{
+					// bounding box of the crop in downsampled image coordinates
+					final AffineTransform3D t = vrs.getViewRegistration( vid ).getModel().copy();
+					t.concatenate( dsCorrectionT );
+					final RealInterval localCrop = t.inverse().estimateBounds( globalCrop );
+
+					final long[] min = new long[ localCrop.numDimensions() ];
+					final long[] max = new long[ localCrop.numDimensions() ];
+					for ( int d = 0; d < localCrop.numDimensions(); ++d )
+					{
+						min[ d ] = (long) Math.floor( localCrop.realMin( d ) ) - cropMargin;
+						max[ d ] = (long) Math.ceil( localCrop.realMax( d ) ) + cropMargin;
+					}
+
+					rai = new RAIProxy< T >( sd.getImgLoader(), vid, downsampleFactors, new FinalInterval( min, max ) );
+				}
 			}
 			else
 			{
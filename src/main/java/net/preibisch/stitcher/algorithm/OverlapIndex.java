@@ -0,0 +1,271 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2017 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.stitcher.algorithm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import mpicbg.spim.data.generic.sequence.AbstractSequenceDescription;
+import mpicbg.spim.data.generic.sequence.BasicViewDescription;
+import mpicbg.spim.data.registration.ViewRegistration;
+import mpicbg.spim.data.registration.ViewRegistrations;
+import mpicbg.spim.data.sequence.ViewId;
+import net.imglib2.Dimensions;
+import net.imglib2.FinalRealInterval;
+import net.imglib2.RealInterval;
+
+/**
+ * Uniform grid over (transformed) bounding boxes to find all pairs of overlapping boxes
+ * without checking all pairs. The cell size is the mean extent of the boxes, so every box
+ * is inserted into only a few cells and every cell only holds a few boxes.
+ */
+public class OverlapIndex
+{
+	// boxes covering more cells than this are compared to all other boxes instead of being inserted into the grid
+	public static long maxCellsPerBox = 1000;
+
+	private static class CellKey
+	{
+		final long[] cell;
+
+		CellKey( final long[] cell )
+		{
+			this.cell = cell;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return Arrays.hashCode( cell );
+		}
+
+		@Override
+		public boolean equals( final Object obj )
+		{
+			return obj instanceof CellKey && Arrays.equals( cell, ( (CellKey) obj ).cell );
+		}
+	}
+
+	/**
+	 * find all pairs of overlapping (touching counts as overlapping) boxes
+	 *
+	 * @param boxes - the boxes, null entries (unknown extent) are assumed to overlap everything
+	 * @return all pairs {i, j} with i &lt; j of overlapping boxes, sorted by i, then j
+	 */
+	public static List< int[] > overlappingPairs( final List< ? extends RealInterval > boxes )
+	{
+		final List< int[] > pairs = new ArrayList<>();
+
+		// boxes of unknown extent are paired with all other boxes (but pairs of unknown boxes only once)
+		RealInterval first = null;
+		for ( int i = 0; i < boxes.size(); ++i )
+		{
+			if ( boxes.get( i ) != null )
+			{
+				if ( first == null )
+					first = boxes.get( i );
+				continue;
+			}
+
+			for ( int j = 0; j < boxes.size(); ++j )
+				if ( j != i && !( boxes.get( j ) == null && j < i ) )
+					pairs.add( new int[] { Math.min( i, j ), Math.max( i, j ) } );
+		}
+
+		if ( first == null )
+		{
+			sort( pairs );
+			return pairs;
+		}
+
+		final int n = first.numDimensions();
+
+		// the grid starts at the minimum of all boxes, cells are as large as the mean box
+		final double[] origin = new double[ n ];
+		final double[] cellSize = new double[ n ];
+		Arrays.fill( origin, Double.MAX_VALUE );
+		int numBoxes = 0;
+
+		for ( final RealInterval box : boxes )
+		{
+			if ( box == null )
+				continue;
+
+			for ( int d = 0; d < n; ++d )
+			{
+				origin[ d ] = Math.min( origin[ d ], box.realMin( d ) );
+				cellSize[ d ] += box.realMax( d ) - box.realMin( d );
+			}
+			++numBoxes;
+		}
+
+		for ( int d = 0; d < n; ++d )
+			cellSize[ d ] = Math.max( cellSize[ d ] / numBoxes, 1.0 );
+
+		final HashMap< CellKey, List< Integer > > grid = new HashMap<>();
+		final ArrayList< Integer > largeBoxes = new ArrayList<>();
+
+		for ( int i = 0; i < boxes.size(); ++i )
+		{
+			final RealInterval box = boxes.get( i );
+			if ( box == null )
+				continue;
+
+			final long[] min = cell( box, true, origin, cellSize );
+			final long[] max = cell( box, false, origin, cellSize );
+
+			long numCells = 1;
+			for ( int d = 0; d < n; ++d )
+				numCells *= max[ d ] - min[ d ] + 1;
+
+			if ( numCells > maxCellsPerBox )
+			{
+				largeBoxes.add( i );
+				continue;
+			}
+
+			// add the box to all cells it touches
+			final long[] pos = min.clone();
+			for ( long c = 0; c < numCells; ++c )
+			{
+				grid.computeIfAbsent( new CellKey( pos.clone() ), k -> new ArrayList<>() ).add( i );
+
+				for ( int d = 0; d < n; ++d )
+				{
+					if ( ++pos[ d ] <= max[ d ] )
+						break;
+					pos[ d ] = min[ d ];
+				}
+			}
+		}
+
+		// every overlapping pair is reported in exactly one cell: the one that contains the minimum of their intersection
+		final long[] intersectionCell = new long[ n ];
+		for ( final Map.Entry< CellKey, List< Integer > > e : grid.entrySet() )
+		{
+			final List< Integer > inCell = e.getValue();
+
+			for ( int a = 0; a < inCell.size(); ++a )
+				for ( int b = a + 1; b < inCell.size(); ++b )
+				{
+					final RealInterval boxA = boxes.get( inCell.get( a ) );
+					final RealInterval boxB = boxes.get( inCell.get( b ) );
+
+					if ( !overlap( boxA, boxB ) )
+						continue;
+
+					for ( int d = 0; d < n; ++d )
+						intersectionCell[ d ] = (long) Math.floor( ( Math.max( boxA.realMin( d ), boxB.realMin( d ) ) - origin[ d ] ) / cellSize[ d ] );
+
+					if ( Arrays.equals( intersectionCell, e.getKey().cell ) )
+						pairs.add( new int[] { Math.min( inCell.get( a ), inCell.get( b ) ), Math.max( inCell.get( a ), inCell.get( b ) ) } );
+				}
+		}
+
+		// large boxes are compared to everything (but pairs of large boxes only once)
+		for ( final int i : largeBoxes )
+			for ( int j = 0; j < boxes.size(); ++j )
+				if ( j != i && boxes.get( j ) != null && !( largeBoxes.contains( j ) && j < i ) && overlap( boxes.get( i ), boxes.get( j ) ) )
+					pairs.add( new int[] { Math.min( i, j ), Math.max( i, j ) } );
+
+		sort( pairs );
+
+		return pairs;
+	}
+
+	private static void sort( final List< int[] > pairs )
+	{
+		pairs.sort( ( p1, p2 ) -> p1[ 0 ] != p2[ 0 ] ? Integer.compare( p1[ 0 ], p2[ 0 ] ) : Integer.compare( p1[ 1 ], p2[ 1 ] ) );
+	}
+
+	/**
+	 * bounding box of a group of views in global coordinates
+	 *
+	 * @param views - the views
+	 * @param vrs - the registrations
+	 * @param sd - the sequence description
+	 * @return the union of the transformed bounding boxes of all present views with known size, null if there are none
+	 * (such groups are compared to all other groups by {@link #overlappingPairs(List)})
+	 */
+	public static RealInterval getBoundingBox(
+			final Collection< ? extends ViewId > views,
+			final ViewRegistrations vrs,
+			final AbstractSequenceDescription< ?, ? extends BasicViewDescription< ? >, ? > sd )
+	{
+		double[] min = null;
+		double[] max = null;
+
+		for ( final ViewId v : views )
+		{
+			final BasicViewDescription< ? > vd = sd.getViewDescriptions().get( v );
+			if ( vd == null || !vd.isPresent() || vd.getViewSetup().getSize() == null )
+				continue;
+
+			final Dimensions dims = vd.getViewSetup().getSize();
+			final double[] localMax = new double[ dims.numDimensions() ];
+			for ( int d = 0; d < dims.numDimensions(); ++d )
+				localMax[ d ] = dims.dimension( d ) - 1;
+
+			final ViewRegistration vr = vrs.getViewRegistration( v );
+			vr.updateModel();
+			final RealInterval box = vr.getModel().estimateBounds( new FinalRealInterval( new double[ dims.numDimensions() ], localMax ) );
+
+			if ( min == null )
+			{
+				min = new double[ box.numDimensions() ];
+				max = new double[ box.numDimensions() ];
+				box.realMin( min );
+				box.realMax( max );
+			}
+			else
+			{
+				for ( int d = 0; d < box.numDimensions(); ++d )
+				{
+					min[ d ] = Math.min( min[ d ], box.realMin( d ) );
+					max[ d ] = Math.max( max[ d ], box.realMax( d ) );
+				}
+			}
+		}
+
+		return min == null ? null : new FinalRealInterval( min, max );
+	}
+
+	private static boolean overlap( final RealInterval a, final RealInterval b )
+	{
+		for ( int d = 0; d < a.numDimensions(); ++d )
+			if ( a.realMin( d ) > b.realMax( d ) || b.realMin( d ) > a.realMax( d ) )
+				return false;
+		return true;
+	}
+
+	private static long[] cell( final RealInterval box, final boolean useMin, final double[] origin, final double[] cellSize )
+	{
+		final long[] cell = new long[ origin.length ];
+		for ( int d = 0; d < origin.length; ++d )
+			cell[ d ] = (long) Math.floor( ( ( useMin ? box.realMin( d ) : box.realMax( d ) ) - origin[ d ] ) / cellSize[ d ] );
+		return cell;
+	}
+}
@@ -33,19 +33,25 @@ import java.util.Set;
 import java.util.Vector;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 
 import net.imglib2.Cursor;
+import net.imglib2.Dimensions;
+import net.imglib2.FinalDimensions;
 import net.imglib2.FinalInterval;
+import net.imglib2.FinalRealInterval;
 import net.imglib2.Interval;
 import net.imglib2.IterableInterval;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.RealInterval;
 import net.imglib2.RealLocalizable;
+import net.imglib2.algorithm.fft2.FFTMethods;
+import net.imglib2.algorithm.phasecorrelation.FFTBufferPool;
 import net.imglib2.algorithm.phasecorrelation.PhaseCorrelation2;
+import net.imglib2.algorithm.phasecorrelation.PhaseCorrelation2Util;
 import net.imglib2.algorithm.phasecorrelation.PhaseCorrelationPeak2;
+import net.imglib2.algorithm.phasecorrelation.SpectrumCache;
 import net.imglib2.img.array.ArrayImgFactory;
 import net.imglib2.img.display.imagej.ImageJFunctions;
 import net.imglib2.realtransform.AffineGet;
@@ -55,9 +61,9 @@ import net.imglib2.realtransform.Translation;
 import net.imglib2.realtransform.Translation3D;
 import net.imglib2.realtransform.TranslationGet;
 import net.imglib2.type.numeric.RealType;
-import net.imglib2.type.numeric.complex.ComplexFloatType;
 import net.imglib2.type.numeric.integer.LongType;
 import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
 import net.imglib2.util.Pair;
 import net.imglib2.util.Util;
 import net.imglib2.util.ValuePair;
@@ -77,6 +83,105 @@ import net.preibisch.stitcher.input.FractalSpimDataGenerator;
 
 public class PairwiseStitching
 {
+	// number of pixels each overlap is extended by (mirrored) before computing the PCM
+	public static final int PCM_EXTENSION = 10;
+
+	/**
+	 * estimate the peak memory needed to compute the shift of one pair with {@link #getShift},
+	 * i.e. both overlap images, the padded FFTs of both images, the PCM and the summed-area
+	 * tables used for scoring the candidate shifts
+	 *
+	 * @param overlap - size of the overlap (in pixels of the images that are compared)
+	 * @return estimated memory in bytes
+	 */
+	public static long estimateMemory( final Dimensions overlap )
+	{
+		final int n = overlap.numDimensions();
+
+		long numPixels = 1, numTable = 1;
+		for ( int d = 0; d < n; ++d )
+		{
+			numPixels *= overlap.dimension( d );
+			numTable *= overlap.dimension( d ) + 1;
+		}
+
+		// two float images, two complex float FFTs and the float PCM
+		long bytes = 2 * numPixels * 4 + estimateFFTBufferMemory( overlap );
+
+		// sum and sum of squares (double) for both images
+		if ( numTable <= PhaseCorrelation2Util.maxPixelsSummedAreaTable )
+			bytes += 2 * 2 * numTable * 8;
+
+		return bytes;
+	}
+
+	/**
+	 * estimate the peak memory needed to compute the shift of one pair at a downsampling, i.e. {@link #estimateMemory(Dimensions)}
+	 * plus the full resolution copies of both overlaps that are loaded before downsampling and the spectra kept in the
+	 * {@link SpectrumCache} (if used)
+	 *
+	 * @param overlap - size of the overlap (in pixels of the downsampled images that are compared)
+	 * @param downsamplingFactors - downsampling in x,y,z
+	 * @param cacheSpectra - whether copies of both spectra are kept in the {@link SpectrumCache}
+	 * @return estimated memory in bytes
+	 */
+	public static long estimateMemory( final Dimensions overlap, final long[] downsamplingFactors, final boolean cacheSpectra )
+	{
+		long numFullResPixels = 1;
+		for ( int d = 0; d < overlap.numDimensions(); ++d )
+			numFullResPixels *= overlap.dimension( d ) * ( d < downsamplingFactors.length ? downsamplingFactors[ d ] : 1 );
+
+		long bytes = estimateMemory( overlap );
+
+		// both crops are copied at full resolution (at most float) before they are downsampled
+		if ( numFullResPixels > Intervals.numElements( overlap ) )
+			bytes += 2 * numFullResPixels * 4;
+
+		// the cached spectra are copies of both complex FFTs
+		if ( cacheSpectra )
+			bytes += 2 * getFFTSize( overlap ) * 8;
+
+		return bytes;
+	}
+
+	/**
+	 * @param overlap - size of the overlap (in pixels of the images that are compared)
+	 * @return memory in bytes of one set of {@link FFTBufferPool} buffers (two complex float FFTs and the float PCM) for the overlap
+	 */
+	public static long estimateFFTBufferMemory( final Dimensions overlap )
+	{
+		final long[] paddedDimensions = new long[ overlap.numDimensions() ];
+		final long numFFT = getFFTSize( overlap, paddedDimensions );
+
+		long numPadded = 1;
+		for ( int d = 0; d < paddedDimensions.length; ++d )
+			numPadded *= paddedDimensions[ d ];
+
+		return 2 * numFFT * 8 + numPadded * 4;
+	}
+
+	private static long getFFTSize( final Dimensions overlap )
+	{
+		return getFFTSize( overlap, new long[ overlap.numDimensions() ] );
+	}
+
+	// number of complex values of the FFT of the extended overlap, paddedDimensions will contain the size of the padded real image
+	private static long getFFTSize( final Dimensions overlap, final long[] paddedDimensions )
+	{
+		final int n = overlap.numDimensions();
+		final int[] extension = new int[ n ];
+		Arrays.fill( extension, PCM_EXTENSION );
+
+		final FinalDimensions extSize = PhaseCorrelation2Util.getExtendedSize( overlap, overlap, extension );
+		final long[] fftDimensions = new long[ n ];
+		FFTMethods.dimensionsRealToComplexFast( extSize, paddedDimensions, fftDimensions );
+
+		long numFFT = 1;
+		for ( int d = 0; d < n; ++d )
+			numFFT *= fftDimensions[ d ];
+
+		return numFFT;
+	}
 
 	public static <T extends RealType< T >, S extends RealType< S >> Pair< AffineTransform, Double > getShiftLucasKanade(
 			final RandomAccessibleInterval< T > input1, final RandomAccessibleInterval< T > input2,
@@ -151,7 +256,7 @@ public class PairwiseStitching
 				new ArrayImgFactory< FloatType >(), params.getWarpFunctionInstance( img1.numDimensions() ) );
 
 		AffineTransform res = lkAlign.align( Views.zeroMin( Views.interval( img2, interval2 ) ), params.maxNumIterations,
-				params.minParameterChange );
+				params.minParameterChange, service );
 
 		if (lkAlign.didConverge())
 			IOFunctions.println("(" + new Date( System.currentTimeMillis() ) + ") determined transformation:" +  Util.printCoordinates( res.getRowPackedCopy() ) );
@@ -227,6 +332,61 @@ public class PairwiseStitching
 			final TranslationGet t1, final TranslationGet t2, final PairwiseStitchingParameters params,
 			final ExecutorService service)
 	{
+		return getShift( input1, input2, t1, t2, params, null, null, service );
+	}
+
+	/**
+	 * The absolute shift of input2 relative to after PCM input1 (without t1 and
+	 * t2 - they just help to speed it up), re-using spectra from the {@link SpectrumCache}
+	 * if params.cacheSpectra is set
+	 * 
+	 * @param input1 - zero-min interval, starting at (0,0,...)
+	 * @param input2 - zero-min interval, starting at (0,0,...)
+	 * @param t1 - translation of input1
+	 * @param t2 - translation of input2
+	 * @param params - stitching parameters
+	 * @param imageId1 - identifies the content of input1 for the spectrum cache (null = do not cache)
+	 * @param imageId2 - identifies the content of input2 for the spectrum cache (null = do not cache)
+	 * @param service - executor service to use
+	 * @param <T> pixel type input1
+	 * @param <S> pixel type input2
+	 * @return pair of shift vector and cross correlation coefficient or null if no shift could be determined
+	 */
+	public static <T extends RealType< T >, S extends RealType< S >> Pair< Translation, Double > getShift(
+			final RandomAccessibleInterval< T > input1, final RandomAccessibleInterval< S > input2,
+			final TranslationGet t1, final TranslationGet t2, final PairwiseStitchingParameters params,
+			final Object imageId1, final Object imageId2,
+			final ExecutorService service)
+	{
+		return getShift( input1, input2, t1, t2, params, imageId1, imageId2, 0, 0, service );
+	}
+
+	/**
+	 * The absolute shift of input2 relative to after PCM input1 (without t1 and
+	 * t2 - they just help to speed it up), optionally only using the central part
+	 * of the overlap and only looking for small shifts (for refining an already known shift)
+	 * 
+	 * @param input1 - zero-min interval, starting at (0,0,...)
+	 * @param input2 - zero-min interval, starting at (0,0,...)
+	 * @param t1 - translation of input1
+	 * @param t2 - translation of input2
+	 * @param params - stitching parameters
+	 * @param imageId1 - identifies the content of input1 for the spectrum cache (null = do not cache)
+	 * @param imageId2 - identifies the content of input2 for the spectrum cache (null = do not cache)
+	 * @param maxOverlapSize - only use the central maxOverlapSize pixels of the overlap in every dimension (&lt;= 0 means the whole overlap)
+	 * @param maxShift - only consider shifts of at most maxShift pixels in every dimension (&lt;= 0 means all shifts)
+	 * @param service - executor service to use
+	 * @param <T> pixel type input1
+	 * @param <S> pixel type input2
+	 * @return pair of shift vector and cross correlation coefficient or null if no shift could be determined
+	 */
+	public static <T extends RealType< T >, S extends RealType< S >> Pair< Translation, Double > getShift(
+			final RandomAccessibleInterval< T > input1, final RandomAccessibleInterval< S > input2,
+			final TranslationGet t1, final TranslationGet t2, final PairwiseStitchingParameters params,
+			final Object imageId1, final Object imageId2,
+			final long maxOverlapSize, final double maxShift,
+			final ExecutorService service)
+	{
 
 		// check if we have singleton dimensions
 		boolean[] singletonDims = new boolean[input1.numDimensions()];
@@ -258,13 +418,16 @@ public class PairwiseStitching
 		System.out.println( "2: " + TransformationTools.printRealInterval( transformed2 ) );
 
 		// get overlap interval
-		final RealInterval overlap = TransformTools.getOverlap( transformed1, transformed2 );
-		System.out.println( "O: " + TransformationTools.printRealInterval( overlap ) );
+		final RealInterval fullOverlap = TransformTools.getOverlap( transformed1, transformed2 );
+		System.out.println( "O: " + TransformationTools.printRealInterval( fullOverlap ) );
 
 		// not overlapping -> we wont be able to determine a shift
-		if ( overlap == null )
+		if ( fullOverlap == null )
 			return null;
 
+		// only use the center of the overlap if requested
+		final RealInterval overlap = maxOverlapSize > 0 ? shrinkToCenter( fullOverlap, maxOverlapSize ) : fullOverlap;
+
 		// get overlap in images' coordinates
 		final RealInterval localOverlap1 = TransformTools.getLocalOverlap( transformed1, overlap );
 		final RealInterval localOverlap2 = TransformTools.getLocalOverlap( transformed2, overlap );
@@ -304,7 +467,7 @@ public class PairwiseStitching
 		// call the phase correlation
 		//
 		final int[] extension = new int[img1.numDimensions()];
-		Arrays.fill( extension, 10 );
+		Arrays.fill( extension, PCM_EXTENSION );
 
 		//
 		// the min overlap is in percent of the current overlap interval
@@ -320,16 +483,39 @@ public class PairwiseStitching
 		// full image,
 		// so we feed it RandomAccessible + an Interval we want to use for the
 		// PCM > also zero-min inside
-		final RandomAccessibleInterval< FloatType > pcm = PhaseCorrelation2.calculatePCM(
-				Views.zeroMin( Views.interval( img1, interval1 ) ), Views.zeroMin( Views.interval( img2, interval2 ) ),
-				extension, new ArrayImgFactory< FloatType >(), new FloatType(),
-				new ArrayImgFactory< ComplexFloatType >(), new ComplexFloatType(), service );
 
-		normalizePCM( pcm, service );
+		// overlaps in a grid almost always have the same size, so we re-use the FFT buffers
+		final FFTBufferPool.Buffers buffers = FFTBufferPool.getInstance().acquire(
+				PhaseCorrelation2Util.getExtendedSize( interval1, interval2, extension ) );
 
-		final PhaseCorrelationPeak2 shiftPeak = PhaseCorrelation2.getShift( pcm,
-				Views.zeroMin( Views.interval( img1, interval1 ) ), Views.zeroMin( Views.interval( img2, interval2 ) ),
-				params.peaksToCheck, minOverlap, params.doSubpixel, params.interpolateCrossCorrelation, service );
+		final PhaseCorrelationPeak2 shiftPeak;
+
+		try
+		{
+			final SpectrumCache cache = params.cacheSpectra ? SpectrumCache.getInstance() : null;
+
+			long t = StitchingMetrics.start();
+			final RandomAccessibleInterval< FloatType > pcm = PhaseCorrelation2.calculatePCM(
+					Views.zeroMin( Views.interval( img1, interval1 ) ), Views.zeroMin( Views.interval( img2, interval2 ) ),
+					extension, buffers, cache,
+					imageId1 == null ? null : new SpectrumCache.Key( imageId1, interval1, extension ),
+					imageId2 == null ? null : new SpectrumCache.Key( imageId2, interval2, extension ),
+					service );
+			StitchingMetrics.getInstance().stop( StitchingMetrics.FFT, t );
+
+			t = StitchingMetrics.start();
+			normalizePCM( pcm, service );
+			StitchingMetrics.getInstance().stop( StitchingMetrics.PCM_NORMALIZATION, t );
+
+			shiftPeak = PhaseCorrelation2.getShift( pcm,
+					Views.zeroMin( Views.interval( img1, interval1 ) ), Views.zeroMin( Views.interval( img2, interval2 ) ),
+					params.peaksToCheck, minOverlap, params.doSubpixel, params.interpolateCrossCorrelation, maxShift, service );
+		}
+		finally
+		{
+			// the PCM lives in the buffers, it must not be used after this point
+			FFTBufferPool.getInstance().release( buffers );
+		}
 
 		//System.out.println( "Actual overlap of best shift is: " + shiftPeak.getnPixel() );
 
@@ -378,6 +564,27 @@ public class PairwiseStitching
 		return new ValuePair< >( new Translation(finalShift), shiftPeak.getCrossCorr() );
 	}
 
+	/**
+	 * @param interval - the interval to shrink
+	 * @param maxSize - maximal size in every dimension
+	 * @return the interval with the same center, but at most maxSize large in every dimension
+	 */
+	public static RealInterval shrinkToCenter( final RealInterval interval, final double maxSize )
+	{
+		final double[] min = new double[ interval.numDimensions() ];
+		final double[] max = new double[ interval.numDimensions() ];
+
+		for ( int d = 0; d < interval.numDimensions(); ++d )
+		{
+			final double size = interval.realMax( d ) - interval.realMin( d );
+			final double shrink = Math.max( 0, size - maxSize ) / 2;
+			min[ d ] = interval.realMin( d ) + shrink;
+			max[ d ] = interval.realMax( d ) - shrink;
+		}
+
+		return new FinalRealInterval( min, max );
+	}
+
 	public static void normalizePCM( final RandomAccessibleInterval< FloatType > pcm, final ExecutorService service )
 	{
 		// so that the peak doesn't stick out too much, that interferes with the subpixel detection
@@ -597,7 +804,7 @@ public class PairwiseStitching
 
 		List< PairwiseStitchingResult< Integer > > pairwiseShifts = getPairwiseShifts( rais, tr,
 				new PairwiseStitchingParameters(),
-				Executors.newFixedThreadPool( Runtime.getRuntime().availableProcessors() ) );
+				StitchingExecutor.getInstance() );
 
 		
 		Map< Integer, AffineGet > collect = tr.entrySet().stream().collect( Collectors.toMap( e -> 
@@ -32,6 +32,34 @@ public class PairwiseStitchingParameters
 	public boolean showExpertGrouping;
 	public boolean useWholeImage;
 
+	// maximal number of views kept in memory at once during pairwise computation (<= 0 means unlimited)
+	public int maxResidentViews = 0;
+
+	// memory (in bytes) that pairs computed at the same time may use, <= 0 means half of the heap that is free when the computation starts
+	public long memoryBudget = 0;
+
+	// keep the spectra of all overlaps in memory, so re-computing the same pairs is faster
+	public boolean cacheSpectra = false;
+
+	// estimate the shift on coarser levels (2x, 4x, ... the selected downsampling) and only refine it on the finer levels
+	public boolean coarseToFine = false;
+	public int coarseToFineLevels = 2;
+	// refinement: max. error of the coarser estimate (in pixels of the coarser level) and max. size of the overlap to use (in pixels)
+	public double refinementSearchRadius = 2;
+	public long refinementBlockSize = 128;
+
+	// write the timings of all stages of the pairwise computation to this file (.csv or .json), null means only print a summary
+	public String metricsFile = null;
+
+	// append every finished pair to this file, so an interrupted computation can be resumed (null means no journal,
+	// an empty path means the default journal next to the XML) and skip pairs that are already in it
+	public String journalFile = null;
+	public boolean resumeFromJournal = true;
+
+	// only compute pairs that were never computed or whose view registrations changed since their result was computed,
+	// the results of all other pairs are kept (this uses the journal to remember failed and filtered pairs)
+	public boolean onlyChangedPairs = false;
+
 	public PairwiseStitchingParameters()
 	{
 		this(0, 5, true, false, false, false);
@@ -62,6 +90,13 @@ public class PairwiseStitchingParameters
 		gd.addCheckbox( "interpolate_subpixel_cross_correlation_(warning: slow!)", false );
 		gd.addCheckbox( "use_whole_image_(warning: slow!)", false );
 		gd.addCheckbox( "show_expert_grouping_options", false );
+		gd.addCheckbox( "cache_spectra_(faster re-computation, needs more memory)", false );
+		gd.addCheckbox( "coarse_to_fine_(estimate at lower resolution, refine at selected downsampling)", false );
+		gd.addNumericField( "number_of_coarser_levels", 2, 0 );
+		gd.addNumericField( "refinement_search_radius_(pixels of the coarser level)", 2, 1 );
+		gd.addNumericField( "refinement_block_size_(pixels)", 128, 0 );
+		gd.addCheckbox( "resumable_(keep finished pairs in a journal next to the XML)", false );
+		gd.addCheckbox( "only_recompute_changed_pairs_(keep results of unchanged pairs)", false );
 	}
 
 	public static PairwiseStitchingParameters getParametersFromGD(final GenericDialog gd)
@@ -75,8 +110,23 @@ public class PairwiseStitchingParameters
 		boolean interpolateSubpixel = gd.getNextBoolean();
 		boolean useWholeImage = gd.getNextBoolean();
 		boolean showExpertGrouping = gd.getNextBoolean();
+		boolean cacheSpectra = gd.getNextBoolean();
+		boolean coarseToFine = gd.getNextBoolean();
+		int coarseToFineLevels = Math.max( 0, (int) gd.getNextNumber() );
+		double refinementSearchRadius = Math.max( 0, gd.getNextNumber() );
+		long refinementBlockSize = Math.max( 1, (long) gd.getNextNumber() );
+		boolean resumable = gd.getNextBoolean();
+		boolean onlyChangedPairs = gd.getNextBoolean();
 
-		return new PairwiseStitchingParameters(minOverlap, peaksToCheck, doSubpixel, interpolateSubpixel, showExpertGrouping, useWholeImage);
+		final PairwiseStitchingParameters params = new PairwiseStitchingParameters(minOverlap, peaksToCheck, doSubpixel, interpolateSubpixel, showExpertGrouping, useWholeImage);
+		params.cacheSpectra = cacheSpectra;
+		params.coarseToFine = coarseToFine;
+		params.coarseToFineLevels = coarseToFineLevels;
+		params.refinementSearchRadius = refinementSearchRadius;
+		params.refinementBlockSize = refinementBlockSize;
+		params.journalFile = resumable ? "" : null;
+		params.onlyChangedPairs = onlyChangedPairs;
+		return params;
 	}
 
 	public static PairwiseStitchingParameters askUserForParameters()
@@ -23,12 +23,14 @@ package net.preibisch.stitcher.algorithm;
 
 import mpicbg.spim.data.generic.sequence.BasicImgLoader;
 import mpicbg.spim.data.sequence.ViewId;
+import net.imglib2.FinalInterval;
 import net.imglib2.Interval;
 import net.imglib2.Positionable;
 import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.RealPositionable;
 import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
 //import net.preibisch.mvrecon.process.interestpointdetection.methods.downsampling.DownsampleTools;
 
 
@@ -38,20 +40,49 @@ public class RAIProxy <T extends RealType<T>> implements RandomAccessibleInterva
 	private BasicImgLoader imgLoader;
 	private ViewId vid;
 	private long[] downsampleFactors;
+	private Interval crop;
 
 	public RAIProxy(BasicImgLoader imgLoader, ViewId vid, long[] downsampleFactors )
+	{
+		this( imgLoader, vid, downsampleFactors, null );
+	}
+
+	/**
+	 * proxy for the whole downsampled image that will only load the crop, pixels outside the crop will be zero
+	 * (the view is opened once and shared with all other pairs through the TileCache, only the crop is copied)
+	 * @param imgLoader the ImgLoader to use
+	 * @param vid the view to load
+	 * @param downsampleFactors downsampling in x,y,z
+	 * @param crop the part to load in coordinates of the downsampled image, null for the whole image
+	 */
+	public RAIProxy(BasicImgLoader imgLoader, ViewId vid, long[] downsampleFactors, Interval crop )
 	{
 		this.rai = null;
 		this.downsampleFactors = downsampleFactors;
 		this.imgLoader = imgLoader;
 		this.vid = vid;
+		this.crop = crop;
 	}
 	
 	private void loadIfNecessary()
 	{
 		// FIXME: use DownsampleTools from SPIM_Registration
-		if (rai == null)
-			rai = DownsampleTools.openAndDownsample( imgLoader, vid, downsampleFactors );
+		// views are shared between all pairs they take part in via the TileCache
+		if (rai != null)
+			return;
+
+		if (crop != null)
+		{
+			final RandomAccessibleInterval< T > cropped = TileCache.getInstance().getOrLoad( imgLoader, vid, downsampleFactors, crop );
+			if (cropped != null)
+			{
+				final long[] dims = DownsampleTools.getDownsampledDimensions( imgLoader, vid, downsampleFactors );
+				rai = Views.interval( Views.extendZero( cropped ), new FinalInterval( dims ) );
+				return;
+			}
+		}
+
+		rai = TileCache.getInstance().getOrLoad( imgLoader, vid, downsampleFactors );
 	}
 	
 	@Override
@@ -46,6 +46,7 @@ import mpicbg.spim.data.sequence.Channel;
 import mpicbg.spim.data.sequence.Illumination;
 import mpicbg.spim.data.sequence.Tile;
 import mpicbg.spim.data.sequence.TimePoint;
+import net.imglib2.RealInterval;
 import net.imglib2.util.Pair;
 import net.imglib2.util.ValuePair;
 import net.preibisch.mvrecon.fiji.datasetmanager.FileListDatasetDefinition;
@@ -185,17 +186,43 @@ public class SpimDataFilteringAndGrouping < AS extends AbstractSpimData< ? > >
 		final List< Group< BasicViewDescription< ?  > >> groupedElements = 
 				Group.combineBy(ungroupedElements, groupingFactors);
 		
-		// go through possible group pairs
+		// groups that differ along an axis of application are never compared,
+		// so we only look for spatially overlapping candidates within groups that share the first view's attributes
+		final Map< List< Object >, List< Integer > > partitions = new HashMap<>();
 		for (int i = 0; i < groupedElements.size(); ++i)
-			for(int j = i+1; j < groupedElements.size(); ++j)
-			{
-				// we will want to process the pair if:
-				// the groups do not differ along an axis along which we want to treat elements individually (e.g. Angle)
-				// but they differ along an axis that we want to register (e.g Tile)
-				if (!groupsDifferByAny( groupedElements.get( i ), groupedElements.get( j ), axesOfApplication ) 
-						&& groupsDifferByAny( groupedElements.get( i ), groupedElements.get( j ), axesOfComparison ))
-					res.add(new ValuePair<>(groupedElements.get( i ), groupedElements.get( j )));
-			}
+		{
+			final BasicViewDescription< ? > first = groupedElements.get( i ).iterator().next();
+			final List< Object > key = new ArrayList<>();
+			for (final Class< ? extends Entity > cl : axesOfApplication)
+				key.add( cl == TimePoint.class ? first.getTimePoint() : first.getViewSetup().getAttribute( cl ) );
+			partitions.computeIfAbsent( key, k -> new ArrayList<>() ).add( i );
+		}
+
+		final List< int[] > candidates = new ArrayList<>();
+		for (final List< Integer > partition : partitions.values())
+		{
+			final List< RealInterval > boxes = new ArrayList<>();
+			for (final int i : partition)
+				boxes.add( OverlapIndex.getBoundingBox( groupedElements.get( i ).getViews(), data.getViewRegistrations(), data.getSequenceDescription() ) );
+
+			for (final int[] pair : OverlapIndex.overlappingPairs( boxes ))
+				candidates.add( new int[] { partition.get( pair[ 0 ] ), partition.get( pair[ 1 ] ) } );
+		}
+		candidates.sort( (p1, p2) -> p1[ 0 ] != p2[ 0 ] ? Integer.compare( p1[ 0 ], p2[ 0 ] ) : Integer.compare( p1[ 1 ], p2[ 1 ] ) );
+
+		// go through overlapping group pairs
+		for (final int[] candidate : candidates)
+		{
+			final int i = candidate[ 0 ];
+			final int j = candidate[ 1 ];
+
+			// we will want to process the pair if:
+			// the groups do not differ along an axis along which we want to treat elements individually (e.g. Angle)
+			// but they differ along an axis that we want to register (e.g Tile)
+			if (!groupsDifferByAny( groupedElements.get( i ), groupedElements.get( j ), axesOfApplication ) 
+					&& groupsDifferByAny( groupedElements.get( i ), groupedElements.get( j ), axesOfComparison ))
+				res.add(new ValuePair<>(groupedElements.get( i ), groupedElements.get( j )));
+		}
 		return res;
 	}
 	
@@ -0,0 +1,68 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2017 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.stitcher.algorithm;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+
+import net.preibisch.mvrecon.Threads;
+
+/**
+ * Process-wide work-stealing thread pool for all parallel parts of the stitching (pairwise shifts,
+ * Lucas-Kanade, fusion, illumination selection). A task running in the pool that waits for subtasks
+ * it submitted to the same pool helps executing them instead of blocking, so nested parallelism
+ * (e.g. several pairs at once, each with a parallel FFT and cross correlation) runs on the configured
+ * number of threads instead of one thread pool per level. The pool must not be shut down by its users.
+ */
+public class StitchingExecutor
+{
+	// <= 0 means the number of threads set for the multiview reconstruction
+	private static int parallelism = 0;
+
+	private static ForkJoinPool pool;
+
+	public static synchronized ExecutorService getInstance()
+	{
+		if ( pool == null )
+			pool = new ForkJoinPool( getParallelism() );
+		return pool;
+	}
+
+	public static synchronized int getParallelism()
+	{
+		return parallelism > 0 ? parallelism : Math.max( 1, Threads.numThreads() );
+	}
+
+	/**
+	 * set the number of threads of the shared pool, new callers of {@link #getInstance()} get a new pool.
+	 * The old pool is not shut down: tasks that are still running keep using it (also for nested subtasks)
+	 * until they are done, its idle threads then terminate on their own.
+	 * @param numThreads number of threads, &lt;= 0 for the number of threads set for the multiview reconstruction
+	 */
+	public static synchronized void setParallelism( final int numThreads )
+	{
+		parallelism = numThreads;
+
+		if ( pool != null && pool.getParallelism() != getParallelism() )
+			pool = null;
+	}
+}
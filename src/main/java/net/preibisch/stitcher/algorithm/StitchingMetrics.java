@@ -0,0 +1,284 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2017 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.stitcher.algorithm;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.preibisch.legacy.io.IOFunctions;
+
+/**
+ * Lightweight, process-wide timers and counters for the stages of pairwise stitching
+ * (image loading, downsampling, FFT, PCM normalization, peak search, cross correlation).
+ * Every stage keeps a histogram of its durations over all pairs, which can be exported as CSV or JSON.
+ * Stages are not attributed to single pairs, parts of a pair (e.g. the FFTs) run as subtasks on other
+ * threads of the work-stealing pool, while the waiting thread can run parts of other pairs.
+ */
+public class StitchingMetrics
+{
+	public static final String LOAD = "imageLoad";
+	public static final String DOWNSAMPLE = "downsampling";
+	public static final String FFT = "fft";
+	public static final String PCM_NORMALIZATION = "pcmNormalization";
+	public static final String PEAK_SEARCH = "peakSearch";
+	public static final String CROSS_CORRELATION = "crossCorrelation";
+	public static final String PAIR = "pair";
+
+	public static final String BYTES_READ = "bytesRead";
+
+	public static boolean enabled = true;
+
+	private static StitchingMetrics instance;
+
+	public static synchronized StitchingMetrics getInstance()
+	{
+		if ( instance == null )
+			instance = new StitchingMetrics();
+		return instance;
+	}
+
+	/**
+	 * durations in log2-spaced buckets (of microseconds), so percentiles can be estimated without keeping all samples
+	 */
+	public static class Histogram
+	{
+		private long count = 0;
+		private long totalNanos = 0;
+		private long minNanos = Long.MAX_VALUE;
+		private long maxNanos = 0;
+		private final long[] buckets = new long[ 64 ];
+
+		public synchronized void add( final long nanos )
+		{
+			++count;
+			totalNanos += nanos;
+			minNanos = Math.min( minNanos, nanos );
+			maxNanos = Math.max( maxNanos, nanos );
+			++buckets[ 64 - Long.numberOfLeadingZeros( Math.max( 1, nanos / 1000 ) ) - 1 ];
+		}
+
+		public synchronized long getCount() { return count; }
+		public synchronized long getTotalNanos() { return totalNanos; }
+		public synchronized long getMinNanos() { return count == 0 ? 0 : minNanos; }
+		public synchronized long getMaxNanos() { return maxNanos; }
+		public synchronized double getMeanNanos() { return count == 0 ? 0 : (double) totalNanos / count; }
+
+		/**
+		 * @param q quantile (0...1)
+		 * @return upper bound of the bucket containing the quantile (in nanoseconds)
+		 */
+		public synchronized long getPercentileNanos( final double q )
+		{
+			final long target = (long) Math.ceil( q * count );
+			long sum = 0;
+			for ( int i = 0; i < buckets.length; ++i )
+			{
+				sum += buckets[ i ];
+				if ( sum >= target && sum > 0 )
+					return Math.min( maxNanos, ( 2L << i ) * 1000 );
+			}
+			return maxNanos;
+		}
+	}
+
+	private final LinkedHashMap< String, Histogram > timers = new LinkedHashMap<>();
+	private final LinkedHashMap< String, AtomicLong > counters = new LinkedHashMap<>();
+
+	/**
+	 * @return start time for {@link #stop(String, long)}
+	 */
+	public static long start()
+	{
+		return enabled ? System.nanoTime() : 0;
+	}
+
+	/**
+	 * record the time since start for a stage
+	 * @param stage name of the stage
+	 * @param start the result of {@link #start()}
+	 */
+	public void stop( final String stage, final long start )
+	{
+		if ( enabled )
+			record( stage, System.nanoTime() - start );
+	}
+
+	public void record( final String stage, final long nanos )
+	{
+		if ( !enabled )
+			return;
+
+		final Histogram h;
+		synchronized ( timers )
+		{
+			h = timers.computeIfAbsent( stage, s -> new Histogram() );
+		}
+		h.add( nanos );
+	}
+
+	public void count( final String counter, final long value )
+	{
+		if ( !enabled )
+			return;
+
+		final AtomicLong c;
+		synchronized ( counters )
+		{
+			c = counters.computeIfAbsent( counter, s -> new AtomicLong() );
+		}
+		c.addAndGet( value );
+	}
+
+	public Map< String, Histogram > getTimers()
+	{
+		synchronized ( timers )
+		{
+			return new LinkedHashMap<>( timers );
+		}
+	}
+
+	public long getCounter( final String counter )
+	{
+		synchronized ( counters )
+		{
+			final AtomicLong c = counters.get( counter );
+			return c == null ? 0 : c.get();
+		}
+	}
+
+	public Map< String, Long > getCounters()
+	{
+		final LinkedHashMap< String, Long > values = new LinkedHashMap<>();
+		synchronized ( counters )
+		{
+			counters.forEach( ( c, v ) -> values.put( c, v.get() ) );
+		}
+		return values;
+	}
+
+	public void reset()
+	{
+		synchronized ( timers ) { timers.clear(); }
+		synchronized ( counters ) { counters.clear(); }
+	}
+
+	public void printSummary()
+	{
+		final Map< String, Histogram > t = getTimers();
+		if ( t.isEmpty() )
+			return;
+
+		final Histogram pairTimer = t.get( PAIR );
+		IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Stitching metrics (" + ( pairTimer == null ? 0 : pairTimer.getCount() ) + " pairs):" );
+
+		for ( final Map.Entry< String, Histogram > e : t.entrySet() )
+		{
+			final Histogram h = e.getValue();
+			IOFunctions.println( String.format( "  %-18s n=%d, total=%.2fs, mean=%.1fms, min=%.1fms, p50<=%.1fms, p95<=%.1fms, max=%.1fms",
+					e.getKey(), h.getCount(), h.getTotalNanos() / 1e9, h.getMeanNanos() / 1e6, h.getMinNanos() / 1e6,
+					h.getPercentileNanos( 0.5 ) / 1e6, h.getPercentileNanos( 0.95 ) / 1e6, h.getMaxNanos() / 1e6 ) );
+		}
+
+		final long bytes = getCounter( BYTES_READ );
+		if ( bytes > 0 )
+			IOFunctions.println( String.format( "  %-18s %.1f MB%s", BYTES_READ, bytes / 1e6,
+					pairTimer == null || pairTimer.getTotalNanos() == 0 ? "" : String.format( " (%.1f MB/s of pair time)", bytes / 1e6 / ( pairTimer.getTotalNanos() / 1e9 ) ) ) );
+	}
+
+	/**
+	 * write the metrics to a file, the format is chosen by the extension (.json, everything else is CSV)
+	 * @param file the file
+	 * @throws IOException if the file cannot be written
+	 */
+	public void export( final File file ) throws IOException
+	{
+		if ( file.getName().toLowerCase().endsWith( ".json" ) )
+			exportJSON( file );
+		else
+			exportCSV( file );
+	}
+
+	/**
+	 * one line per stage and counter, durations in milliseconds
+	 * @param file the file
+	 * @throws IOException if the file cannot be written
+	 */
+	public void exportCSV( final File file ) throws IOException
+	{
+		try ( final PrintWriter out = new PrintWriter( new FileWriter( file ) ) )
+		{
+			out.println( "stage,count,total_ms,mean_ms,min_ms,p50_ms,p95_ms,max_ms" );
+
+			for ( final Map.Entry< String, Histogram > e : getTimers().entrySet() )
+			{
+				final Histogram h = e.getValue();
+				out.println( String.format( "%s,%d,%.3f,%.3f,%.3f,%.3f,%.3f,%.3f",
+						e.getKey(), h.getCount(), h.getTotalNanos() / 1e6, h.getMeanNanos() / 1e6, h.getMinNanos() / 1e6,
+						h.getPercentileNanos( 0.5 ) / 1e6, h.getPercentileNanos( 0.95 ) / 1e6, h.getMaxNanos() / 1e6 ) );
+			}
+
+			for ( final Map.Entry< String, Long > e : getCounters().entrySet() )
+				out.println( e.getKey() + "," + e.getValue() + ",,,,,," );
+		}
+	}
+
+	/**
+	 * summary per stage (durations in milliseconds) and counters
+	 * @param file the file
+	 * @throws IOException if the file cannot be written
+	 */
+	public void exportJSON( final File file ) throws IOException
+	{
+		try ( final PrintWriter out = new PrintWriter( new FileWriter( file ) ) )
+		{
+			out.println( "{" );
+			out.println( "  \"stages\": {" );
+
+			final List< Map.Entry< String, Histogram > > t = new ArrayList<>( getTimers().entrySet() );
+			for ( int i = 0; i < t.size(); ++i )
+			{
+				final Histogram h = t.get( i ).getValue();
+				out.println( String.format( "    \"%s\": {\"count\": %d, \"totalMs\": %.3f, \"meanMs\": %.3f, \"minMs\": %.3f, \"p50Ms\": %.3f, \"p95Ms\": %.3f, \"maxMs\": %.3f}%s",
+						t.get( i ).getKey(), h.getCount(), h.getTotalNanos() / 1e6, h.getMeanNanos() / 1e6, h.getMinNanos() / 1e6,
+						h.getPercentileNanos( 0.5 ) / 1e6, h.getPercentileNanos( 0.95 ) / 1e6, h.getMaxNanos() / 1e6, i < t.size() - 1 ? "," : "" ) );
+			}
+
+			out.println( "  }," );
+			out.println( "  \"counters\": {" );
+
+			final List< Map.Entry< String, Long > > c = new ArrayList<>( getCounters().entrySet() );
+			for ( int i = 0; i < c.size(); ++i )
+				out.println( "    \"" + c.get( i ).getKey() + "\": " + c.get( i ).getValue() + ( i < c.size() - 1 ? "," : "" ) );
+
+			out.println( "  }" );
+			out.println( "}" );
+		}
+	}
+}
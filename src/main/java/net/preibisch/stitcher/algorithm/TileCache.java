@@ -0,0 +1,358 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2017 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.stitcher.algorithm;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import mpicbg.spim.data.generic.sequence.BasicImgLoader;
+import mpicbg.spim.data.sequence.ViewId;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.cell.AbstractCellImg;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
+import net.preibisch.legacy.io.IOFunctions;
+
+/**
+ * Process-wide cache of opened and downsampled views, so that every view is only loaded once
+ * when it takes part in multiple pairwise comparisons. The cache is bounded by the total number
+ * of voxels it holds, the least recently used views are evicted first. Views that are only needed
+ * in parts (the overlaps of pairs) are opened without loading them, so that for cell-based ImgLoaders
+ * only the blocks of the overlaps are read.
+ */
+public class TileCache
+{
+	// by default, we use at most a quarter of the heap (assuming 4 bytes per voxel)
+	public static long defaultMaxVoxels = Runtime.getRuntime().maxMemory() / 4 / 4;
+
+	private static TileCache instance;
+
+	private static final RandomAccessibleInterval< ? > EMPTY = ArrayImgs.bytes( 1 );
+
+	public static synchronized TileCache getInstance()
+	{
+		if ( instance == null )
+			instance = new TileCache( defaultMaxVoxels );
+		return instance;
+	}
+
+	private static class Key
+	{
+		final BasicImgLoader imgLoader;
+		final ViewId vid;
+		final long[] downsampleFactors;
+		final boolean lazy;
+
+		Key( final BasicImgLoader imgLoader, final ViewId vid, final long[] downsampleFactors, final boolean lazy )
+		{
+			this.imgLoader = imgLoader;
+			this.vid = new ViewId( vid.getTimePointId(), vid.getViewSetupId() );
+			this.downsampleFactors = downsampleFactors.clone();
+			this.lazy = lazy;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return 31 * ( 31 * vid.hashCode() + Arrays.hashCode( downsampleFactors ) ) + Boolean.hashCode( lazy );
+		}
+
+		@Override
+		public boolean equals( final Object obj )
+		{
+			if ( !( obj instanceof Key ) )
+				return false;
+
+			final Key other = (Key) obj;
+			return imgLoader == other.imgLoader && vid.equals( other.vid ) && Arrays.equals( downsampleFactors, other.downsampleFactors ) && lazy == other.lazy;
+		}
+	}
+
+	private static class Entry
+	{
+		RandomAccessibleInterval< ? > rai;
+		long numVoxels;
+
+		// downsampling that still needs to be applied to crops of lazily opened views
+		long[] remainingDs;
+	}
+
+	private final LinkedHashMap< Key, Entry > entries;
+	private long maxVoxels;
+	private long currentVoxels;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	public TileCache( final long maxVoxels )
+	{
+		// access order -> iteration starts at the least recently used entry
+		this.entries = new LinkedHashMap<>( 16, 0.75f, true );
+		this.maxVoxels = maxVoxels;
+		this.currentVoxels = 0;
+	}
+
+	/**
+	 * get the opened and downsampled view, load it if it is not in the cache yet
+	 * (concurrent requests for the same view will wait for one load)
+	 * @param imgLoader the ImgLoader to load from
+	 * @param vid the view to load
+	 * @param downsampleFactors downsampling in x,y,z
+	 * @param <T> pixel type
+	 * @return the downsampled image
+	 */
+	@SuppressWarnings("unchecked")
+	public < T extends RealType< T > > RandomAccessibleInterval< T > getOrLoad(
+			final BasicImgLoader imgLoader,
+			final ViewId vid,
+			final long[] downsampleFactors )
+	{
+		final Entry entry = this.< T >get( new Key( imgLoader, vid, downsampleFactors, false ) );
+
+		return entry.rai == EMPTY ? null : (RandomAccessibleInterval< T >) entry.rai;
+	}
+
+	/**
+	 * get a downsampled crop of a view, the view is only opened (not loaded) and cached, so it is opened once
+	 * for all pairs it takes part in, and only the crop is copied (for cell-based ImgLoaders, only the blocks
+	 * that intersect the crop are read)
+	 * @param imgLoader the ImgLoader to load from
+	 * @param vid the view to load
+	 * @param downsampleFactors downsampling in x,y,z
+	 * @param crop the interval in coordinates of the downsampled image, null for the whole image
+	 * @param <T> pixel type
+	 * @return the crop of the downsampled image (null if the crop does not intersect the image)
+	 */
+	@SuppressWarnings("unchecked")
+	public < T extends RealType< T > > RandomAccessibleInterval< T > getOrLoad(
+			final BasicImgLoader imgLoader,
+			final ViewId vid,
+			final long[] downsampleFactors,
+			final Interval crop )
+	{
+		if ( crop == null )
+			return getOrLoad( imgLoader, vid, downsampleFactors );
+
+		final Entry entry = this.< T >get( new Key( imgLoader, vid, downsampleFactors, true ) );
+
+		if ( entry.rai == EMPTY )
+			return null;
+
+		return DownsampleTools.cropAndDownsample( (RandomAccessibleInterval< T >) entry.rai, entry.remainingDs, crop );
+	}
+
+	/**
+	 * get the entry of a key, open or load the view if it is not in the cache yet
+	 * (concurrent requests for the same view will wait for one load)
+	 * @param key the view to get
+	 * @param <T> pixel type
+	 * @return the entry, its image is set
+	 */
+	private < T extends RealType< T > > Entry get( final Key key )
+	{
+		final Entry entry;
+
+		synchronized ( this )
+		{
+			final Entry existing = entries.get( key );
+			if ( existing == null )
+			{
+				entry = new Entry();
+				entries.put( key, entry );
+				misses.incrementAndGet();
+			}
+			else
+			{
+				entry = existing;
+				hits.incrementAndGet();
+			}
+		}
+
+		synchronized ( entry )
+		{
+			if ( entry.rai == null )
+			{
+				final RandomAccessibleInterval< T > rai;
+				final long[] remainingDs = new long[ 3 ];
+				final long numVoxels;
+
+				try
+				{
+					if ( key.lazy )
+					{
+						rai = DownsampleTools.openLazily( key.imgLoader, key.vid, key.downsampleFactors, remainingDs );
+
+						// cell images are only read when crops are copied (and their blocks are cached by the ImgLoader),
+						// other images were loaded completely when they were opened
+						numVoxels = rai instanceof Img && !( rai instanceof AbstractCellImg ) ? Intervals.numElements( rai ) : 0;
+					}
+					else
+					{
+						rai = DownsampleTools.openAndDownsample( key.imgLoader, key.vid, key.downsampleFactors );
+						numVoxels = rai == null ? 0 : Intervals.numElements( rai );
+					}
+				}
+				catch ( final RuntimeException | Error e )
+				{
+					// an entry that is still loading is never evicted, so remove it (the next request will load again)
+					synchronized ( this )
+					{
+						if ( entries.get( key ) == entry )
+							entries.remove( key );
+					}
+
+					throw e;
+				}
+
+				synchronized ( this )
+				{
+					entry.rai = rai == null ? EMPTY : rai;
+					entry.numVoxels = numVoxels;
+					entry.remainingDs = remainingDs;
+
+					// the entry might have been evicted while we were loading, only account for it if it is still present
+					if ( entries.get( key ) == entry )
+					{
+						currentVoxels += entry.numVoxels;
+						evictIfNecessary( key );
+					}
+				}
+			}
+
+			return entry;
+		}
+	}
+
+	/**
+	 * remove the least recently used views until we are within the budget again,
+	 * views that are still loading and the view we just loaded are never evicted
+	 * @param keep the key we just loaded
+	 */
+	private void evictIfNecessary( final Key keep )
+	{
+		final Iterator< Map.Entry< Key, Entry > > it = entries.entrySet().iterator();
+		while ( currentVoxels > maxVoxels && it.hasNext() )
+		{
+			final Map.Entry< Key, Entry > e = it.next();
+			if ( e.getKey().equals( keep ) || e.getValue().rai == null )
+				continue;
+
+			currentVoxels -= e.getValue().numVoxels;
+			it.remove();
+			evictions.incrementAndGet();
+		}
+	}
+
+	/**
+	 * remove a single view from the cache (all downsampling factors)
+	 * @param vid the view to remove
+	 */
+	public synchronized void invalidate( final ViewId vid )
+	{
+		final Iterator< Map.Entry< Key, Entry > > it = entries.entrySet().iterator();
+		while ( it.hasNext() )
+		{
+			final Map.Entry< Key, Entry > e = it.next();
+			if ( e.getKey().vid.equals( vid ) && e.getValue().rai != null )
+			{
+				currentVoxels -= e.getValue().numVoxels;
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * remove all views from the cache (statistics are kept)
+	 */
+	public synchronized void invalidateAll()
+	{
+		final Iterator< Map.Entry< Key, Entry > > it = entries.entrySet().iterator();
+		while ( it.hasNext() )
+		{
+			final Map.Entry< Key, Entry > e = it.next();
+			if ( e.getValue().rai != null )
+			{
+				currentVoxels -= e.getValue().numVoxels;
+				it.remove();
+			}
+		}
+	}
+
+	public synchronized void setMaxVoxels( final long maxVoxels )
+	{
+		this.maxVoxels = maxVoxels;
+		evictIfNecessary( null );
+	}
+
+	public synchronized long getMaxVoxels() { return maxVoxels; }
+	public synchronized long getCurrentVoxels() { return currentVoxels; }
+	public long getHits() { return hits.get(); }
+	public long getMisses() { return misses.get(); }
+	public long getEvictions() { return evictions.get(); }
+
+	public void resetStatistics()
+	{
+		hits.set( 0 );
+		misses.set( 0 );
+		evictions.set( 0 );
+	}
+
+	/**
+	 * @param imgLoader the ImgLoader
+	 * @param vid the view
+	 * @param downsampleFactors downsampling in x,y,z
+	 * @return true if the view is cached, either loaded completely or opened for crops
+	 */
+	public synchronized boolean contains( final BasicImgLoader imgLoader, final ViewId vid, final long[] downsampleFactors )
+	{
+		for ( final boolean lazy : new boolean[] { false, true } )
+		{
+			final Entry e = entries.get( new Key( imgLoader, vid, downsampleFactors, lazy ) );
+			if ( e != null && e.rai != null )
+				return true;
+		}
+
+		return false;
+	}
+
+	public void printStatistics()
+	{
+		final long numEntries, voxels;
+		synchronized ( this )
+		{
+			numEntries = entries.size();
+			voxels = currentVoxels;
+		}
+
+		IOFunctions.println(
+				"(" + new Date( System.currentTimeMillis() ) + "): Tile cache: " + hits.get() + " hits, " + misses.get() + " misses, "
+				+ evictions.get() + " evictions, " + numEntries + " views (" + voxels + " of max " + getMaxVoxels() + " voxels) cached." );
+	}
+}
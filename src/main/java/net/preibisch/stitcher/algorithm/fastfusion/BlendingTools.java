@@ -45,4 +45,85 @@ public class BlendingTools
 		return minDistance;
 	}
 
+	/**
+	 * the weight of {@link #computeWeight(float[], int[], int[], float[], float[], int)} is a product of
+	 * one factor per dimension, compute the factor of one dimension for a range of positions. Multiplying
+	 * the (float) weight with the factors of all dimensions in order gives exactly the same result as computeWeight.
+	 * @param start first position (in pixel coordinates, before subtracting the offset)
+	 * @param length number of positions
+	 * @param min min of the image in this dimension
+	 * @param dimMinus1 size of the image in this dimension - 1
+	 * @param offset (subpixel) offset that is subtracted from the positions
+	 * @param border blank pixels on each border
+	 * @param blending extent of blending on each border
+	 * @return the factors for positions start ... start + length - 1
+	 */
+	public static double[] computeWeightProfile(
+			final long start,
+			final int length,
+			final int min,
+			final int dimMinus1,
+			final float offset,
+			final float border,
+			final float blending )
+	{
+		final double[] profile = new double[ length ];
+
+		for ( int i = 0; i < length; ++i )
+		{
+			final float location = (float) ( start + i ) - offset;
+			final float l = ( location - min );
+			final float dist = Math.max( 0, Math.min( l - border, dimMinus1 - l - border ) );
+
+			if ( dist == 0 )
+				profile[ i ] = 0;
+			else
+			{
+				final float relDist = dist / blending;
+				profile[ i ] = relDist < 1 ? lookUp[ indexFor( relDist ) ] : 1;
+			}
+		}
+
+		return profile;
+	}
+
+	/**
+	 * compute the weight profiles of all dimensions for an interval
+	 * @param start first position in every dimension
+	 * @param length number of positions in every dimension
+	 * @param min min of the image
+	 * @param dimMinus1 size of the image - 1
+	 * @param offset (subpixel) offset
+	 * @param border blank pixels on each border
+	 * @param blending extent of blending on each border
+	 * @return one profile per dimension
+	 */
+	public static double[][] computeWeightProfiles(
+			final long[] start,
+			final int[] length,
+			final int[] min,
+			final int[] dimMinus1,
+			final float[] offset,
+			final float[] border,
+			final float[] blending )
+	{
+		final double[][] profiles = new double[ start.length ][];
+		for ( int d = 0; d < start.length; ++d )
+			profiles[ d ] = computeWeightProfile( start[ d ], length[ d ], min[ d ], dimMinus1[ d ], offset[ d ], border[ d ], blending[ d ] );
+		return profiles;
+	}
+
+	/**
+	 * @param profiles weight profiles of all dimensions
+	 * @param pos index into the profiles of every dimension
+	 * @return the product of the factors, same as {@link #computeWeight(float[], int[], int[], float[], float[], int)}
+	 */
+	public static float weightFromProfiles( final double[][] profiles, final int[] pos )
+	{
+		float w = 1;
+		for ( int d = 0; d < profiles.length; ++d )
+			w *= profiles[ d ][ pos[ d ] ];
+		return w;
+	}
+
 }
@@ -9,6 +9,7 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 
 import ij.IJ;
 import ij.ImageJ;
@@ -26,6 +27,7 @@ import net.imglib2.img.array.ArrayImg;
 import net.imglib2.img.array.ArrayImgFactory;
 import net.imglib2.img.array.ArrayImgs;
 import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.img.basictypeaccess.array.ShortArray;
 import net.imglib2.img.cell.CellImgFactory;
 import net.imglib2.img.display.imagej.ImageJFunctions;
 import net.imglib2.realtransform.AffineGet;
@@ -33,7 +35,9 @@ import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.realtransform.Scale3D;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
 import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
 import net.imglib2.util.Pair;
 import net.imglib2.util.Util;
 import net.imglib2.util.ValuePair;
@@ -63,7 +67,183 @@ public class FastFusionTools
 			int[] translation,
 			ExecutorService pool)
 	{
-		final Vector< ImagePortion > portions = FusionTools.divideIntoPortions( in.size() );
+		combineTranslated( in, out, translation, false, pool );
+	}
+
+	/**
+	 * add blending weights of an image to a weight image with given offset, the weights are computed
+	 * from per-dimension profiles on the fly, so no weight image of the size of the input is needed
+	 * (same weights as {@link #applyWeights(RandomAccessibleInterval, RandomAccessibleInterval, float[], float[], float[], boolean, ExecutorService)})
+	 * @param image interval of the image the weights are for
+	 * @param out weight image
+	 * @param translation shift
+	 * @param renderOffset (subpixel) offset of the original image to the provided version
+	 * @param border blank pixels on each border
+	 * @param blending extent of blending on each border
+	 * @param pool thread pool
+	 * @param <R> weight image pixel type
+	 */
+	public static < R extends RealType< R > > void addWeightsTranslated(
+			final Interval image,
+			final RandomAccessibleInterval< R > out,
+			final int[] translation,
+			final float[] renderOffset,
+			final float[] border,
+			final float[] blending,
+			final ExecutorService pool)
+	{
+		addWeightsTranslated( image, out, translation, getWeightProfiles( image, renderOffset, border, blending ), pool );
+	}
+
+	/**
+	 * add blending weights of an image to a weight image with given offset, using precomputed weight profiles
+	 * @param image interval of the image the weights are for
+	 * @param out weight image
+	 * @param translation shift
+	 * @param profiles weight profiles of the image, see {@link #getWeightProfiles(Interval, float[], float[], float[])}
+	 * @param pool thread pool
+	 * @param <R> weight image pixel type
+	 */
+	public static < R extends RealType< R > > void addWeightsTranslated(
+			final Interval image,
+			final RandomAccessibleInterval< R > out,
+			final int[] translation,
+			final double[][] profiles,
+			final ExecutorService pool)
+	{
+		final int n = image.numDimensions();
+		final int[] min = new int[ n ];
+		for ( int d = 0; d < n; ++d )
+			min[ d ] = (int) image.min( d );
+
+		combineTranslated( image, () -> ( pos, line ) -> {
+			for ( int x = 0; x < line.length; ++x )
+			{
+				float w = (float) profiles[ 0 ][ (int) pos[ 0 ] - min[ 0 ] + x ];
+				for ( int d = 1; d < n; ++d )
+					w *= profiles[ d ][ (int) pos[ d ] - min[ d ] ];
+				line[ x ] = w;
+			}
+		}, out, translation, false, pool );
+	}
+
+	/**
+	 * alpha-blend input image into output image with given offset (out = out + (1 - out) * in)
+	 * @param in input image (alpha values)
+	 * @param out output image (alpha values)
+	 * @param translation shift
+	 * @param pool thread pool
+	 * @param <T> in pixel type
+	 * @param <R> out pixel type
+	 */
+	public static <T extends RealType<T>, R extends RealType< R > > void alphaBlendTranslated(
+			IterableInterval< T > in,
+			RandomAccessibleInterval< R > out,
+			int[] translation,
+			ExecutorService pool)
+	{
+		combineTranslated( in, out, translation, true, pool );
+	}
+
+	/**
+	 * reads one line (along dimension 0) of an image
+	 */
+	private interface LineReader
+	{
+		/**
+		 * @param pos start of the line
+		 * @param line the values, the length of the array is the length of the line
+		 */
+		void read( long[] pos, float[] line );
+	}
+
+	/**
+	 * add or alpha-blend in into out, line by line along dimension 0 (see below), only iterable inputs are processed per pixel
+	 */
+	@SuppressWarnings("unchecked")
+	private static <T extends RealType<T>, R extends RealType< R > > void combineTranslated(
+			final IterableInterval< T > in,
+			final RandomAccessibleInterval< R > out,
+			final int[] translation,
+			final boolean alphaBlend,
+			final ExecutorService pool)
+	{
+		if ( !( in instanceof RandomAccessibleInterval ) )
+		{
+			combineTranslatedPerPixel( in, out, translation, alphaBlend, pool );
+			return;
+		}
+
+		final RandomAccessibleInterval< T > inRAI = (RandomAccessibleInterval< T >) in;
+		final float[] inFloats = getFloatArray( in );
+		final short[] inShorts = inFloats == null ? getUnsignedShortArray( in ) : null;
+
+		// strides of the flat storage (ArrayImgs are zero-min)
+		final long[] inStrides = getStrides( in );
+
+		final Supplier< LineReader > readers;
+		if ( inFloats != null )
+			readers = () -> ( pos, line ) -> System.arraycopy( inFloats, (int) flatIndex( pos, null, inStrides ), line, 0, line.length );
+		else if ( inShorts != null )
+			readers = () -> ( pos, line ) -> {
+				final int offset = (int) flatIndex( pos, null, inStrides );
+				for ( int x = 0; x < line.length; ++x )
+					line[ x ] = inShorts[ offset + x ] & 0xffff;
+			};
+		else
+			readers = () -> {
+				final RandomAccess< T > inRA = inRAI.randomAccess();
+				return ( pos, line ) -> {
+					inRA.setPosition( pos );
+					for ( int x = 0; x < line.length; ++x )
+					{
+						line[ x ] = inRA.get().getRealFloat();
+						inRA.fwd( 0 );
+					}
+				};
+			};
+
+		combineTranslated( in, readers, out, translation, alphaBlend, pool );
+	}
+
+	/**
+	 * add or alpha-blend in into out, line by line along dimension 0. The part of in that ends up inside of out is
+	 * computed once, so there are no per-pixel bounds checks. Lines of float ArrayImgs are written to the flat storage
+	 * directly, all other images are accessed through RandomAccesses.
+	 * @param in the interval of the input
+	 * @param readers creates one LineReader per thread
+	 */
+	private static < R extends RealType< R > > void combineTranslated(
+			final Interval in,
+			final Supplier< LineReader > readers,
+			final RandomAccessibleInterval< R > out,
+			final int[] translation,
+			final boolean alphaBlend,
+			final ExecutorService pool)
+	{
+		final int n = out.numDimensions();
+
+		// the part of in that is inside of out after translation
+		final long[] min = new long[ n ];
+		final long[] dim = new long[ n ];
+		for ( int d = 0; d < n; ++d )
+		{
+			min[ d ] = Math.max( in.min( d ), out.min( d ) - translation[ d ] );
+			dim[ d ] = Math.min( in.max( d ), out.max( d ) - translation[ d ] ) - min[ d ] + 1;
+
+			if ( dim[ d ] <= 0 )
+				return;
+		}
+
+		final int lineLength = (int) dim[ 0 ];
+		long numLines = 1;
+		for ( int d = 1; d < n; ++d )
+			numLines *= dim[ d ];
+
+		final float[] outFloats = getFloatArray( out );
+		final long[] outStrides = getStrides( out );
+
+		final Vector< ImagePortion > portions = FusionTools.divideIntoPortions( numLines );
 		final ArrayList< Callable< Void > > calls = new ArrayList<>();
 		for (final ImagePortion portion : portions)
 		{
@@ -72,26 +252,48 @@ public class FastFusionTools
 				@Override
 				public Void call() throws Exception
 				{
-					Cursor<T> inC = in.localizingCursor();
-					RandomAccess< R > outRA = out.randomAccess();
-					inC.jumpFwd( portion.getStartPosition() );
-					for (long i=0; i<portion.getLoopSize(); i++)
-					{
-						inC.fwd();
-						outRA.setPosition( inC );
-						outRA.move( translation );
+					final LineReader reader = readers.get();
+					final RandomAccess< R > outRA = outFloats == null ? out.randomAccess() : null;
+					final float[] line = new float[ lineLength ];
+					final long[] pos = new long[ n ];
 
-						// check whether we moved outside of destination image
-						boolean oob = false;
-						for (int d=0; d<out.numDimensions(); d++)
-							if (outRA.getLongPosition( d ) > out.max( d ) || outRA.getLongPosition( d ) < out.min( d ) )
-								oob = true;
-						if (oob)
-							continue;
+					for ( long l = portion.getStartPosition(); l < portion.getStartPosition() + portion.getLoopSize(); ++l )
+					{
+						// start of the line in the coordinates of in
+						pos[ 0 ] = min[ 0 ];
+						long rest = l;
+						for ( int d = 1; d < n; ++d )
+						{
+							pos[ d ] = min[ d ] + rest % dim[ d ];
+							rest /= dim[ d ];
+						}
 
-						final double p = outRA.get().getRealDouble() + inC.get().getRealDouble();
-						outRA.get().setReal( p );
+						// read the line of in
+						reader.read( pos, line );
 
+						// combine it with the line of out
+						if ( outFloats != null )
+						{
+							final int offset = (int) flatIndex( pos, translation, outStrides );
+							if ( alphaBlend )
+								for ( int x = 0; x < lineLength; ++x )
+									outFloats[ offset + x ] += ( 1 - outFloats[ offset + x ] ) * line[ x ];
+							else
+								for ( int x = 0; x < lineLength; ++x )
+									outFloats[ offset + x ] += line[ x ];
+						}
+						else
+						{
+							outRA.setPosition( pos );
+							outRA.move( translation );
+							for ( int x = 0; x < lineLength; ++x )
+							{
+								final R o = outRA.get();
+								final double aO = o.getRealDouble();
+								o.setReal( alphaBlend ? aO + ( 1 - aO ) * line[ x ] : aO + line[ x ] );
+								outRA.fwd( 0 );
+							}
+						}
 					}
 
 					return null;
@@ -108,12 +310,16 @@ public class FastFusionTools
 		catch ( InterruptedException | ExecutionException e ) { e.printStackTrace(); }
 	}
 
-	
-	public static <T extends RealType<T>, R extends RealType< R > > void alphaBlendTranslated(
-			IterableInterval< T > in,
-			RandomAccessibleInterval< R > out,
-			int[] translation,
-			ExecutorService pool)
+	/**
+	 * per-pixel version of {@link #combineTranslated(IterableInterval, RandomAccessibleInterval, int[], boolean, ExecutorService)}
+	 * for inputs that are only iterable
+	 */
+	private static <T extends RealType<T>, R extends RealType< R > > void combineTranslatedPerPixel(
+			final IterableInterval< T > in,
+			final RandomAccessibleInterval< R > out,
+			final int[] translation,
+			final boolean alphaBlend,
+			final ExecutorService pool)
 	{
 		final Vector< ImagePortion > portions = FusionTools.divideIntoPortions( in.size() );
 		final ArrayList< Callable< Void > > calls = new ArrayList<>();
@@ -141,12 +347,9 @@ public class FastFusionTools
 						if (oob)
 							continue;
 
-						// do alpha blend
 						final double aO = outRA.get().getRealDouble();
 						final double aI = inC.get().getRealDouble();
-						final double aNew =  aO + (1 - aO) * aI ;
-						outRA.get().setReal( aNew );
-
+						outRA.get().setReal( alphaBlend ? aO + (1 - aO) * aI : aO + aI );
 					}
 
 					return null;
@@ -163,6 +366,56 @@ public class FastFusionTools
 		catch ( InterruptedException | ExecutionException e ) { e.printStackTrace(); }
 	}
 
+	/**
+	 * @param img an image
+	 * @return the storage of img if it is a single-array FloatType ArrayImg, null otherwise
+	 */
+	static float[] getFloatArray( final Object img )
+	{
+		if ( img instanceof ArrayImg && ( (ArrayImg< ?, ? >) img ).firstElement() instanceof FloatType )
+		{
+			final Object access = ( (ArrayImg< ?, ? >) img ).update( null );
+			if ( access instanceof FloatArray )
+				return ( (FloatArray) access ).getCurrentStorageArray();
+		}
+		return null;
+	}
+
+	/**
+	 * @param img an image
+	 * @return the storage of img if it is a single-array UnsignedShortType ArrayImg, null otherwise
+	 */
+	static short[] getUnsignedShortArray( final Object img )
+	{
+		if ( img instanceof ArrayImg && ( (ArrayImg< ?, ? >) img ).firstElement() instanceof UnsignedShortType )
+		{
+			final Object access = ( (ArrayImg< ?, ? >) img ).update( null );
+			if ( access instanceof ShortArray )
+				return ( (ShortArray) access ).getCurrentStorageArray();
+		}
+		return null;
+	}
+
+	private static long[] getStrides( final Interval img )
+	{
+		final long[] strides = new long[ img.numDimensions() ];
+		long stride = 1;
+		for ( int d = 0; d < strides.length; ++d )
+		{
+			strides[ d ] = stride;
+			stride *= img.dimension( d );
+		}
+		return strides;
+	}
+
+	private static long flatIndex( final long[] pos, final int[] translation, final long[] strides )
+	{
+		long index = 0;
+		for ( int d = 0; d < pos.length; ++d )
+			index += ( pos[ d ] + ( translation == null ? 0 : translation[ d ] ) ) * strides[ d ];
+		return index;
+	}
+
 	/**
 	 * get linear interpolation of image with a given subpixel shift
 	 * @param in input image
@@ -298,10 +551,60 @@ public class FastFusionTools
 	}
 
 
+	/**
+	 * apply blending to an image without saving the weights
+	 * (use {@link #addWeightsTranslated(Interval, RandomAccessibleInterval, int[], float[], float[], float[], ExecutorService)} to accumulate them)
+	 * @param image image to apply blending to
+	 * @param renderOffset (subpixel) offset of the original image to the provided version
+	 * @param border blank pixels on each border
+	 * @param blending extent of blending on each border
+	 * @param pool thread pool
+	 * @param <T> image pixel data type
+	 */
+	public static <T extends RealType<T> > void applyWeights(
+			final RandomAccessibleInterval< T > image,
+			final float[] renderOffset,
+			final float[] border,
+			final float[] blending,
+			final ExecutorService pool)
+	{
+		applyWeights( image, (RandomAccessibleInterval< FloatType >) null, renderOffset, border, blending, false, pool );
+	}
+
+	/**
+	 * the blending weights of an image are the product of one profile per dimension, they only depend on the size
+	 * and subpixel offset of the image, so they can be shared by all images with the same geometry
+	 * @param image the image to compute weights for
+	 * @param renderOffset (subpixel) offset of the original image to the provided version
+	 * @param border blank pixels on each border
+	 * @param blending extent of blending on each border
+	 * @return one weight profile per dimension, see {@link BlendingTools#computeWeightProfiles(long[], int[], int[], int[], float[], float[], float[])}
+	 */
+	public static double[][] getWeightProfiles(
+			final Interval image,
+			final float[] renderOffset,
+			final float[] border,
+			final float[] blending )
+	{
+		final int n = image.numDimensions();
+		final int[] min = new int[ n ];
+		final int[] dims = new int[ n ];
+		final int[] dimMinus1 = new int[ n ];
+		for ( int d = 0; d < n; ++d )
+		{
+			min[ d ] = (int) image.min( d );
+			dims[ d ] = (int) image.dimension( d );
+			dimMinus1[ d ] = dims[ d ] - 1;
+		}
+
+		return BlendingTools.computeWeightProfiles( Intervals.minAsLongArray( image ), dims, min, dimMinus1, renderOffset, border, blending );
+	}
+
 	/**
 	 * apply blending to an image, save weights to separate image
+	 * the weights are the product of one precomputed profile per dimension, the image is processed line by line
 	 * @param image image to apply blending to
-	 * @param weightImage image to save weights to
+	 * @param weightImage image to save weights to (same size as image), null to only apply the weights to image
 	 * @param renderOffset (subpixel) offset of the original image to the provided version
 	 * @param border blank pixels on each border
 	 * @param blending extent of blending on each border
@@ -318,17 +621,44 @@ public class FastFusionTools
 			final float[] blending,
 			final boolean multiplyWeights,
 			final ExecutorService pool)
+	{
+		applyWeights( image, weightImage, getWeightProfiles( image, renderOffset, border, blending ), multiplyWeights, pool );
+	}
+
+	/**
+	 * apply blending to an image using precomputed weight profiles, save weights to separate image
+	 * @param image image to apply blending to
+	 * @param weightImage image to save weights to (same size as image), null to only apply the weights to image
+	 * @param profiles weight profiles of the image, see {@link #getWeightProfiles(Interval, float[], float[], float[])}
+	 * @param multiplyWeights false: just set weightImage to new weights, true: multiply existing weightImage
+	 * @param pool thread pool
+	 * @param <T> image pixel data type
+	 * @param <R> weight image pixel data type
+	 */
+	public static <T extends RealType<T>, R extends RealType<R> > void applyWeights(
+			final RandomAccessibleInterval< T > image,
+			final RandomAccessibleInterval< R > weightImage,
+			final double[][] profiles,
+			final boolean multiplyWeights,
+			final ExecutorService pool)
 	{
 		final int n = image.numDimensions();
 		final int[] min = new int[n];
-		final int[] dimMinus1 = new int[n];
+		final int[] dims = new int[n];
 		for (int d=0; d<n; d++)
 		{
 			min[d] = (int) image.min( d );
-			dimMinus1[d] = (int) image.dimension( d ) - 1;
+			dims[d] = (int) image.dimension( d );
 		}
 
-		final Vector< ImagePortion > portions = FusionTools.divideIntoPortions(  Views.iterable( image ).size() );
+		final float[] imageFloats = getFloatArray( image );
+		final float[] weightFloats = getFloatArray( weightImage );
+
+		long numLines = 1;
+		for ( int d = 1; d < n; ++d )
+			numLines *= dims[ d ];
+
+		final Vector< ImagePortion > portions = FusionTools.divideIntoPortions( numLines );
 		final ArrayList< Callable< Void > > calls = new ArrayList<>();
 		for (final ImagePortion portion : portions)
 		{
@@ -337,29 +667,62 @@ public class FastFusionTools
 				@Override
 				public Void call() throws Exception
 				{
-					// NB: assuming equal iteration order here
-					final Cursor< R > weightC = Views.iterable( weightImage ).localizingCursor();
-					final Cursor<T> inC = Views.iterable( image ).localizingCursor();
-					inC.jumpFwd( portion.getStartPosition() );
-					weightC.jumpFwd( portion.getStartPosition() );
-					final float[] position = new float[n];
-					for (long i=0; i<portion.getLoopSize(); i++)
+					final RandomAccess< T > inRA = imageFloats == null ? image.randomAccess() : null;
+					final RandomAccess< R > weightRA = weightImage != null && weightFloats == null ? weightImage.randomAccess() : null;
+					final int[] pos = new int[n];
+					final float[] line = new float[dims[0]];
+
+					for ( long l = portion.getStartPosition(); l < portion.getStartPosition() + portion.getLoopSize(); ++l )
 					{
-						inC.fwd();
-						weightC.fwd();
-						inC.localize( position );
-						for (int d=0; d<n; d++)
-							position[d] -= renderOffset[d];
-						final float w = BlendingTools.computeWeight( position, min, dimMinus1, border, blending, n );
-						inC.get().setReal( inC.get().getRealFloat() * w);
-						
-						if (multiplyWeights)
+						// start of the line (relative to min)
+						long rest = l;
+						for ( int d = 1; d < n; ++d )
+						{
+							pos[ d ] = (int) ( rest % dims[ d ] );
+							rest /= dims[ d ];
+						}
+
+						for ( int x = 0; x < dims[0]; ++x )
+						{
+							pos[ 0 ] = x;
+							line[ x ] = BlendingTools.weightFromProfiles( profiles, pos );
+						}
+
+						// both ArrayImgs are zero-min, index of the line is the same in both
+						final int offset = (int) ( l * dims[ 0 ] );
+
+						if ( imageFloats != null )
+							for ( int x = 0; x < dims[0]; ++x )
+								imageFloats[ offset + x ] *= line[ x ];
+						else
+						{
+							inRA.setPosition( min );
+							for ( int d = 1; d < n; ++d )
+								inRA.move( pos[ d ], d );
+							for ( int x = 0; x < dims[0]; ++x )
+							{
+								inRA.get().setReal( inRA.get().getRealFloat() * line[ x ] );
+								inRA.fwd( 0 );
+							}
+						}
+
+						if ( weightImage == null )
+							continue;
+
+						if ( weightFloats != null )
 						{
-							weightC.get().setReal(weightC.get().getRealDouble() * w );
+							for ( int x = 0; x < dims[0]; ++x )
+								weightFloats[ offset + x ] = multiplyWeights ? weightFloats[ offset + x ] * line[ x ] : line[ x ];
 						}
 						else
 						{
-							weightC.get().setReal( w );
+							for ( int d = 0; d < n; ++d )
+								weightRA.setPosition( weightImage.min( d ) + ( d == 0 ? 0 : pos[ d ] ), d );
+							for ( int x = 0; x < dims[0]; ++x )
+							{
+								weightRA.get().setReal( multiplyWeights ? weightRA.get().getRealDouble() * line[ x ] : line[ x ] );
+								weightRA.fwd( 0 );
+							}
 						}
 					}
 					return null;
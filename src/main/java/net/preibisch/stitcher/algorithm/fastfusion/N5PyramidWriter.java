@@ -0,0 +1,214 @@
+package net.preibisch.stitcher.algorithm.fastfusion;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import net.preibisch.stitcher.algorithm.fastfusion.N5RawBlockWriter.DataType;
+
+/**
+ * Writes the fused blocks of one setup and timepoint as multi-resolution pyramid in the N5 layout of BigDataViewer
+ * (datasets &lt;setup&gt;/&lt;timepoint&gt;/s0, s1, ..., every level is downsampled by 2 in all dimensions).
+ * Every block that is written is averaged 2x2x2 into its block of the next coarser level, which is written
+ * as soon as all of its blocks are done, so the whole pyramid is created in the same pass as the full resolution.
+ * Blocks should be passed in the order of {@link StreamingFastFusion#getBlockOrder(long[])} to keep the number
+ * of unfinished coarser blocks small. Blocks can be passed concurrently.
+ */
+public class N5PyramidWriter implements StreamingFastFusion.BlockWriter
+{
+	// sums of the blocks of the finer level that are done so far
+	private static class PendingBlock
+	{
+		final float[] sum;
+		int remainingBlocks;
+
+		PendingBlock( final int size, final int numBlocks )
+		{
+			this.sum = new float[ size ];
+			this.remainingBlocks = numBlocks;
+		}
+	}
+
+	private final List< N5RawBlockWriter > levels;
+	private final HashMap< String, PendingBlock > pending;
+
+	/**
+	 * create the datasets of all levels
+	 * @param n5Root the root directory of the N5 container
+	 * @param group path of the group that contains the levels (e.g. "setup0/timepoint0")
+	 * @param dimensions size of the full resolution
+	 * @param blockSize block size (of all levels)
+	 * @param dataType pixel type
+	 * @param numLevels number of levels including the full resolution
+	 * @throws IOException if the datasets cannot be created
+	 */
+	public N5PyramidWriter( final File n5Root, final String group, final long[] dimensions, final int[] blockSize, final DataType dataType, final int numLevels ) throws IOException
+	{
+		this.levels = new ArrayList<>();
+		this.pending = new HashMap<>();
+
+		long[] dims = dimensions.clone();
+		for ( int l = 0; l < numLevels; ++l )
+		{
+			final N5RawBlockWriter writer = new N5RawBlockWriter( n5Root, group + "/s" + l, dims, blockSize, dataType );
+			writer.setAttributes( Collections.singletonMap( "downsamplingFactors", getDownsamplingFactors( l ) ) );
+			levels.add( writer );
+			dims = getDownsampledDimensions( dims );
+		}
+	}
+
+	public List< N5RawBlockWriter > getLevels() { return Collections.unmodifiableList( levels ); }
+	public int getNumLevels() { return levels.size(); }
+
+	/**
+	 * @param dimensions size of the full resolution
+	 * @param blockSize block size
+	 * @return number of levels (including the full resolution) until the coarsest level fits into one block
+	 */
+	public static int getNumLevels( final long[] dimensions, final int[] blockSize )
+	{
+		int numLevels = 1;
+		long[] dims = dimensions;
+
+		while ( true )
+		{
+			boolean fits = true;
+			for ( int d = 0; d < dims.length; ++d )
+				if ( dims[ d ] > blockSize[ d ] )
+					fits = false;
+
+			if ( fits )
+				return numLevels;
+
+			dims = getDownsampledDimensions( dims );
+			++numLevels;
+		}
+	}
+
+	public static long[] getDownsampledDimensions( final long[] dimensions )
+	{
+		final long[] dims = new long[ dimensions.length ];
+		for ( int d = 0; d < dims.length; ++d )
+			dims[ d ] = ( dimensions[ d ] + 1 ) / 2;
+		return dims;
+	}
+
+	/**
+	 * @param level the level
+	 * @return the downsampling factors of the level as JSON array, e.g. [4,4,4]
+	 */
+	public static String getDownsamplingFactors( final int level )
+	{
+		final int f = 1 << level;
+		return "[" + f + "," + f + "," + f + "]";
+	}
+
+	/**
+	 * @param numLevels number of levels
+	 * @return the downsampling factors of all levels as JSON array, e.g. [[1,1,1],[2,2,2]]
+	 */
+	public static String getAllDownsamplingFactors( final int numLevels )
+	{
+		final StringBuilder json = new StringBuilder( "[" );
+		for ( int l = 0; l < numLevels; ++l )
+			json.append( ( l == 0 ? "" : "," ) + getDownsamplingFactors( l ) );
+		return json.append( "]" ).toString();
+	}
+
+	@Override
+	public void writeBlock( final long[] blockMin, final int[] blockDims, final float[] data ) throws IOException
+	{
+		write( 0, blockMin, blockDims, data );
+	}
+
+	private void write( final int level, final long[] blockMin, final int[] blockDims, final float[] data ) throws IOException
+	{
+		final N5RawBlockWriter writer = levels.get( level );
+		final int[] blockSize = writer.getBlockSize();
+		final int n = blockMin.length;
+
+		final long[] gridPosition = new long[ n ];
+		for ( int d = 0; d < n; ++d )
+			gridPosition[ d ] = blockMin[ d ] / blockSize[ d ];
+
+		writer.writeBlock( gridPosition, data );
+
+		if ( level + 1 >= levels.size() )
+			return;
+
+		// the block of the next level this block is downsampled into
+		final N5RawBlockWriter parentWriter = levels.get( level + 1 );
+		final long[] parentGridPosition = new long[ n ];
+		final long[] parentMin = new long[ n ];
+		for ( int d = 0; d < n; ++d )
+		{
+			parentGridPosition[ d ] = gridPosition[ d ] / 2;
+			parentMin[ d ] = parentGridPosition[ d ] * blockSize[ d ];
+		}
+
+		final int[] parentDims = parentWriter.getBlockDimensions( parentGridPosition );
+		final String key = level + 1 + ":" + Arrays.toString( parentGridPosition );
+
+		final PendingBlock parent;
+		synchronized ( pending )
+		{
+			PendingBlock p = pending.get( key );
+			if ( p == null )
+			{
+				// number of blocks of this level that are downsampled into the parent
+				final long[] grid = writer.getGridSize();
+				int numBlocks = 1;
+				for ( int d = 0; d < n; ++d )
+					numBlocks *= (int) ( Math.min( grid[ d ], 2 * parentGridPosition[ d ] + 2 ) - 2 * parentGridPosition[ d ] );
+
+				p = new PendingBlock( parentDims[ 0 ] * parentDims[ 1 ] * parentDims[ 2 ], numBlocks );
+				pending.put( key, p );
+			}
+			parent = p;
+		}
+
+		final boolean done;
+		synchronized ( parent )
+		{
+			int i = 0;
+			for ( int z = 0; z < blockDims[ 2 ]; ++z )
+				for ( int y = 0; y < blockDims[ 1 ]; ++y )
+				{
+					final int offset = (int) ( ( ( ( blockMin[ 2 ] + z ) / 2 - parentMin[ 2 ] ) * parentDims[ 1 ] + ( blockMin[ 1 ] + y ) / 2 - parentMin[ 1 ] ) * parentDims[ 0 ] - parentMin[ 0 ] );
+
+					for ( int x = 0; x < blockDims[ 0 ]; ++x, ++i )
+						parent.sum[ offset + (int) ( ( blockMin[ 0 ] + x ) / 2 ) ] += data[ i ];
+				}
+
+			done = --parent.remainingBlocks == 0;
+		}
+
+		if ( !done )
+			return;
+
+		synchronized ( pending )
+		{
+			pending.remove( key );
+		}
+
+		// divide by the number of pixels that were averaged (less than 8 at the border of odd-sized levels)
+		final long[] dims = writer.getDimensions();
+		int i = 0;
+		for ( int z = 0; z < parentDims[ 2 ]; ++z )
+			for ( int y = 0; y < parentDims[ 1 ]; ++y )
+				for ( int x = 0; x < parentDims[ 0 ]; ++x, ++i )
+				{
+					final int count =
+							( 2 * ( parentMin[ 0 ] + x ) + 1 < dims[ 0 ] ? 2 : 1 ) *
+							( 2 * ( parentMin[ 1 ] + y ) + 1 < dims[ 1 ] ? 2 : 1 ) *
+							( 2 * ( parentMin[ 2 ] + z ) + 1 < dims[ 2 ] ? 2 : 1 );
+					parent.sum[ i ] /= count;
+				}
+
+		write( level + 1, parentMin, parentDims, parent.sum );
+	}
+}
@@ -0,0 +1,179 @@
+package net.preibisch.stitcher.algorithm.fastfusion;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Minimal writer for uncompressed datasets in the N5 file system layout
+ * (https://github.com/saalfeldlab/n5), so fused images can be written block by block
+ * without holding them in memory and opened by any N5 reader (e.g. BigDataViewer, Fiji N5 plugins).
+ * Blocks are written to &lt;dataset&gt;/&lt;x&gt;/&lt;y&gt;/&lt;z&gt;, different blocks can be written concurrently.
+ */
+public class N5RawBlockWriter
+{
+	public enum DataType
+	{
+		UINT16( "uint16" ),
+		FLOAT32( "float32" );
+
+		final String name;
+
+		DataType( final String name )
+		{
+			this.name = name;
+		}
+	}
+
+	private final File datasetDir;
+	private final long[] dimensions;
+	private final int[] blockSize;
+	private final DataType dataType;
+
+	/**
+	 * create the dataset (and the N5 root attributes if necessary)
+	 * @param n5Root the root directory of the N5 container
+	 * @param dataset path of the dataset within the container (e.g. "setup0/timepoint0/s0")
+	 * @param dimensions size of the dataset
+	 * @param blockSize size of the blocks
+	 * @param dataType pixel type
+	 * @throws IOException if the attributes cannot be written
+	 */
+	public N5RawBlockWriter( final File n5Root, final String dataset, final long[] dimensions, final int[] blockSize, final DataType dataType ) throws IOException
+	{
+		this.datasetDir = new File( n5Root, dataset );
+		this.dimensions = dimensions.clone();
+		this.blockSize = blockSize.clone();
+		this.dataType = dataType;
+
+		if ( !datasetDir.exists() && !datasetDir.mkdirs() )
+			throw new IOException( "Cannot create directory " + datasetDir.getAbsolutePath() );
+
+		final File rootAttributes = new File( n5Root, "attributes.json" );
+		if ( !rootAttributes.exists() )
+			writeJSON( rootAttributes, "{\"n5\":\"2.0.0\"}" );
+
+		setAttributes( Collections.emptyMap() );
+	}
+
+	public long[] getDimensions() { return dimensions.clone(); }
+	public int[] getBlockSize() { return blockSize.clone(); }
+	public DataType getDataType() { return dataType; }
+	public File getDatasetDir() { return datasetDir; }
+
+	/**
+	 * @return the number of blocks in every dimension
+	 */
+	public long[] getGridSize()
+	{
+		final long[] grid = new long[ dimensions.length ];
+		for ( int d = 0; d < dimensions.length; ++d )
+			grid[ d ] = ( dimensions[ d ] + blockSize[ d ] - 1 ) / blockSize[ d ];
+		return grid;
+	}
+
+	/**
+	 * @param gridPosition the block
+	 * @return size of the block (blocks at the border are truncated to the dataset size)
+	 */
+	public int[] getBlockDimensions( final long[] gridPosition )
+	{
+		final int[] dims = new int[ dimensions.length ];
+		for ( int d = 0; d < dimensions.length; ++d )
+			dims[ d ] = (int) Math.min( blockSize[ d ], dimensions[ d ] - gridPosition[ d ] * blockSize[ d ] );
+		return dims;
+	}
+
+	/**
+	 * write one block, the pixel values are converted to the data type of the dataset
+	 * (uint16 values are rounded and clamped to [0, 65535])
+	 * @param gridPosition the block
+	 * @param data pixels in flat iteration order, size must match {@link #getBlockDimensions(long[])}
+	 * @throws IOException if the block cannot be written
+	 */
+	public void writeBlock( final long[] gridPosition, final float[] data ) throws IOException
+	{
+		final int[] dims = getBlockDimensions( gridPosition );
+
+		File dir = datasetDir;
+		for ( int d = 0; d < gridPosition.length - 1; ++d )
+			dir = new File( dir, Long.toString( gridPosition[ d ] ) );
+
+		if ( !dir.exists() && !dir.mkdirs() && !dir.exists() )
+			throw new IOException( "Cannot create directory " + dir.getAbsolutePath() );
+
+		final File file = new File( dir, Long.toString( gridPosition[ gridPosition.length - 1 ] ) );
+
+		try ( final DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( file ), 64 * 1024 ) ) )
+		{
+			// N5 block header: mode (0 = default), number of dimensions, block size
+			out.writeShort( 0 );
+			out.writeShort( dims.length );
+			for ( final int s : dims )
+				out.writeInt( s );
+
+			// data, big endian
+			if ( dataType == DataType.FLOAT32 )
+			{
+				for ( final float v : data )
+					out.writeFloat( v );
+			}
+			else
+			{
+				for ( final float v : data )
+					out.writeShort( (int) Math.max( 0, Math.min( 65535, Math.round( v ) ) ) );
+			}
+		}
+	}
+
+	/**
+	 * add custom attributes to the dataset (values are written as JSON literals, strings need to be quoted)
+	 * @param attributes name -&gt; JSON literal
+	 * @throws IOException if the attributes cannot be written
+	 */
+	public void setAttributes( final Map< String, String > attributes ) throws IOException
+	{
+		final StringBuilder json = new StringBuilder(
+				"{\"dimensions\":" + Arrays.toString( dimensions ).replace( " ", "" ) +
+				",\"blockSize\":" + Arrays.toString( blockSize ).replace( " ", "" ) +
+				",\"dataType\":\"" + dataType.name + "\"" +
+				",\"compression\":{\"type\":\"raw\"}" );
+
+		for ( final Map.Entry< String, String > e : attributes.entrySet() )
+			json.append( ",\"" + e.getKey() + "\":" + e.getValue() );
+
+		json.append( "}" );
+
+		writeJSON( new File( datasetDir, "attributes.json" ), json.toString() );
+	}
+
+	/**
+	 * write the attributes of a group (e.g. the setup groups of the BigDataViewer N5 layout)
+	 * @param groupDir the directory of the group
+	 * @param json the attributes as JSON object
+	 * @throws IOException if the attributes cannot be written
+	 */
+	public static void writeAttributes( final File groupDir, final String json ) throws IOException
+	{
+		if ( !groupDir.exists() && !groupDir.mkdirs() )
+			throw new IOException( "Cannot create directory " + groupDir.getAbsolutePath() );
+
+		writeJSON( new File( groupDir, "attributes.json" ), json );
+	}
+
+	private static void writeJSON( final File file, final String json ) throws IOException
+	{
+		try ( final Writer w = new OutputStreamWriter( new FileOutputStream( file ), StandardCharsets.UTF_8 ) )
+		{
+			w.write( json );
+		}
+	}
+}
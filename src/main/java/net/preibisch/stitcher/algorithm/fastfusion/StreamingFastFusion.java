@@ -0,0 +1,734 @@
+package net.preibisch.stitcher.algorithm.fastfusion;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import mpicbg.spim.data.generic.base.Entity;
+import mpicbg.spim.data.registration.ViewRegistration;
+import mpicbg.spim.data.sequence.Channel;
+import mpicbg.spim.data.sequence.ImgLoader;
+import mpicbg.spim.data.sequence.TimePoint;
+import mpicbg.spim.data.sequence.ViewDescription;
+import mpicbg.spim.data.sequence.ViewId;
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.realtransform.AffineGet;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.numeric.IntegerType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Pair;
+import net.imglib2.util.Util;
+import net.imglib2.util.ValuePair;
+import net.imglib2.view.Views;
+import net.preibisch.legacy.io.IOFunctions;
+import net.preibisch.mvrecon.fiji.spimdata.SpimData2;
+import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constellation.grouping.Group;
+import net.preibisch.stitcher.algorithm.DownsampleTools;
+import net.preibisch.stitcher.algorithm.StitchingExecutor;
+import net.preibisch.stitcher.algorithm.TransformTools;
+import net.preibisch.stitcher.plugin.Fast_Translation_Fusion.FastFusionDataType;
+import net.preibisch.stitcher.plugin.Fast_Translation_Fusion.FastFusionParameters;
+
+/**
+ * Out-of-core version of the fast translation fusion: the output is fused block by block,
+ * every view is opened once per group and for every block only the parts of the views that intersect it are loaded, and finished blocks
+ * are written to disk right away (as N5 dataset, see {@link N5RawBlockWriter}).
+ * Memory usage only depends on the block size and number of threads, not on the size of the output
+ * (for ImgLoaders that cannot open images lazily, the views of one group are kept in memory while it is fused).
+ */
+public class StreamingFastFusion
+{
+	public static int[] defaultBlockSize = new int[] { 128, 128, 64 };
+
+	// same blending as the in-memory fast fusion
+	final static float[] staticBorder = Util.getArrayFromValue( 0.0f, 3 );
+	final static float[] staticBlending = Util.getArrayFromValue( 30.0f, 3 );
+
+	/**
+	 * a view placed in the output image
+	 */
+	public static class PlacedView
+	{
+		public final ViewDescription vd;
+		public final long[] dims; // downsampled size
+		public final int[] pixelShift; // position in the (zero-min) output
+		public final float[] subpixelOffset;
+
+		// blending weight profiles of the whole view, computed once on first use
+		private double[][] weightProfiles;
+
+		public PlacedView( final ViewDescription vd, final long[] dims, final int[] pixelShift, final float[] subpixelOffset )
+		{
+			this.vd = vd;
+			this.dims = dims;
+			this.pixelShift = pixelShift;
+			this.subpixelOffset = subpixelOffset;
+		}
+
+		/**
+		 * @param interpolate whether the view is linearly interpolated (and thus one pixel larger)
+		 * @return the blending weight profiles for all positions of the view, see {@link BlendingTools#computeWeightProfiles(long[], int[], int[], int[], float[], float[], float[])}
+		 */
+		public synchronized double[][] getWeightProfiles( final boolean interpolate )
+		{
+			if ( weightProfiles == null )
+			{
+				final int[] length = new int[ 3 ];
+				final int[] dimMinus1 = new int[ 3 ];
+				for ( int d = 0; d < 3; ++d )
+				{
+					length[ d ] = (int) dims[ d ] + ( interpolate ? 1 : 0 );
+					dimMinus1[ d ] = (int) dims[ d ] - ( interpolate ? 0 : 1 );
+				}
+
+				weightProfiles = BlendingTools.computeWeightProfiles( new long[ 3 ], length, new int[ 3 ], dimMinus1, subpixelOffset, staticBorder, staticBlending );
+			}
+
+			return weightProfiles;
+		}
+	}
+
+	/**
+	 * the views of one group, every view is opened (lazily) once and all blocks crop from it
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	protected static class OpenedViews
+	{
+		private final ImgLoader imgLoader;
+		private final long[] ds;
+		private final ConcurrentHashMap< ViewId, Pair< RandomAccessibleInterval< RealType >, long[] > > opened = new ConcurrentHashMap<>();
+
+		public OpenedViews( final ImgLoader imgLoader, final long[] ds )
+		{
+			this.imgLoader = imgLoader;
+			this.ds = ds;
+		}
+
+		/**
+		 * load a part of a downsampled view as float array (flat iteration order)
+		 * @param vd the view
+		 * @param min min of the part (downsampled coordinates)
+		 * @param max max of the part (downsampled coordinates)
+		 * @return the pixels, null if the part does not intersect the view
+		 */
+		public float[] load( final ViewId vd, final long[] min, final long[] max )
+		{
+			final Pair< RandomAccessibleInterval< RealType >, long[] > view = opened.computeIfAbsent( vd, v ->
+			{
+				final long[] remainingDs = new long[ 3 ];
+				final RandomAccessibleInterval< RealType > img = DownsampleTools.openLazily( imgLoader, v, ds, remainingDs );
+				return new ValuePair<>( img, remainingDs );
+			} );
+
+			final RandomAccessibleInterval< RealType > crop = DownsampleTools.cropAndDownsample( view.getA(), view.getB(), new FinalInterval( min, max ) );
+
+			if ( crop == null )
+				return null;
+
+			final float[] data = new float[ (int) ( ( max[ 0 ] - min[ 0 ] + 1 ) * ( max[ 1 ] - min[ 1 ] + 1 ) * ( max[ 2 ] - min[ 2 ] + 1 ) ) ];
+			final Cursor< RealType > c = Views.flatIterable( Views.interval( Views.extendBorder( crop ), new FinalInterval( min, max ) ) ).cursor();
+
+			for ( int i = 0; i < data.length; ++i )
+				data[ i ] = c.next().getRealFloat();
+
+			return data;
+		}
+	}
+
+	/**
+	 * fuse all groups (one per channel and timepoint) into the N5 container at n5Root,
+	 * the i-th channel of the j-th timepoint is written to the datasets "setup&lt;i&gt;/timepoint&lt;j&gt;/s&lt;level&gt;"
+	 * (multi-resolution pyramid, see {@link N5PyramidWriter}), together with an XML next to the container to open it in BigDataViewer
+	 * @param spimData the data
+	 * @param viewsToProcess the views to fuse
+	 * @param parameters fusion parameters
+	 * @param n5Root the directory of the N5 container
+	 * @param blockSize the block size of the output
+	 * @return the full resolution datasets that were written, null if something went wrong
+	 */
+	public static List< N5RawBlockWriter > fuse(
+			final SpimData2 spimData,
+			final List< ViewId > viewsToProcess,
+			final FastFusionParameters parameters,
+			final File n5Root,
+			final int[] blockSize )
+	{
+		final List< PlacedView > placed = placeViews( spimData, viewsToProcess, parameters );
+
+		if ( placed.isEmpty() )
+			return null;
+
+		// output interval (zero-min)
+		final long[] outDims = getOutputDimensions( placed, parameters );
+
+		// TODO: query grouping factors from user
+		final Set< Class< ? extends Entity > > groupingFactors = new HashSet<>();
+		groupingFactors.add( Channel.class );
+		groupingFactors.add( TimePoint.class );
+
+		final List< Group< ViewDescription > > groups = Group.splitBy(
+				placed.stream().map( v -> v.vd ).collect( Collectors.toList() ), groupingFactors );
+
+		// one setup per channel, timepoints are numbered within each setup
+		final List< Integer > channels = placed.stream().map( v -> v.vd.getViewSetup().getChannel().getId() ).distinct().sorted().collect( Collectors.toList() );
+		final List< Integer > timepoints = placed.stream().map( v -> v.vd.getTimePointId() ).distinct().sorted().collect( Collectors.toList() );
+
+		final ExecutorService pool = StitchingExecutor.getInstance();
+		final List< N5RawBlockWriter > writers = new ArrayList<>();
+
+		final int numLevels = parameters.numPyramidLevels > 0 ? parameters.numPyramidLevels : N5PyramidWriter.getNumLevels( outDims, blockSize );
+		final N5RawBlockWriter.DataType dataType = parameters.dataType == FastFusionDataType.FLOAT ? N5RawBlockWriter.DataType.FLOAT32 : N5RawBlockWriter.DataType.UINT16;
+
+		IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Streaming fusion of " + groups.size() + " groups, size "
+				+ Util.printCoordinates( outDims ) + ", blocks " + Util.printCoordinates( blockSize ) + ", " + numLevels + " resolution levels to " + n5Root.getAbsolutePath() );
+
+		try
+		{
+			for ( int g = 0; g < groups.size(); ++g )
+			{
+				final Group< ViewDescription > group = groups.get( g );
+				final List< PlacedView > groupViews = placed.stream().filter( v -> group.contains( v.vd ) ).collect( Collectors.toList() );
+
+				final ViewDescription first = group.getViews().iterator().next();
+				final String timepointGroup = "setup" + channels.indexOf( first.getViewSetup().getChannel().getId() )
+						+ "/timepoint" + timepoints.indexOf( first.getTimePointId() );
+
+				final N5PyramidWriter writer = new N5PyramidWriter( n5Root, timepointGroup, outDims, blockSize, dataType, numLevels );
+
+				IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Fusing group " + ( g + 1 ) + " of " + groups.size()
+						+ " (" + groupViews.size() + " views) to " + new File( n5Root, timepointGroup ).getAbsolutePath() );
+
+				fuseGroup( spimData.getSequenceDescription().getImgLoader(), groupViews, outDims, blockSize, writer, parameters, pool );
+				writers.add( writer.getLevels().get( 0 ) );
+			}
+
+			// metadata, so that BigDataViewer can open the result
+			for ( int c = 0; c < channels.size(); ++c )
+				N5RawBlockWriter.writeAttributes( new File( n5Root, "setup" + c ),
+						"{\"downsamplingFactors\":" + N5PyramidWriter.getAllDownsamplingFactors( numLevels ) + ",\"dataType\":\"" + dataType.name + "\"}" );
+
+			final File xml = getBdvXmlFile( n5Root );
+			writeBdvXml( xml, n5Root, outDims, channels, timepoints.size() );
+			IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Saved BigDataViewer XML to " + xml.getAbsolutePath() );
+		}
+		catch ( IOException | InterruptedException | ExecutionException e )
+		{
+			IOFunctions.println( "Streaming fusion failed: " + e );
+			e.printStackTrace();
+			return null;
+		}
+
+		IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Streaming fusion of " + groups.size() + " groups DONE." );
+
+		return writers;
+	}
+
+	/**
+	 * receives fused blocks, blocks are passed concurrently from multiple threads
+	 */
+	public interface BlockWriter
+	{
+		/**
+		 * @param blockMin min of the block in the output
+		 * @param blockDims size of the block
+		 * @param data the fused pixels in flat iteration order
+		 * @throws IOException if the block cannot be written
+		 */
+		void writeBlock( long[] blockMin, int[] blockDims, float[] data ) throws IOException;
+	}
+
+	/**
+	 * @param placed all placed views
+	 * @param parameters fusion parameters
+	 * @return the size of the (zero-min) output
+	 */
+	public static long[] getOutputDimensions( final List< PlacedView > placed, final FastFusionParameters parameters )
+	{
+		final long[] outDims = new long[ 3 ];
+		for ( final PlacedView v : placed )
+			for ( int d = 0; d < 3; ++d )
+				outDims[ d ] = Math.max( outDims[ d ], v.pixelShift[ d ] + v.dims[ d ] + ( parameters.useLinearInterpolation ? 1 : 0 ) );
+		return outDims;
+	}
+
+	/**
+	 * fuse all blocks of one group into an N5 dataset
+	 */
+	protected static void fuseGroup(
+			final ImgLoader imgLoader,
+			final List< PlacedView > views,
+			final N5RawBlockWriter writer,
+			final FastFusionParameters parameters,
+			final ExecutorService pool ) throws InterruptedException, ExecutionException
+	{
+		final int[] blockSize = writer.getBlockSize();
+		fuseGroup( imgLoader, views, writer.getDimensions(), blockSize, ( blockMin, blockDims, data ) ->
+		{
+			final long[] gridPosition = new long[ 3 ];
+			for ( int d = 0; d < 3; ++d )
+				gridPosition[ d ] = blockMin[ d ] / blockSize[ d ];
+			writer.writeBlock( gridPosition, data );
+		}, parameters, pool );
+	}
+
+	/**
+	 * fuse all blocks of one group directly into an image of the final data type, the fused values of every block are
+	 * normalized and converted once (integer types are rounded and clamped), so no full-size float accumulators are needed
+	 * @param imgLoader the ImgLoader
+	 * @param views the views of the group
+	 * @param out the (zero-min) output image
+	 * @param blockSize the size of the blocks that are fused at once
+	 * @param parameters fusion parameters
+	 * @param pool thread pool
+	 * @param <T> output pixel type
+	 * @throws InterruptedException if fusion was interrupted
+	 * @throws ExecutionException if fusion of a block failed
+	 */
+	public static < T extends RealType< T > > void fuseGroup(
+			final ImgLoader imgLoader,
+			final List< PlacedView > views,
+			final RandomAccessibleInterval< T > out,
+			final int[] blockSize,
+			final FastFusionParameters parameters,
+			final ExecutorService pool ) throws InterruptedException, ExecutionException
+	{
+		final boolean isInteger = Util.getTypeFromInterval( out ) instanceof IntegerType;
+		final double minValue = Util.getTypeFromInterval( out ).getMinValue();
+		final double maxValue = Util.getTypeFromInterval( out ).getMaxValue();
+
+		fuseGroup( imgLoader, views, Intervals.dimensionsAsLongArray( out ), blockSize, ( blockMin, blockDims, data ) ->
+		{
+			final RandomAccess< T > ra = out.randomAccess();
+			final long[] pos = new long[ 3 ];
+			int i = 0;
+
+			for ( int z = 0; z < blockDims[ 2 ]; ++z )
+				for ( int y = 0; y < blockDims[ 1 ]; ++y )
+				{
+					pos[ 0 ] = blockMin[ 0 ];
+					pos[ 1 ] = blockMin[ 1 ] + y;
+					pos[ 2 ] = blockMin[ 2 ] + z;
+					ra.setPosition( pos );
+
+					for ( int x = 0; x < blockDims[ 0 ]; ++x, ++i )
+					{
+						if ( isInteger )
+							ra.get().setReal( Math.max( minValue, Math.min( maxValue, Math.round( data[ i ] ) ) ) );
+						else
+							ra.get().setReal( data[ i ] );
+						ra.fwd( 0 );
+					}
+				}
+		}, parameters, pool );
+	}
+
+	/**
+	 * fuse all blocks of one group, at most one block per thread is in memory at any time,
+	 * every view is opened once for the whole group
+	 * @param imgLoader the ImgLoader
+	 * @param views the views of the group
+	 * @param outDims size of the (zero-min) output
+	 * @param blockSize the size of the blocks
+	 * @param writer receives the fused blocks
+	 * @param parameters fusion parameters
+	 * @param pool thread pool
+	 * @throws InterruptedException if fusion was interrupted
+	 * @throws ExecutionException if fusion or writing of a block failed
+	 */
+	public static void fuseGroup(
+			final ImgLoader imgLoader,
+			final List< PlacedView > views,
+			final long[] outDims,
+			final int[] blockSize,
+			final BlockWriter writer,
+			final FastFusionParameters parameters,
+			final ExecutorService pool ) throws InterruptedException, ExecutionException
+	{
+		final long[] grid = new long[ 3 ];
+		for ( int d = 0; d < 3; ++d )
+			grid[ d ] = ( outDims[ d ] + blockSize[ d ] - 1 ) / blockSize[ d ];
+
+		final long[][] blocks = getBlockOrder( grid );
+		final int numBlocks = blocks.length;
+		final int blocksPerRound = Math.max( 1, StitchingExecutor.getParallelism() );
+		final AtomicLong done = new AtomicLong();
+		final OpenedViews opened = new OpenedViews( imgLoader, getDownsampling( parameters ) );
+
+		for ( int start = 0; start < numBlocks; start += blocksPerRound )
+		{
+			final ArrayList< Callable< Void > > calls = new ArrayList<>();
+
+			for ( int i = start; i < Math.min( numBlocks, start + blocksPerRound ); ++i )
+			{
+				final long[] gridPosition = blocks[ i ];
+
+				calls.add( new Callable< Void >()
+				{
+					@Override
+					public Void call() throws Exception
+					{
+						final int[] blockDims = new int[ 3 ];
+						final long[] blockMin = new long[ 3 ];
+						for ( int d = 0; d < 3; ++d )
+						{
+							blockMin[ d ] = gridPosition[ d ] * blockSize[ d ];
+							blockDims[ d ] = (int) Math.min( blockSize[ d ], outDims[ d ] - blockMin[ d ] );
+						}
+
+						writer.writeBlock( blockMin, blockDims, fuseBlock( opened, views, blockMin, blockDims, parameters ) );
+						done.incrementAndGet();
+						return null;
+					}
+				} );
+			}
+
+			for ( final Future< Void > f : pool.invokeAll( calls ) )
+				f.get();
+
+			IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): " + done.get() + " of " + numBlocks + " blocks fused." );
+		}
+	}
+
+	/**
+	 * order the blocks of a grid along a Z-order (Morton) curve, so that the 2x2x2 blocks that are
+	 * downsampled into the same block of the next resolution level (at every level) are processed together
+	 * @param grid number of blocks in every dimension
+	 * @return grid positions of all blocks
+	 */
+	public static long[][] getBlockOrder( final long[] grid )
+	{
+		final int numBlocks = (int) ( grid[ 0 ] * grid[ 1 ] * grid[ 2 ] );
+		final long[][] blocks = new long[ numBlocks ][];
+		for ( int i = 0; i < numBlocks; ++i )
+			blocks[ i ] = new long[] { i % grid[ 0 ], ( i / grid[ 0 ] ) % grid[ 1 ], i / ( grid[ 0 ] * grid[ 1 ] ) };
+
+		Arrays.sort( blocks, ( a, b ) -> Long.compare( mortonCode( a ), mortonCode( b ) ) );
+
+		return blocks;
+	}
+
+	private static long mortonCode( final long[] position )
+	{
+		long code = 0;
+		for ( int bit = 0; bit < 21; ++bit )
+			for ( int d = 0; d < 3; ++d )
+				code |= ( ( position[ d ] >> bit ) & 1 ) << ( 3 * bit + d );
+		return code;
+	}
+
+	/**
+	 * @param n5Root the N5 container
+	 * @return the BigDataViewer XML next to the container (e.g. /path/fused.xml for /path/fused.n5)
+	 */
+	public static File getBdvXmlFile( final File n5Root )
+	{
+		final File container = n5Root.getAbsoluteFile();
+		final String name = container.getName().endsWith( ".n5" ) ? container.getName().substring( 0, container.getName().length() - 3 ) : container.getName();
+		return new File( container.getParentFile(), name + ".xml" );
+	}
+
+	/**
+	 * write a minimal BigDataViewer XML for the fused N5 container (one setup per channel, identity registrations)
+	 * @param xml the file to write
+	 * @param n5Root the N5 container
+	 * @param dims size of the fused images
+	 * @param channels the channel ids (setup i is channel i)
+	 * @param numTimepoints the number of timepoints
+	 * @throws IOException if the XML cannot be written
+	 */
+	public static void writeBdvXml( final File xml, final File n5Root, final long[] dims, final List< Integer > channels, final int numTimepoints ) throws IOException
+	{
+		final String size = dims[ 0 ] + " " + dims[ 1 ] + " " + dims[ 2 ];
+		final StringBuilder s = new StringBuilder();
+
+		s.append( "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" );
+		s.append( "<SpimData version=\"0.2\">\n" );
+		s.append( "  <BasePath type=\"relative\">.</BasePath>\n" );
+		s.append( "  <SequenceDescription>\n" );
+		s.append( "    <ImageLoader format=\"bdv.n5\" version=\"1.0\">\n" );
+		s.append( "      <n5 type=\"absolute\">" + n5Root.getAbsolutePath() + "</n5>\n" );
+		s.append( "    </ImageLoader>\n" );
+		s.append( "    <ViewSetups>\n" );
+		for ( int c = 0; c < channels.size(); ++c )
+		{
+			s.append( "      <ViewSetup>\n" );
+			s.append( "        <id>" + c + "</id>\n" );
+			s.append( "        <name>fused channel " + channels.get( c ) + "</name>\n" );
+			s.append( "        <size>" + size + "</size>\n" );
+			s.append( "        <voxelSize>\n          <unit>pixel</unit>\n          <size>1.0 1.0 1.0</size>\n        </voxelSize>\n" );
+			s.append( "        <attributes>\n          <channel>" + channels.get( c ) + "</channel>\n        </attributes>\n" );
+			s.append( "      </ViewSetup>\n" );
+		}
+		s.append( "      <Attributes name=\"channel\">\n" );
+		for ( final int channel : channels )
+			s.append( "        <Channel>\n          <id>" + channel + "</id>\n          <name>" + channel + "</name>\n        </Channel>\n" );
+		s.append( "      </Attributes>\n" );
+		s.append( "    </ViewSetups>\n" );
+		s.append( "    <Timepoints type=\"range\">\n      <first>0</first>\n      <last>" + ( numTimepoints - 1 ) + "</last>\n    </Timepoints>\n" );
+		s.append( "  </SequenceDescription>\n" );
+		s.append( "  <ViewRegistrations>\n" );
+		for ( int t = 0; t < numTimepoints; ++t )
+			for ( int c = 0; c < channels.size(); ++c )
+			{
+				s.append( "    <ViewRegistration timepoint=\"" + t + "\" setup=\"" + c + "\">\n" );
+				s.append( "      <ViewTransform type=\"affine\">\n" );
+				s.append( "        <affine>1.0 0.0 0.0 0.0 0.0 1.0 0.0 0.0 0.0 0.0 1.0 0.0</affine>\n" );
+				s.append( "      </ViewTransform>\n" );
+				s.append( "    </ViewRegistration>\n" );
+			}
+		s.append( "  </ViewRegistrations>\n" );
+		s.append( "</SpimData>\n" );
+
+		try ( final Writer w = new OutputStreamWriter( new FileOutputStream( xml ), StandardCharsets.UTF_8 ) )
+		{
+			w.write( s.toString() );
+		}
+	}
+
+	/**
+	 * fuse one block of the output, same result as the in-memory fast fusion
+	 * (except the alpha of interpolated borders, which is the product over all dimensions here)
+	 * @param imgLoader the ImgLoader
+	 * @param views the views of the group
+	 * @param blockMin min of the block in the output
+	 * @param blockDims size of the block
+	 * @param parameters fusion parameters
+	 * @return the fused pixels in flat iteration order
+	 */
+	public static float[] fuseBlock(
+			final ImgLoader imgLoader,
+			final List< PlacedView > views,
+			final long[] blockMin,
+			final int[] blockDims,
+			final FastFusionParameters parameters )
+	{
+		return fuseBlock( new OpenedViews( imgLoader, getDownsampling( parameters ) ), views, blockMin, blockDims, parameters );
+	}
+
+	protected static float[] fuseBlock(
+			final OpenedViews opened,
+			final List< PlacedView > views,
+			final long[] blockMin,
+			final int[] blockDims,
+			final FastFusionParameters parameters )
+	{
+		final boolean interpolate = parameters.useLinearInterpolation;
+		final int size = blockDims[ 0 ] * blockDims[ 1 ] * blockDims[ 2 ];
+
+		final float[] sum = new float[ size ];
+		final float[] weightSum = new float[ size ];
+		final float[] alpha = interpolate ? new float[ size ] : null;
+
+		for ( final PlacedView view : views )
+		{
+			// the part of the block covered by this view (output coordinates)
+			final long[] oMin = new long[ 3 ];
+			final long[] oMax = new long[ 3 ];
+			// the part of the view we need (view coordinates)
+			final long[] inMin = new long[ 3 ];
+			final long[] inMax = new long[ 3 ];
+
+			boolean intersects = true;
+			for ( int d = 0; d < 3; ++d )
+			{
+				oMin[ d ] = Math.max( blockMin[ d ], view.pixelShift[ d ] );
+				oMax[ d ] = Math.min( blockMin[ d ] + blockDims[ d ] - 1, view.pixelShift[ d ] + view.dims[ d ] - ( interpolate ? 0 : 1 ) );
+
+				// linear interpolation needs the pixel before as well
+				inMin[ d ] = Math.max( 0, oMin[ d ] - view.pixelShift[ d ] - ( interpolate ? 1 : 0 ) );
+				inMax[ d ] = Math.min( view.dims[ d ] - 1, oMax[ d ] - view.pixelShift[ d ] );
+
+				if ( oMax[ d ] < oMin[ d ] || inMax[ d ] < inMin[ d ] )
+					intersects = false;
+			}
+
+			if ( !intersects )
+				continue;
+
+			final float[] in = opened.load( view.vd, inMin, inMax );
+			if ( in == null )
+				continue;
+
+			final int[] inDims = new int[ 3 ];
+			for ( int d = 0; d < 3; ++d )
+				inDims[ d ] = (int) ( inMax[ d ] - inMin[ d ] + 1 );
+
+			final float[] off = view.subpixelOffset;
+
+			// blending weights are the product of one profile per dimension (shared by all blocks)
+			final double[][] profiles = parameters.useBlending ? view.getWeightProfiles( interpolate ) : null;
+
+			final long[] q = new long[ 3 ];
+			final int[] p = new int[ 3 ];
+
+			for ( long z = oMin[ 2 ]; z <= oMax[ 2 ]; ++z )
+				for ( long y = oMin[ 1 ]; y <= oMax[ 1 ]; ++y )
+				{
+					int idx = (int) ( ( ( z - blockMin[ 2 ] ) * blockDims[ 1 ] + ( y - blockMin[ 1 ] ) ) * blockDims[ 0 ] + ( oMin[ 0 ] - blockMin[ 0 ] ) );
+
+					for ( long x = oMin[ 0 ]; x <= oMax[ 0 ]; ++x, ++idx )
+					{
+						q[ 0 ] = x - view.pixelShift[ 0 ];
+						q[ 1 ] = y - view.pixelShift[ 1 ];
+						q[ 2 ] = z - view.pixelShift[ 2 ];
+
+						final float value;
+						float a = 1;
+
+						if ( interpolate )
+						{
+							// the interpolated image is one pixel larger, border pixels are copied and get a lower alpha
+							value = interpolate( in, inMin, inMax, inDims, view.dims, q, off );
+							for ( int d = 0; d < 3; ++d )
+								if ( q[ d ] == 0 )
+									a *= 1 - off[ d ];
+								else if ( q[ d ] == view.dims[ d ] )
+									a *= off[ d ];
+						}
+						else
+						{
+							value = in[ (int) ( ( ( q[ 2 ] - inMin[ 2 ] ) * inDims[ 1 ] + ( q[ 1 ] - inMin[ 1 ] ) ) * inDims[ 0 ] + ( q[ 0 ] - inMin[ 0 ] ) ) ];
+						}
+
+						if ( parameters.useBlending )
+						{
+							for ( int d = 0; d < 3; ++d )
+								p[ d ] = (int) q[ d ];
+
+							final float w = BlendingTools.weightFromProfiles( profiles, p );
+							sum[ idx ] += value * w;
+							weightSum[ idx ] += a * w;
+						}
+						else
+						{
+							sum[ idx ] += value;
+							weightSum[ idx ] += 1;
+						}
+
+						if ( interpolate )
+							alpha[ idx ] = alpha[ idx ] + ( 1 - alpha[ idx ] ) * a;
+					}
+				}
+		}
+
+		// normalize (and apply alpha)
+		for ( int i = 0; i < size; ++i )
+		{
+			final float v = weightSum[ i ] == 0 ? 0 : sum[ i ] / weightSum[ i ];
+			sum[ i ] = interpolate ? v * alpha[ i ] : v;
+		}
+
+		return sum;
+	}
+
+	/**
+	 * linear interpolation at q - 1 + offset, positions outside of the image are clamped to the border
+	 */
+	private static float interpolate(
+			final float[] in, final long[] inMin, final long[] inMax, final int[] inDims,
+			final long[] dims, final long[] q, final float[] off )
+	{
+		float value = 0;
+
+		for ( int c = 0; c < 8; ++c )
+		{
+			float w = 1;
+			int idx = 0;
+
+			for ( int d = 2; d >= 0; --d )
+			{
+				final int cd = ( c >> d ) & 1;
+				w *= cd == 1 ? off[ d ] : 1 - off[ d ];
+
+				final long p = Math.max( inMin[ d ], Math.min( inMax[ d ], Math.max( 0, Math.min( dims[ d ] - 1, q[ d ] - 1 + cd ) ) ) );
+				idx = idx * inDims[ d ] + (int) ( p - inMin[ d ] );
+			}
+
+			if ( w != 0 )
+				value += w * in[ idx ];
+		}
+
+		return value;
+	}
+
+	private static long[] getDownsampling( final FastFusionParameters parameters )
+	{
+		return new long[] { parameters.downsampling, parameters.downsampling, parameters.downsampling };
+	}
+
+	/**
+	 * get the (downsampled) size and integer/subpixel position in the output of all present views,
+	 * the output starts at (0,0,0)
+	 * @param spimData the data
+	 * @param viewsToProcess the views
+	 * @param parameters fusion parameters
+	 * @return all present views with their placement
+	 */
+	public static List< PlacedView > placeViews(
+			final SpimData2 spimData,
+			final List< ViewId > viewsToProcess,
+			final FastFusionParameters parameters )
+	{
+		final ImgLoader imgLoader = spimData.getSequenceDescription().getImgLoader();
+		final long[] ds = new long[] { parameters.downsampling, parameters.downsampling, parameters.downsampling };
+
+		final List< ViewDescription > presentViewDescriptions = viewsToProcess.stream()
+				.filter( v -> spimData.getSequenceDescription().getViewDescription( v ).isPresent() )
+				.map( v -> spimData.getSequenceDescription().getViewDescription( v ) ).collect( Collectors.toList() );
+
+		final List< PlacedView > placed = new ArrayList<>();
+		final long[] min = Util.getArrayFromValue( Long.MAX_VALUE, 3 );
+
+		for ( final ViewDescription vd : presentViewDescriptions )
+		{
+			final ViewRegistration vr = spimData.getViewRegistrations().getViewRegistration( vd );
+			vr.updateModel();
+			final AffineTransform3D tr = vr.getModel();
+			final AffineGet dsTr = FastFusionTools.getDownsamplingTransfomPowerOf2( imgLoader, vd, parameters.downsampling );
+
+			// get to downsampled pixel shift by applying the inverse of non-translational part of registration
+			// and then the inverse downsampling transform
+			final double[] shift = new double[] { tr.get( 0, 3 ), tr.get( 1, 3 ), tr.get( 2, 3 ) };
+			TransformTools.decomposeIntoAffineAndTranslation( tr ).getA().inverse().apply( shift, shift );
+			dsTr.inverse().apply( shift, shift );
+
+			final int[] pixelShift = new int[ 3 ];
+			final float[] subpixelOffset = new float[ 3 ];
+			for ( int d = 0; d < 3; ++d )
+			{
+				pixelShift[ d ] = (int) ( parameters.useLinearInterpolation ? Math.floor( shift[ d ] ) : Math.round( shift[ d ] ) );
+				subpixelOffset[ d ] = (float) ( shift[ d ] - pixelShift[ d ] );
+				min[ d ] = Math.min( min[ d ], pixelShift[ d ] );
+			}
+
+			placed.add( new PlacedView( vd, DownsampleTools.getDownsampledDimensions( imgLoader, vd, ds ), pixelShift, subpixelOffset ) );
+		}
+
+		// zero-min output
+		for ( final PlacedView v : placed )
+			for ( int d = 0; d < 3; ++d )
+				v.pixelShift[ d ] -= min[ d ];
+
+		return placed;
+	}
+}
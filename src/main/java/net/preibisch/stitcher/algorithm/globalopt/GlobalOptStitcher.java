@@ -72,27 +72,25 @@ public class GlobalOptStitcher
 			@Override
 			protected List< Pair< ViewId, ViewId > > definePairsAbstract()
 			{
+				// the pairs are only used to find the subsets (connected views), all views that do not
+				// differ in an application axis end up in the same subset, so linking consecutive views
+				// of each partition gives the same subsets as linking all pairs (but in linear time)
+				final HashMap< List< Object >, ViewId > lastViewOfPartition = new HashMap<>();
 				List< Pair< ViewId, ViewId > > res = new ArrayList<>();
 				for ( int i = 0; i < views.size(); i++ )
-					for ( int j = i + 1; j < views.size(); j++ )
-					{
-						boolean differInApplicationAxis = false;
-						for ( Class< ? extends Entity > cl : filteringAndGrouping.getAxesOfApplication() )
-						{
-							// ugly, but just undoes the casting to
-							// ViewId in constructor
-							BasicViewDescription< ? extends BasicViewSetup > vdA = (BasicViewDescription< ? extends BasicViewSetup >) views.get( i );
-							BasicViewDescription< ? extends BasicViewSetup > vdB = (BasicViewDescription< ? extends BasicViewSetup >) views.get( j );
-
-							if ( cl == TimePoint.class )
-								differInApplicationAxis |= !vdA.getTimePoint().equals( vdB.getTimePoint() );
-							else
-								differInApplicationAxis |= !vdA.getViewSetup().getAttribute( cl )
-										.equals( vdB.getViewSetup().getAttribute( cl ) );
-						}
-						if ( !differInApplicationAxis )
-							res.add( new ValuePair< ViewId, ViewId >( views.get( i ), views.get( j ) ) );
-					}
+				{
+					// ugly, but just undoes the casting to
+					// ViewId in constructor
+					BasicViewDescription< ? extends BasicViewSetup > vd = (BasicViewDescription< ? extends BasicViewSetup >) views.get( i );
+
+					final List< Object > key = new ArrayList<>();
+					for ( Class< ? extends Entity > cl : filteringAndGrouping.getAxesOfApplication() )
+						key.add( cl == TimePoint.class ? vd.getTimePoint() : vd.getViewSetup().getAttribute( cl ) );
+
+					final ViewId last = lastViewOfPartition.put( key, views.get( i ) );
+					if ( last != null )
+						res.add( new ValuePair< ViewId, ViewId >( last, views.get( i ) ) );
+				}
 
 				return res;
 			}
@@ -158,6 +156,7 @@ public class GlobalOptStitcher
 						" pairwise results because the underlying view registrations have changed.");
 				IOFunctions.println("Did you try to re-run the global optimization after aligning the dataset?");
 				IOFunctions.println("In that case, you can remove the latest transformation and try again.");
+				IOFunctions.println("Otherwise, re-run the pairwise shift calculation with 'only recompute changed pairs' to update just these links.");
 			}
 
 			if (numLinksAfter < 1)
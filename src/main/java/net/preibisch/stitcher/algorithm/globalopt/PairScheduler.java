@@ -0,0 +1,311 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2017 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.stitcher.algorithm.globalopt;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+import mpicbg.spim.data.generic.sequence.AbstractSequenceDescription;
+import mpicbg.spim.data.generic.sequence.BasicViewDescription;
+import mpicbg.spim.data.registration.ViewRegistration;
+import mpicbg.spim.data.registration.ViewRegistrations;
+import mpicbg.spim.data.sequence.ViewId;
+import net.imglib2.Dimensions;
+import net.imglib2.util.Pair;
+import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constellation.grouping.Group;
+import net.preibisch.stitcher.algorithm.TileCache;
+
+/**
+ * Orders pairwise comparisons so that pairs sharing a group are computed close together in time.
+ * Groups are ranked by a breadth-first traversal of the adjacency graph (defined by the pairs),
+ * starting at the corner of the dataset and visiting neighbors in order of their location.
+ * Pairs are then sorted by the later of their two groups, so a group is complete (and can be
+ * released from the {@link TileCache}) shortly after the traversal has passed it.
+ *
+ * @param <V> view id type
+ */
+public class PairScheduler< V extends ViewId >
+{
+	private final List< Pair< Group< V >, Group< V > > > orderedPairs;
+	private final HashMap< Group< V >, Integer > numPairsPerGroup;
+	private final HashMap< Group< V >, Integer > remainingPairs;
+
+	public PairScheduler(
+			final List< Pair< Group< V >, Group< V > > > pairs,
+			final ViewRegistrations vrs,
+			final AbstractSequenceDescription< ?, ? extends BasicViewDescription< ? >, ? > sd )
+	{
+		this.numPairsPerGroup = new HashMap<>();
+		final HashMap< Group< V >, List< Group< V > > > neighbors = new HashMap<>();
+
+		for ( final Pair< Group< V >, Group< V > > p : pairs )
+		{
+			numPairsPerGroup.put( p.getA(), numPairsPerGroup.getOrDefault( p.getA(), 0 ) + 1 );
+			numPairsPerGroup.put( p.getB(), numPairsPerGroup.getOrDefault( p.getB(), 0 ) + 1 );
+			neighbors.computeIfAbsent( p.getA(), k -> new ArrayList<>() ).add( p.getB() );
+			neighbors.computeIfAbsent( p.getB(), k -> new ArrayList<>() ).add( p.getA() );
+		}
+
+		this.remainingPairs = new HashMap<>( numPairsPerGroup );
+
+		// rank all groups by a BFS wavefront over their locations
+		final HashMap< Group< V >, double[] > centers = new HashMap<>();
+		for ( final Group< V > g : neighbors.keySet() )
+			centers.put( g, getCenter( g, vrs, sd ) );
+
+		final Comparator< Group< V > > byLocation = ( g1, g2 ) -> compareLocations( centers.get( g1 ), centers.get( g2 ) );
+
+		final ArrayList< Group< V > > sortedGroups = new ArrayList<>( neighbors.keySet() );
+		Collections.sort( sortedGroups, byLocation );
+
+		final HashMap< Group< V >, Integer > rank = new HashMap<>();
+		for ( final Group< V > start : sortedGroups )
+		{
+			// start a new traversal for every connected component
+			if ( rank.containsKey( start ) )
+				continue;
+
+			final ArrayDeque< Group< V > > queue = new ArrayDeque<>();
+			queue.add( start );
+			rank.put( start, rank.size() );
+
+			while ( !queue.isEmpty() )
+			{
+				final ArrayList< Group< V > > next = new ArrayList<>( neighbors.get( queue.poll() ) );
+				Collections.sort( next, byLocation );
+
+				for ( final Group< V > n : next )
+					if ( !rank.containsKey( n ) )
+					{
+						rank.put( n, rank.size() );
+						queue.add( n );
+					}
+			}
+		}
+
+		this.orderedPairs = new ArrayList<>( pairs );
+		Collections.sort( orderedPairs, ( p1, p2 ) -> {
+			final int r1A = rank.get( p1.getA() ), r1B = rank.get( p1.getB() );
+			final int r2A = rank.get( p2.getA() ), r2B = rank.get( p2.getB() );
+
+			final int c = Integer.compare( Math.max( r1A, r1B ), Math.max( r2A, r2B ) );
+			return c != 0 ? c : Integer.compare( Math.min( r1A, r1B ), Math.min( r2A, r2B ) );
+		});
+	}
+
+	/**
+	 * @return the pairs in the order they should be computed
+	 */
+	public List< Pair< Group< V >, Group< V > > > getOrderedPairs()
+	{
+		return orderedPairs;
+	}
+
+	/**
+	 * split the ordered pairs into batches that are computed one after the other, a batch is
+	 * closed when it is full or when starting the next pair would require more views to be
+	 * resident (views of groups that are started but not finished) than allowed
+	 *
+	 * @param maxBatchSize - maximal number of pairs per batch
+	 * @param maxResidentViews - maximal number of views in memory at once, &lt;= 0 means unlimited
+	 * @return the batches as indices into {@link #getOrderedPairs()}
+	 */
+	public List< List< Integer > > getBatches( final int maxBatchSize, final int maxResidentViews )
+	{
+		return getBatches( maxBatchSize, maxResidentViews, null, 0 );
+	}
+
+	/**
+	 * split the ordered pairs into batches that are computed one after the other, a batch is
+	 * closed when it is full, when starting the next pair would require more views to be
+	 * resident than allowed or when the estimated memory of all its pairs would exceed the budget
+	 *
+	 * @param maxBatchSize - maximal number of pairs per batch
+	 * @param maxResidentViews - maximal number of views in memory at once, &lt;= 0 means unlimited
+	 * @param memoryPerPair - estimated memory of every pair in {@link #getOrderedPairs()} (in bytes), null means unknown
+	 * @param memoryBudget - maximal memory of all pairs of a batch (in bytes), &lt;= 0 means unlimited
+	 * @return the batches as indices into {@link #getOrderedPairs()}
+	 */
+	public List< List< Integer > > getBatches( final int maxBatchSize, final int maxResidentViews, final long[] memoryPerPair, final long memoryBudget )
+	{
+		final List< List< Integer > > batches = new ArrayList<>();
+		final HashMap< Group< V >, Integer > remaining = new HashMap<>( numPairsPerGroup );
+		HashSet< Group< V > > resident = new HashSet<>();
+
+		int i = 0;
+		while ( i < orderedPairs.size() )
+		{
+			final ArrayList< Integer > batch = new ArrayList<>();
+			final HashSet< Group< V > > batchGroups = new HashSet<>( resident );
+			int numViews = numViews( batchGroups );
+			long memory = 0;
+
+			while ( i < orderedPairs.size() && batch.size() < maxBatchSize )
+			{
+				final Pair< Group< V >, Group< V > > p = orderedPairs.get( i );
+
+				int additionalViews = 0;
+				if ( !batchGroups.contains( p.getA() ) )
+					additionalViews += p.getA().getViews().size();
+				if ( !batchGroups.contains( p.getB() ) )
+					additionalViews += p.getB().getViews().size();
+
+				// always take at least one pair, otherwise we would never finish
+				if ( maxResidentViews > 0 && !batch.isEmpty() && numViews + additionalViews > maxResidentViews )
+					break;
+
+				final long additionalMemory = memoryPerPair == null ? 0 : memoryPerPair[ i ];
+
+				if ( memoryBudget > 0 && !batch.isEmpty() && memory + additionalMemory > memoryBudget )
+					break;
+
+				batchGroups.add( p.getA() );
+				batchGroups.add( p.getB() );
+				numViews += additionalViews;
+				memory += additionalMemory;
+				batch.add( i++ );
+			}
+
+			batches.add( batch );
+
+			for ( final int idx : batch )
+			{
+				remaining.put( orderedPairs.get( idx ).getA(), remaining.get( orderedPairs.get( idx ).getA() ) - 1 );
+				remaining.put( orderedPairs.get( idx ).getB(), remaining.get( orderedPairs.get( idx ).getB() ) - 1 );
+			}
+
+			resident = new HashSet<>();
+			for ( final Group< V > g : batchGroups )
+				if ( remaining.get( g ) > 0 )
+					resident.add( g );
+		}
+
+		return batches;
+	}
+
+	/**
+	 * mark a pair as finished
+	 *
+	 * @param pair - the pair that was computed
+	 * @return all groups for which no more pairs need to be computed
+	 */
+	public synchronized List< Group< V > > pairFinished( final Pair< Group< V >, Group< V > > pair )
+	{
+		final ArrayList< Group< V > > finished = new ArrayList<>();
+
+		final HashSet< Group< V > > groups = new HashSet<>();
+		groups.add( pair.getA() );
+		groups.add( pair.getB() );
+
+		for ( final Group< V > g : groups )
+		{
+			final int r = remainingPairs.get( g ) - 1;
+			remainingPairs.put( g, r );
+
+			if ( r == 0 )
+				finished.add( g );
+		}
+
+		return finished;
+	}
+
+	/**
+	 * remove all views of the given groups from the {@link TileCache}
+	 *
+	 * @param groups - the groups that are not needed anymore
+	 */
+	public static < V extends ViewId > void release( final Collection< Group< V > > groups )
+	{
+		for ( final Group< V > g : groups )
+			for ( final V v : g )
+				TileCache.getInstance().invalidate( v );
+	}
+
+	private static < V extends ViewId > int numViews( final Collection< Group< V > > groups )
+	{
+		int n = 0;
+		for ( final Group< V > g : groups )
+			n += g.getViews().size();
+		return n;
+	}
+
+	/**
+	 * sort by z, then y, then x
+	 */
+	private static int compareLocations( final double[] a, final double[] b )
+	{
+		for ( int d = a.length - 1; d >= 0; --d )
+		{
+			final int c = Double.compare( a[ d ], b[ d ] );
+			if ( c != 0 )
+				return c;
+		}
+		return 0;
+	}
+
+	/**
+	 * @return the mean center of all present views of the group in global coordinates
+	 */
+	public static < V extends ViewId > double[] getCenter(
+			final Group< V > group,
+			final ViewRegistrations vrs,
+			final AbstractSequenceDescription< ?, ? extends BasicViewDescription< ? >, ? > sd )
+	{
+		final double[] center = new double[ 3 ];
+		int n = 0;
+
+		for ( final V v : group )
+		{
+			final BasicViewDescription< ? > vd = sd.getViewDescriptions().get( v );
+			if ( vd == null || !vd.isPresent() )
+				continue;
+
+			final double[] local = new double[ 3 ];
+			final Dimensions dims = vd.getViewSetup().getSize();
+			if ( dims != null )
+				for ( int d = 0; d < dims.numDimensions(); ++d )
+					local[ d ] = ( dims.dimension( d ) - 1 ) / 2.0;
+
+			final ViewRegistration vr = vrs.getViewRegistration( v );
+			vr.updateModel();
+
+			final double[] global = new double[ 3 ];
+			vr.getModel().apply( local, global );
+
+			for ( int d = 0; d < 3; ++d )
+				center[ d ] += global[ d ];
+			++n;
+		}
+
+		if ( n > 0 )
+			for ( int d = 0; d < 3; ++d )
+				center[ d ] /= n;
+
+		return center;
+	}
+}
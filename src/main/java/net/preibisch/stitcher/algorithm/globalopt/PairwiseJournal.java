@@ -0,0 +1,250 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2017 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.stitcher.algorithm.globalopt;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+
+import mpicbg.spim.data.sequence.ViewId;
+import net.imglib2.FinalRealInterval;
+import net.imglib2.RealInterval;
+import net.imglib2.realtransform.AffineGet;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.util.Pair;
+import net.imglib2.util.ValuePair;
+import net.preibisch.legacy.io.IOFunctions;
+import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constellation.grouping.Group;
+import net.preibisch.stitcher.algorithm.GroupedViewAggregator;
+import net.preibisch.stitcher.algorithm.PairwiseStitchingParameters;
+
+/**
+ * Append-only text file of finished pairwise shift computations (one line per pair), written as soon
+ * as a pair is done, so that an interrupted run can be resumed. A pair is only taken from the journal
+ * if it was computed with the same parameters and the same view registrations (see
+ * {@link net.preibisch.mvrecon.fiji.spimdata.stitchingresults.PairwiseStitchingResult#calculateHash}).
+ *
+ * Every line contains (tab-separated): parameters, views of both groups, registration hash, r (or "none"
+ * if no shift was found), the transformation (12 values, row-packed) and min and max of the bounding box.
+ */
+public class PairwiseJournal
+{
+	public static final String NO_RESULT = "none";
+
+	private final File file;
+	private final String parameterKey;
+
+	// pair key -> (hash, result or null)
+	private final HashMap< String, Pair< Double, Pair< Pair< AffineGet, Double >, RealInterval > > > entries = new HashMap<>();
+
+	/**
+	 * open the journal
+	 * @param file the journal file
+	 * @param params the pairwise stitching parameters of the current run
+	 * @param gva the aggregation of the views of a group of the current run (can be null)
+	 * @param downsamplingFactors the downsampling of the current run
+	 * @param resume load the existing entries, otherwise the file is cleared
+	 * @throws IOException if the file cannot be read or created
+	 */
+	public PairwiseJournal( final File file, final PairwiseStitchingParameters params, final GroupedViewAggregator gva, final long[] downsamplingFactors, final boolean resume ) throws IOException
+	{
+		this.file = file;
+		this.parameterKey = getParameterKey( params, gva, downsamplingFactors );
+
+		if ( resume && file.exists() )
+			load();
+		else
+			new PrintWriter( new FileWriter( file ) ).close();
+	}
+
+	public File getFile() { return file; }
+	public int numEntries() { return entries.size(); }
+
+	/**
+	 * @param pair the pair
+	 * @param hash the current registration hash of the pair
+	 * @return true if the pair was computed with the same parameters and registrations
+	 */
+	public synchronized < V extends ViewId > boolean contains( final Pair< Group< V >, Group< V > > pair, final double hash )
+	{
+		final Pair< Double, Pair< Pair< AffineGet, Double >, RealInterval > > entry = entries.get( getPairKey( pair ) );
+		return entry != null && entry.getA() == hash;
+	}
+
+	/**
+	 * @param pair the pair
+	 * @return the journaled result of the pair (null if no shift was found or the pair is not in the journal)
+	 */
+	public synchronized < V extends ViewId > Pair< Pair< AffineGet, Double >, RealInterval > get( final Pair< Group< V >, Group< V > > pair )
+	{
+		final Pair< Double, Pair< Pair< AffineGet, Double >, RealInterval > > entry = entries.get( getPairKey( pair ) );
+		return entry == null ? null : entry.getB();
+	}
+
+	/**
+	 * append a finished pair to the journal file (failures are only logged, they do not stop the computation)
+	 * @param pair the pair
+	 * @param hash the registration hash of the pair
+	 * @param result the result (null if no shift was found)
+	 */
+	public synchronized < V extends ViewId > void append( final Pair< Group< V >, Group< V > > pair, final double hash, final Pair< Pair< AffineGet, Double >, RealInterval > result )
+	{
+		final StringBuilder line = new StringBuilder( parameterKey + "\t" + getPairKey( pair ) + "\t" + hash + "\t" );
+
+		if ( result == null )
+			line.append( NO_RESULT );
+		else
+		{
+			final AffineTransform3D t = new AffineTransform3D();
+			t.preConcatenate( result.getA().getA() );
+
+			final double[] min = new double[ result.getB().numDimensions() ];
+			final double[] max = new double[ result.getB().numDimensions() ];
+			result.getB().realMin( min );
+			result.getB().realMax( max );
+
+			line.append( result.getA().getB() + "\t" + join( t.getRowPackedCopy() ) + "\t" + join( min ) + "\t" + join( max ) );
+		}
+
+		try ( final PrintWriter out = new PrintWriter( new FileWriter( file, true ) ) )
+		{
+			out.println( line );
+		}
+		catch ( final IOException e )
+		{
+			IOFunctions.println( "Failed to append pair to journal " + file.getAbsolutePath() + ": " + e );
+			e.printStackTrace();
+		}
+
+		entries.put( getPairKey( pair ), new ValuePair<>( hash, result ) );
+	}
+
+	private void load() throws IOException
+	{
+		int numLines = 0;
+
+		try ( final BufferedReader in = new BufferedReader( new FileReader( file ) ) )
+		{
+			String line;
+			while ( ( line = in.readLine() ) != null )
+			{
+				final String[] fields = line.split( "\t" );
+
+				// entries of a run with other parameters (or a line that was cut off when the run was interrupted)
+				if ( fields.length < 4 || !fields[ 0 ].equals( parameterKey ) )
+					continue;
+
+				try
+				{
+					final double hash = Double.parseDouble( fields[ 2 ] );
+
+					if ( fields[ 3 ].equals( NO_RESULT ) )
+						entries.put( fields[ 1 ], new ValuePair<>( hash, null ) );
+					else if ( fields.length == 7 )
+					{
+						final AffineTransform3D t = new AffineTransform3D();
+						t.set( split( fields[ 4 ] ) );
+
+						final Pair< Pair< AffineGet, Double >, RealInterval > result = new ValuePair<>(
+								new ValuePair<>( t, Double.parseDouble( fields[ 3 ] ) ),
+								new FinalRealInterval( split( fields[ 5 ] ), split( fields[ 6 ] ) ) );
+
+						entries.put( fields[ 1 ], new ValuePair<>( hash, result ) );
+					}
+					else
+						continue;
+
+					++numLines;
+				}
+				catch ( final RuntimeException e )
+				{
+					// incomplete line, the pair will be computed again
+				}
+			}
+		}
+
+		IOFunctions.println( new Date( System.currentTimeMillis() ) + ": Loaded " + numLines + " journaled pairs from " + file.getAbsolutePath() );
+	}
+
+	/**
+	 * @param params the pairwise stitching parameters
+	 * @param gva the aggregation of the views of a group (can be null)
+	 * @param downsamplingFactors the downsampling
+	 * @return all parameters that influence the result of a pair
+	 */
+	public static String getParameterKey( final PairwiseStitchingParameters params, final GroupedViewAggregator gva, final long[] downsamplingFactors )
+	{
+		// the actions (e.g. [PICK_BRIGHTEST Channel, AVERAGE Illumination]) decide which images of a group are compared
+		return "ds=" + join( downsamplingFactors ) + ";minOverlap=" + params.minOverlap + ";peaks=" + params.peaksToCheck
+				+ ";subpixel=" + params.doSubpixel + ";interpolate=" + params.interpolateCrossCorrelation + ";wholeImage=" + params.useWholeImage
+				+ ";coarseToFine=" + ( params.coarseToFine ? params.coarseToFineLevels + "," + params.refinementSearchRadius + "," + params.refinementBlockSize : "false" )
+				+ ";aggregate=" + ( gva == null ? "none" : gva.toString().replace( "\t", " " ) );
+	}
+
+	/**
+	 * @param pair the pair
+	 * @return the sorted views of both groups as a string
+	 */
+	public static < V extends ViewId > String getPairKey( final Pair< Group< V >, Group< V > > pair )
+	{
+		return getGroupKey( pair.getA() ) + "|" + getGroupKey( pair.getB() );
+	}
+
+	private static < V extends ViewId > String getGroupKey( final Group< V > group )
+	{
+		final List< ViewId > views = new ArrayList<>( group.getViews() );
+		Collections.sort( views );
+
+		final StringBuilder key = new StringBuilder();
+		for ( final ViewId v : views )
+			key.append( ( key.length() > 0 ? "," : "" ) + v.getTimePointId() + "-" + v.getViewSetupId() );
+
+		return key.toString();
+	}
+
+	private static String join( final double[] values )
+	{
+		final StringBuilder s = new StringBuilder();
+		for ( final double v : values )
+			s.append( ( s.length() > 0 ? "," : "" ) + v );
+		return s.toString();
+	}
+
+	private static String join( final long[] values )
+	{
+		return Arrays.toString( values ).replace( " ", "" ).replace( "[", "" ).replace( "]", "" );
+	}
+
+	private static double[] split( final String values )
+	{
+		return Arrays.stream( values.split( "," ) ).mapToDouble( Double::parseDouble ).toArray();
+	}
+}
@@ -22,14 +22,18 @@
 package net.preibisch.stitcher.algorithm.globalopt;
 
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
@@ -39,13 +43,18 @@ import ij.IJ;
 import mpicbg.models.TranslationModel3D;
 import mpicbg.spim.data.SpimData;
 import mpicbg.spim.data.generic.sequence.AbstractSequenceDescription;
+import mpicbg.spim.data.generic.sequence.BasicImgLoader;
 import mpicbg.spim.data.generic.sequence.BasicViewDescription;
 import mpicbg.spim.data.registration.ViewRegistration;
 import mpicbg.spim.data.registration.ViewRegistrations;
 import mpicbg.spim.data.sequence.Channel;
 import mpicbg.spim.data.sequence.SequenceDescription;
 import mpicbg.spim.data.sequence.ViewId;
+import net.imglib2.Dimensions;
+import net.imglib2.FinalDimensions;
 import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.algorithm.phasecorrelation.FFTBufferPool;
+import net.imglib2.algorithm.phasecorrelation.SpectrumCache;
 import net.imglib2.RealInterval;
 import net.imglib2.realtransform.AffineGet;
 import net.imglib2.realtransform.AffineTransform;
@@ -58,9 +67,9 @@ import net.imglib2.util.Pair;
 import net.imglib2.util.Util;
 import net.imglib2.util.ValuePair;
 import net.preibisch.legacy.io.IOFunctions;
-import net.preibisch.mvrecon.Threads;
 import net.preibisch.mvrecon.fiji.spimdata.boundingbox.BoundingBox;
 import net.preibisch.mvrecon.fiji.spimdata.stitchingresults.PairwiseStitchingResult;
+import net.preibisch.mvrecon.fiji.spimdata.stitchingresults.StitchingResults;
 import net.preibisch.mvrecon.process.boundingbox.BoundingBoxMaximalGroupOverlap;
 import net.preibisch.mvrecon.process.interestpointregistration.global.GlobalOpt;
 import net.preibisch.mvrecon.process.interestpointregistration.global.convergence.ConvergenceStrategy;
@@ -70,6 +79,9 @@ import net.preibisch.stitcher.algorithm.GroupedViewAggregator;
 import net.preibisch.stitcher.algorithm.GroupedViewAggregator.ActionType;
 import net.preibisch.stitcher.algorithm.PairwiseStitching;
 import net.preibisch.stitcher.algorithm.PairwiseStitchingParameters;
+import net.preibisch.stitcher.algorithm.TileCache;
+import net.preibisch.stitcher.algorithm.StitchingExecutor;
+import net.preibisch.stitcher.algorithm.StitchingMetrics;
 import net.preibisch.stitcher.algorithm.TransformTools;
 import net.preibisch.stitcher.algorithm.lucaskanade.LucasKanadeParameters;
 import net.preibisch.stitcher.gui.popup.DisplayOverlapTestPopup;
@@ -77,6 +89,10 @@ import net.preibisch.stitcher.input.GenerateSpimData;
 
 public class TransformationTools
 {
+	// set to false to keep the loaded views and FFT buffers across several rounds of pairwise computation,
+	// releaseCaches() has to be called manually then (cached spectra are always kept, see releaseCaches())
+	public static boolean releaseCachesAfterComputation = true;
+
 	public static < A > Pair< A, A > reversePair( final Pair< A, A > pair )
 	{
 		return new ValuePair< A, A >( pair.getB(), pair.getA() );
@@ -250,11 +266,6 @@ public class TransformationTools
 			final long[] downsampleFactors,
 			final ExecutorService service )
 	{
-
-		// the transformation that maps the downsampled image coordinates back to the original input(!) image space
-		final AffineTransform3D dsCorrectionT1 = new AffineTransform3D();
-		final AffineTransform3D dsCorrectionT2 = new AffineTransform3D();
-
 		// get Overlap Bounding Box
 		final List<List<ViewId>> views = new ArrayList<>();
 		views.add( new ArrayList<>(viewIdsA.getViews()) );
@@ -266,9 +277,152 @@ public class TransformationTools
 		if (bbOverlap == null)
 			return null;
 
-		// get one image per group
-		final RandomAccessibleInterval<T> img1 = gva.aggregate( viewIdsA, sd, downsampleFactors, dsCorrectionT1 );	
-		final RandomAccessibleInterval<T> img2 = gva.aggregate( viewIdsB, sd, downsampleFactors, dsCorrectionT2 );
+		final Pair< Translation, Double > result;
+
+		if ( params.coarseToFine && params.coarseToFineLevels > 0 )
+			result = TransformationTools.< T >computeShiftCoarseToFine( viewIdsA, viewIdsB, vrs, params, sd, gva, downsampleFactors, bbOverlap, service );
+		else
+			result = TransformationTools.< T >computeShift( viewIdsA, viewIdsB, vrs, params, sd, gva, downsampleFactors, bbOverlap, null, 0, 0, service );
+
+		if (result == null)
+			return null;
+
+		// TODO (?): Different translational part of downsample Transformations should be considered via TransformTools.getInitialTransforms
+		// we probalbly do not have to correct for them ?
+
+		// NB: as we will deal in global coordinates, not pixel coordinates in global optimization,
+		// calculate global R' = VT^-1 * R * VT from pixel transformation R 
+		ViewRegistration vrOld = vrs.getViewRegistration(viewIdsB.iterator().next());
+		AffineTransform3D resTransform = new AffineTransform3D();
+		resTransform.set( result.getA().getRowPackedCopy() );
+		resTransform.concatenate( vrOld.getModel().inverse() );
+		resTransform.preConcatenate( vrOld.getModel() );
+
+		System.out.println("shift (pixel coordinates): " + Util.printCoordinates(result.getA().getTranslationCopy()));
+		System.out.println("shift (global coordinates): " + Util.printCoordinates(resTransform.getRowPackedCopy()));
+		System.out.print("cross-corr: " + result.getB());
+
+		return new ValuePair<>( new ValuePair<>( resTransform, result.getB() ), bbOverlap );
+	}
+	
+	/**
+	 * estimate the shift on a coarse downsampling level first and refine it on the finer levels,
+	 * the refinement only uses the center of the overlap and only looks for small shifts around the previous estimate
+	 * (each level is downsampled 2x more than the next finer one, the finest level is downsampleFactors)
+	 * @return the shift in full resolution pixel coordinates and the cross correlation, null if no shift was found on any level
+	 */
+	private static < T extends RealType< T > > Pair< Translation, Double > computeShiftCoarseToFine(
+			final Group<? extends ViewId> viewIdsA,
+			final Group<? extends ViewId> viewIdsB,
+			final ViewRegistrations vrs,
+			final PairwiseStitchingParameters params,
+			final AbstractSequenceDescription< ?,? extends BasicViewDescription<?>, ? > sd,
+			final GroupedViewAggregator gva,
+			final long[] downsampleFactors,
+			final RealInterval bbOverlap,
+			final ExecutorService service )
+	{
+		Pair< Translation, Double > estimate = null;
+
+		// axes are not downsampled beyond the size of the smallest view (e.g. z of 2d data stays 1)
+		final long[] minSize = getMinimalViewSize( viewIdsA, viewIdsB, sd, downsampleFactors.length );
+
+		for ( int level = params.coarseToFineLevels; level >= 0; --level )
+		{
+			final long[] levelDs = new long[ downsampleFactors.length ];
+			for ( int d = 0; d < levelDs.length; ++d )
+				levelDs[ d ] = Math.max( downsampleFactors[ d ], Math.min( downsampleFactors[ d ] << level, minSize[ d ] ) );
+
+			final Pair< Translation, Double > levelResult;
+
+			if ( estimate == null )
+			{
+				// nothing known yet, full search
+				levelResult = TransformationTools.< T >computeShift( viewIdsA, viewIdsB, vrs, params, sd, gva, levelDs, bbOverlap, null, 0, 0, service );
+			}
+			else
+			{
+				// the previous level was 2x coarser, so the estimate is accurate to about 2 * radius pixels on this level
+				final double maxShift = 2 * params.refinementSearchRadius;
+				final long maxOverlapSize = Math.max( params.refinementBlockSize, 4 * (long) Math.ceil( maxShift ) );
+
+				levelResult = TransformationTools.< T >computeShift( viewIdsA, viewIdsB, vrs, params, sd, gva, levelDs, bbOverlap,
+						estimate.getA().getTranslationCopy(), maxOverlapSize, maxShift, service );
+			}
+
+			IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Coarse-to-fine level " + level + " (" + Util.printCoordinates( levelDs ) + "): " +
+					( levelResult == null ? "no shift found" : Util.printCoordinates( levelResult.getA().getTranslationCopy() ) + ", r=" + levelResult.getB() ) );
+
+			// if a refinement fails, we keep the coarser estimate and try again on the next level
+			if ( levelResult != null )
+				estimate = levelResult;
+		}
+
+		return estimate;
+	}
+
+	/**
+	 * @return the minimal size of all views of both groups in every dimension (Long.MAX_VALUE if unknown)
+	 */
+	private static long[] getMinimalViewSize(
+			final Group<? extends ViewId> viewIdsA,
+			final Group<? extends ViewId> viewIdsB,
+			final AbstractSequenceDescription< ?,? extends BasicViewDescription<?>, ? > sd,
+			final int n )
+	{
+		final long[] minSize = new long[ n ];
+		Arrays.fill( minSize, Long.MAX_VALUE );
+
+		for ( final Group<? extends ViewId> group : Arrays.asList( viewIdsA, viewIdsB ) )
+			for ( final ViewId v : group )
+			{
+				final BasicViewDescription< ? > vd = sd.getViewDescriptions().get( v );
+				if ( vd == null || vd.getViewSetup().getSize() == null )
+					continue;
+
+				for ( int d = 0; d < Math.min( n, vd.getViewSetup().getSize().numDimensions() ); ++d )
+					minSize[ d ] = Math.min( minSize[ d ], vd.getViewSetup().getSize().dimension( d ) );
+			}
+
+		return minSize;
+	}
+
+	/**
+	 * load the (aggregated) groups and compute the shift with phase correlation
+	 * @param initialShift - shift that is already known (full resolution pixel coordinates) or null
+	 * @param maxOverlapSize - only use the central maxOverlapSize pixels of the overlap (&lt;= 0 means the whole overlap)
+	 * @param maxShift - only look for shifts of at most maxShift pixels around initialShift (&lt;= 0 means all shifts)
+	 * @return the (total) shift in full resolution pixel coordinates and the cross correlation, null if no shift was found
+	 */
+	private static < T extends RealType< T > > Pair< Translation, Double > computeShift(
+			final Group<? extends ViewId> viewIdsA,
+			final Group<? extends ViewId> viewIdsB,
+			final ViewRegistrations vrs,
+			final PairwiseStitchingParameters params,
+			final AbstractSequenceDescription< ?,? extends BasicViewDescription<?>, ? > sd,
+			final GroupedViewAggregator gva,
+			final long[] downsampleFactors,
+			final RealInterval bbOverlap,
+			final double[] initialShift,
+			final long maxOverlapSize,
+			final double maxShift,
+			final ExecutorService service )
+	{
+		// the transformation that maps the downsampled image coordinates back to the original input(!) image space
+		final AffineTransform3D dsCorrectionT1 = new AffineTransform3D();
+		final AffineTransform3D dsCorrectionT2 = new AffineTransform3D();
+
+		// get one image per group, only load the overlap (+ margin for the PCM extension and rounding) unless we use the whole image
+		final RealInterval crop = params.useWholeImage ? null : bbOverlap;
+		// the second image is moved by initialShift before the refinement, so its crop has to include the shifted overlap
+		long initialShiftMargin = 0;
+		if ( initialShift != null )
+			for ( int d = 0; d < initialShift.length; ++d )
+				initialShiftMargin = Math.max( initialShiftMargin, (long) Math.ceil( Math.abs( initialShift[ d ] ) / downsampleFactors[ d ] ) );
+
+		final long cropMargin = PairwiseStitching.PCM_EXTENSION + 1 + ( initialShift == null ? 0 : (long) Math.ceil( maxShift ) + initialShiftMargin );
+		final RandomAccessibleInterval<T> img1 = gva.aggregate( viewIdsA, sd, downsampleFactors, dsCorrectionT1, crop, vrs, cropMargin );
+		final RandomAccessibleInterval<T> img2 = gva.aggregate( viewIdsB, sd, downsampleFactors, dsCorrectionT2, crop, vrs, cropMargin );
 
 		if (img1 == null || img2 == null)
 		{
@@ -284,32 +438,109 @@ public class TransformationTools
 		Pair< AffineGet, TranslationGet > t1 = TransformTools.getInitialTransforms( vrs.getViewRegistration(viewIdsA.iterator().next()), is2d, dsCorrectionT1 );
 		Pair< AffineGet, TranslationGet > t2 = TransformTools.getInitialTransforms( vrs.getViewRegistration(viewIdsB.iterator().next()), is2d, dsCorrectionT2 );
 
-		final Pair< Translation, Double > result  = PairwiseStitching.getShift( img1, img2, t1.getB(), t2.getB(), params, service );
+		// place the second image at the already known shift (in downsampled pixel coordinates)
+		TranslationGet t2Initial = t2.getB();
+		if ( initialShift != null )
+		{
+			final double[] translation = t2.getB().getTranslationCopy();
+			for ( int d = 0; d < translation.length; ++d )
+				translation[ d ] += initialShift[ d ] / downsampleFactors[ d ];
+			t2Initial = new Translation( translation );
+		}
+
+		final Pair< Translation, Double > result  = PairwiseStitching.getShift( img1, img2, t1.getB(), t2Initial, params,
+				params.cacheSpectra ? getImageId( viewIdsA, sd, vrs, gva, downsampleFactors ) : null,
+				params.cacheSpectra ? getImageId( viewIdsB, sd, vrs, gva, downsampleFactors ) : null,
+				maxOverlapSize, maxShift, service );
 
 		if (result == null)
 			return null;
-		
+
+		// back to full resolution, add the shift we already knew
 		for (int i = 0; i< result.getA().numDimensions(); ++i)			
-			result.getA().set( result.getA().get(i, result.getA().numDimensions()) * downsampleFactors[i], i ); 
+			result.getA().set( result.getA().get(i, result.getA().numDimensions()) * downsampleFactors[i] + ( initialShift == null ? 0 : initialShift[ i ] ), i ); 
 
-		// TODO (?): Different translational part of downsample Transformations should be considered via TransformTools.getInitialTransforms
-		// we probalbly do not have to correct for them ?
+		return result;
+	}
 
-		// NB: as we will deal in global coordinates, not pixel coordinates in global optimization,
-		// calculate global R' = VT^-1 * R * VT from pixel transformation R 
-		ViewRegistration vrOld = vrs.getViewRegistration(viewIdsB.iterator().next());
-		AffineTransform3D resTransform = new AffineTransform3D();
-		resTransform.set( result.getA().getRowPackedCopy() );
-		resTransform.concatenate( vrOld.getModel().inverse() );
-		resTransform.preConcatenate( vrOld.getModel() );
+	/**
+	 * identifies the content of the aggregated, downsampled image of a group (e.g. for caching spectra)
+	 * @param group - the views that are aggregated
+	 * @param sd - the sequence description
+	 * @param vrs - the view registrations
+	 * @param gva - the aggregator
+	 * @param downsampleFactors - downsampling in x,y,z
+	 * @return an object that is equal for groups that result in the same image
+	 */
+	public static Object getImageId(
+			final Group<? extends ViewId> group,
+			final AbstractSequenceDescription< ?,? extends BasicViewDescription<?>, ? > sd,
+			final ViewRegistrations vrs,
+			final GroupedViewAggregator gva,
+			final long[] downsampleFactors )
+	{
+		final HashMap< ViewId, String > registrations = new HashMap<>();
+		for ( final ViewId v : group )
+			registrations.put( new ViewId( v.getTimePointId(), v.getViewSetupId() ), getRegistrationKey( vrs.getViewRegistration( v ) ) );
 
-		System.out.println("shift (pixel coordinates): " + Util.printCoordinates(result.getA().getTranslationCopy()));
-		System.out.println("shift (global coordinates): " + Util.printCoordinates(resTransform.getRowPackedCopy()));
-		System.out.print("cross-corr: " + result.getB());
+		return new ImageId( sd.getImgLoader(), registrations, Arrays.toString( downsampleFactors ), gva.toString() );
+	}
 
-		return new ValuePair<>( new ValuePair<>( resTransform, result.getB() ), bbOverlap );
+	private static String getRegistrationKey( final ViewRegistration vr )
+	{
+		return vr == null ? "none" : Arrays.toString( vr.getModel().getRowPackedCopy() );
 	}
-	
+
+	/**
+	 * see {@link #getImageId(Group, AbstractSequenceDescription, ViewRegistrations, GroupedViewAggregator, long[])}
+	 */
+	private static class ImageId
+	{
+		final BasicImgLoader imgLoader;
+		final HashMap< ViewId, String > registrations;
+		final String downsampleFactors, aggregation;
+
+		ImageId( final BasicImgLoader imgLoader, final HashMap< ViewId, String > registrations, final String downsampleFactors, final String aggregation )
+		{
+			this.imgLoader = imgLoader;
+			this.registrations = registrations;
+			this.downsampleFactors = downsampleFactors;
+			this.aggregation = aggregation;
+		}
+
+		/**
+		 * @return true if the image is from another ImgLoader or the registration of one of its views changed
+		 */
+		boolean isOutdated( final BasicImgLoader currentImgLoader, final ViewRegistrations vrs )
+		{
+			if ( imgLoader != currentImgLoader )
+				return true;
+
+			for ( final Map.Entry< ViewId, String > e : registrations.entrySet() )
+				if ( !e.getValue().equals( getRegistrationKey( vrs.getViewRegistrations().get( e.getKey() ) ) ) )
+					return true;
+
+			return false;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return 31 * ( 31 * ( 31 * System.identityHashCode( imgLoader ) + registrations.hashCode() ) + downsampleFactors.hashCode() ) + aggregation.hashCode();
+		}
+
+		@Override
+		public boolean equals( final Object obj )
+		{
+			if ( !( obj instanceof ImageId ) )
+				return false;
+
+			final ImageId other = (ImageId) obj;
+			return imgLoader == other.imgLoader && registrations.equals( other.registrations )
+					&& downsampleFactors.equals( other.downsampleFactors ) && aggregation.equals( other.aggregation );
+		}
+	}
+
 	public static < T extends RealType< T > > Pair<Pair< AffineGet, Double >, RealInterval> computeStitchingLucasKanade(
 			final Group<? extends ViewId> viewIdsA,
 			final Group<? extends ViewId> viewIdsB,
@@ -424,9 +655,8 @@ public class TransformationTools
 			final GroupedViewAggregator gva, final long[] downsamplingFactors,
 			final ProgressWriter progressWriter)
 	{
-		// set up executor service
-		final ExecutorService serviceGlobal = Executors
-				.newFixedThreadPool( Math.max( 2, Runtime.getRuntime().availableProcessors() / 2 ) );
+		// pairs and their parallel parts share one work-stealing pool
+		final ExecutorService service = StitchingExecutor.getInstance();
 		final ArrayList< Callable< Pair< Pair< Group< V >, Group< V > >, Pair< Pair< AffineGet, Double >, RealInterval > > > > tasks = new ArrayList<>();
 
 		// remove non-overlapping comparisons
@@ -453,9 +683,6 @@ public class TransformationTools
 							IOFunctions.println( new Date( System.currentTimeMillis() ) + ": Compute pairwise: "
 									+ p.getA() + " <> " + p.getB() );
 
-							final ExecutorService serviceLocal = Executors.newFixedThreadPool(
-									Math.max( 2, Runtime.getRuntime().availableProcessors() / 4 ) );
-
 							final ViewId firstVdA = p.getA().iterator().next();
 							final ViewId firstVdB = p.getB().iterator().next();
 
@@ -466,16 +693,14 @@ public class TransformationTools
 							{
 
 								result = computeStitchingLucasKanade( p.getA(), p.getB(), vrs, params, sd, gva,
-										downsamplingFactors, serviceLocal );
+										downsamplingFactors, service );
 							}
 							else
 							{
 								result = computeStitchingNonEqualTransformationsLucasKanade( p.getA(), p.getB(), vrs, params, sd,
-										gva, downsamplingFactors, serviceLocal );
+										gva, downsamplingFactors, service );
 							}
 
-							serviceLocal.shutdown();
-
 							int nCompletedI = nCompleted.incrementAndGet();
 							if (progressWriter != null)							
 								progressWriter.setProgress( (double) nCompletedI / nComparisions );
@@ -493,7 +718,7 @@ public class TransformationTools
 
 		try
 		{
-			for ( final Future< Pair< Pair< Group< V >, Group< V > >, Pair< Pair< AffineGet, Double >, RealInterval > > > future : serviceGlobal
+			for ( final Future< Pair< Pair< Group< V >, Group< V > >, Pair< Pair< AffineGet, Double >, RealInterval > > > future : service
 					.invokeAll( tasks ) )
 			{
 				// wait for task to complete
@@ -528,6 +753,11 @@ public class TransformationTools
 			e.printStackTrace();
 			return null;
 		}
+		finally
+		{
+			if ( releaseCachesAfterComputation )
+				releaseCaches();
+		}
 
 		return results;
 	}
@@ -539,8 +769,8 @@ public class TransformationTools
 																		final GroupedViewAggregator gva,
 																		final long[] downsamplingFactors)
 	{
-		// set up executor service
-		final ExecutorService serviceGlobal = Executors.newFixedThreadPool( Math.max( 2, Runtime.getRuntime().availableProcessors() / 2 ) );
+		// pairs and their parallel parts (FFT, cross correlation, ...) share one work-stealing pool
+		final ExecutorService service = StitchingExecutor.getInstance();
 		final ArrayList< Callable< Pair< Pair< Group< V >, Group< V > >, Pair<Pair< AffineGet, Double >, RealInterval> > > > tasks = new ArrayList<>();
 
 		// remove non-overlapping comparisons
@@ -548,12 +778,58 @@ public class TransformationTools
 		removedPairs.forEach( p -> System.out.println( "Skipping non-overlapping pair: " + p.getA() + " -> " + p.getB() ) );
 		IOFunctions.println( new Date( System.currentTimeMillis() ) + ": Removed " + removedPairs.size() + " non-overlapping view-pairs for computing." );
 
-		final int nComparisions = pairs.size();
+		// pairs that were already computed with the same parameters and registrations are taken from the journal
+		final PairwiseJournal journal;
+		try
+		{
+			journal = params.journalFile == null ? null : new PairwiseJournal( new File( params.journalFile ), params, gva, downsamplingFactors, params.resumeFromJournal );
+		}
+		catch ( final IOException e )
+		{
+			IOFunctions.println( "Failed to open journal " + params.journalFile + ": " + e );
+			e.printStackTrace();
+			return null;
+		}
+
+		final List< Pair< Group< V >, Group< V > > > pairsToCompute = new ArrayList<>();
+		final ArrayList< PairwiseStitchingResult< ViewId > > resumedResults = new ArrayList<>();
+
+		for ( final Pair< Group< V >, Group< V > > p : pairs )
+		{
+			final double hash = calculateHash( p, vrs );
+
+			if ( journal != null && journal.contains( p, hash ) )
+			{
+				final Pair< Pair< AffineGet, Double >, RealInterval > result = journal.get( p );
+				if ( result != null )
+					resumedResults.add( createResult( p, result, vrs ) );
+			}
+			else
+				pairsToCompute.add( p );
+		}
+
+		if ( journal != null )
+			IOFunctions.println( new Date( System.currentTimeMillis() ) + ": Resuming " + ( pairs.size() - pairsToCompute.size() ) + " pairs from "
+					+ journal.getFile().getAbsolutePath() + ", computing " + pairsToCompute.size() + " pairs." );
+
+		final int nComparisions = pairsToCompute.size();
 		AtomicInteger nCompleted = new AtomicInteger();
 		
 		IJ.showProgress( 0.0 );
-		
-		for ( final Pair< Group< V >, Group< V > > p : pairs )
+
+		StitchingMetrics.getInstance().reset();
+
+		// spectra are kept across rounds of pairwise comparisons (e.g. with other peaksToCheck), but not for other images or changed registrations
+		if ( params.cacheSpectra )
+			SpectrumCache.getInstance().invalidate( id -> !( id instanceof ImageId ) || ( (ImageId) id ).isOutdated( sd.getImgLoader(), vrs ) );
+		else
+			SpectrumCache.getInstance().clear();
+
+		// compute pairs sharing a group close together in time, so views are re-used from the TileCache and can be released early
+		final PairScheduler< V > scheduler = new PairScheduler<>( pairsToCompute, vrs, sd );
+		final List< Pair< Group< V >, Group< V > > > orderedPairs = scheduler.getOrderedPairs();
+
+		for ( final Pair< Group< V >, Group< V > > p : orderedPairs )
 		{
 			tasks.add( new Callable< Pair< Pair< Group< V >, Group< V > >, Pair<Pair< AffineGet, Double >, RealInterval> > >()
 			{
@@ -562,42 +838,51 @@ public class TransformationTools
 				{
 					Pair<Pair< AffineGet, Double >, RealInterval> result = null;
 
-					final ExecutorService serviceLocal = Executors.newFixedThreadPool( Math.max( 2, Runtime.getRuntime().availableProcessors() / 4 ) );
+					final long tPair = StitchingMetrics.start();
 
-					// TODO: do non-equal transformation registration when views within a group have differing transformations
-					final ViewId firstVdA = p.getA().iterator().next();
-					final ViewId firstVdB = p.getB().iterator().next();
+					try
+					{
+						// TODO: do non-equal transformation registration when views within a group have differing transformations
+						final ViewId firstVdA = p.getA().iterator().next();
+						final ViewId firstVdB = p.getB().iterator().next();
 					
-					boolean nonTranslationsEqual = TransformTools.nonTranslationsEqual( vrs.getViewRegistration( firstVdA ), vrs.getViewRegistration( firstVdB ) );
+						boolean nonTranslationsEqual = TransformTools.nonTranslationsEqual( vrs.getViewRegistration( firstVdA ), vrs.getViewRegistration( firstVdB ) );
 					
-					if (nonTranslationsEqual)
-					{
-						System.out.println( "non translations equal" );
-						result = computeStitching(
-								p.getA(),
-								p.getB(),
-								vrs,
-								params,
-								sd,
-								gva,
-								downsamplingFactors,
-								serviceLocal );
+						if (nonTranslationsEqual)
+						{
+							System.out.println( "non translations equal" );
+							result = computeStitching(
+									p.getA(),
+									p.getB(),
+									vrs,
+									params,
+									sd,
+									gva,
+									downsamplingFactors,
+									service );
+						}
+						else
+						{
+							result = computeStitchingNonEqualTransformations( 
+									p.getA(),
+									p.getB(),
+									vrs,
+									params,
+									sd,
+									gva,
+									downsamplingFactors,
+									service );
+							System.out.println( "non translations NOT equal, using virtually fused views for stitching" );
+						}
 					}
-					else
+					finally
 					{
-						result = computeStitchingNonEqualTransformations( 
-								p.getA(),
-								p.getB(),
-								vrs,
-								params,
-								sd,
-								gva,
-								downsamplingFactors,
-								serviceLocal );
-						System.out.println( "non translations NOT equal, using virtually fused views for stitching" );
+						StitchingMetrics.getInstance().stop( StitchingMetrics.PAIR, tPair );
 					}
 
-					serviceLocal.shutdown();
+					// keep the result on disk right away, so it survives if the run is interrupted
+					if ( journal != null )
+						journal.append( p, calculateHash( p, vrs ), result );
 
 					// show progress in ImageJ progress bar (TODO: should we really do this here or leave it GUI-independent?)
 					int nCompletedI = nCompleted.incrementAndGet();
@@ -613,54 +898,80 @@ public class TransformationTools
 			});
 		}
 
-		final ArrayList< PairwiseStitchingResult< ViewId > > results = new ArrayList<>();
+		final ArrayList< PairwiseStitchingResult< ViewId > > results = new ArrayList<>( resumedResults );
 
-		final int batchSize = Math.max( 2, Threads.numThreads() / 6 );
+		// admit as many pairs at once as fit into the memory budget (but not more than there are threads)
+		final int batchSize = Math.max( 2, StitchingExecutor.getParallelism() );
+		final long memoryBudget = params.memoryBudget > 0 ? params.memoryBudget : defaultMemoryBudget();
 
-		IOFunctions.println( "Computing overlap for: " + batchSize + " pairs of images at once (in total " + Threads.numThreads() + " threads." );
+		final long[] memoryPerPair = new long[ orderedPairs.size() ];
+		long maxMemoryPerPair = 0;
+		long maxBufferMemory = 0;
+		for ( int i = 0; i < orderedPairs.size(); ++i )
+		{
+			final FinalDimensions overlapSize = estimatePairOverlapSize( orderedPairs.get( i ), params, vrs, sd, downsamplingFactors );
+			if ( overlapSize == null )
+				continue;
+
+			memoryPerPair[ i ] = PairwiseStitching.estimateMemory( overlapSize, downsamplingFactors, params.cacheSpectra );
+			maxMemoryPerPair = Math.max( maxMemoryPerPair, memoryPerPair[ i ] );
+			maxBufferMemory = Math.max( maxBufferMemory, PairwiseStitching.estimateFFTBufferMemory( overlapSize ) );
+		}
+
+		// memory that stays allocated between pairs: unused FFT buffers kept in the pool and the spectrum cache
+		final long retainedMemory = FFTBufferPool.getInstance().getMaxFreeBuffers() * maxBufferMemory
+				+ ( params.cacheSpectra ? SpectrumCache.getInstance().getMaxElements() * 8 : 0 );
+		final long pairBudget = Math.max( 1, memoryBudget - retainedMemory );
+
+		final List< List< Integer > > batches = scheduler.getBatches( batchSize, params.maxResidentViews, memoryPerPair, pairBudget );
+
+		IOFunctions.println( "Computing overlap for up to: " + batchSize + " pairs of images at once (in total " + StitchingExecutor.getParallelism() + " threads)." );
+		IOFunctions.println( new Date( System.currentTimeMillis() ) + ": Estimated memory per pair: up to " + maxMemoryPerPair / ( 1024 * 1024 ) + " MB, budget: "
+				+ memoryBudget / ( 1024 * 1024 ) + " MB (" + retainedMemory / ( 1024 * 1024 ) + " MB of it reserved for pooled FFT buffers and cached spectra)." );
+		IOFunctions.println( new Date( System.currentTimeMillis() ) + ": Scheduled " + orderedPairs.size() + " pairs in " + batches.size() + " batches" +
+				( params.maxResidentViews > 0 ? " (at most " + params.maxResidentViews + " views in memory)." : "." ) );
+
+		if ( maxMemoryPerPair > pairBudget )
+			IOFunctions.println( new Date( System.currentTimeMillis() ) + ": WARNING: the largest pair needs more memory than the budget, "
+					+ "consider a higher downsampling or increasing the memory available to Fiji." );
 
 		try
 		{
-			for ( final ArrayList< Callable< Pair< Pair< Group< V >, Group< V > >, Pair<Pair< AffineGet, Double >, RealInterval> > > > part : Threads.splitTasks( tasks, batchSize ) )
-				for ( final Future< Pair< Pair< Group< V >, Group< V > >, Pair<Pair< AffineGet, Double >, RealInterval> > > future : serviceGlobal.invokeAll( part ) )
+			for ( final List< Integer > batch : batches )
+			{
+				final ArrayList< Callable< Pair< Pair< Group< V >, Group< V > >, Pair<Pair< AffineGet, Double >, RealInterval> > > > part = new ArrayList<>();
+				for ( final int i : batch )
+					part.add( tasks.get( i ) );
+
+				for ( final Future< Pair< Pair< Group< V >, Group< V > >, Pair<Pair< AffineGet, Double >, RealInterval> > > future : service.invokeAll( part ) )
 				{
-				// wait for task to complete
-				final Pair< Pair< Group< V >, Group< V > >, Pair<Pair< AffineGet, Double >, RealInterval> > result = future.get();
+					// wait for task to complete
+					final Pair< Pair< Group< V >, Group< V > >, Pair<Pair< AffineGet, Double >, RealInterval> > result = future.get();
 
-				if (result.getB() == null)
-					continue;
+					if (result.getB() == null)
+						continue;
 				
-				/*
-				final ViewRegistration vrA = vrs.getViewRegistration( result.getA().getA().iterator().next() );
-				final ViewRegistration vrB = vrs.getViewRegistration( result.getA().getB().iterator().next() );
+					/*
+					final ViewRegistration vrA = vrs.getViewRegistration( result.getA().getA().iterator().next() );
+					final ViewRegistration vrB = vrs.getViewRegistration( result.getA().getB().iterator().next() );
 				
-				// get non-translation transform between the initial location of groupA
-				Pair< AffineGet, TranslationGet > initialTransformsA = TransformTools.getInitialTransforms( vrA, false, new AffineTransform3D() );
+					// get non-translation transform between the initial location of groupA
+					Pair< AffineGet, TranslationGet > initialTransformsA = TransformTools.getInitialTransforms( vrA, false, new AffineTransform3D() );
 
-				// apply to shift vector
-				// FIXME: this only works for scaling, we need to do something different about rotations, etc.
-				boolean nonTranslationsEqual = TransformTools.nonTranslationsEqual(vrA, vrB);
-				if (nonTranslationsEqual)
-					initialTransformsA.getA().apply( result.getB().getA().getA(), result.getB().getA().getA() );
-
-				 */
-				
-				AffineTransform3D resT = new AffineTransform3D();
-				resT.preConcatenate( result.getB().getA().getA() );
-
-				// TODO: can we get rid of this ugly cast
-				Group< ViewId > groupA = new Group<ViewId>(result.getA().getA().getViews().stream().map( x -> (ViewId) x ).collect( Collectors.toList() ));
-				Group< ViewId > groupB = new Group<ViewId>(result.getA().getB().getViews().stream().map( x -> (ViewId) x ).collect( Collectors.toList() ));
+					// apply to shift vector
+					// FIXME: this only works for scaling, we need to do something different about rotations, etc.
+					boolean nonTranslationsEqual = TransformTools.nonTranslationsEqual(vrA, vrB);
+					if (nonTranslationsEqual)
+						initialTransformsA.getA().apply( result.getB().getA().getA(), result.getB().getA().getA() );
 
-				// TODO: when does that really happen?
-				if ( result.getB() != null)
-				{
-					final double oldTransformHash = PairwiseStitchingResult.calculateHash(
-							vrs.getViewRegistration( groupA.getViews().iterator().next() ),
-							vrs.getViewRegistration( groupB.getViews().iterator().next() ) );
+					 */
 
-					results.add( new PairwiseStitchingResult<>( new ValuePair<>(groupA, groupB), result.getB().getB(),  resT, result.getB().getA().getB(), oldTransformHash ) );
+					results.add( createResult( result.getA(), result.getB(), vrs ) );
 				}
+
+				// free the views of all groups that have no pairs left
+				for ( final int i : batch )
+					PairScheduler.release( scheduler.pairFinished( orderedPairs.get( i ) ) );
 			}
 		}
 		catch ( final Exception e )
@@ -669,10 +980,223 @@ public class TransformationTools
 			e.printStackTrace();
 			return null;
 		}
+		finally
+		{
+			exportMetrics( params.metricsFile );
+
+			if ( releaseCachesAfterComputation )
+				releaseCaches();
+		}
 
 		return results;
 	}
 
+	/**
+	 * @param pair - the pair of groups
+	 * @param vrs - the view registrations
+	 * @param <V> view id type
+	 * @return the hash of the current registrations of the first views of both groups (see {@link PairwiseStitchingResult#calculateHash})
+	 */
+	public static <V extends ViewId> double calculateHash( final Pair< Group< V >, Group< V > > pair, final ViewRegistrations vrs )
+	{
+		return PairwiseStitchingResult.calculateHash(
+				vrs.getViewRegistration( pair.getA().getViews().iterator().next() ),
+				vrs.getViewRegistration( pair.getB().getViews().iterator().next() ) );
+	}
+
+	/**
+	 * find the pairs that need to be (re-)computed, because the registrations of their views changed since their
+	 * result was computed (e.g. after moving a group manually or loading a new tile configuration) or because they
+	 * were never computed, all other pairs can keep their results. Pairs without a result that are in the journal
+	 * with their current registrations were computed before and either found no shift or were removed afterwards
+	 * (by filtering or the global optimization), they are not computed again.
+	 *
+	 * @param pairs - the pairs to check
+	 * @param stitchingResults - the existing pairwise results
+	 * @param vrs - the current view registrations
+	 * @param journal - the journal of the previous runs (null if there is none, then all pairs without result are computed)
+	 * @param <V> view id type
+	 * @return the pairs without an up-to-date result
+	 */
+	public static <V extends ViewId> List< Pair< Group< V >, Group< V > > > getPairsToRecompute(
+			final List< Pair< Group< V >, Group< V > > > pairs,
+			final StitchingResults stitchingResults,
+			final ViewRegistrations vrs,
+			final PairwiseJournal journal )
+	{
+		final List< Pair< Group< V >, Group< V > > > changed = new ArrayList<>();
+
+		for ( final Pair< Group< V >, Group< V > > p : pairs )
+		{
+			final Group< ViewId > groupA = new Group<>( p.getA().getViews().stream().map( x -> (ViewId) x ).collect( Collectors.toList() ) );
+			final Group< ViewId > groupB = new Group<>( p.getB().getViews().stream().map( x -> (ViewId) x ).collect( Collectors.toList() ) );
+
+			PairwiseStitchingResult< ViewId > psr = stitchingResults.getPairwiseResults().get( new ValuePair<>( groupA, groupB ) );
+			if ( psr == null )
+				psr = stitchingResults.getPairwiseResults().get( new ValuePair<>( groupB, groupA ) );
+
+			if ( psr == null )
+			{
+				// failed, filtered or removed pairs are in the journal
+				if ( journal == null || !journal.contains( p, calculateHash( p, vrs ) ) )
+					changed.add( p );
+			}
+			else if ( psr.getHash() != calculateHash( psr.pair(), vrs ) )
+			{
+				// the hash is compared the same way as in the global optimization
+				changed.add( p );
+			}
+		}
+
+		return changed;
+	}
+
+	private static <V extends ViewId> PairwiseStitchingResult< ViewId > createResult(
+			final Pair< Group< V >, Group< V > > pair,
+			final Pair< Pair< AffineGet, Double >, RealInterval > result,
+			final ViewRegistrations vrs )
+	{
+		AffineTransform3D resT = new AffineTransform3D();
+		resT.preConcatenate( result.getA().getA() );
+
+		// TODO: can we get rid of this ugly cast
+		Group< ViewId > groupA = new Group<ViewId>(pair.getA().getViews().stream().map( x -> (ViewId) x ).collect( Collectors.toList() ));
+		Group< ViewId > groupB = new Group<ViewId>(pair.getB().getViews().stream().map( x -> (ViewId) x ).collect( Collectors.toList() ));
+
+		final double oldTransformHash = calculateHash( new ValuePair<>( groupA, groupB ), vrs );
+
+		return new PairwiseStitchingResult<>( new ValuePair<>(groupA, groupB), result.getB(), resT, result.getA().getB(), oldTransformHash );
+	}
+
+	/**
+	 * @return half of the heap that is currently not used
+	 */
+	public static long defaultMemoryBudget()
+	{
+		final Runtime runtime = Runtime.getRuntime();
+		return ( runtime.maxMemory() - ( runtime.totalMemory() - runtime.freeMemory() ) ) / 2;
+	}
+
+	/**
+	 * estimate the memory needed to compute the shift of a pair, based on the size of the overlap of the
+	 * two groups (or the size of the views if the whole images are used) at the given downsampling
+	 *
+	 * @param pair - the pair of groups
+	 * @param params - the pairwise stitching parameters
+	 * @param vrs - the view registrations
+	 * @param sd - the sequence description
+	 * @param downsamplingFactors - downsampling in x,y,z
+	 * @param <V> view id type
+	 * @return estimated memory in bytes (0 if the groups do not overlap), see {@link PairwiseStitching#estimateMemory(Dimensions, long[], boolean)}
+	 */
+	public static <V extends ViewId> long estimatePairMemory(
+			final Pair< Group< V >, Group< V > > pair,
+			final PairwiseStitchingParameters params,
+			final ViewRegistrations vrs,
+			final AbstractSequenceDescription< ?, ? extends BasicViewDescription< ? >, ? > sd,
+			final long[] downsamplingFactors )
+	{
+		final FinalDimensions size = estimatePairOverlapSize( pair, params, vrs, sd, downsamplingFactors );
+		return size == null ? 0 : PairwiseStitching.estimateMemory( size, downsamplingFactors, params.cacheSpectra );
+	}
+
+	/**
+	 * @param pair - the pair of groups
+	 * @param params - the pairwise stitching parameters
+	 * @param vrs - the view registrations
+	 * @param sd - the sequence description
+	 * @param downsamplingFactors - downsampling in x,y,z
+	 * @param <V> view id type
+	 * @return the size of the images that are compared for the pair (the downsampled overlap or views), null if the groups do not overlap
+	 */
+	public static <V extends ViewId> FinalDimensions estimatePairOverlapSize(
+			final Pair< Group< V >, Group< V > > pair,
+			final PairwiseStitchingParameters params,
+			final ViewRegistrations vrs,
+			final AbstractSequenceDescription< ?, ? extends BasicViewDescription< ? >, ? > sd,
+			final long[] downsamplingFactors )
+	{
+		final long[] size = new long[ downsamplingFactors.length ];
+
+		if ( params.useWholeImage )
+		{
+			for ( final Group< V > group : Arrays.asList( pair.getA(), pair.getB() ) )
+				for ( final V v : group )
+				{
+					final BasicViewDescription< ? > vd = sd.getViewDescriptions().get( v );
+					if ( vd == null || !vd.isPresent() || vd.getViewSetup().getSize() == null )
+						continue;
+
+					for ( int d = 0; d < size.length; ++d )
+						size[ d ] = Math.max( size[ d ], vd.getViewSetup().getSize().dimension( d ) );
+				}
+		}
+		else
+		{
+			final List< Set< V > > pairAsGroups = new ArrayList<>();
+			pairAsGroups.add( pair.getA().getViews() );
+			pairAsGroups.add( pair.getB().getViews() );
+
+			final BoundingBox bb = new BoundingBoxMaximalGroupOverlap< V >( pairAsGroups, sd, vrs ).estimate( "max overlap" );
+			if ( bb == null )
+				return null;
+
+			for ( int d = 0; d < size.length; ++d )
+				size[ d ] = bb.dimension( d );
+		}
+
+		for ( int d = 0; d < size.length; ++d )
+			size[ d ] = Math.max( 1, size[ d ] / downsamplingFactors[ d ] );
+
+		return new FinalDimensions( size );
+	}
+
+	/**
+	 * log the time spent in every stage of the pairwise computation, optionally write the timings of all stages to a file
+	 * @param metricsFile .csv or .json file, null to only log the summary
+	 */
+	public static void exportMetrics( final String metricsFile )
+	{
+		final StitchingMetrics metrics = StitchingMetrics.getInstance();
+		metrics.printSummary();
+
+		if ( metricsFile == null || metricsFile.trim().length() == 0 )
+			return;
+
+		try
+		{
+			metrics.export( new File( metricsFile ) );
+			IOFunctions.println( new Date( System.currentTimeMillis() ) + ": Saved stitching metrics to " + metricsFile );
+		}
+		catch ( final IOException e )
+		{
+			IOFunctions.println( "Failed to save stitching metrics to " + metricsFile + ": " + e );
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * log how well the views and spectra were re-used across pairs and free the memory of the shared views
+	 * and FFT buffers, they are only needed during one round of pairwise comparisons (set {@link #releaseCachesAfterComputation}
+	 * to false to keep them for re-computing the same pairs). The cached spectra are kept for the next round, they are
+	 * bounded and removed once their views change (see {@link SpectrumCache#invalidate(java.util.function.Predicate)}).
+	 */
+	public static void releaseCaches()
+	{
+		final TileCache cache = TileCache.getInstance();
+		cache.printStatistics();
+		cache.invalidateAll();
+		cache.resetStatistics();
+
+		FFTBufferPool.getInstance().clear();
+
+		final SpectrumCache spectrumCache = SpectrumCache.getInstance();
+		if ( spectrumCache.getHits() + spectrumCache.getMisses() > 0 )
+			IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Spectrum cache: " + spectrumCache.getHits() + " hits, "
+					+ spectrumCache.getMisses() + " misses, " + spectrumCache.numSpectra() + " spectra cached." );
+		spectrumCache.resetStatistics();
+	}
+
 	public static void main( String[] args )
 	{
 		final SpimData d = GenerateSpimData.grid3x2();
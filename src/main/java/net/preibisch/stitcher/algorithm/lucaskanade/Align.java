@@ -27,7 +27,6 @@ import java.util.List;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -66,6 +65,7 @@ import net.imglib2.util.ValuePair;
 import net.imglib2.view.Views;
 import net.preibisch.mvrecon.process.boundingbox.BoundingBoxMaximalGroupOverlap;
 import net.preibisch.mvrecon.process.interestpointdetection.methods.downsampling.Downsample;
+import net.preibisch.stitcher.algorithm.StitchingExecutor;
 import net.preibisch.stitcher.algorithm.TransformTools;
 
 public class Align<T extends RealType< T >>
@@ -244,9 +244,18 @@ public class Align<T extends RealType< T >>
 	 */
 	public AffineTransform align(final RandomAccessibleInterval< T > image, final int maxIterations,
 			final double minParameterChange)
+	{
+		return align( image, maxIterations, minParameterChange, StitchingExecutor.getInstance() );
+	}
+
+	/*
+	 * Computed and return the affine transform that aligns image to template,
+	 * the iterations are parallelized using the given service.
+	 */
+	public AffineTransform align(final RandomAccessibleInterval< T > image, final int maxIterations,
+			final double minParameterChange, final ExecutorService service)
 	{
 		lastAlignConverged = false;
-		ExecutorService service = Executors.newFixedThreadPool( Runtime.getRuntime().availableProcessors() * 2);
 
 		currentTransform.set( new AffineTransform( n ) );
 		int i = 0;
@@ -27,7 +27,6 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.stream.Collectors;
 
 import javax.swing.JComponent;
@@ -68,6 +67,7 @@ import net.preibisch.mvrecon.process.interestpointdetection.methods.downsampling
 import net.preibisch.stitcher.algorithm.GroupedViewAggregator;
 import net.preibisch.stitcher.algorithm.PairwiseStitching;
 import net.preibisch.stitcher.algorithm.PairwiseStitchingParameters;
+import net.preibisch.stitcher.algorithm.StitchingExecutor;
 import net.preibisch.stitcher.algorithm.GroupedViewAggregator.ActionType;
 
 public class DisplayOverlapTestPopup extends JMenuItem implements ExplorerWindowSetable {
@@ -148,7 +148,7 @@ public class DisplayOverlapTestPopup extends JMenuItem implements ExplorerWindow
 			//rai1 = ImageJFunctions.wrapFloat( ImageJFunctions.show( rai1 ).duplicate());
 			//rai2 = ImageJFunctions.wrapFloat( ImageJFunctions.show( rai2 ).duplicate());
 			
-			ExecutorService service = Executors.newFixedThreadPool( Runtime.getRuntime().availableProcessors() * 2 );
+			ExecutorService service = StitchingExecutor.getInstance();
 			
 			Pair< Translation, Double > shift = PairwiseStitching.getShift( rai1, rai2, 
 					new Translation( rai1.numDimensions() ), new Translation( rai1.numDimensions() ),
@@ -74,6 +74,7 @@ import net.preibisch.mvrecon.fiji.spimdata.pointspreadfunctions.PointSpreadFunct
 import net.preibisch.mvrecon.fiji.spimdata.stitchingresults.StitchingResults;
 import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constellation.grouping.Group;
 import net.preibisch.stitcher.algorithm.SpimDataFilteringAndGrouping;
+import net.preibisch.stitcher.algorithm.StitchingExecutor;
 import net.preibisch.stitcher.algorithm.illuminationselection.BrightestViewSelection;
 import net.preibisch.stitcher.algorithm.illuminationselection.IlluminationSelectionPreviewGUI;
 import net.preibisch.stitcher.algorithm.illuminationselection.MeanGradientMagnitudeViewSelection;
@@ -253,7 +254,7 @@ public class SelectIlluminationPopup extends JMenuItem implements ExplorerWindow
 		final ExecutorService service;
 
 		if ( viewSelection.runMultithreaded() )
-			service = Executors.newFixedThreadPool(Math.max( 2, Runtime.getRuntime().availableProcessors() ));
+			service = StitchingExecutor.getInstance();
 		else
 			service = Executors.newFixedThreadPool( 1 );
 
@@ -287,7 +288,8 @@ public class SelectIlluminationPopup extends JMenuItem implements ExplorerWindow
 			// TODO Auto-generated catch block
 			e.printStackTrace();
 		}
-		service.shutdown();
+		if ( !viewSelection.runMultithreaded() )
+			service.shutdown();
 
 		IJ.showProgress( 1.0 );
 
@@ -0,0 +1,372 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2017 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.stitcher.headless;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.stream.Collectors;
+
+import ij.IJ;
+import mpicbg.spim.data.SpimDataException;
+import mpicbg.spim.data.sequence.Angle;
+import mpicbg.spim.data.sequence.Channel;
+import mpicbg.spim.data.sequence.Illumination;
+import mpicbg.spim.data.sequence.Tile;
+import mpicbg.spim.data.sequence.TimePoint;
+import mpicbg.spim.data.sequence.ViewId;
+import net.imglib2.util.Pair;
+import net.preibisch.legacy.io.IOFunctions;
+import net.preibisch.mvrecon.fiji.spimdata.SpimData2;
+import net.preibisch.mvrecon.fiji.spimdata.XmlIoSpimData2;
+import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constellation.grouping.Group;
+import net.preibisch.stitcher.algorithm.FilteredStitchingResults;
+import net.preibisch.stitcher.algorithm.GroupedViewAggregator.ActionType;
+import net.preibisch.stitcher.algorithm.PairwiseStitchingParameters;
+import net.preibisch.stitcher.algorithm.SpimDataFilteringAndGrouping;
+import net.preibisch.stitcher.algorithm.StitchingExecutor;
+import net.preibisch.stitcher.algorithm.fastfusion.StreamingFastFusion;
+import net.preibisch.stitcher.algorithm.globalopt.GlobalOptStitcher;
+import net.preibisch.stitcher.algorithm.globalopt.GlobalOptimizationParameters;
+import net.preibisch.stitcher.algorithm.globalopt.GlobalOptimizationParameters.GlobalOptType;
+import net.preibisch.stitcher.plugin.Calculate_Pairwise_Shifts;
+import net.preibisch.stitcher.plugin.Fast_Translation_Fusion;
+import net.preibisch.stitcher.plugin.Fast_Translation_Fusion.FastFusionDataType;
+import net.preibisch.stitcher.plugin.Fast_Translation_Fusion.FastFusionParameters;
+
+/**
+ * Runs pairwise shift calculation (phase correlation), link filtering, global optimization and
+ * fast translation fusion without any dialogs. The XML is only parsed once, the SpimData2 and the
+ * loaded views stay in memory between the stages and the XML is saved once at the end.
+ *
+ * All parameters are read from a single properties file, e.g.:
+ * <pre>
+ * xml=/path/to/dataset.xml
+ * stages=pairwise,filter,globalopt,fusion
+ * threads=16 (optional, default: number of threads set in Fiji)
+ * pairwise.downsampling=2,2,1
+ * pairwise.peaksToCheck=5
+ * pairwise.memoryBudgetMB=8192 (optional, default: half of the free heap)
+ * pairwise.journalFile=/path/to/pairwise.journal (optional, leave empty for the default next to the XML)
+ * pairwise.resume=true (skip pairs that are already in the journal)
+ * pairwise.onlyChangedPairs=true (keep the results of pairs whose registrations did not change)
+ * pairwise.metricsFile=/path/to/metrics.csv (or .json, optional timings of every stage)
+ * filter.minR=0.7
+ * globalopt.method=TWO_ROUND
+ * fusion.downsampling=2
+ * fusion.outputDirectory=/path/to/output
+ * fusion.format=tiff (or n5 to fuse block-wise into outputDirectory/fused.n5)
+ * fusion.pyramidLevels=0 (n5 only, resolution levels, 0 for automatic; a BigDataViewer XML is written next to the container)
+ * fusion.blockwise=false (true to fuse tiff output block-wise with less memory)
+ * fusion.memoryBudgetMB=16384 (optional, memory for fusing channels/timepoints at once, default: half of the free heap)
+ * </pre>
+ */
+public class StitchingPipeline
+{
+	public static final String PAIRWISE = "pairwise";
+	public static final String FILTER = "filter";
+	public static final String GLOBALOPT = "globalopt";
+	public static final String FUSION = "fusion";
+
+	final Properties props;
+	final String xml;
+	final List< String > stages;
+
+	// stage name -> time in ms
+	final LinkedHashMap< String, Long > timings = new LinkedHashMap<>();
+
+	SpimData2 data;
+
+	public StitchingPipeline( final Properties props )
+	{
+		this.props = props;
+		this.xml = props.getProperty( "xml" );
+
+		if ( xml == null )
+			throw new IllegalArgumentException( "The parameter file has to define 'xml'." );
+
+		this.stages = Arrays.asList( props.getProperty( "stages", PAIRWISE + "," + FILTER + "," + GLOBALOPT + "," + FUSION ).split( "," ) )
+				.stream().map( s -> s.trim().toLowerCase() ).filter( s -> s.length() > 0 ).collect( Collectors.toList() );
+	}
+
+	public boolean run() throws SpimDataException
+	{
+		final long start = System.currentTimeMillis();
+
+		// all stages share one thread pool
+		if ( props.containsKey( "threads" ) )
+			StitchingExecutor.setParallelism( getInt( "threads", 0 ) );
+
+		// the XML is only loaded once for all stages
+		data = new XmlIoSpimData2( "" ).load( xml );
+		timings.put( "load", System.currentTimeMillis() - start );
+
+		final List< ViewId > views = SpimData2.getAllViewIdsSorted( data,
+				data.getSequenceDescription().getViewSetupsOrdered(), data.getSequenceDescription().getTimePoints().getTimePointsOrdered() );
+
+		// the pairwise stage releases the views and FFT buffers it loaded (fusion reads its blocks through the ImgLoader),
+		// only the bounded spectrum cache is kept (see TransformationTools.releaseCaches())
+		for ( final String stage : stages )
+		{
+			IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Running stage '" + stage + "'" );
+			final long t = System.currentTimeMillis();
+
+			final boolean success;
+			if ( stage.equals( PAIRWISE ) )
+				success = pairwise( views );
+			else if ( stage.equals( FILTER ) )
+				success = filter();
+			else if ( stage.equals( GLOBALOPT ) )
+				success = globalOpt( views );
+			else if ( stage.equals( FUSION ) )
+				success = fusion( views );
+			else
+			{
+				IOFunctions.println( "Unknown stage '" + stage + "', stopping." );
+				return false;
+			}
+
+			timings.put( stage, System.currentTimeMillis() - t );
+			IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Stage '" + stage + "' took " + timings.get( stage ) + " ms." );
+
+			if ( !success )
+			{
+				IOFunctions.println( "Stage '" + stage + "' failed, stopping." );
+				return false;
+			}
+		}
+
+		if ( Boolean.parseBoolean( props.getProperty( "saveXML", "true" ) ) )
+		{
+			final long t = System.currentTimeMillis();
+			SpimData2.saveXML( data, xml, "" );
+			timings.put( "save", System.currentTimeMillis() - t );
+		}
+
+		timings.put( "total", System.currentTimeMillis() - start );
+		printTimings();
+
+		return true;
+	}
+
+	protected SpimDataFilteringAndGrouping< SpimData2 > defaultGrouping( final List< ViewId > views )
+	{
+		// same defaults as the plugins: group channels and illuminations, compare tiles, treat time points and angles individually
+		final SpimDataFilteringAndGrouping< SpimData2 > grouping = new SpimDataFilteringAndGrouping<>( data );
+		grouping.addFilters( views.stream().map( vid -> data.getSequenceDescription().getViewDescription( vid ) ).collect( Collectors.toList() ) );
+		grouping.addComparisonAxis( Tile.class );
+		grouping.addGroupingFactor( Channel.class );
+		grouping.addGroupingFactor( Illumination.class );
+		grouping.addApplicationAxis( TimePoint.class );
+		grouping.addApplicationAxis( Angle.class );
+		return grouping;
+	}
+
+	protected boolean pairwise( final List< ViewId > views )
+	{
+		final SpimDataFilteringAndGrouping< SpimData2 > grouping = defaultGrouping( views );
+
+		// average grouped channels and illuminations
+		grouping.getGroupedViewAggregator().addAction( ActionType.AVERAGE, Channel.class, null );
+		grouping.getGroupedViewAggregator().addAction( ActionType.AVERAGE, Illumination.class, null );
+
+		final PairwiseStitchingParameters params = new PairwiseStitchingParameters(
+				Math.min( Math.max( getDouble( "pairwise.minOverlap", 0 ) / 100, 0 ), 1 ),
+				getInt( "pairwise.peaksToCheck", 5 ),
+				getBoolean( "pairwise.subpixel", true ),
+				getBoolean( "pairwise.interpolateCrossCorrelation", false ),
+				false,
+				getBoolean( "pairwise.useWholeImage", false ) );
+		params.maxResidentViews = getInt( "pairwise.maxResidentViews", params.maxResidentViews );
+		params.memoryBudget = Math.round( getDouble( "pairwise.memoryBudgetMB", 0 ) * 1024 * 1024 );
+		params.journalFile = props.getProperty( "pairwise.journalFile", params.journalFile );
+		params.resumeFromJournal = getBoolean( "pairwise.resume", params.resumeFromJournal );
+		params.onlyChangedPairs = getBoolean( "pairwise.onlyChangedPairs", params.onlyChangedPairs );
+		params.cacheSpectra = getBoolean( "pairwise.cacheSpectra", params.cacheSpectra );
+		params.coarseToFine = getBoolean( "pairwise.coarseToFine", params.coarseToFine );
+		params.coarseToFineLevels = getInt( "pairwise.coarseToFineLevels", params.coarseToFineLevels );
+		params.refinementSearchRadius = getDouble( "pairwise.refinementSearchRadius", params.refinementSearchRadius );
+		params.refinementBlockSize = getInt( "pairwise.refinementBlockSize", (int) params.refinementBlockSize );
+		params.metricsFile = props.getProperty( "pairwise.metricsFile", params.metricsFile );
+
+		final double[] ds = getDoubles( "pairwise.downsampling", new double[] { 2, 2, 1 } );
+		final long[] dsFactors = new long[] { Math.round( ds[ 0 ] ), Math.round( ds[ 1 ] ), Math.round( ds[ 2 ] ) };
+
+		return Calculate_Pairwise_Shifts.processPhaseCorrelation( data, grouping, params, dsFactors );
+	}
+
+	protected boolean filter()
+	{
+		final FilteredStitchingResults fsr = new FilteredStitchingResults( data.getStitchingResults() );
+
+		if ( props.containsKey( "filter.minR" ) || props.containsKey( "filter.maxR" ) )
+			fsr.addFilter( new FilteredStitchingResults.CorrelationFilter( getDouble( "filter.minR", 0.0 ), getDouble( "filter.maxR", 1.0 ) ) );
+
+		if ( props.containsKey( "filter.maxShift" ) )
+			fsr.addFilter( new FilteredStitchingResults.AbsoluteShiftFilter( getDoubles( "filter.maxShift", null ) ) );
+
+		if ( props.containsKey( "filter.maxDisplacement" ) )
+			fsr.addFilter( new FilteredStitchingResults.ShiftMagnitudeFilter( getDouble( "filter.maxDisplacement", 0.0 ) ) );
+
+		final int numLinksBefore = data.getStitchingResults().getPairwiseResults().size();
+		fsr.applyToWrappedAll();
+		IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Kept " + data.getStitchingResults().getPairwiseResults().size()
+				+ " of " + numLinksBefore + " links." );
+
+		return true;
+	}
+
+	protected boolean globalOpt( final List< ViewId > views )
+	{
+		final SpimDataFilteringAndGrouping< SpimData2 > grouping = defaultGrouping( views );
+
+		final GlobalOptimizationParameters params = new GlobalOptimizationParameters(
+				getDouble( "globalopt.relativeThreshold", GlobalOptimizationParameters.defaultRelativeError ),
+				getDouble( "globalopt.absoluteThreshold", GlobalOptimizationParameters.defaultAbsoluteError ),
+				GlobalOptType.valueOf( props.getProperty( "globalopt.method", GlobalOptType.TWO_ROUND.name() ).trim().toUpperCase() ),
+				false );
+
+		final ArrayList< Pair< Group< ViewId >, Group< ViewId > > > removedInconsistentPairs = new ArrayList<>();
+
+		// the first tile of each subset stays fixed
+		if ( !GlobalOptStitcher.processGlobalOptimization( data, grouping, params, removedInconsistentPairs, true ) )
+			return false;
+
+		GlobalOptStitcher.removeInconsistentLinks( removedInconsistentPairs, data.getStitchingResults().getPairwiseResults() );
+
+		return true;
+	}
+
+	protected boolean fusion( final List< ViewId > views )
+	{
+		final FastFusionParameters params = new FastFusionParameters();
+		params.downsampling = getInt( "fusion.downsampling", 1 );
+		params.useBlending = getBoolean( "fusion.blending", true );
+		params.useLinearInterpolation = getBoolean( "fusion.interpolation", true );
+		params.dataType = FastFusionDataType.valueOf( props.getProperty( "fusion.dataType", FastFusionDataType.UNSIGNED_SHORT.name() ).trim().toUpperCase() );
+		params.fuseBlockwise = getBoolean( "fusion.blockwise", false );
+		params.memoryBudget = Math.round( getDouble( "fusion.memoryBudgetMB", 0 ) * 1024 * 1024 );
+
+		final File outputDirectory = new File( props.getProperty( "fusion.outputDirectory", new File( xml ).getAbsoluteFile().getParent() ) );
+		if ( !outputDirectory.exists() && !outputDirectory.mkdirs() )
+		{
+			IOFunctions.println( "Cannot create output directory " + outputDirectory.getAbsolutePath() );
+			return false;
+		}
+
+		if ( props.getProperty( "fusion.format", "tiff" ).trim().equalsIgnoreCase( "n5" ) )
+		{
+			params.streamToDisk = true;
+			params.n5Path = new File( outputDirectory, "fused.n5" ).getAbsolutePath();
+			params.numPyramidLevels = getInt( "fusion.pyramidLevels", 0 );
+			final int[] blockSize = getInts( "fusion.blockSize", StreamingFastFusion.defaultBlockSize );
+			return StreamingFastFusion.fuse( data, views, params, new File( params.n5Path ), blockSize ) != null;
+		}
+
+		final int[] groupCount = new int[ 1 ];
+		return Fast_Translation_Fusion.fuse( data, views, params, (group, imp) ->
+		{
+			final File file = new File( outputDirectory, "fused_" + ( groupCount[ 0 ]++ ) + ".tif" );
+			IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Saving " + group + " to " + file.getAbsolutePath() );
+			IJ.saveAsTiff( imp, file.getAbsolutePath() );
+		} );
+	}
+
+	public Map< String, Long > getTimings()
+	{
+		return timings;
+	}
+
+	public SpimData2 getData()
+	{
+		return data;
+	}
+
+	public void printTimings()
+	{
+		IOFunctions.println( "Timings:" );
+		for ( final Map.Entry< String, Long > e : timings.entrySet() )
+			IOFunctions.println( "  " + e.getKey() + ": " + e.getValue() + " ms" );
+	}
+
+	protected int getInt( final String key, final int defaultValue )
+	{
+		return props.containsKey( key ) ? Integer.parseInt( props.getProperty( key ).trim() ) : defaultValue;
+	}
+
+	protected double getDouble( final String key, final double defaultValue )
+	{
+		return props.containsKey( key ) ? Double.parseDouble( props.getProperty( key ).trim() ) : defaultValue;
+	}
+
+	protected boolean getBoolean( final String key, final boolean defaultValue )
+	{
+		return props.containsKey( key ) ? Boolean.parseBoolean( props.getProperty( key ).trim() ) : defaultValue;
+	}
+
+	protected double[] getDoubles( final String key, final double[] defaultValue )
+	{
+		if ( !props.containsKey( key ) )
+			return defaultValue;
+
+		return Arrays.asList( props.getProperty( key ).split( "," ) ).stream().mapToDouble( s -> Double.parseDouble( s.trim() ) ).toArray();
+	}
+
+	protected int[] getInts( final String key, final int[] defaultValue )
+	{
+		if ( !props.containsKey( key ) )
+			return defaultValue;
+
+		return Arrays.asList( props.getProperty( key ).split( "," ) ).stream().mapToInt( s -> Integer.parseInt( s.trim() ) ).toArray();
+	}
+
+	public static Properties loadParameters( final String file ) throws IOException
+	{
+		final Properties props = new Properties();
+		try ( final Reader reader = new FileReader( file ) )
+		{
+			props.load( reader );
+		}
+		return props;
+	}
+
+	public static void main( String[] args ) throws IOException, SpimDataException
+	{
+		if ( args.length != 1 )
+		{
+			System.out.println( "usage: StitchingPipeline <parameters.properties>" );
+			System.exit( 1 );
+		}
+
+		final boolean success = new StitchingPipeline( loadParameters( args[ 0 ] ) ).run();
+
+		System.exit( success ? 0 : 1 );
+	}
+}
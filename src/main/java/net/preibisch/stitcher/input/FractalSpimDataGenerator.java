@@ -47,6 +47,7 @@ import mpicbg.spim.data.sequence.VoxelDimensions;
 import net.imglib2.Dimensions;
 import net.imglib2.FinalInterval;
 import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.RealLocalizable;
 import net.imglib2.RealPoint;
 import net.imglib2.realtransform.AffineGet;
@@ -143,6 +144,15 @@ public class FractalSpimDataGenerator
 		fractalsRA.addRAble(Views.raster( RealViews.affineReal( fractalRA, transform )));
 	}
 
+	/**
+	 * @param interval the part of the fractal to get
+	 * @return the (virtual) image of all added fractals in the interval
+	 */
+	public RandomAccessibleInterval< LongType > getImage(Interval interval)
+	{
+		return Views.interval( fractalsRA, interval );
+	}
+
 	/**
 	 * @param start the first interval
 	 * @param n number of tiles in x
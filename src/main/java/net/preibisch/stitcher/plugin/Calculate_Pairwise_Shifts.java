@@ -22,8 +22,11 @@
 package net.preibisch.stitcher.plugin;
 
 import java.awt.Font;
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -64,6 +67,7 @@ import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constell
 import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constellation.grouping.Group;
 import net.preibisch.stitcher.algorithm.PairwiseStitchingParameters;
 import net.preibisch.stitcher.algorithm.SpimDataFilteringAndGrouping;
+import net.preibisch.stitcher.algorithm.globalopt.PairwiseJournal;
 import net.preibisch.stitcher.algorithm.globalopt.TransformationTools;
 import net.preibisch.stitcher.algorithm.lucaskanade.LucasKanadeParameters;
 import net.preibisch.stitcher.algorithm.lucaskanade.LucasKanadeParameters.WarpFunctionType;
@@ -71,6 +75,7 @@ import net.preibisch.stitcher.gui.StitchingUIHelper;
 
 public class Calculate_Pairwise_Shifts implements PlugIn
 {
+	public static String defaultJournalFile = "pairwise_shifts.journal";
 
 	private final static String[] methodChoices = {
 			"Phase Correlation",
@@ -175,6 +180,43 @@ public class Calculate_Pairwise_Shifts implements PlugIn
 		// getpairs to compare
 		List< ? extends Pair< ? extends Group< ? extends ViewId >, ? extends Group< ? extends ViewId > > > pairs =  filteringAndGrouping.getComparisons();
 
+		// the journal remembers which pairs were computed, so we need to keep it to only compute the changed pairs
+		if ( params.onlyChangedPairs )
+		{
+			if ( params.journalFile == null )
+				params.journalFile = "";
+
+			params.resumeFromJournal = true;
+		}
+
+		if ( params.journalFile != null && params.journalFile.trim().length() == 0 )
+			params.journalFile = new File( data.getBasePath(), defaultJournalFile ).getAbsolutePath();
+
+		// keep the results of all pairs that did not change since they were computed
+		if ( params.onlyChangedPairs )
+		{
+			PairwiseJournal journal = null;
+			try
+			{
+				journal = new PairwiseJournal( new File( params.journalFile ), params, filteringAndGrouping.getGroupedViewAggregator(), dsFactors, true );
+			}
+			catch ( final IOException e )
+			{
+				IOFunctions.println( "Failed to open journal " + params.journalFile + ", all pairs without result will be computed: " + e );
+				e.printStackTrace();
+			}
+
+			final int numPairs = pairs.size();
+			pairs = TransformationTools.getPairsToRecompute( (List< Pair< Group< ViewId >, Group< ViewId > > >) pairs,
+					data.getStitchingResults(), data.getViewRegistrations(), journal );
+
+			IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Recomputing " + pairs.size() + " of " + numPairs
+					+ " pairs, the others have up-to-date results (or were computed before and filtered)." );
+
+			if ( pairs.isEmpty() )
+				return true;
+		}
+
 		// calculate
 		final ArrayList< PairwiseStitchingResult< ViewId > > results = TransformationTools.computePairs(
 				(List< Pair< Group< ViewId >, Group< ViewId > > >) pairs, params, filteringAndGrouping.getSpimData().getViewRegistrations(), 
@@ -1,6 +1,8 @@
 package net.preibisch.stitcher.plugin;
 
+import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -10,20 +12,22 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
 import java.util.stream.Collectors;
 
 import bdv.util.ConstantRandomAccessible;
+import fiji.util.gui.GenericDialogPlus;
 import ij.ImageJ;
-import ij.gui.GenericDialog;
+import ij.ImagePlus;
 import ij.plugin.PlugIn;
 import mpicbg.spim.data.generic.base.Entity;
 import mpicbg.spim.data.registration.ViewRegistration;
 import mpicbg.spim.data.sequence.Channel;
+import mpicbg.spim.data.sequence.TimePoint;
 import mpicbg.spim.data.sequence.ViewDescription;
 import mpicbg.spim.data.sequence.ViewId;
 import net.imglib2.Dimensions;
@@ -45,14 +49,16 @@ import net.imglib2.util.Util;
 import net.imglib2.util.ValuePair;
 import net.imglib2.view.Views;
 import net.preibisch.legacy.io.IOFunctions;
-import net.preibisch.mvrecon.Threads;
 import net.preibisch.mvrecon.fiji.plugin.queryXML.LoadParseQueryXML;
 import net.preibisch.mvrecon.fiji.plugin.util.GUIHelper;
 import net.preibisch.mvrecon.fiji.spimdata.SpimData2;
 import net.preibisch.mvrecon.process.interestpointdetection.methods.downsampling.DownsampleTools;
 import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constellation.grouping.Group;
+import net.preibisch.stitcher.algorithm.StitchingExecutor;
 import net.preibisch.stitcher.algorithm.TransformTools;
 import net.preibisch.stitcher.algorithm.fastfusion.FastFusionTools;
+import net.preibisch.stitcher.algorithm.fastfusion.StreamingFastFusion;
+import net.preibisch.stitcher.algorithm.globalopt.TransformationTools;
 
 public class Fast_Translation_Fusion implements PlugIn
 {
@@ -69,6 +75,19 @@ public class Fast_Translation_Fusion implements PlugIn
 		public boolean useBlending;
 		public boolean useLinearInterpolation;
 		public FastFusionDataType dataType;
+
+		// fuse block by block directly to an N5 container instead of into memory
+		public boolean streamToDisk = false;
+		public String n5Path;
+
+		// resolution levels of the N5 output (0: until the coarsest level fits into one block, 1: full resolution only)
+		public int numPyramidLevels = 0;
+
+		// fuse block by block directly into the in-memory output image (no full-size float accumulators)
+		public boolean fuseBlockwise = false;
+
+		// memory (bytes) that groups (channels, timepoints) fused at the same time may use, <= 0 means half of the free heap
+		public long memoryBudget = 0;
 	}
 
 	final static String[] dsChoices = new String[] { "1", "2", "4", "8", "16" };
@@ -77,6 +96,11 @@ public class Fast_Translation_Fusion implements PlugIn
 	static boolean defaultUseBlending = true;
 	final static String[] dtypeChoices = new String[] { "16-bit Unsigned Integer", "32-bit Floating Point" };
 	static int defaultDtypeChoice = 0;
+	final static String[] outputChoices = new String[] { "Display in ImageJ (in memory)", "Save as N5 (block-wise, out-of-core)" };
+	static int defaultOutputChoice = 0;
+	static String defaultN5Path = "";
+	static boolean defaultWritePyramid = true;
+	static boolean defaultFuseBlockwise = false;
 
 	// TODO: allow adjustment of blending/border as it is done in normal fusion
 	final static float[] staticBorder = Util.getArrayFromValue( 0.0f, 3 );
@@ -130,7 +154,7 @@ public class Fast_Translation_Fusion implements PlugIn
 		final boolean allNonTranslationsEqual = checkTranslationOnly( registrations );
 
 		// TODO: use subclassed FusionGUI here? -> that way, we could use exporters
-		final GenericDialog gd = new GenericDialog( "Fast Fusion Options" );
+		final GenericDialogPlus gd = new GenericDialogPlus( "Fast Fusion Options" );
 
 		// warn when not allNonTranslationsEqual
 		if ( !allNonTranslationsEqual )
@@ -144,6 +168,10 @@ public class Fast_Translation_Fusion implements PlugIn
 		gd.addCheckbox( "Use_Linear_Interpolation", defaultUseInterpolation );
 		gd.addCheckbox( "Use_Blending", defaultUseBlending );
 		gd.addChoice( "Output_Data_Type", dtypeChoices, dtypeChoices[defaultDtypeChoice] );
+		gd.addCheckbox( "Fuse_block-wise (less memory, in-memory output only)", defaultFuseBlockwise );
+		gd.addChoice( "Output", outputChoices, outputChoices[defaultOutputChoice] );
+		gd.addDirectoryField( "N5_path (only for N5 output)", defaultN5Path );
+		gd.addCheckbox( "Multi-resolution_pyramid (only for N5 output, can be opened in BigDataViewer)", defaultWritePyramid );
 
 		gd.showDialog();
 		if ( gd.wasCanceled() )
@@ -157,6 +185,17 @@ public class Fast_Translation_Fusion implements PlugIn
 		params.useBlending = gd.getNextBoolean();
 		defaultDtypeChoice = gd.getNextChoiceIndex();
 		params.dataType = FastFusionDataType.values()[defaultDtypeChoice];
+		params.fuseBlockwise = defaultFuseBlockwise = gd.getNextBoolean();
+		defaultOutputChoice = gd.getNextChoiceIndex();
+		params.streamToDisk = defaultOutputChoice == 1;
+		params.n5Path = defaultN5Path = gd.getNextString();
+		params.numPyramidLevels = ( defaultWritePyramid = gd.getNextBoolean() ) ? 0 : 1;
+
+		if ( params.streamToDisk && params.n5Path.trim().length() == 0 )
+		{
+			IOFunctions.println( "No N5 path specified, stopping." );
+			return null;
+		}
 
 		return params;
 	}
@@ -166,9 +205,34 @@ public class Fast_Translation_Fusion implements PlugIn
 			final List< ViewId > viewsToProcess,
 			final FastFusionParameters parameters
 		)
+	{
+		if ( parameters.streamToDisk )
+			return StreamingFastFusion.fuse( spimData, viewsToProcess, parameters, new File( parameters.n5Path ), StreamingFastFusion.defaultBlockSize ) != null;
+
+		return fuse( spimData, viewsToProcess, parameters, (group, imp) -> imp.show() );
+	}
+
+	/**
+	 * fuse the views and pass the fused image of every group to output (e.g. to show or save it)
+	 * @param spimData the data
+	 * @param viewsToProcess the views to fuse
+	 * @param parameters fusion parameters
+	 * @param output what to do with the fused image of each group
+	 * @param <T> pixel type
+	 * @return true if successful
+	 */
+	public static <T extends RealType< T > & NativeType< T >> boolean fuse(
+			final SpimData2 spimData,
+			final List< ViewId > viewsToProcess,
+			final FastFusionParameters parameters,
+			final BiConsumer< Group< ViewDescription >, ImagePlus > output
+		)
 	{
 		// thread pool for all operations
-		final ExecutorService pool = Executors.newFixedThreadPool( Threads.numThreads() );
+		final ExecutorService pool = StitchingExecutor.getInstance();
+
+		if ( parameters.fuseBlockwise )
+			return fuseBlockwise( spimData, viewsToProcess, parameters, output, pool );
 
 		// FIXME: we have to sort views, otherwise weird view-transformation
 		// mixups happen?
@@ -274,152 +338,339 @@ public class Fast_Translation_Fusion implements PlugIn
 		// TODO: query grouping factors from user
 		final Set< Class< ? extends Entity > > groupingFactors = new HashSet<>();
 		groupingFactors.add( Channel.class );
+		groupingFactors.add( TimePoint.class );
 
 		final List< Group< ViewDescription > > groups = Group.splitBy( presentViewDescriptions, groupingFactors );
 
 		final int nGroups = groups.size();
-		final AtomicInteger groupCount = new AtomicInteger();
+
+		// fuse as many groups at once as fit into the memory budget, the geometry computed above is shared by all of them
+		final long memoryBudget = parameters.memoryBudget > 0 ? parameters.memoryBudget : TransformationTools.defaultMemoryBudget();
+		long maxMemoryPerGroup = 1;
+		for ( final Group< ViewDescription > group : groups )
+			maxMemoryPerGroup = Math.max( maxMemoryPerGroup, estimateGroupMemory( group, presentViewDescriptions, dims, numPixels, parameters ) );
+
+		final int groupsAtOnce = (int) Math.max( 1, Math.min( nGroups, memoryBudget / maxMemoryPerGroup ) );
 
 		IOFunctions.println(
-				"(" + new Date( System.currentTimeMillis() ) + "): " + "Fast Fusion of " + nGroups + " groups." );
+				"(" + new Date( System.currentTimeMillis() ) + "): " + "Fast Fusion of " + nGroups + " groups, up to " + groupsAtOnce
+				+ " at once (estimated " + ( maxMemoryPerGroup / ( 1024 * 1024 ) ) + " MB per group, budget " + ( memoryBudget / ( 1024 * 1024 ) ) + " MB)." );
 
-		for ( final Group< ViewDescription > group : groups )
+		// blending weight profiles of all views, shared by all groups (views of different channels usually have the same geometry)
+		final Map< String, double[][] > weightProfiles = new ConcurrentHashMap<>();
+
+		for ( int start = 0; start < nGroups; start += groupsAtOnce )
 		{
+			final List< Group< ViewDescription > > round = groups.subList( start, Math.min( nGroups, start + groupsAtOnce ) );
+			final List< Callable< ImagePlus > > groupCalls = new ArrayList<>();
+			for ( int i = 0; i < round.size(); ++i )
+			{
+				final Group< ViewDescription > group = round.get( i );
+				final int groupIndex = start + i + 1;
+				groupCalls.add( () -> fuseGroup( spimData, presentViewDescriptions, group, groupIndex, nGroups, parameters,
+						subpixelOffs, pixelShifts, renderInterval, weightProfiles, pool ) );
+			}
 
-			IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): " + "Fusing group "
-					+ groupCount.incrementAndGet() + " of " + nGroups + "." );
+			try
+			{
+				// pass results on in the order of the groups
+				final List< Future< ImagePlus > > groupFutures = pool.invokeAll( groupCalls );
+				for ( int i = 0; i < round.size(); ++i )
+					output.accept( round.get( i ), groupFutures.get( i ).get() );
+			}
+			catch ( InterruptedException | ExecutionException e )
+			{
+				IOFunctions.println( "Fast Fusion failed: " + e );
+				e.printStackTrace();
+				return false;
+			}
+		}
 
-			NativeImg< FloatType, ? > outImg = ( numPixels > ( Math.pow( 2, 31 ) - 1 )
-					? new CellImgFactory<>( new FloatType() )
-					: new ArrayImgFactory<>( new FloatType() ) ).create( renderInterval );
-			
-			NativeImg< FloatType, ? > weightImg = ( numPixels > ( Math.pow( 2, 31 ) - 1 )
+		IOFunctions.println(
+				"(" + new Date( System.currentTimeMillis() ) + "): " + "Fusion of " + nGroups + " groups DONE." );
+
+		return true;
+	}
+
+	/**
+	 * fuse one group of views into the render interval (in memory)
+	 * @return the fused image
+	 */
+	protected static ImagePlus fuseGroup(
+			final SpimData2 spimData,
+			final List< ViewDescription > presentViewDescriptions,
+			final Group< ViewDescription > group,
+			final int groupIndex,
+			final int nGroups,
+			final FastFusionParameters parameters,
+			final List< float[] > subpixelOffs,
+			final List< int[] > pixelShifts,
+			final FinalInterval renderInterval,
+			final Map< String, double[][] > weightProfiles,
+			final ExecutorService pool )
+	{
+		final long numPixels = Intervals.numElements( renderInterval );
+
+
+		IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): " + "Fusing group "
+				+ groupIndex + " of " + nGroups + "." );
+
+		NativeImg< FloatType, ? > outImg = ( numPixels > ( Math.pow( 2, 31 ) - 1 )
+				? new CellImgFactory<>( new FloatType() )
+				: new ArrayImgFactory<>( new FloatType() ) ).create( renderInterval );
+		
+		NativeImg< FloatType, ? > weightImg = ( numPixels > ( Math.pow( 2, 31 ) - 1 )
+				? new CellImgFactory<>( new FloatType() )
+				: new ArrayImgFactory<>( new FloatType() ) ).create( renderInterval );
+		
+		NativeImg< FloatType, ? > alphaImg = null;
+		if ( parameters.useLinearInterpolation )
+			alphaImg = ( numPixels > ( Math.pow( 2, 31 ) - 1 )
 					? new CellImgFactory<>( new FloatType() )
 					: new ArrayImgFactory<>( new FloatType() ) ).create( renderInterval );
-			
-			NativeImg< FloatType, ? > alphaImg = null;
-			if ( parameters.useLinearInterpolation )
-				alphaImg = ( numPixels > ( Math.pow( 2, 31 ) - 1 )
-						? new CellImgFactory<>( new FloatType() )
-						: new ArrayImgFactory<>( new FloatType() ) ).create( renderInterval );
 
-			List< Callable< Pair< Integer, RandomAccessibleInterval< FloatType > > > > calls = new ArrayList<>();
-			for ( int i = 0; i < presentViewDescriptions.size(); i++ )
+		List< Callable< Pair< Integer, RandomAccessibleInterval< FloatType > > > > calls = new ArrayList<>();
+		for ( int i = 0; i < presentViewDescriptions.size(); i++ )
+		{
+			final int i2 = i;
+			// TODO: progress indicator?
+			if ( group.contains( presentViewDescriptions.get( i ) ) )
 			{
-				final int i2 = i;
-				// TODO: progress indicator?
-				if ( group.contains( presentViewDescriptions.get( i ) ) )
-				{
-					System.out.println( group.toString() + ": " + i );
+				System.out.println( group.toString() + ": " + i );
 
-					calls.add( new Callable< Pair< Integer, RandomAccessibleInterval< FloatType > > >()
+				calls.add( new Callable< Pair< Integer, RandomAccessibleInterval< FloatType > > >()
+				{
+					@Override
+					public Pair< Integer, RandomAccessibleInterval< FloatType > > call() throws Exception
 					{
-						@Override
-						public Pair< Integer, RandomAccessibleInterval< FloatType > > call() throws Exception
-						{
-							// load downsampled
-							// TODO: load T, not float?
-							RandomAccessibleInterval< FloatType > downsampledImg = DownsampleTools.openAndDownsample(
-									spimData.getSequenceDescription().getImgLoader(), presentViewDescriptions.get( i2 ),
-									new AffineTransform3D(), parameters.downsampling, parameters.downsampling, true );
-							return new ValuePair< Integer, RandomAccessibleInterval<FloatType> >( i2, downsampledImg );
-						}
-					});
-				}
+						// load downsampled
+						// TODO: load T, not float?
+						RandomAccessibleInterval< FloatType > downsampledImg = DownsampleTools.openAndDownsample(
+								spimData.getSequenceDescription().getImgLoader(), presentViewDescriptions.get( i2 ),
+								new AffineTransform3D(), parameters.downsampling, parameters.downsampling, true );
+						return new ValuePair< Integer, RandomAccessibleInterval<FloatType> >( i2, downsampledImg );
+					}
+				});
 			}
+		}
 
-			// load all necessary images multithreaded
-			List< Future< Pair< Integer, RandomAccessibleInterval< FloatType > > > > futures = null;
+		// load all necessary images multithreaded
+		List< Future< Pair< Integer, RandomAccessibleInterval< FloatType > > > > futures = null;
+		try
+		{
+			futures = pool.invokeAll( calls );
+		}
+		catch ( InterruptedException e ) { e.printStackTrace(); }
+		Map< Integer, RandomAccessibleInterval< FloatType > > downsampledImgs = new HashMap<>();
+		for (Future< Pair< Integer, RandomAccessibleInterval< FloatType > > > future : futures)
+		{
 			try
 			{
-				futures = pool.invokeAll( calls );
+				Pair< Integer, RandomAccessibleInterval< FloatType > > result;
+				result = future.get();
+				downsampledImgs.put( result.getA(), result.getB() );
 			}
-			catch ( InterruptedException e ) { e.printStackTrace(); }
-			Map< Integer, RandomAccessibleInterval< FloatType > > downsampledImgs = new HashMap<>();
-			for (Future< Pair< Integer, RandomAccessibleInterval< FloatType > > > future : futures)
+			catch ( InterruptedException | ExecutionException e ) { e.printStackTrace(); }
+		}
+		
+		for (Entry< Integer, RandomAccessibleInterval< FloatType > > idxAndImg : downsampledImgs.entrySet() )
+		{
+			RandomAccessibleInterval< FloatType > downsampledImg = idxAndImg.getValue();
+			int idx = idxAndImg.getKey();
+			RandomAccessibleInterval< FloatType > alpha = null;
+			if ( parameters.useLinearInterpolation )
 			{
-				try
+				//
+				Pair< RandomAccessibleInterval< FloatType >, RandomAccessibleInterval< FloatType > > linearInterpolation = FastFusionTools
+						.getLinearInterpolation( downsampledImg, new FloatType(), subpixelOffs.get( idx ), pool );
+				downsampledImg = linearInterpolation.getA();
+				alpha = linearInterpolation.getB();
+
+				// add alpha to result
+				FastFusionTools.alphaBlendTranslated( Views.iterable( alpha ), alphaImg, pixelShifts.get( idx ),
+						pool );
+			}
+
+			if ( parameters.useBlending )
+			{
+				// the profiles only depend on size and subpixel offset, so they are shared with the views of other groups
+				final double[][] profiles = getWeightProfiles( downsampledImg, subpixelOffs.get( idx ), weightProfiles );
+
+				if ( parameters.useLinearInterpolation )
 				{
-					Pair< Integer, RandomAccessibleInterval< FloatType > > result;
-					result = future.get();
-					downsampledImgs.put( result.getA(), result.getB() );
+					// weights are alpha * blending
+					FastFusionTools.applyWeights( downsampledImg, alpha, profiles, true, pool );
+					FastFusionTools.addTranslated( Views.iterable( alpha ), weightImg, pixelShifts.get( idx ),
+							pool );
 				}
-				catch ( InterruptedException | ExecutionException e ) { e.printStackTrace(); }
-			}
-			
-			for (Entry< Integer, RandomAccessibleInterval< FloatType > > idxAndImg : downsampledImgs.entrySet() )
+				else
 				{
-				RandomAccessibleInterval< FloatType > downsampledImg = idxAndImg.getValue();
-				int idx = idxAndImg.getKey();
-					RandomAccessibleInterval< FloatType > alpha = null;
-					if ( parameters.useLinearInterpolation )
-					{
-						//
-						Pair< RandomAccessibleInterval< FloatType >, RandomAccessibleInterval< FloatType > > linearInterpolation = FastFusionTools
-								.getLinearInterpolation( downsampledImg, new FloatType(), subpixelOffs.get( idx ), pool );
-						downsampledImg = linearInterpolation.getA();
-						alpha = linearInterpolation.getB();
-
-						// add alpha to result
-						FastFusionTools.alphaBlendTranslated( Views.iterable( alpha ), alphaImg, pixelShifts.get( idx ),
-								pool );
-					}
+					// no need for a weight image per view, the weights are computed on the fly
+					FastFusionTools.applyWeights( downsampledImg, (RandomAccessibleInterval< FloatType >) null, profiles, false, pool );
+					FastFusionTools.addWeightsTranslated( downsampledImg, weightImg, pixelShifts.get( idx ),
+							profiles, pool );
+				}
+			}
+			else
+			{
+				// TODO: correctly weight alpha images
+				final ConstantRandomAccessible< FloatType > constantWeightOne = new ConstantRandomAccessible<>(
+						new FloatType( 1 ), 3 );
+				FastFusionTools.addTranslated(
+						Views.iterable( parameters.useLinearInterpolation ? Views.interval( constantWeightOne, downsampledImg )
+								: Views.interval( constantWeightOne, downsampledImg ) ),
+						weightImg, pixelShifts.get( idx ), pool );
+			}
 
-					if ( parameters.useBlending )
-					{
-						RandomAccessibleInterval< FloatType > weights = ( parameters.useLinearInterpolation ? alpha
-								: ( Views.iterable( downsampledImg ).size() > ( Math.pow( 2, 31 ) - 1 )
-										? new CellImgFactory<>( new FloatType() )
-										: new ArrayImgFactory<>( new FloatType() ) ).create( downsampledImg ) );
-
-						FastFusionTools.applyWeights( downsampledImg, weights, subpixelOffs.get( idx ), staticBorder,
-								staticBlending, parameters.useLinearInterpolation, pool );
-						FastFusionTools.addTranslated( Views.iterable( weights ), weightImg, pixelShifts.get( idx ),
-								pool );
-					}
-					else
-					{
-						// TODO: correctly weight alpha images
-						final ConstantRandomAccessible< FloatType > constantWeightOne = new ConstantRandomAccessible<>(
-								new FloatType( 1 ), 3 );
-						FastFusionTools.addTranslated(
-								Views.iterable( parameters.useLinearInterpolation ? Views.interval( constantWeightOne, downsampledImg )
-										: Views.interval( constantWeightOne, downsampledImg ) ),
-								weightImg, pixelShifts.get( idx ), pool );
-					}
+			FastFusionTools.addTranslated( Views.iterable( downsampledImg ), outImg, pixelShifts.get( idx ),
+					pool );
+		}
 
-					FastFusionTools.addTranslated( Views.iterable( downsampledImg ), outImg, pixelShifts.get( idx ),
-							pool );
+		FastFusionTools.normalizeWeights( outImg, weightImg, pool );
 
-				
-			}
+		if ( parameters.useLinearInterpolation )
+			FastFusionTools.multiplyEqualSizeImages( outImg, alphaImg, pool );
 
-			FastFusionTools.normalizeWeights( outImg, weightImg, pool );
+		final String title = "Fused " + group;
+		final ImagePlus imp;
+		if (parameters.dataType == FastFusionDataType.FLOAT)
+			imp = ImageJFunctions.wrap( outImg, title );
+		else
+		{
+			NativeImg< UnsignedShortType, ? > outShort = ( numPixels > ( Math.pow( 2, 31 ) - 1 )
+					? new CellImgFactory<>( new UnsignedShortType() )
+					: new ArrayImgFactory<>( new UnsignedShortType() ) ).create( renderInterval );
+			FastFusionTools.addTranslated( outImg, outShort, Util.getArrayFromValue( 0, 3 ), pool );
+			imp = ImageJFunctions.wrap( outShort, title );
+		}
+		
 
-			if ( parameters.useLinearInterpolation )
-				FastFusionTools.multiplyEqualSizeImages( outImg, alphaImg, pool );
+		IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): " + "Fusing group "
+				+ groupIndex + " of " + nGroups + " DONE." );
 
-			if (parameters.dataType == FastFusionDataType.FLOAT)
-				ImageJFunctions.show( outImg );
-			else
+		return imp;
+	}
+
+	/**
+	 * get the blending weight profiles of a (downsampled, possibly interpolated) view from the cache or compute them
+	 * @param img the view
+	 * @param subpixelOffset subpixel offset of the view
+	 * @param weightProfiles the cache, keyed by min, size and subpixel offset of the view
+	 * @return the profiles, see {@link FastFusionTools#getWeightProfiles(net.imglib2.Interval, float[], float[], float[])}
+	 */
+	protected static double[][] getWeightProfiles(
+			final RandomAccessibleInterval< ? > img,
+			final float[] subpixelOffset,
+			final Map< String, double[][] > weightProfiles )
+	{
+		final String key = Arrays.toString( Intervals.minAsLongArray( img ) ) + Arrays.toString( Intervals.dimensionsAsLongArray( img ) )
+				+ Arrays.toString( subpixelOffset );
+
+		return weightProfiles.computeIfAbsent( key, k -> FastFusionTools.getWeightProfiles( img, subpixelOffset, staticBorder, staticBlending ) );
+	}
+
+	/**
+	 * estimate the memory needed to fuse one group in memory: the float output, weight (and alpha) images,
+	 * the 16-bit copy and all loaded (and interpolated) views of the group
+	 */
+	protected static long estimateGroupMemory(
+			final Group< ViewDescription > group,
+			final List< ViewDescription > presentViewDescriptions,
+			final List< Dimensions > dims,
+			final long numPixels,
+			final FastFusionParameters parameters )
+	{
+		long bytes = numPixels * 4 * ( parameters.useLinearInterpolation ? 3 : 2 );
+		if ( parameters.dataType != FastFusionDataType.FLOAT )
+			bytes += numPixels * 2;
+
+		for ( int i = 0; i < presentViewDescriptions.size(); ++i )
+			if ( group.contains( presentViewDescriptions.get( i ) ) )
+				bytes += Intervals.numElements( dims.get( i ) ) * 4 * ( parameters.useLinearInterpolation ? 3 : 1 );
+
+		return bytes;
+	}
+
+	/**
+	 * fuse the views block by block directly into an image of the output data type: for every output block, the contributing
+	 * views and their weights are computed on the fly and the normalized value is written once
+	 * (memory is only the output image plus one block per thread, instead of three float images of the output size)
+	 * @param spimData the data
+	 * @param viewsToProcess the views to fuse
+	 * @param parameters fusion parameters
+	 * @param output what to do with the fused image of each group
+	 * @param pool thread pool
+	 * @return true if successful
+	 */
+	public static boolean fuseBlockwise(
+			final SpimData2 spimData,
+			final List< ViewId > viewsToProcess,
+			final FastFusionParameters parameters,
+			final BiConsumer< Group< ViewDescription >, ImagePlus > output,
+			final ExecutorService pool
+		)
+	{
+		final List< StreamingFastFusion.PlacedView > placed = StreamingFastFusion.placeViews( spimData, viewsToProcess, parameters );
+
+		if ( placed.isEmpty() )
+			return false;
+
+		final long[] outDims = StreamingFastFusion.getOutputDimensions( placed, parameters );
+		final long numPixels = Intervals.numElements( outDims );
+
+		// TODO: query grouping factors from user
+		final Set< Class< ? extends Entity > > groupingFactors = new HashSet<>();
+		groupingFactors.add( Channel.class );
+		groupingFactors.add( TimePoint.class );
+
+		final List< Group< ViewDescription > > groups = Group.splitBy(
+				placed.stream().map( v -> v.vd ).collect( Collectors.toList() ), groupingFactors );
+
+		IOFunctions.println(
+				"(" + new Date( System.currentTimeMillis() ) + "): " + "Block-wise Fast Fusion of " + groups.size() + " groups." );
+
+		for ( int g = 0; g < groups.size(); ++g )
+		{
+			final Group< ViewDescription > group = groups.get( g );
+			final List< StreamingFastFusion.PlacedView > groupViews = placed.stream().filter( v -> group.contains( v.vd ) ).collect( Collectors.toList() );
+
+			IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): " + "Fusing group "
+					+ ( g + 1 ) + " of " + groups.size() + "." );
+
+			final String title = "Fused " + group;
+
+			try
 			{
-				NativeImg< UnsignedShortType, ? > outShort = ( numPixels > ( Math.pow( 2, 31 ) - 1 )
-						? new CellImgFactory<>( new UnsignedShortType() )
-						: new ArrayImgFactory<>( new UnsignedShortType() ) ).create( renderInterval );
-				FastFusionTools.addTranslated( outImg, outShort, Util.getArrayFromValue( 0, 3 ), pool );
-				ImageJFunctions.show( outShort );
+				if ( parameters.dataType == FastFusionDataType.FLOAT )
+				{
+					final NativeImg< FloatType, ? > outImg = ( numPixels > ( Math.pow( 2, 31 ) - 1 )
+							? new CellImgFactory<>( new FloatType() )
+							: new ArrayImgFactory<>( new FloatType() ) ).create( outDims );
+					StreamingFastFusion.fuseGroup( spimData.getSequenceDescription().getImgLoader(), groupViews, outImg,
+							StreamingFastFusion.defaultBlockSize, parameters, pool );
+					output.accept( group, ImageJFunctions.wrap( outImg, title ) );
+				}
+				else
+				{
+					final NativeImg< UnsignedShortType, ? > outShort = ( numPixels > ( Math.pow( 2, 31 ) - 1 )
+							? new CellImgFactory<>( new UnsignedShortType() )
+							: new ArrayImgFactory<>( new UnsignedShortType() ) ).create( outDims );
+					StreamingFastFusion.fuseGroup( spimData.getSequenceDescription().getImgLoader(), groupViews, outShort,
+							StreamingFastFusion.defaultBlockSize, parameters, pool );
+					output.accept( group, ImageJFunctions.wrap( outShort, title ) );
+				}
+			}
+			catch ( InterruptedException | ExecutionException e )
+			{
+				IOFunctions.println( "Block-wise fusion failed: " + e );
+				e.printStackTrace();
+				return false;
 			}
-			
 
 			IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): " + "Fusing group "
-					+ groupCount.get() + " of " + nGroups + " DONE." );
+					+ ( g + 1 ) + " of " + groups.size() + " DONE." );
 		}
 
-		pool.shutdown();
-
-		IOFunctions.println(
-				"(" + new Date( System.currentTimeMillis() ) + "): " + "Fusion of " + nGroups + " groups DONE." );
-
 		return true;
 	}
 
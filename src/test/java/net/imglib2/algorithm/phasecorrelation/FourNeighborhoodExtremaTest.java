@@ -27,6 +27,7 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Random;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
 import net.imglib2.Localizable;
@@ -341,4 +342,149 @@ public class FourNeighborhoodExtremaTest
 		int i = 5;		
 		assertTrue( i == 5 );
 	}
+
+	@Test
+	public void testTopK()
+	{
+		final Random rnd = new Random( seed );
+		final int maxN = 10;
+
+		final FourNeighborhoodExtrema.TopK topK = new FourNeighborhoodExtrema.TopK( maxN, 2 );
+		final ArrayList< Pair< Localizable, Double > > all = new ArrayList<>();
+
+		for ( int i = 0; i < 1000; ++i )
+		{
+			final Point p = new Point( new long[] { i, -i } );
+			final double v = rnd.nextDouble();
+
+			all.add( new ValuePair< Localizable, Double >( p, v ) );
+			topK.offer( v, p );
+
+			assertEquals( Math.min( i + 1, maxN ), topK.size() );
+		}
+
+		all.sort( ( a, b ) -> Double.compare( b.getB(), a.getB() ) );
+
+		// once full, everything below the smallest value that is kept can be rejected
+		assertEquals( all.get( maxN - 1 ).getB(), topK.threshold(), 0 );
+		assertTopK( all, topK.toList(), maxN );
+	}
+
+	@Test
+	public void testTopKNotFull()
+	{
+		final FourNeighborhoodExtrema.TopK topK = new FourNeighborhoodExtrema.TopK( 10, 1 );
+		assertEquals( -Double.MAX_VALUE, topK.threshold(), 0 );
+
+		topK.offer( 1.0, new Point( new long[] { 1 } ) );
+		topK.offer( 3.0, new Point( new long[] { 3 } ) );
+		topK.offer( 2.0, new Point( new long[] { 2 } ) );
+
+		final ArrayList< Pair< Localizable, Double > > list = topK.toList();
+		assertEquals( 3, list.size() );
+		assertEquals( -Double.MAX_VALUE, topK.threshold(), 0 );
+
+		for ( int i = 0; i < 3; ++i )
+		{
+			assertEquals( 3.0 - i, list.get( i ).getB(), 0 );
+			assertEquals( 3 - i, list.get( i ).getA().getLongPosition( 0 ) );
+		}
+
+		// nothing is kept if no maxima are requested
+		final FourNeighborhoodExtrema.TopK empty = new FourNeighborhoodExtrema.TopK( 0, 1 );
+		empty.offer( 1.0, new Point( new long[] { 1 } ) );
+		assertEquals( 0, empty.size() );
+		assertTrue( empty.toList().isEmpty() );
+	}
+
+	@Test
+	public void testTopKMerge()
+	{
+		final Random rnd = new Random( seed );
+		final int maxN = 7;
+
+		final FourNeighborhoodExtrema.TopK a = new FourNeighborhoodExtrema.TopK( maxN, 3 );
+		final FourNeighborhoodExtrema.TopK b = new FourNeighborhoodExtrema.TopK( maxN, 3 );
+		final ArrayList< Pair< Localizable, Double > > all = new ArrayList<>();
+
+		for ( int i = 0; i < 500; ++i )
+		{
+			final Point p = new Point( new long[] { i, 2 * i, 3 * i } );
+			final double v = rnd.nextDouble();
+
+			all.add( new ValuePair< Localizable, Double >( p, v ) );
+			( i % 3 == 0 ? a : b ).offer( v, p );
+		}
+
+		all.sort( ( x, y ) -> Double.compare( y.getB(), x.getB() ) );
+
+		final FourNeighborhoodExtrema.TopK merged = new FourNeighborhoodExtrema.TopK( maxN, 3 );
+		merged.merge( a );
+		merged.merge( b );
+
+		assertTopK( all, merged.toList(), maxN );
+	}
+
+	@Test
+	public void testAllMaxima()
+	{
+		final Img< FloatType > img = ArrayImgs.floats( 40, 30 );
+		final Random rnd = new Random( seed );
+
+		for ( final FloatType t : img )
+			t.set( rnd.nextFloat() );
+
+		// all maxima of the 4-neighborhood (with periodic boundary), by brute force
+		final ArrayList< Pair< Localizable, Double > > all = new ArrayList<>();
+		final RandomAccess< FloatType > ra = Views.extendPeriodic( img ).randomAccess();
+
+		for ( int y = 0; y < 30; ++y )
+			for ( int x = 0; x < 40; ++x )
+			{
+				ra.setPosition( new long[] { x, y } );
+				final double v = ra.get().get();
+
+				boolean isMax = true;
+				for ( final long[] o : new long[][] { { 1, 0 }, { -1, 0 }, { 0, 1 }, { 0, -1 } } )
+				{
+					ra.setPosition( new long[] { x + o[ 0 ], y + o[ 1 ] } );
+					isMax &= v >= ra.get().get();
+				}
+
+				if ( isMax )
+					all.add( new ValuePair< Localizable, Double >( new Point( new long[] { x, y } ), v ) );
+			}
+
+		all.sort( ( a, b ) -> Double.compare( b.getB(), a.getB() ) );
+
+		final ExecutorService service = Executors.newFixedThreadPool( 4 );
+
+		for ( final int maxN : new int[] { 1, 20, all.size(), all.size() + 10 } )
+		{
+			assertTopK( all, FourNeighborhoodExtrema.findMax( Views.extendPeriodic( img ), img, maxN ), Math.min( maxN, all.size() ) );
+			assertTopK( all, FourNeighborhoodExtrema.findMaxMT( Views.extendPeriodic( img ), img, maxN, service ), Math.min( maxN, all.size() ) );
+		}
+
+		service.shutdown();
+	}
+
+	/**
+	 * compare the found values and positions to the first n of all (sorted) values
+	 */
+	private static void assertTopK( final ArrayList< Pair< Localizable, Double > > all, final ArrayList< Pair< Localizable, Double > > found, final int n )
+	{
+		assertEquals( n, found.size() );
+
+		for ( int i = 0; i < n; ++i )
+		{
+			assertEquals( all.get( i ).getB(), found.get( i ).getB() );
+
+			final long[] posCorrect = new long[ all.get( i ).getA().numDimensions() ];
+			final long[] posFound = new long[ found.get( i ).getA().numDimensions() ];
+			all.get( i ).getA().localize( posCorrect );
+			found.get( i ).getA().localize( posFound );
+
+			assertArrayEquals( posCorrect, posFound );
+		}
+	}
 }
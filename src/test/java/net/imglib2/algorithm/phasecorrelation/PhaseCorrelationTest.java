@@ -23,8 +23,11 @@ package net.imglib2.algorithm.phasecorrelation;
 
 import static org.junit.Assert.*;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
 import org.apache.commons.math3.ode.ExpandableStatefulODE;
@@ -32,12 +35,17 @@ import org.junit.Test;
 
 import mpicbg.imglib.interpolation.linear.LinearInterpolatorFactory;
 import mpicbg.imglib.outofbounds.OutOfBoundsStrategyFactory;
+import net.imglib2.Cursor;
 import net.imglib2.FinalInterval;
 import net.imglib2.FinalRealInterval;
+import net.imglib2.Point;
+import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.algorithm.fft2.FFTMethods;
 import net.imglib2.img.Img;
 import net.imglib2.img.array.ArrayImgFactory;
 import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.cell.CellImgFactory;
 import net.imglib2.interpolation.randomaccess.NLinearInterpolatorFactory;
 import net.imglib2.realtransform.AffineGet;
 import net.imglib2.realtransform.AffineRandomAccessible;
@@ -187,4 +195,122 @@ public class PhaseCorrelationTest {
 	}
 	
 	
+	@Test
+	public void testPCMFloatArrayPathEqualsGeneric() {
+
+		// the fused kernel for ComplexFloatType ArrayImgs should give the same PCM as the generic path (forced by using CellImgs)
+		Random rnd = new Random( seed );
+		Img< ComplexFloatType > fft1 = new ArrayImgFactory<ComplexFloatType>().create( new long[] {33, 64}, new ComplexFloatType() );
+		Img< ComplexFloatType > fft2 = new ArrayImgFactory<ComplexFloatType>().create( new long[] {33, 64}, new ComplexFloatType() );
+		Img< ComplexFloatType > fft1Cell = new CellImgFactory<ComplexFloatType>( 16 ).create( new long[] {33, 64}, new ComplexFloatType() );
+		Img< ComplexFloatType > fft2Cell = new CellImgFactory<ComplexFloatType>( 16 ).create( new long[] {33, 64}, new ComplexFloatType() );
+
+		Cursor< ComplexFloatType > c1 = fft1.localizingCursor();
+		Cursor< ComplexFloatType > c2 = fft2.localizingCursor();
+		RandomAccess< ComplexFloatType > r1 = fft1Cell.randomAccess();
+		RandomAccess< ComplexFloatType > r2 = fft2Cell.randomAccess();
+		while (c1.hasNext())
+		{
+			c1.next().setComplexNumber( rnd.nextFloat() - 0.5f, rnd.nextFloat() - 0.5f );
+			c2.next().setComplexNumber( rnd.nextFloat() - 0.5f, rnd.nextFloat() - 0.5f );
+			r1.setPosition( c1 );
+			r2.setPosition( c2 );
+			r1.get().set( c1.get() );
+			r2.get().set( c2.get() );
+		}
+
+		ExecutorService service = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+		RandomAccessibleInterval<FloatType> pcm = PhaseCorrelation2.calculatePCMInPlace( fft1, fft2, new ArrayImgFactory<FloatType>(), new FloatType(), service );
+		RandomAccessibleInterval<FloatType> pcmGeneric = PhaseCorrelation2.calculatePCMInPlace( fft1Cell, fft2Cell, new ArrayImgFactory<FloatType>(), new FloatType(), service );
+		service.shutdown();
+
+		Cursor< FloatType > c = Views.flatIterable( pcm ).cursor();
+		Cursor< FloatType > cGeneric = Views.flatIterable( pcmGeneric ).cursor();
+		while (c.hasNext())
+			assertEquals( cGeneric.next().get(), c.next().get(), 1e-4 );
+	}
+
+	@Test
+	public void testBatchedCrossCorrEqualsPerPeak() {
+
+		Img< FloatType > img1 = ArrayImgs.floats( 60, 50, 8 );
+		Img< FloatType > img2 = ArrayImgs.floats( 55, 52, 8 );
+		Random rnd = new Random( seed );
+
+		for( FloatType t : img1 )
+			t.set( rnd.nextFloat() * 1000 + 10000 );
+		for( FloatType t : img2 )
+			t.set( rnd.nextFloat() * 1000 + 10000 );
+
+		List< PhaseCorrelationPeak2 > peaks = new ArrayList<>();
+		List< PhaseCorrelationPeak2 > peaksBatched = new ArrayList<>();
+		long[][] shifts = new long[][] { {0, 0, 0}, {10, -5, 2}, {-20, 30, -1}, {59, 0, 0}, {-54, -51, 7}, {100, 0, 0} };
+		for ( long[] shift : shifts )
+		{
+			PhaseCorrelationPeak2 p = new PhaseCorrelationPeak2( new Point( 3 ), 1.0 );
+			p.setShift( new Point( shift ) );
+			peaks.add( p );
+			peaksBatched.add( new PhaseCorrelationPeak2( p ) );
+		}
+
+		ExecutorService service = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+		PhaseCorrelation2Util.calculateCrossCorrBatched( peaksBatched, img1, img2, 2, service );
+		service.shutdown();
+
+		for ( int i = 0; i < peaks.size(); ++i )
+		{
+			peaks.get( i ).calculateCrossCorr( img1, img2, 2 );
+			assertEquals( peaks.get( i ).getCrossCorr(), peaksBatched.get( i ).getCrossCorr(), 1e-6 );
+			assertEquals( peaks.get( i ).getnPixel(), peaksBatched.get( i ).getnPixel() );
+		}
+	}
+
+	@Test
+	public void testCopyExtendedPaddedEqualsView() {
+
+		Img< FloatType > img = ArrayImgs.floats( 47, 33 );
+		Random rnd = new Random( seed );
+
+		for( FloatType t : img )
+			t.set( rnd.nextFloat() );
+
+		RandomAccessibleInterval< FloatType > translated = Views.translate( img, 5, -3 );
+		int[] extension = new int[] { 10, 40 };
+		Img< FloatType > padded = ArrayImgs.floats( 80, 120 );
+
+		ExecutorService service = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+		PhaseCorrelation2Util.copyExtendedPadded( translated, extension, padded, service );
+		service.shutdown();
+
+		Cursor< FloatType > expected = Views.flatIterable( Views.interval( PhaseCorrelation2Util.extendImageByFactor( translated, extension ),
+				FFTMethods.paddingIntervalCentered( translated, new FinalInterval( 80, 120 ) ) ) ).cursor();
+		Cursor< FloatType > c = Views.flatIterable( padded ).cursor();
+		while (c.hasNext())
+			assertEquals( expected.next().get(), c.next().get(), 1e-6 );
+	}
+
+	@Test
+	public void testCopyExtendedPaddedArrayImgEqualsView() {
+
+		// float ArrayImg input and target -> interior lines are copied with System.arraycopy
+		Img< FloatType > img = ArrayImgs.floats( 47, 33, 5 );
+		Random rnd = new Random( seed );
+
+		for( FloatType t : img )
+			t.set( rnd.nextFloat() );
+
+		int[] extension = new int[] { 10, 40, 3 };
+		Img< FloatType > padded = ArrayImgs.floats( 80, 120, 12 );
+
+		ExecutorService service = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+		PhaseCorrelation2Util.copyExtendedPadded( img, extension, padded, service );
+		service.shutdown();
+
+		Cursor< FloatType > expected = Views.flatIterable( Views.interval( PhaseCorrelation2Util.extendImageByFactor( img, extension ),
+				FFTMethods.paddingIntervalCentered( img, new FinalInterval( 80, 120, 12 ) ) ) ).cursor();
+		Cursor< FloatType > c = Views.flatIterable( padded ).cursor();
+		while (c.hasNext())
+			assertEquals( expected.next().get(), c.next().get(), 1e-6 );
+	}
+
 }
@@ -0,0 +1,158 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2017 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.imglib2.algorithm.phasecorrelation;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import net.imglib2.FinalInterval;
+import net.imglib2.Point;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+import org.junit.Test;
+
+public class SummedAreaTableTest
+{
+	public static long seed = 8724;
+
+	private static Img< FloatType > randomImage( final Random rnd, final long... dims )
+	{
+		final Img< FloatType > img = ArrayImgs.floats( dims );
+		for ( final FloatType t : img )
+			t.set( 1000 + 100 * rnd.nextFloat() );
+		return img;
+	}
+
+	private static FinalInterval randomInterval( final Random rnd, final long[] dims )
+	{
+		final long[] min = new long[ dims.length ];
+		final long[] max = new long[ dims.length ];
+		for ( int d = 0; d < dims.length; ++d )
+		{
+			min[ d ] = rnd.nextInt( (int) dims[ d ] );
+			max[ d ] = min[ d ] + rnd.nextInt( (int) ( dims[ d ] - min[ d ] ) );
+		}
+		return new FinalInterval( min, max );
+	}
+
+	@Test
+	public void testAgainstBruteForce()
+	{
+		final Random rnd = new Random( seed );
+		final long[] dims = new long[] { 17, 13, 9 };
+		final Img< FloatType > img = randomImage( rnd, dims );
+
+		// the table does not depend on the min of the image
+		final SummedAreaTable sat = new SummedAreaTable( Views.translate( img, 5, -3, 100 ) );
+
+		for ( int i = 0; i < 200; ++i )
+		{
+			final FinalInterval interval = i == 0 ? new FinalInterval( dims ) : randomInterval( rnd, dims );
+
+			double sum = 0, sumSq = 0;
+			long count = 0;
+			for ( final FloatType t : Views.interval( img, interval ) )
+			{
+				sum += t.get();
+				sumSq += t.get() * (double) t.get();
+				++count;
+			}
+
+			final double mean = sum / count;
+			final double squaredDeviations = sumSq - sum * sum / count;
+			final double pivot = sat.getPivot();
+
+			assertEquals( mean, sat.mean( interval ), 1e-6 );
+			assertEquals( squaredDeviations, sat.squaredDeviations( interval ), 1e-6 * Math.max( 1, squaredDeviations ) );
+			assertEquals( sum - count * pivot, sat.sum( interval ), 1e-6 * count );
+			assertEquals( sumSq - 2 * pivot * sum + count * pivot * pivot, sat.sumOfSquares( interval ), 1e-3 * count );
+		}
+	}
+
+	@Test
+	public void testTableSize()
+	{
+		assertEquals( 18 * 14 * 10, SummedAreaTable.tableSize( new FinalInterval( 17, 13, 9 ) ) );
+	}
+
+	@Test
+	public void testCrossCorrWithAndWithoutTables()
+	{
+		final Random rnd = new Random( seed );
+		final Img< FloatType > img1 = randomImage( rnd, 40, 30, 12 );
+		final Img< FloatType > img2 = randomImage( rnd, 35, 32, 10 );
+		final ExecutorService service = Executors.newFixedThreadPool( 4 );
+
+		final List< PhaseCorrelationPeak2 > withTables = new ArrayList<>();
+		final List< PhaseCorrelationPeak2 > withoutTables = new ArrayList<>();
+		final List< PhaseCorrelationPeak2 > reference = new ArrayList<>();
+
+		for ( int i = 0; i < 20; ++i )
+		{
+			final PhaseCorrelationPeak2 p = new PhaseCorrelationPeak2( new Point( 3 ), 1.0 );
+			p.setShift( new Point( rnd.nextInt( 50 ) - 25, rnd.nextInt( 40 ) - 20, rnd.nextInt( 14 ) - 7 ) );
+			withTables.add( p );
+			withoutTables.add( new PhaseCorrelationPeak2( p ) );
+			reference.add( new PhaseCorrelationPeak2( p ) );
+		}
+
+		final long maxPixels = PhaseCorrelation2Util.maxPixelsSummedAreaTable;
+		try
+		{
+			PhaseCorrelation2Util.calculateCrossCorrBatched( withTables, img1, img2, 20, service );
+
+			PhaseCorrelation2Util.maxPixelsSummedAreaTable = 0;
+			PhaseCorrelation2Util.calculateCrossCorrBatched( withoutTables, img1, img2, 20, service );
+		}
+		finally
+		{
+			PhaseCorrelation2Util.maxPixelsSummedAreaTable = maxPixels;
+		}
+
+		PhaseCorrelation2Util.calculateCrossCorrParallel( reference, img1, img2, 20, service );
+		service.shutdown();
+
+		int numValid = 0;
+		for ( int i = 0; i < reference.size(); ++i )
+		{
+			assertEquals( reference.get( i ).getnPixel(), withTables.get( i ).getnPixel() );
+			assertEquals( reference.get( i ).getnPixel(), withoutTables.get( i ).getnPixel() );
+
+			if ( reference.get( i ).getnPixel() == 0 )
+				continue;
+
+			assertEquals( reference.get( i ).getCrossCorr(), withTables.get( i ).getCrossCorr(), 1e-4 );
+			assertEquals( reference.get( i ).getCrossCorr(), withoutTables.get( i ).getCrossCorr(), 1e-4 );
+			++numValid;
+		}
+
+		assertTrue( numValid > 0 );
+	}
+}
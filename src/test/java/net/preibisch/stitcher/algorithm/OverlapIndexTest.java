@@ -0,0 +1,135 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2017 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.stitcher.algorithm;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import net.imglib2.FinalRealInterval;
+import net.imglib2.RealInterval;
+
+import org.junit.Test;
+
+public class OverlapIndexTest
+{
+	public static long seed = 2346;
+
+	private static List< int[] > bruteForcePairs( final List< RealInterval > boxes )
+	{
+		final List< int[] > pairs = new ArrayList<>();
+
+		for ( int i = 0; i < boxes.size(); ++i )
+			for ( int j = i + 1; j < boxes.size(); ++j )
+			{
+				final RealInterval a = boxes.get( i );
+				final RealInterval b = boxes.get( j );
+
+				boolean overlap = true;
+				if ( a != null && b != null )
+					for ( int d = 0; d < a.numDimensions(); ++d )
+						if ( a.realMin( d ) > b.realMax( d ) || b.realMin( d ) > a.realMax( d ) )
+							overlap = false;
+
+				if ( overlap )
+					pairs.add( new int[] { i, j } );
+			}
+
+		return pairs;
+	}
+
+	private static void assertSamePairs( final List< int[] > expected, final List< int[] > actual )
+	{
+		assertEquals( expected.size(), actual.size() );
+		for ( int i = 0; i < expected.size(); ++i )
+			assertArrayEquals( expected.get( i ), actual.get( i ) );
+	}
+
+	private static List< RealInterval > randomBoxes( final Random rnd, final int numBoxes, final double maxSize, final double nullProbability )
+	{
+		final List< RealInterval > boxes = new ArrayList<>();
+
+		for ( int i = 0; i < numBoxes; ++i )
+		{
+			if ( rnd.nextDouble() < nullProbability )
+			{
+				boxes.add( null );
+				continue;
+			}
+
+			final double[] min = new double[ 3 ];
+			final double[] max = new double[ 3 ];
+			for ( int d = 0; d < 3; ++d )
+			{
+				// integer coordinates so that many boxes touch exactly
+				min[ d ] = rnd.nextInt( 1000 ) - 200;
+				max[ d ] = min[ d ] + rnd.nextInt( (int) maxSize );
+			}
+			boxes.add( new FinalRealInterval( min, max ) );
+		}
+
+		return boxes;
+	}
+
+	@Test
+	public void testRandomBoxes()
+	{
+		final Random rnd = new Random( seed );
+
+		for ( int r = 0; r < 20; ++r )
+		{
+			final List< RealInterval > boxes = randomBoxes( rnd, 200, 150, 0 );
+			assertSamePairs( bruteForcePairs( boxes ), OverlapIndex.overlappingPairs( boxes ) );
+		}
+	}
+
+	@Test
+	public void testLargeBoxes()
+	{
+		final Random rnd = new Random( seed );
+		final List< RealInterval > boxes = randomBoxes( rnd, 100, 50, 0 );
+
+		// boxes covering the whole dataset are compared to everything instead of being put into the grid
+		boxes.add( 10, new FinalRealInterval( new double[] { -500, -500, -500 }, new double[] { 1500, 1500, 1500 } ) );
+		boxes.add( 60, new FinalRealInterval( new double[] { -300, 0, 0 }, new double[] { 1200, 10, 900 } ) );
+
+		assertSamePairs( bruteForcePairs( boxes ), OverlapIndex.overlappingPairs( boxes ) );
+	}
+
+	@Test
+	public void testUnknownBoxes()
+	{
+		final Random rnd = new Random( seed );
+
+		// groups without a bounding box are compared to all other groups
+		final List< RealInterval > boxes = randomBoxes( rnd, 100, 150, 0.1 );
+		assertSamePairs( bruteForcePairs( boxes ), OverlapIndex.overlappingPairs( boxes ) );
+
+		final List< RealInterval > allUnknown = Arrays.asList( null, null, null, null );
+		final List< int[] > pairs = OverlapIndex.overlappingPairs( allUnknown );
+		assertEquals( 6, pairs.size() );
+		assertSamePairs( bruteForcePairs( allUnknown ), pairs );
+	}
+}
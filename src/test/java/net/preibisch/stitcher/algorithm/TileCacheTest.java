@@ -0,0 +1,278 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2017 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.stitcher.algorithm;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import mpicbg.spim.data.generic.sequence.BasicImgLoader;
+import mpicbg.spim.data.generic.sequence.BasicSetupImgLoader;
+import mpicbg.spim.data.generic.sequence.ImgLoaderHint;
+import mpicbg.spim.data.sequence.ViewId;
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.numeric.integer.LongType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+import net.preibisch.mvrecon.fiji.spimdata.SpimData2;
+import net.preibisch.stitcher.input.FractalSpimDataGenerator;
+
+public class TileCacheTest
+{
+	private static final long[] ds = new long[] { 1, 1, 1 };
+
+	private static SpimData2 createSpimData()
+	{
+		final AffineTransform3D m = new AffineTransform3D();
+		m.set( 20, 0, 0, 30,
+			   0, 20, 0, 30,
+			   0, 0, 20, 5 );
+
+		final FractalSpimDataGenerator fsdg = new FractalSpimDataGenerator( 3 );
+		fsdg.addFractal( m );
+
+		final List< Interval > intervals = FractalSpimDataGenerator.generateTileList(
+				new FinalInterval( new long[] { 0, 0, 0 }, new long[] { 39, 39, 7 } ), 2, 2, 0.2 );
+
+		return fsdg.generateSpimData( intervals, FractalSpimDataGenerator.getTileMins( intervals ) );
+	}
+
+	private static List< ViewId > getViews( final SpimData2 spimData )
+	{
+		final List< ViewId > views = new ArrayList<>( spimData.getSequenceDescription().getViewDescriptions().keySet() );
+		Collections.sort( views );
+		return views;
+	}
+
+	@Test
+	public void testHitsAndMisses()
+	{
+		final SpimData2 spimData = createSpimData();
+		final BasicImgLoader imgLoader = spimData.getSequenceDescription().getImgLoader();
+		final List< ViewId > views = getViews( spimData );
+
+		final TileCache cache = new TileCache( Long.MAX_VALUE );
+
+		final RandomAccessibleInterval< LongType > first = cache.getOrLoad( imgLoader, views.get( 0 ), ds );
+		assertNotNull( first );
+		assertEquals( 0, cache.getHits() );
+		assertEquals( 1, cache.getMisses() );
+		assertEquals( Intervals.numElements( first ), cache.getCurrentVoxels() );
+		assertTrue( cache.contains( imgLoader, views.get( 0 ), ds ) );
+
+		// the same image is returned without loading again
+		final RandomAccessibleInterval< LongType > second = cache.getOrLoad( imgLoader, views.get( 0 ), ds );
+		assertSame( first, second );
+		assertEquals( 1, cache.getHits() );
+		assertEquals( 1, cache.getMisses() );
+		assertEquals( Intervals.numElements( first ), cache.getCurrentVoxels() );
+
+		// a different view and different downsampling are separate entries
+		cache.getOrLoad( imgLoader, views.get( 1 ), ds );
+		assertEquals( 2, cache.getMisses() );
+		assertFalse( cache.contains( imgLoader, views.get( 0 ), new long[] { 2, 2, 1 } ) );
+
+		// a different ImgLoader is a separate entry, even for the same view
+		final BasicImgLoader otherImgLoader = createSpimData().getSequenceDescription().getImgLoader();
+		assertFalse( cache.contains( otherImgLoader, views.get( 0 ), ds ) );
+
+		cache.resetStatistics();
+		assertEquals( 0, cache.getHits() );
+		assertEquals( 0, cache.getMisses() );
+		assertEquals( 0, cache.getEvictions() );
+	}
+
+	@Test
+	public void testCrop()
+	{
+		final SpimData2 spimData = createSpimData();
+		final BasicImgLoader imgLoader = spimData.getSequenceDescription().getImgLoader();
+		final ViewId view = getViews( spimData ).get( 0 );
+
+		final RandomAccessibleInterval< LongType > full = new TileCache( Long.MAX_VALUE ).getOrLoad( imgLoader, view, ds );
+		final TileCache cache = new TileCache( Long.MAX_VALUE );
+
+		// crops are copied from the opened view
+		final Interval crop = new FinalInterval( new long[] { 5, 10, 2 }, new long[] { full.max( 0 ) + 10, 20, 3 } );
+		final RandomAccessibleInterval< LongType > cropped = cache.getOrLoad( imgLoader, view, ds, crop );
+
+		final Interval intersection = Intervals.intersect( full, crop );
+		for ( int d = 0; d < full.numDimensions(); ++d )
+		{
+			assertEquals( intersection.min( d ), cropped.min( d ) );
+			assertEquals( intersection.max( d ), cropped.max( d ) );
+		}
+
+		final Cursor< LongType > c1 = Views.flatIterable( cropped ).cursor();
+		final Cursor< LongType > c2 = Views.flatIterable( Views.interval( full, cropped ) ).cursor();
+		while ( c1.hasNext() )
+			assertEquals( c2.next().get(), c1.next().get() );
+
+		assertEquals( 1, cache.getMisses() );
+		assertEquals( 0, cache.getHits() );
+		assertTrue( cache.contains( imgLoader, view, ds ) );
+
+		// the fractal ImgLoader creates array images, so the opened view is counted with all its voxels
+		assertEquals( Intervals.numElements( full ), cache.getCurrentVoxels() );
+
+		// the opened view is shared by all crops
+		final Interval crop2 = new FinalInterval( new long[] { 0, 0, 0 }, new long[] { 3, 3, 3 } );
+		final RandomAccessibleInterval< LongType > cropped2 = cache.getOrLoad( imgLoader, view, ds, crop2 );
+		assertEquals( 64, Intervals.numElements( cropped2 ) );
+		assertEquals( 1, cache.getMisses() );
+		assertEquals( 1, cache.getHits() );
+
+		// no intersection
+		final Interval outside = new FinalInterval( new long[] { full.max( 0 ) + 1, 0, 0 }, new long[] { full.max( 0 ) + 5, 5, 5 } );
+		assertNull( cache.getOrLoad( imgLoader, view, ds, outside ) );
+
+		// no crop, the whole view is loaded
+		final RandomAccessibleInterval< LongType > whole = cache.getOrLoad( imgLoader, view, ds, null );
+		assertEquals( Intervals.numElements( full ), Intervals.numElements( whole ) );
+		assertEquals( 2, cache.getMisses() );
+		assertEquals( 2 * Intervals.numElements( full ), cache.getCurrentVoxels() );
+
+		// both are removed together
+		cache.invalidate( view );
+		assertFalse( cache.contains( imgLoader, view, ds ) );
+		assertEquals( 0, cache.getCurrentVoxels() );
+	}
+
+	@Test
+	public void testEviction()
+	{
+		final SpimData2 spimData = createSpimData();
+		final BasicImgLoader imgLoader = spimData.getSequenceDescription().getImgLoader();
+		final List< ViewId > views = getViews( spimData );
+
+		final RandomAccessibleInterval< LongType > img = new TileCache( Long.MAX_VALUE ).getOrLoad( imgLoader, views.get( 0 ), ds );
+		final long numVoxels = Intervals.numElements( img );
+
+		// room for two views
+		final TileCache cache = new TileCache( 2 * numVoxels + numVoxels / 2 );
+
+		cache.getOrLoad( imgLoader, views.get( 0 ), ds );
+		cache.getOrLoad( imgLoader, views.get( 1 ), ds );
+		assertEquals( 0, cache.getEvictions() );
+		assertEquals( 2 * numVoxels, cache.getCurrentVoxels() );
+
+		// touch view 0, so view 1 is the least recently used one
+		cache.getOrLoad( imgLoader, views.get( 0 ), ds );
+
+		cache.getOrLoad( imgLoader, views.get( 2 ), ds );
+		assertEquals( 1, cache.getEvictions() );
+		assertEquals( 2 * numVoxels, cache.getCurrentVoxels() );
+		assertTrue( cache.contains( imgLoader, views.get( 0 ), ds ) );
+		assertFalse( cache.contains( imgLoader, views.get( 1 ), ds ) );
+		assertTrue( cache.contains( imgLoader, views.get( 2 ), ds ) );
+
+		// loading an evicted view again is a miss
+		cache.getOrLoad( imgLoader, views.get( 1 ), ds );
+		assertEquals( 4, cache.getMisses() );
+		assertEquals( 1, cache.getHits() );
+		assertEquals( 2, cache.getEvictions() );
+		assertFalse( cache.contains( imgLoader, views.get( 0 ), ds ) );
+
+		// a view that is larger than the budget is still returned (and kept until the next load)
+		cache.setMaxVoxels( numVoxels / 2 );
+		assertEquals( 4, cache.getEvictions() );
+		assertEquals( 0, cache.getCurrentVoxels() );
+
+		assertNotNull( cache.getOrLoad( imgLoader, views.get( 3 ), ds ) );
+		assertTrue( cache.contains( imgLoader, views.get( 3 ), ds ) );
+		assertEquals( numVoxels, cache.getCurrentVoxels() );
+	}
+
+	@Test
+	public void testInvalidate()
+	{
+		final SpimData2 spimData = createSpimData();
+		final BasicImgLoader imgLoader = spimData.getSequenceDescription().getImgLoader();
+		final List< ViewId > views = getViews( spimData );
+
+		final TileCache cache = new TileCache( Long.MAX_VALUE );
+
+		final RandomAccessibleInterval< LongType > img = cache.getOrLoad( imgLoader, views.get( 0 ), ds );
+		final long numVoxels = Intervals.numElements( img );
+		cache.getOrLoad( imgLoader, views.get( 1 ), ds );
+
+		cache.invalidate( views.get( 0 ) );
+		assertFalse( cache.contains( imgLoader, views.get( 0 ), ds ) );
+		assertTrue( cache.contains( imgLoader, views.get( 1 ), ds ) );
+		assertEquals( numVoxels, cache.getCurrentVoxels() );
+
+		cache.invalidateAll();
+		assertFalse( cache.contains( imgLoader, views.get( 1 ), ds ) );
+		assertEquals( 0, cache.getCurrentVoxels() );
+
+		// invalidating is not counted as eviction, statistics are kept
+		assertEquals( 0, cache.getEvictions() );
+		assertEquals( 2, cache.getMisses() );
+	}
+
+	@Test
+	public void testFailedLoad()
+	{
+		// an ImgLoader that cannot open any image
+		final BasicImgLoader imgLoader = setupId -> new BasicSetupImgLoader< FloatType >()
+		{
+			@Override
+			public RandomAccessibleInterval< FloatType > getImage( final int timepointId, final ImgLoaderHint... hints )
+			{
+				throw new IllegalStateException( "cannot open image" );
+			}
+
+			@Override
+			public FloatType getImageType()
+			{
+				return new FloatType();
+			}
+		};
+
+		final TileCache cache = new TileCache( Long.MAX_VALUE );
+		final ViewId view = new ViewId( 0, 0 );
+
+		// the failed load is not kept, so the next request tries again
+		for ( int i = 1; i <= 2; ++i )
+		{
+			try
+			{
+				cache.getOrLoad( imgLoader, view, ds );
+				fail( "loading should fail" );
+			}
+			catch ( final IllegalStateException e ) {}
+
+			assertEquals( i, cache.getMisses() );
+			assertFalse( cache.contains( imgLoader, view, ds ) );
+			assertEquals( 0, cache.getCurrentVoxels() );
+		}
+	}
+}
@@ -0,0 +1,124 @@
+package net.preibisch.stitcher.algorithm.fastfusion;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Test;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Util;
+
+public class BlendingToolsTest
+{
+	public static long seed = 9812;
+
+	@Test
+	public void testProfilesEqualComputeWeight()
+	{
+		final Random rnd = new Random( seed );
+		final int n = 3;
+
+		for ( int r = 0; r < 50; ++r )
+		{
+			final int[] min = new int[ n ];
+			final int[] dimMinus1 = new int[ n ];
+			final long[] start = new long[ n ];
+			final int[] length = new int[ n ];
+			final float[] offset = new float[ n ];
+			final float[] border = new float[ n ];
+			final float[] blending = new float[ n ];
+
+			for ( int d = 0; d < n; ++d )
+			{
+				min[ d ] = rnd.nextInt( 20 ) - 10;
+				dimMinus1[ d ] = 1 + rnd.nextInt( 80 );
+				offset[ d ] = r % 5 == 0 ? 0 : rnd.nextFloat();
+				border[ d ] = r % 2 == 0 ? 0 : rnd.nextInt( 5 );
+				blending[ d ] = r % 3 == 0 ? 30 : 1 + rnd.nextFloat() * 40;
+
+				// start a bit before the image and end a bit after it, so borders and outside positions are covered
+				start[ d ] = min[ d ] - 3;
+				length[ d ] = dimMinus1[ d ] + 7;
+			}
+
+			final double[][] profiles = BlendingTools.computeWeightProfiles( start, length, min, dimMinus1, offset, border, blending );
+
+			final int[] pos = new int[ n ];
+			final float[] location = new float[ n ];
+
+			for ( int i = 0; i < 2000; ++i )
+			{
+				for ( int d = 0; d < n; ++d )
+				{
+					// every tenth sample is on the first or last position of the profile
+					pos[ d ] = i % 10 == 0 ? ( rnd.nextBoolean() ? 0 : length[ d ] - 1 ) : rnd.nextInt( length[ d ] );
+					location[ d ] = (float) ( start[ d ] + pos[ d ] ) - offset[ d ];
+				}
+
+				assertEquals( BlendingTools.computeWeight( location, min, dimMinus1, border, blending, n ), BlendingTools.weightFromProfiles( profiles, pos ), 0 );
+			}
+
+			// the corners of the image
+			for ( int c = 0; c < ( 1 << n ); ++c )
+			{
+				for ( int d = 0; d < n; ++d )
+				{
+					pos[ d ] = 3 + ( ( c >> d ) & 1 ) * dimMinus1[ d ];
+					location[ d ] = (float) ( start[ d ] + pos[ d ] ) - offset[ d ];
+				}
+
+				assertEquals( BlendingTools.computeWeight( location, min, dimMinus1, border, blending, n ), BlendingTools.weightFromProfiles( profiles, pos ), 0 );
+			}
+		}
+	}
+
+	@Test
+	public void testApplyWeights()
+	{
+		final Random rnd = new Random( seed );
+		final ExecutorService pool = Executors.newFixedThreadPool( 4 );
+
+		final Img< FloatType > img = ArrayImgs.floats( 45, 31, 12 );
+		for ( final FloatType t : img )
+			t.set( 1 + rnd.nextFloat() );
+
+		final Img< FloatType > original = img.copy();
+		final Img< FloatType > weights = ArrayImgs.floats( 45, 31, 12 );
+
+		final float[] offset = new float[] { 0.3f, 0.7f, 0.1f };
+		final float[] border = new float[] { 2, 0, 1 };
+		final float[] blending = Util.getArrayFromValue( 10.0f, 3 );
+
+		FastFusionTools.applyWeights( img, weights, offset, border, blending, false, pool );
+		pool.shutdown();
+
+		final int[] min = new int[ 3 ];
+		final int[] dimMinus1 = new int[] { 44, 30, 11 };
+		final float[] location = new float[ 3 ];
+
+		final Cursor< FloatType > c = weights.localizingCursor();
+		final RandomAccess< FloatType > imgRA = img.randomAccess();
+		final RandomAccess< FloatType > originalRA = original.randomAccess();
+
+		while ( c.hasNext() )
+		{
+			c.fwd();
+			for ( int d = 0; d < 3; ++d )
+				location[ d ] = c.getIntPosition( d ) - offset[ d ];
+
+			final float w = BlendingTools.computeWeight( location, min, dimMinus1, border, blending, 3 );
+			assertEquals( w, c.get().get(), 0 );
+
+			imgRA.setPosition( c );
+			originalRA.setPosition( c );
+			assertEquals( originalRA.get().get() * w, imgRA.get().get(), 1e-6 );
+		}
+	}
+}
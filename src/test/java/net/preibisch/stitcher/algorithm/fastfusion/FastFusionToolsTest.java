@@ -0,0 +1,179 @@
+package net.preibisch.stitcher.algorithm.fastfusion;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.AfterClass;
+import org.junit.Test;
+
+import net.imglib2.Cursor;
+import net.imglib2.IterableInterval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.cell.CellImgFactory;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+public class FastFusionToolsTest
+{
+	public static long seed = 3245;
+
+	private static final ExecutorService pool = Executors.newFixedThreadPool( 4 );
+
+	@AfterClass
+	public static void shutdown()
+	{
+		pool.shutdown();
+	}
+
+	private static < T extends RealType< T > > void fillRandom( final IterableInterval< T > img, final Random rnd, final float maxValue )
+	{
+		for ( final T t : img )
+			t.setReal( Math.round( rnd.nextFloat() * maxValue * 100 ) / 100.0 );
+	}
+
+	private static Img< FloatType > copy( final RandomAccessibleInterval< FloatType > img )
+	{
+		final Img< FloatType > copy = ArrayImgs.floats( Intervals.dimensionsAsLongArray( img ) );
+		final Cursor< FloatType > c = copy.cursor();
+		for ( final FloatType t : Views.flatIterable( img ) )
+			c.next().set( t );
+		return copy;
+	}
+
+	/**
+	 * the per-pixel definition: every pixel of in that ends up inside of out (after translation) is added or alpha-blended
+	 */
+	private static < T extends RealType< T > > Img< FloatType > reference(
+			final RandomAccessibleInterval< T > in, final RandomAccessibleInterval< FloatType > out, final int[] translation, final boolean alphaBlend )
+	{
+		final Img< FloatType > expected = copy( out );
+		final RandomAccess< FloatType > ra = expected.randomAccess();
+		final Cursor< T > c = Views.iterable( in ).localizingCursor();
+		final long[] pos = new long[ in.numDimensions() ];
+
+		while ( c.hasNext() )
+		{
+			c.fwd();
+			c.localize( pos );
+
+			boolean inside = true;
+			for ( int d = 0; d < pos.length; ++d )
+			{
+				pos[ d ] += translation[ d ];
+				inside &= pos[ d ] >= out.min( d ) && pos[ d ] <= out.max( d );
+				pos[ d ] -= out.min( d );
+			}
+
+			if ( !inside )
+				continue;
+
+			ra.setPosition( pos );
+			final float o = ra.get().get();
+			final float i = c.get().getRealFloat();
+			ra.get().set( alphaBlend ? o + ( 1 - o ) * i : o + i );
+		}
+
+		return expected;
+	}
+
+	private static void assertEqualImages( final RandomAccessibleInterval< FloatType > expected, final RandomAccessibleInterval< FloatType > actual )
+	{
+		final Cursor< FloatType > e = Views.flatIterable( expected ).cursor();
+		final Cursor< FloatType > a = Views.flatIterable( actual ).cursor();
+		while ( e.hasNext() )
+			assertEquals( e.next().get(), a.next().get(), 1e-5 );
+	}
+
+	private static < T extends RealType< T > > void testCombine(
+			final RandomAccessibleInterval< T > in, final RandomAccessibleInterval< FloatType > out, final int[] translation, final boolean alphaBlend )
+	{
+		final Img< FloatType > expected = reference( in, out, translation, alphaBlend );
+
+		if ( alphaBlend )
+			FastFusionTools.alphaBlendTranslated( Views.iterable( in ), out, translation, pool );
+		else
+			FastFusionTools.addTranslated( Views.iterable( in ), out, translation, pool );
+
+		assertEqualImages( expected, out );
+	}
+
+	// fully inside, partial overlap on both sides, clipped on all sides, no overlap at all
+	private static final int[][] translations = new int[][] {
+		{ 3, 2, 1 }, { -7, 4, -2 }, { 20, -5, 3 }, { -3, -3, -3 }, { 100, 0, 0 }, { 0, -50, 0 } };
+
+	@Test
+	public void testFloatArrayImgs()
+	{
+		final Random rnd = new Random( seed );
+
+		for ( final boolean alphaBlend : new boolean[] { false, true } )
+			for ( final int[] translation : translations )
+			{
+				final Img< FloatType > in = ArrayImgs.floats( 23, 17, 9 );
+				final Img< FloatType > out = ArrayImgs.floats( 30, 20, 8 );
+				fillRandom( in, rnd, 1 );
+				fillRandom( out, rnd, 1 );
+
+				testCombine( in, out, translation, alphaBlend );
+			}
+	}
+
+	@Test
+	public void testUnsignedShortInput()
+	{
+		final Random rnd = new Random( seed );
+
+		for ( final int[] translation : translations )
+		{
+			final Img< UnsignedShortType > in = ArrayImgs.unsignedShorts( 23, 17, 9 );
+			final Img< FloatType > out = ArrayImgs.floats( 30, 20, 8 );
+			fillRandom( in, rnd, 60000 );
+			fillRandom( out, rnd, 100 );
+
+			testCombine( in, out, translation, false );
+		}
+	}
+
+	@Test
+	public void testViewsAndCellImgs()
+	{
+		final Random rnd = new Random( seed );
+
+		for ( final boolean alphaBlend : new boolean[] { false, true } )
+			for ( final int[] translation : translations )
+			{
+				// input that is not zero-min and not an ArrayImg, output that is not an ArrayImg
+				final Img< FloatType > inImg = ArrayImgs.floats( 23, 17, 9 );
+				fillRandom( inImg, rnd, 1 );
+				final RandomAccessibleInterval< FloatType > in = Views.translate( inImg, -4, 6, 2 );
+
+				final Img< FloatType > out = new CellImgFactory<>( new FloatType(), 7 ).create( 30, 20, 8 );
+				fillRandom( out, rnd, 1 );
+
+				testCombine( in, out, translation, alphaBlend );
+			}
+	}
+
+	@Test
+	public void testLargerInput()
+	{
+		final Random rnd = new Random( seed );
+
+		// the input covers the output completely and is clipped on all sides
+		final Img< FloatType > in = ArrayImgs.floats( 50, 40, 20 );
+		final Img< FloatType > out = ArrayImgs.floats( 30, 20, 8 );
+		fillRandom( in, rnd, 1 );
+		fillRandom( out, rnd, 1 );
+
+		testCombine( in, out, new int[] { -10, -7, -5 }, false );
+	}
+}
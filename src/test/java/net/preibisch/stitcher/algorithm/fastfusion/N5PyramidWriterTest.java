@@ -0,0 +1,242 @@
+package net.preibisch.stitcher.algorithm.fastfusion;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import net.preibisch.stitcher.algorithm.fastfusion.N5RawBlockWriter.DataType;
+
+public class N5PyramidWriterTest
+{
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	// odd sizes in all dimensions, so the last blocks and the last pixels of every level are truncated
+	private static final long[] dimensions = new long[] { 21, 13, 9 };
+	private static final int[] blockSize = new int[] { 4, 4, 4 };
+
+	@Test
+	public void testLevels()
+	{
+		assertEquals( 1, N5PyramidWriter.getNumLevels( new long[] { 4, 3, 4 }, blockSize ) );
+		assertEquals( 2, N5PyramidWriter.getNumLevels( new long[] { 5, 3, 4 }, blockSize ) );
+
+		// 21x13x9 -> 11x7x5 -> 6x4x3 -> 3x2x2
+		assertEquals( 4, N5PyramidWriter.getNumLevels( dimensions, blockSize ) );
+		assertArrayEquals( new long[] { 11, 7, 5 }, N5PyramidWriter.getDownsampledDimensions( dimensions ) );
+		assertArrayEquals( new long[] { 1, 1, 1 }, N5PyramidWriter.getDownsampledDimensions( new long[] { 1, 1, 1 } ) );
+
+		assertEquals( "[4,4,4]", N5PyramidWriter.getDownsamplingFactors( 2 ) );
+		assertEquals( "[[1,1,1],[2,2,2],[4,4,4]]", N5PyramidWriter.getAllDownsamplingFactors( 3 ) );
+	}
+
+	@Test
+	public void testPyramid() throws IOException
+	{
+		testPyramid( false );
+	}
+
+	@Test
+	public void testPyramidConcurrent() throws IOException
+	{
+		testPyramid( true );
+	}
+
+	private void testPyramid( final boolean concurrent ) throws IOException
+	{
+		final File root = folder.newFolder( "fused.n5" );
+		final int numLevels = N5PyramidWriter.getNumLevels( dimensions, blockSize );
+
+		final N5PyramidWriter writer = new N5PyramidWriter( root, "setup0/timepoint0", dimensions, blockSize, DataType.FLOAT32, numLevels );
+		assertEquals( numLevels, writer.getNumLevels() );
+
+		// the expected pyramid, every level is the 2x2x2 average of the previous one
+		final List< float[] > expected = new ArrayList<>();
+		final List< long[] > levelDimensions = new ArrayList<>();
+
+		final Random rnd = new Random( 42 );
+		final float[] full = new float[ (int) ( dimensions[ 0 ] * dimensions[ 1 ] * dimensions[ 2 ] ) ];
+		for ( int i = 0; i < full.length; ++i )
+			full[ i ] = rnd.nextFloat() * 1000;
+
+		expected.add( full );
+		levelDimensions.add( dimensions );
+
+		for ( int l = 1; l < numLevels; ++l )
+		{
+			levelDimensions.add( N5PyramidWriter.getDownsampledDimensions( levelDimensions.get( l - 1 ) ) );
+			expected.add( downsample( expected.get( l - 1 ), levelDimensions.get( l - 1 ), levelDimensions.get( l ) ) );
+		}
+
+		// all blocks of the full resolution in random order
+		final List< long[] > blockMins = new ArrayList<>();
+		for ( long z = 0; z < dimensions[ 2 ]; z += blockSize[ 2 ] )
+			for ( long y = 0; y < dimensions[ 1 ]; y += blockSize[ 1 ] )
+				for ( long x = 0; x < dimensions[ 0 ]; x += blockSize[ 0 ] )
+					blockMins.add( new long[] { x, y, z } );
+
+		Collections.shuffle( blockMins, new Random( 1 ) );
+
+		( concurrent ? blockMins.parallelStream() : blockMins.stream() ).forEach( min ->
+		{
+			final int[] dims = new int[ 3 ];
+			for ( int d = 0; d < 3; ++d )
+				dims[ d ] = (int) Math.min( blockSize[ d ], dimensions[ d ] - min[ d ] );
+
+			try
+			{
+				writer.writeBlock( min, dims, crop( full, dimensions, min, dims ) );
+			}
+			catch ( final IOException e )
+			{
+				throw new RuntimeException( e );
+			}
+		});
+
+		for ( int l = 0; l < numLevels; ++l )
+		{
+			final N5RawBlockWriter level = writer.getLevels().get( l );
+			final long[] dims = levelDimensions.get( l );
+
+			assertArrayEquals( dims, level.getDimensions() );
+			assertEquals( new File( root, "setup0/timepoint0/s" + l ), level.getDatasetDir() );
+
+			final String attributes = new String( Files.readAllBytes( new File( level.getDatasetDir(), "attributes.json" ).toPath() ), StandardCharsets.UTF_8 );
+			assertTrue( attributes.contains( "\"dimensions\":[" + dims[ 0 ] + "," + dims[ 1 ] + "," + dims[ 2 ] + "]" ) );
+			assertTrue( attributes.contains( "\"downsamplingFactors\":" + N5PyramidWriter.getDownsamplingFactors( l ) ) );
+
+			// every block of the level is written with the averaged values
+			final long[] grid = level.getGridSize();
+			for ( long z = 0; z < grid[ 2 ]; ++z )
+				for ( long y = 0; y < grid[ 1 ]; ++y )
+					for ( long x = 0; x < grid[ 0 ]; ++x )
+					{
+						final long[] gridPosition = new long[] { x, y, z };
+						final int[] blockDims = level.getBlockDimensions( gridPosition );
+						final long[] min = new long[] { x * blockSize[ 0 ], y * blockSize[ 1 ], z * blockSize[ 2 ] };
+
+						final float[] block = readBlock( new File( level.getDatasetDir(), x + "/" + y + "/" + z ), blockDims );
+						final float[] reference = crop( expected.get( l ), dims, min, blockDims );
+
+						for ( int i = 0; i < block.length; ++i )
+							assertEquals( reference[ i ], block[ i ], 1e-2 );
+					}
+		}
+
+		// the coarsest level is a single block
+		final long[] coarsestGrid = writer.getLevels().get( numLevels - 1 ).getGridSize();
+		assertArrayEquals( new long[] { 1, 1, 1 }, coarsestGrid );
+	}
+
+	@Test
+	public void testUInt16() throws IOException
+	{
+		final File root = folder.newFolder( "fused16.n5" );
+		final N5PyramidWriter writer = new N5PyramidWriter( root, "setup0/timepoint0", new long[] { 2, 2, 2 }, new int[] { 2, 2, 2 }, DataType.UINT16, 2 );
+
+		writer.writeBlock( new long[] { 0, 0, 0 }, new int[] { 2, 2, 2 }, new float[] { -5, 70000, 1.6f, 2.4f, 10, 10, 10, 10 } );
+
+		// values are rounded and clamped
+		assertArrayEquals(
+				new int[] { 0, 65535, 2, 2, 10, 10, 10, 10 },
+				readShortBlock( new File( writer.getLevels().get( 0 ).getDatasetDir(), "0/0/0" ), new int[] { 2, 2, 2 } ) );
+
+		// the average is computed before rounding: ( -5 + 70000 + 1.6 + 2.4 + 40 ) / 8 = 8754.875
+		assertArrayEquals(
+				new int[] { 8755 },
+				readShortBlock( new File( writer.getLevels().get( 1 ).getDatasetDir(), "0/0/0" ), new int[] { 1, 1, 1 } ) );
+	}
+
+	private static float[] downsample( final float[] input, final long[] inDims, final long[] outDims )
+	{
+		final float[] output = new float[ (int) ( outDims[ 0 ] * outDims[ 1 ] * outDims[ 2 ] ) ];
+
+		for ( int z = 0; z < outDims[ 2 ]; ++z )
+			for ( int y = 0; y < outDims[ 1 ]; ++y )
+				for ( int x = 0; x < outDims[ 0 ]; ++x )
+				{
+					double sum = 0;
+					int count = 0;
+
+					for ( int zi = 2 * z; zi < Math.min( 2 * z + 2, inDims[ 2 ] ); ++zi )
+						for ( int yi = 2 * y; yi < Math.min( 2 * y + 2, inDims[ 1 ] ); ++yi )
+							for ( int xi = 2 * x; xi < Math.min( 2 * x + 2, inDims[ 0 ] ); ++xi )
+							{
+								sum += input[ (int) ( ( zi * inDims[ 1 ] + yi ) * inDims[ 0 ] + xi ) ];
+								++count;
+							}
+
+					output[ (int) ( ( z * outDims[ 1 ] + y ) * outDims[ 0 ] + x ) ] = (float) ( sum / count );
+				}
+
+		return output;
+	}
+
+	private static float[] crop( final float[] input, final long[] inDims, final long[] min, final int[] dims )
+	{
+		final float[] output = new float[ dims[ 0 ] * dims[ 1 ] * dims[ 2 ] ];
+
+		int i = 0;
+		for ( int z = 0; z < dims[ 2 ]; ++z )
+			for ( int y = 0; y < dims[ 1 ]; ++y )
+				for ( int x = 0; x < dims[ 0 ]; ++x )
+					output[ i++ ] = input[ (int) ( ( ( min[ 2 ] + z ) * inDims[ 1 ] + min[ 1 ] + y ) * inDims[ 0 ] + min[ 0 ] + x ) ];
+
+		return output;
+	}
+
+	private static DataInputStream openBlock( final File file, final int[] dims ) throws IOException
+	{
+		assertTrue( file.exists() );
+
+		final DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( file ) ) );
+
+		// header: mode, number of dimensions, block size
+		assertEquals( 0, in.readShort() );
+		assertEquals( dims.length, in.readShort() );
+		for ( final int s : dims )
+			assertEquals( s, in.readInt() );
+
+		return in;
+	}
+
+	private static float[] readBlock( final File file, final int[] dims ) throws IOException
+	{
+		try ( final DataInputStream in = openBlock( file, dims ) )
+		{
+			final float[] data = new float[ dims[ 0 ] * dims[ 1 ] * dims[ 2 ] ];
+			for ( int i = 0; i < data.length; ++i )
+				data[ i ] = in.readFloat();
+
+			assertEquals( -1, in.read() );
+			return data;
+		}
+	}
+
+	private static int[] readShortBlock( final File file, final int[] dims ) throws IOException
+	{
+		try ( final DataInputStream in = openBlock( file, dims ) )
+		{
+			final int[] data = new int[ dims[ 0 ] * dims[ 1 ] * dims[ 2 ] ];
+			for ( int i = 0; i < data.length; ++i )
+				data[ i ] = in.readUnsignedShort();
+
+			assertEquals( -1, in.read() );
+			return data;
+		}
+	}
+}
@@ -0,0 +1,123 @@
+package net.preibisch.stitcher.algorithm.fastfusion;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+import mpicbg.spim.data.sequence.ViewId;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.preibisch.mvrecon.fiji.spimdata.SpimData2;
+import net.preibisch.stitcher.input.FractalSpimDataGenerator;
+import net.preibisch.stitcher.plugin.Fast_Translation_Fusion;
+import net.preibisch.stitcher.plugin.Fast_Translation_Fusion.FastFusionDataType;
+import net.preibisch.stitcher.plugin.Fast_Translation_Fusion.FastFusionParameters;
+
+public class StreamingFastFusionTest
+{
+	// 2x2 tiles with 20% overlap, two illuminations each (one group)
+	private static SpimData2 createSpimData()
+	{
+		final AffineTransform3D m = new AffineTransform3D();
+		m.set( 20, 0, 0, 30,
+			   0, 20, 0, 30,
+			   0, 0, 20, 5 );
+
+		final FractalSpimDataGenerator fsdg = new FractalSpimDataGenerator( 3 );
+		fsdg.addFractal( m );
+
+		final List< Interval > intervals = FractalSpimDataGenerator.generateTileList(
+				new FinalInterval( new long[] { 0, 0, 0 }, new long[] { 39, 39, 7 } ), 2, 2, 0.2 );
+
+		return fsdg.generateSpimData( intervals, FractalSpimDataGenerator.getTileMins( intervals ) );
+	}
+
+	private static ImagePlus fuse( final SpimData2 spimData, final FastFusionParameters parameters )
+	{
+		final List< ViewId > views = new ArrayList<>( spimData.getSequenceDescription().getViewDescriptions().keySet() );
+		Collections.sort( views );
+
+		final List< ImagePlus > fused = new ArrayList<>();
+		assertTrue( Fast_Translation_Fusion.fuse( spimData, views, parameters, ( group, imp ) -> fused.add( imp ) ) );
+		assertEquals( 1, fused.size() );
+
+		return fused.get( 0 );
+	}
+
+	private static void compareBlockwiseToInMemory( final boolean useBlending )
+	{
+		final SpimData2 spimData = createSpimData();
+
+		final FastFusionParameters parameters = new FastFusionParameters();
+		parameters.useBlending = useBlending;
+		parameters.useLinearInterpolation = false;
+		parameters.dataType = FastFusionDataType.FLOAT;
+
+		final ImagePlus inMemory = fuse( spimData, parameters );
+
+		// small blocks, so that views are split over many blocks
+		final int[] blockSize = StreamingFastFusion.defaultBlockSize;
+		final ImagePlus blockwise;
+		try
+		{
+			StreamingFastFusion.defaultBlockSize = new int[] { 16, 16, 4 };
+			parameters.fuseBlockwise = true;
+			blockwise = fuse( spimData, parameters );
+		}
+		finally
+		{
+			StreamingFastFusion.defaultBlockSize = blockSize;
+		}
+
+		assertEquals( inMemory.getWidth(), blockwise.getWidth() );
+		assertEquals( inMemory.getHeight(), blockwise.getHeight() );
+		assertEquals( inMemory.getStackSize(), blockwise.getStackSize() );
+
+		// 40 + 32 pixels in x and y
+		assertEquals( 72, inMemory.getWidth() );
+		assertEquals( 72, inMemory.getHeight() );
+		assertEquals( 8, inMemory.getStackSize() );
+
+		final ImageStack s1 = inMemory.getStack();
+		final ImageStack s2 = blockwise.getStack();
+		double maxValue = 0;
+
+		for ( int z = 1; z <= s1.getSize(); ++z )
+		{
+			final ImageProcessor p1 = s1.getProcessor( z );
+			final ImageProcessor p2 = s2.getProcessor( z );
+
+			for ( int y = 0; y < s1.getHeight(); ++y )
+				for ( int x = 0; x < s1.getWidth(); ++x )
+				{
+					final float v1 = p1.getf( x, y );
+					final float v2 = p2.getf( x, y );
+					assertEquals( v1, v2, 1e-4 * Math.abs( v1 ) + 1e-3 );
+					maxValue = Math.max( maxValue, v1 );
+				}
+		}
+
+		// not an empty image
+		assertTrue( maxValue > 0 );
+	}
+
+	@Test
+	public void testBlockwiseEqualsInMemory()
+	{
+		compareBlockwiseToInMemory( false );
+	}
+
+	@Test
+	public void testBlockwiseEqualsInMemoryWithBlending()
+	{
+		compareBlockwiseToInMemory( true );
+	}
+}
@@ -0,0 +1,259 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2017 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.stitcher.algorithm.globalopt;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import mpicbg.spim.data.sequence.ViewId;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.util.Pair;
+import net.imglib2.util.ValuePair;
+import net.preibisch.mvrecon.fiji.spimdata.SpimData2;
+import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constellation.grouping.Group;
+import net.preibisch.stitcher.input.FractalSpimDataGenerator;
+
+public class PairSchedulerTest
+{
+	// 4x4 tiles, two illuminations per tile
+	private static final int n = 4;
+
+	private static SpimData2 spimData;
+	private static List< Group< ViewId > > groups;
+
+	private static synchronized void init()
+	{
+		if ( spimData != null )
+			return;
+
+		final AffineTransform3D m = new AffineTransform3D();
+		m.set( 20, 0, 0, 30,
+			   0, 20, 0, 30,
+			   0, 0, 20, 5 );
+
+		final FractalSpimDataGenerator fsdg = new FractalSpimDataGenerator( 3 );
+		fsdg.addFractal( m );
+
+		final List< Interval > intervals = FractalSpimDataGenerator.generateTileList(
+				new FinalInterval( new long[] { 0, 0, 0 }, new long[] { 39, 39, 7 } ), n, n, 0.2 );
+
+		spimData = fsdg.generateSpimData( intervals, FractalSpimDataGenerator.getTileMins( intervals ) );
+
+		// tile x * n + y is at grid position (x, y), its illuminations are setups 2i and 2i+1
+		groups = new ArrayList<>();
+		for ( int i = 0; i < n * n; ++i )
+		{
+			final Group< ViewId > g = new Group<>();
+			g.getViews().add( new ViewId( 0, 2 * i ) );
+			g.getViews().add( new ViewId( 0, 2 * i + 1 ) );
+			groups.add( g );
+		}
+	}
+
+	/**
+	 * @return all pairs of horizontally and vertically adjacent tiles in random order
+	 */
+	private static List< Pair< Group< ViewId >, Group< ViewId > > > createPairs()
+	{
+		init();
+
+		final List< Pair< Group< ViewId >, Group< ViewId > > > pairs = new ArrayList<>();
+		for ( int x = 0; x < n; ++x )
+			for ( int y = 0; y < n; ++y )
+			{
+				if ( x + 1 < n )
+					pairs.add( new ValuePair<>( groups.get( x * n + y ), groups.get( ( x + 1 ) * n + y ) ) );
+				if ( y + 1 < n )
+					pairs.add( new ValuePair<>( groups.get( x * n + y ), groups.get( x * n + y + 1 ) ) );
+			}
+
+		Collections.shuffle( pairs, new Random( 1 ) );
+		return pairs;
+	}
+
+	private static PairScheduler< ViewId > createScheduler( final List< Pair< Group< ViewId >, Group< ViewId > > > pairs )
+	{
+		return new PairScheduler<>( pairs, spimData.getViewRegistrations(), spimData.getSequenceDescription() );
+	}
+
+	/**
+	 * @return the maximal number of groups that are started but not finished when computing the pairs in the given order
+	 */
+	private static int maxResidentGroups( final List< Pair< Group< ViewId >, Group< ViewId > > > pairs )
+	{
+		final HashMap< Group< ViewId >, Integer > remaining = new HashMap<>();
+		for ( final Pair< Group< ViewId >, Group< ViewId > > p : pairs )
+		{
+			remaining.put( p.getA(), remaining.getOrDefault( p.getA(), 0 ) + 1 );
+			remaining.put( p.getB(), remaining.getOrDefault( p.getB(), 0 ) + 1 );
+		}
+
+		final HashSet< Group< ViewId > > resident = new HashSet<>();
+		int max = 0;
+
+		for ( final Pair< Group< ViewId >, Group< ViewId > > p : pairs )
+		{
+			resident.add( p.getA() );
+			resident.add( p.getB() );
+			max = Math.max( max, resident.size() );
+
+			remaining.put( p.getA(), remaining.get( p.getA() ) - 1 );
+			remaining.put( p.getB(), remaining.get( p.getB() ) - 1 );
+
+			if ( remaining.get( p.getA() ) == 0 )
+				resident.remove( p.getA() );
+			if ( remaining.get( p.getB() ) == 0 )
+				resident.remove( p.getB() );
+		}
+
+		return max;
+	}
+
+	@Test
+	public void testOrder()
+	{
+		final List< Pair< Group< ViewId >, Group< ViewId > > > pairs = createPairs();
+		final List< Pair< Group< ViewId >, Group< ViewId > > > ordered = createScheduler( pairs ).getOrderedPairs();
+
+		// every pair exactly once
+		assertEquals( pairs.size(), ordered.size() );
+		assertEquals( new HashSet<>( pairs ), new HashSet<>( ordered ) );
+
+		// we start at the corner
+		final Pair< Group< ViewId >, Group< ViewId > > first = ordered.get( 0 );
+		assertTrue( first.getA() == groups.get( 0 ) || first.getB() == groups.get( 0 ) );
+
+		// the wavefront only keeps about one row of tiles resident, the random order most of them
+		assertTrue( maxResidentGroups( ordered ) <= n + 1 );
+		assertTrue( maxResidentGroups( ordered ) < maxResidentGroups( pairs ) );
+	}
+
+	@Test
+	public void testPairFinished()
+	{
+		final PairScheduler< ViewId > scheduler = createScheduler( createPairs() );
+		final List< Pair< Group< ViewId >, Group< ViewId > > > ordered = scheduler.getOrderedPairs();
+
+		final HashSet< Group< ViewId > > finished = new HashSet<>();
+
+		for ( int i = 0; i < ordered.size(); ++i )
+		{
+			for ( final Group< ViewId > g : scheduler.pairFinished( ordered.get( i ) ) )
+			{
+				// a group is finished exactly once, after its last pair
+				assertTrue( finished.add( g ) );
+				for ( int j = i + 1; j < ordered.size(); ++j )
+					assertFalse( ordered.get( j ).getA() == g || ordered.get( j ).getB() == g );
+			}
+		}
+
+		assertEquals( groups.size(), finished.size() );
+	}
+
+	@Test
+	public void testBatches()
+	{
+		final PairScheduler< ViewId > scheduler = createScheduler( createPairs() );
+		final List< Pair< Group< ViewId >, Group< ViewId > > > ordered = scheduler.getOrderedPairs();
+
+		// unlimited
+		for ( final List< Integer > batch : scheduler.getBatches( 5, 0 ) )
+			assertTrue( batch.size() == 5 || batch.size() == ordered.size() % 5 );
+
+		// resident views
+		final int maxResidentViews = 8;
+		final List< List< Integer > > batches = scheduler.getBatches( 5, maxResidentViews );
+		assertConsecutive( batches, ordered.size() );
+
+		final HashMap< Group< ViewId >, Integer > remaining = new HashMap<>();
+		for ( final Pair< Group< ViewId >, Group< ViewId > > p : ordered )
+		{
+			remaining.put( p.getA(), remaining.getOrDefault( p.getA(), 0 ) + 1 );
+			remaining.put( p.getB(), remaining.getOrDefault( p.getB(), 0 ) + 1 );
+		}
+
+		final HashSet< Group< ViewId > > resident = new HashSet<>();
+		for ( final List< Integer > batch : batches )
+		{
+			assertTrue( batch.size() <= 5 );
+
+			for ( final int i : batch )
+			{
+				resident.add( ordered.get( i ).getA() );
+				resident.add( ordered.get( i ).getB() );
+			}
+
+			// two views per group, a single pair is always allowed
+			assertTrue( batch.size() == 1 || 2 * resident.size() <= maxResidentViews );
+
+			for ( final int i : batch )
+			{
+				remaining.put( ordered.get( i ).getA(), remaining.get( ordered.get( i ).getA() ) - 1 );
+				remaining.put( ordered.get( i ).getB(), remaining.get( ordered.get( i ).getB() ) - 1 );
+			}
+
+			resident.removeIf( g -> remaining.get( g ) == 0 );
+		}
+
+		// memory budget of two pairs
+		final long[] memoryPerPair = new long[ ordered.size() ];
+		for ( int i = 0; i < memoryPerPair.length; ++i )
+			memoryPerPair[ i ] = 10;
+
+		final List< List< Integer > > memoryBatches = scheduler.getBatches( 5, 0, memoryPerPair, 25 );
+		assertConsecutive( memoryBatches, ordered.size() );
+		for ( final List< Integer > batch : memoryBatches )
+			assertTrue( batch.size() <= 2 );
+
+		// a pair that exceeds the budget on its own is still computed
+		memoryPerPair[ 0 ] = 100;
+		final List< List< Integer > > largeBatches = scheduler.getBatches( 5, 0, memoryPerPair, 25 );
+		assertConsecutive( largeBatches, ordered.size() );
+		assertEquals( 1, largeBatches.get( 0 ).size() );
+	}
+
+	/**
+	 * every index is in exactly one batch, in order
+	 */
+	private static void assertConsecutive( final List< List< Integer > > batches, final int numPairs )
+	{
+		int next = 0;
+		for ( final List< Integer > batch : batches )
+		{
+			assertFalse( batch.isEmpty() );
+			for ( final int i : batch )
+				assertEquals( next++, i );
+		}
+
+		assertEquals( numPairs, next );
+	}
+}
@@ -0,0 +1,203 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2017 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.stitcher.algorithm.globalopt;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import mpicbg.spim.data.registration.ViewRegistration;
+import mpicbg.spim.data.registration.ViewRegistrations;
+import mpicbg.spim.data.registration.ViewTransformAffine;
+import mpicbg.spim.data.sequence.Channel;
+import mpicbg.spim.data.sequence.Illumination;
+import mpicbg.spim.data.sequence.ViewId;
+import net.imglib2.FinalRealInterval;
+import net.imglib2.RealInterval;
+import net.imglib2.realtransform.AffineGet;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.realtransform.Translation3D;
+import net.imglib2.util.Pair;
+import net.imglib2.util.ValuePair;
+import net.preibisch.mvrecon.fiji.spimdata.stitchingresults.PairwiseStitchingResult;
+import net.preibisch.mvrecon.fiji.spimdata.stitchingresults.StitchingResults;
+import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constellation.grouping.Group;
+import net.preibisch.stitcher.algorithm.GroupedViewAggregator;
+import net.preibisch.stitcher.algorithm.GroupedViewAggregator.ActionType;
+import net.preibisch.stitcher.algorithm.PairwiseStitchingParameters;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class PairwiseJournalTest
+{
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static final long[] ds = new long[] { 2, 2, 1 };
+
+	private static Pair< Group< ViewId >, Group< ViewId > > pair( final int setupA, final int setupB )
+	{
+		return new ValuePair<>(
+				new Group<>( Arrays.asList( new ViewId( 0, setupA ) ) ),
+				new Group<>( Arrays.asList( new ViewId( 0, setupB ) ) ) );
+	}
+
+	private static GroupedViewAggregator aggregator( final ActionType channelAction )
+	{
+		final GroupedViewAggregator gva = new GroupedViewAggregator();
+		gva.addAction( ActionType.AVERAGE, Illumination.class, null );
+		gva.addAction( channelAction, Channel.class, channelAction == ActionType.PICK_SPECIFIC ? new Channel( 0 ) : null );
+		return gva;
+	}
+
+	private File writeJournal( final PairwiseStitchingParameters params, final GroupedViewAggregator gva ) throws IOException
+	{
+		final File file = new File( folder.getRoot(), "journal.txt" );
+		final PairwiseJournal journal = new PairwiseJournal( file, params, gva, ds, false );
+
+		final Pair< Pair< AffineGet, Double >, RealInterval > result = new ValuePair<>(
+				new ValuePair<>( new Translation3D( 1.5, -2, 3 ), 0.75 ),
+				new FinalRealInterval( new double[] { 0, 0, 0 }, new double[] { 10, 20, 30 } ) );
+
+		journal.append( pair( 0, 1 ), 42.0, result );
+		journal.append( pair( 1, 2 ), 43.0, null );
+		assertEquals( 2, journal.numEntries() );
+
+		return file;
+	}
+
+	@Test
+	public void testReload() throws IOException
+	{
+		final PairwiseStitchingParameters params = new PairwiseStitchingParameters();
+		final File file = writeJournal( params, aggregator( ActionType.PICK_BRIGHTEST ) );
+
+		final PairwiseJournal journal = new PairwiseJournal( file, params, aggregator( ActionType.PICK_BRIGHTEST ), ds, true );
+		assertEquals( 2, journal.numEntries() );
+
+		// same pair with same or changed registrations, pair in the other order
+		assertTrue( journal.contains( pair( 0, 1 ), 42.0 ) );
+		assertFalse( journal.contains( pair( 0, 1 ), 41.0 ) );
+		assertFalse( journal.contains( pair( 1, 0 ), 42.0 ) );
+		assertFalse( journal.contains( pair( 0, 2 ), 42.0 ) );
+
+		final Pair< Pair< AffineGet, Double >, RealInterval > result = journal.get( pair( 0, 1 ) );
+		assertNotNull( result );
+		assertEquals( 0.75, result.getA().getB(), 0 );
+		assertEquals( 1.5, result.getA().getA().get( 0, 3 ), 0 );
+		assertEquals( -2, result.getA().getA().get( 1, 3 ), 0 );
+		assertEquals( 3, result.getA().getA().get( 2, 3 ), 0 );
+		assertEquals( 30, result.getB().realMax( 2 ), 0 );
+
+		// a pair without shift is journaled as well
+		assertTrue( journal.contains( pair( 1, 2 ), 43.0 ) );
+		assertNull( journal.get( pair( 1, 2 ) ) );
+	}
+
+	@Test
+	public void testNoResume() throws IOException
+	{
+		final PairwiseStitchingParameters params = new PairwiseStitchingParameters();
+		final File file = writeJournal( params, null );
+
+		final PairwiseJournal journal = new PairwiseJournal( file, params, null, ds, false );
+		assertEquals( 0, journal.numEntries() );
+		assertEquals( 0, file.length() );
+	}
+
+	@Test
+	public void testParameterChangeInvalidates() throws IOException
+	{
+		final PairwiseStitchingParameters params = new PairwiseStitchingParameters();
+		final File file = writeJournal( params, aggregator( ActionType.PICK_BRIGHTEST ) );
+
+		// other aggregation of the groups
+		assertEquals( 0, new PairwiseJournal( file, params, aggregator( ActionType.PICK_SPECIFIC ), ds, true ).numEntries() );
+		assertEquals( 0, new PairwiseJournal( file, params, null, ds, true ).numEntries() );
+
+		// other downsampling
+		assertEquals( 0, new PairwiseJournal( file, params, aggregator( ActionType.PICK_BRIGHTEST ), new long[] { 4, 4, 2 }, true ).numEntries() );
+
+		// other pairwise parameters
+		final PairwiseStitchingParameters other = new PairwiseStitchingParameters();
+		other.peaksToCheck = params.peaksToCheck + 1;
+		assertEquals( 0, new PairwiseJournal( file, other, aggregator( ActionType.PICK_BRIGHTEST ), ds, true ).numEntries() );
+
+		// the original entries are still in the file
+		assertEquals( 2, new PairwiseJournal( file, params, aggregator( ActionType.PICK_BRIGHTEST ), ds, true ).numEntries() );
+	}
+
+	@Test
+	public void testPairsToRecompute() throws IOException
+	{
+		final ArrayList< ViewRegistration > registrations = new ArrayList<>();
+		for ( int setup = 0; setup < 5; ++setup )
+		{
+			final AffineTransform3D t = new AffineTransform3D();
+			t.set( 100 * setup, 0, 3 );
+			registrations.add( new ViewRegistration( 0, setup, t ) );
+		}
+
+		final ViewRegistrations vrs = new ViewRegistrations( registrations );
+		final StitchingResults stitchingResults = new StitchingResults();
+
+		final Pair< Group< ViewId >, Group< ViewId > > unchanged = pair( 0, 1 );
+		final Pair< Group< ViewId >, Group< ViewId > > moved = pair( 1, 2 );
+		final Pair< Group< ViewId >, Group< ViewId > > filtered = pair( 2, 3 );
+		final Pair< Group< ViewId >, Group< ViewId > > notComputed = pair( 3, 4 );
+
+		for ( final Pair< Group< ViewId >, Group< ViewId > > p : Arrays.asList( unchanged, moved ) )
+			stitchingResults.setPairwiseResultForPair( p, new PairwiseStitchingResult<>( p,
+					new FinalRealInterval( new double[ 3 ], new double[] { 1, 1, 1 } ),
+					new Translation3D(), 1.0, TransformationTools.calculateHash( p, vrs ) ) );
+
+		// view 2 was moved after the pairs were computed
+		final AffineTransform3D shift = new AffineTransform3D();
+		shift.set( 10, 1, 3 );
+		vrs.getViewRegistration( new ViewId( 0, 2 ) ).preconcatenateTransform( new ViewTransformAffine( "moved", shift ) );
+		vrs.getViewRegistration( new ViewId( 0, 2 ) ).updateModel();
+
+		// a pair that was computed with the current registrations, but has no result (no shift found or filtered)
+		final PairwiseStitchingParameters params = new PairwiseStitchingParameters();
+		final PairwiseJournal journal = new PairwiseJournal( new File( folder.getRoot(), "recompute.txt" ), params, null, ds, false );
+		journal.append( filtered, TransformationTools.calculateHash( filtered, vrs ), null );
+
+		final List< Pair< Group< ViewId >, Group< ViewId > > > pairs = Arrays.asList( unchanged, moved, filtered, notComputed );
+
+		assertEquals( Arrays.asList( moved, notComputed ), TransformationTools.getPairsToRecompute( pairs, stitchingResults, vrs, journal ) );
+
+		// without a journal, we cannot know that the pair was computed before
+		assertEquals( Arrays.asList( moved, filtered, notComputed ), TransformationTools.getPairsToRecompute( pairs, stitchingResults, vrs, null ) );
+
+		// once the filtered pair is moved, it is computed again
+		vrs.getViewRegistration( new ViewId( 0, 3 ) ).preconcatenateTransform( new ViewTransformAffine( "moved", shift ) );
+		vrs.getViewRegistration( new ViewId( 0, 3 ) ).updateModel();
+
+		assertEquals( Arrays.asList( moved, filtered, notComputed ), TransformationTools.getPairsToRecompute( pairs, stitchingResults, vrs, journal ) );
+	}
+}
@@ -0,0 +1,144 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2017 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.stitcher.algorithm.globalopt;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import mpicbg.spim.data.registration.ViewRegistration;
+import mpicbg.spim.data.registration.ViewTransformAffine;
+import mpicbg.spim.data.sequence.Illumination;
+import mpicbg.spim.data.sequence.ViewId;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.algorithm.phasecorrelation.SpectrumCache;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.util.Pair;
+import net.imglib2.util.ValuePair;
+import net.preibisch.mvrecon.fiji.spimdata.SpimData2;
+import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constellation.grouping.Group;
+import net.preibisch.stitcher.algorithm.GroupedViewAggregator;
+import net.preibisch.stitcher.algorithm.GroupedViewAggregator.ActionType;
+import net.preibisch.stitcher.algorithm.PairwiseStitchingParameters;
+import net.preibisch.stitcher.input.FractalSpimDataGenerator;
+
+public class TransformationToolsTest
+{
+	private static final long[] ds = new long[] { 1, 1, 1 };
+
+	private static SpimData2 createSpimData()
+	{
+		final AffineTransform3D m = new AffineTransform3D();
+		m.set( 20, 0, 0, 30,
+			   0, 20, 0, 30,
+			   0, 0, 20, 5 );
+
+		final FractalSpimDataGenerator fsdg = new FractalSpimDataGenerator( 3 );
+		fsdg.addFractal( m );
+
+		final List< Interval > intervals = FractalSpimDataGenerator.generateTileList(
+				new FinalInterval( new long[] { 0, 0, 0 }, new long[] { 39, 39, 7 } ), 2, 2, 0.2 );
+
+		return fsdg.generateSpimData( intervals, FractalSpimDataGenerator.getTileMins( intervals ) );
+	}
+
+	/**
+	 * all pairs of tiles, the two illuminations of a tile are grouped
+	 */
+	private static List< Pair< Group< ViewId >, Group< ViewId > > > createPairs()
+	{
+		final List< Group< ViewId > > groups = new ArrayList<>();
+		for ( int i = 0; i < 4; ++i )
+		{
+			final Group< ViewId > group = new Group<>( new ViewId( 0, 2 * i ) );
+			group.getViews().add( new ViewId( 0, 2 * i + 1 ) );
+			groups.add( group );
+		}
+
+		final List< Pair< Group< ViewId >, Group< ViewId > > > pairs = new ArrayList<>();
+		for ( int i = 0; i < groups.size(); ++i )
+			for ( int j = i + 1; j < groups.size(); ++j )
+				pairs.add( new ValuePair<>( groups.get( i ), groups.get( j ) ) );
+
+		return pairs;
+	}
+
+	@Test
+	public void testSpectraAreKeptAcrossRuns()
+	{
+		final SpimData2 spimData = createSpimData();
+		final List< Pair< Group< ViewId >, Group< ViewId > > > pairs = createPairs();
+
+		final GroupedViewAggregator gva = new GroupedViewAggregator();
+		gva.addAction( ActionType.AVERAGE, Illumination.class, null );
+
+		final PairwiseStitchingParameters params = new PairwiseStitchingParameters();
+		params.cacheSpectra = true;
+
+		final SpectrumCache cache = SpectrumCache.getInstance();
+		final boolean releaseCaches = TransformationTools.releaseCachesAfterComputation;
+		TransformationTools.releaseCachesAfterComputation = false;
+
+		try
+		{
+			cache.clear();
+			cache.resetStatistics();
+
+			TransformationTools.computePairs( pairs, params, spimData.getViewRegistrations(), spimData.getSequenceDescription(), gva, ds );
+
+			final long numSpectra = cache.getMisses();
+			assertTrue( numSpectra > 0 );
+			assertEquals( 0, cache.getHits() );
+			cache.resetStatistics();
+
+			// other peaksToCheck, same overlaps -> all spectra are re-used
+			params.peaksToCheck = params.peaksToCheck + 1;
+			TransformationTools.computePairs( pairs, params, spimData.getViewRegistrations(), spimData.getSequenceDescription(), gva, ds );
+
+			assertEquals( numSpectra, cache.getHits() );
+			assertEquals( 0, cache.getMisses() );
+			cache.resetStatistics();
+
+			// moving one view invalidates the spectra of its group
+			final ViewRegistration vr = spimData.getViewRegistrations().getViewRegistration( new ViewId( 0, 0 ) );
+			final AffineTransform3D shift = new AffineTransform3D();
+			shift.set( 0.5, 0, 3 );
+			vr.preconcatenateTransform( new ViewTransformAffine( "test shift", shift ) );
+			vr.updateModel();
+
+			TransformationTools.computePairs( pairs, params, spimData.getViewRegistrations(), spimData.getSequenceDescription(), gva, ds );
+
+			assertTrue( cache.getMisses() > 0 );
+			assertTrue( cache.getHits() > 0 );
+		}
+		finally
+		{
+			TransformationTools.releaseCachesAfterComputation = releaseCaches;
+			TransformationTools.releaseCaches();
+			cache.clear();
+		}
+	}
+}